@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 基准测试的计时和内存测量
+ */
+public final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * 重复执行，返回最短的一次耗时，以排除预热和偶发的GC
+     *
+     * @return 最短耗时，单位为纳秒
+     */
+    public static long bestOf(int rounds, @NonNull Runnable task) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * GC后已使用的Java堆，两次调用的差即期间新分配且仍被持有的对象的大小
+     *
+     * @return 已使用的Java堆，单位为字节
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
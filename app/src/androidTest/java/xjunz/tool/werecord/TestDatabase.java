@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.Closeable;
+import java.io.File;
+
+import xjunz.tool.werecord.util.StatementCache;
+
+/**
+ * 仪器测试共用的加密数据库，建在目标应用的缓存目录中，每次创建前和关闭后都会删除
+ */
+public final class TestDatabase implements Closeable {
+    private static final String PASSWORD = "test";
+    private final File mFile;
+    public final SQLiteDatabase database;
+
+    private TestDatabase(@NonNull File file) {
+        mFile = file;
+        delete();
+        database = SQLiteDatabase.openOrCreateDatabase(file, PASSWORD, null);
+    }
+
+    /**
+     * 加载SQLCipher的原生库，并新建一个空的加密数据库
+     *
+     * @param name 数据库文件名
+     */
+    @NonNull
+    public static TestDatabase create(@NonNull String name) {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        SQLiteDatabase.loadLibs(context);
+        return new TestDatabase(new File(context.getCacheDir(), name));
+    }
+
+    /**
+     * 在一个事务中执行，用于批量插入测试数据
+     */
+    public void inTransaction(@NonNull Runnable runnable) {
+        database.beginTransaction();
+        try {
+            runnable.run();
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private void delete() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(mFile.getPath() + "-journal").delete();
+    }
+
+    /**
+     * 释放语句缓存，关闭并删除数据库
+     */
+    @Override
+    public void close() {
+        StatementCache.release(database);
+        database.close();
+        delete();
+    }
+}
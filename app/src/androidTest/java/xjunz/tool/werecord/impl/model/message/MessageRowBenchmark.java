@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord.impl.model.message;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import xjunz.tool.werecord.Benchmarks;
+import xjunz.tool.werecord.TestDatabase;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 对比以{@link ContentValues}和{@link MessageRow}读取、访问消息行的耗时，以及持有全部行时的堆占用和筛选、排序的耗时，
+ * 在加密数据库上运行，结果输出到logcat
+ * <p>
+ * 运行：{@code ./gradlew connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=xjunz.tool.werecord.impl.model.message.MessageRowBenchmark}，
+ * 然后{@code adb logcat -s MessageRowBenchmark}
+ * </p>
+ */
+public class MessageRowBenchmark {
+    private static final String TAG = "MessageRowBenchmark";
+    private static final int ROW_COUNT = 100000;
+    private static final int ROUNDS = 5;
+    private static final String SQL = "select * from message";
+    private static final String FILTER_TALKER = "wxid_7";
+    private TestDatabase mTestDatabase;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mTestDatabase = TestDatabase.create("message_row_benchmark.db");
+        mDatabase = mTestDatabase.database;
+        mDatabase.execSQL("create table message (msgId INTEGER PRIMARY KEY, msgSvrId INTEGER, type INT, status INT, isSend INT, "
+                + "isShowTimer INTEGER, createTime INTEGER, talker TEXT, content TEXT, imgPath TEXT, reserved TEXT, lvbuffer BLOB, "
+                + "transContent TEXT, transBrandWording TEXT, talkerId INTEGER, bizClientMsgId TEXT, bizChatId INTEGER, "
+                + "bizChatUserId TEXT, msgSeq INTEGER, flag INT)");
+        byte[] lvBuffer = new byte[64];
+        mTestDatabase.inTransaction(() -> {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                mDatabase.execSQL("insert into message (msgId,msgSvrId,type,status,isSend,createTime,talker,content,imgPath,lvbuffer,talkerId,flag) "
+                                + "values(?,?,?,?,?,?,?,?,?,?,?,?)",
+                        new Object[]{i, 7000000000000000000L + i, 1, 3, i % 2, 1600000000000L + i, "wxid_" + i % 100,
+                                "message content " + i, i % 5 == 0 ? "THUMBNAIL_DIRPATH://th_" + i : null, lvBuffer, i % 100, 0});
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mTestDatabase.close();
+    }
+
+    /**
+     * 改动前的实现：每一行都生成一个{@link ContentValues}，逐列按名称读取
+     */
+    private ContentValues toContentValues(Cursor cursor) {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                values.put(cursor.getColumnName(i), cursor.getBlob(i));
+            } else {
+                values.put(cursor.getColumnName(i), cursor.getString(i));
+            }
+        }
+        return values;
+    }
+
+    private long readAsContentValues() {
+        long checksum = 0;
+        try (Cursor cursor = mDatabase.rawQuery(SQL, null)) {
+            while (cursor.moveToNext()) {
+                ContentValues values = toContentValues(cursor);
+                checksum += values.getAsLong(Message.KEY_MSG_ID) + values.getAsInteger(Message.KEY_TYPE)
+                        + values.getAsLong(Message.KEY_CREATE_TIME) + values.getAsString(Message.KEY_CONTENT).length()
+                        + values.getAsString(Message.KEY_TALKER).length();
+            }
+        }
+        return checksum;
+    }
+
+    private long readAsMessageRows() {
+        long checksum = 0;
+        try (Cursor cursor = mDatabase.rawQuery(SQL, null)) {
+            MessageRow.Layout layout = MessageRow.Layout.of(cursor);
+            while (cursor.moveToNext()) {
+                MessageRow row = MessageRow.read(cursor, layout);
+                checksum += row.getNumber(MessageRow.MSG_ID) + row.getNumber(MessageRow.TYPE)
+                        + row.getNumber(MessageRow.CREATE_TIME) + row.getContent().length() + row.getTalker().length();
+            }
+        }
+        return checksum;
+    }
+
+    private List<ContentValues> readAllAsContentValues() {
+        List<ContentValues> all = new ArrayList<>(ROW_COUNT);
+        try (Cursor cursor = mDatabase.rawQuery(SQL, null)) {
+            while (cursor.moveToNext()) {
+                all.add(toContentValues(cursor));
+            }
+        }
+        return all;
+    }
+
+    private List<MessageRow> readAllAsMessageRows() {
+        List<MessageRow> all = new ArrayList<>(ROW_COUNT);
+        try (Cursor cursor = mDatabase.rawQuery(SQL, null)) {
+            MessageRow.Layout layout = MessageRow.Layout.of(cursor);
+            while (cursor.moveToNext()) {
+                all.add(MessageRow.read(cursor, layout));
+            }
+        }
+        return all;
+    }
+
+    /**
+     * 与消息列表的用法相同：筛选某个会话的文本消息，再按时间倒序排列
+     */
+    private static List<ContentValues> filterAndSortContentValues(List<ContentValues> all) {
+        List<ContentValues> result = new ArrayList<>();
+        for (ContentValues values : all) {
+            if (FILTER_TALKER.equals(values.getAsString(Message.KEY_TALKER)) && values.getAsInteger(Message.KEY_TYPE) == 1) {
+                result.add(values);
+            }
+        }
+        Collections.sort(result, (o1, o2) -> Long.compare(o2.getAsLong(Message.KEY_CREATE_TIME), o1.getAsLong(Message.KEY_CREATE_TIME)));
+        return result;
+    }
+
+    private static List<MessageRow> filterAndSortMessageRows(List<MessageRow> all) {
+        List<MessageRow> result = new ArrayList<>();
+        for (MessageRow row : all) {
+            if (FILTER_TALKER.equals(row.getTalker()) && row.getNumber(MessageRow.TYPE) == 1) {
+                result.add(row);
+            }
+        }
+        Collections.sort(result, (o1, o2) -> Long.compare(o2.getNumber(MessageRow.CREATE_TIME), o1.getNumber(MessageRow.CREATE_TIME)));
+        return result;
+    }
+
+    @Test
+    public void compare() {
+        assertEquals(readAsContentValues(), readAsMessageRows());
+        long contentValues = Benchmarks.bestOf(ROUNDS, this::readAsContentValues);
+        long messageRows = Benchmarks.bestOf(ROUNDS, this::readAsMessageRows);
+        Log.i(TAG, String.format("%d rows: ContentValues %.1fms, MessageRow %.1fms (best of %d)",
+                ROW_COUNT, contentValues / 1e6, messageRows / 1e6, ROUNDS));
+    }
+
+    /**
+     * 持有全部行时占用的Java堆，以及在已加载的行上筛选、排序的耗时
+     */
+    @Test
+    public void compareHeldRows() {
+        long before = Benchmarks.usedHeap();
+        List<ContentValues> allValues = readAllAsContentValues();
+        long valuesHeap = Benchmarks.usedHeap() - before;
+        List<MessageRow> allRows = readAllAsMessageRows();
+        long rowsHeap = Benchmarks.usedHeap() - before - valuesHeap;
+        List<ContentValues> filteredValues = filterAndSortContentValues(allValues);
+        List<MessageRow> filteredRows = filterAndSortMessageRows(allRows);
+        assertEquals(filteredValues.size(), filteredRows.size());
+        for (int i = 0; i < filteredRows.size(); i++) {
+            assertEquals((long) filteredValues.get(i).getAsLong(Message.KEY_MSG_ID), filteredRows.get(i).getNumber(MessageRow.MSG_ID));
+        }
+        long valuesSort = Benchmarks.bestOf(ROUNDS, () -> filterAndSortContentValues(allValues));
+        long rowsSort = Benchmarks.bestOf(ROUNDS, () -> filterAndSortMessageRows(allRows));
+        Log.i(TAG, String.format("%d rows held: ContentValues %.1fMB, MessageRow %.1fMB", ROW_COUNT,
+                valuesHeap / 1048576.0, rowsHeap / 1048576.0));
+        Log.i(TAG, String.format("filter and sort %d rows: ContentValues %.1fms, MessageRow %.1fms (best of %d)",
+                ROW_COUNT, valuesSort / 1e6, rowsSort / 1e6, ROUNDS));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord.impl.repo;
+
+import android.util.Log;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import xjunz.tool.werecord.Benchmarks;
+import xjunz.tool.werecord.TestDatabase;
+import xjunz.tool.werecord.impl.Environment;
+import xjunz.tool.werecord.impl.model.message.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在加密数据库上模拟大的群聊，测量{@link MessageRepository}加载消息的耗时和内存，结果输出到logcat
+ * <p>
+ * 仓库直接读取测试数据库，环境未初始化，因此不会使用{@link xjunz.tool.werecord.impl.model.message.MessageParseCache}。
+ * 消息都是群聊中收到的文本消息，访问时需要解析发送者。
+ * </p>
+ * <p>
+ * 运行：{@code ./gradlew connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=xjunz.tool.werecord.impl.repo.MessageRepositoryBenchmark}，
+ * 然后{@code adb logcat -s MessageRepositoryBenchmark}
+ * </p>
+ */
+public class MessageRepositoryBenchmark {
+    private static final String TAG = "MessageRepositoryBenchmark";
+    private static final String TALKER = "12345678@chatroom";
+    private static final int ROUNDS = 3;
+    /**
+     * 与{@link xjunz.tool.werecord.ui.message.MessageActivity#loadAllMessages(Runnable)}的每页消息数相同
+     */
+    private static final int PAGE_SIZE = 2000;
+    /**
+     * 流式读取时允许的堆增长，即读取窗口和缓冲的消息的上限
+     */
+    private static final long MAX_STREAM_HEAP_GROWTH = 32 * 1048576L;
+    private TestDatabase mTestDatabase;
+    private SQLiteDatabase mDatabase;
+    private MessageRepository mRepository;
+
+    @Before
+    public void setUp() {
+        mTestDatabase = TestDatabase.create("message_repository_benchmark.db");
+        mDatabase = mTestDatabase.database;
+        mDatabase.execSQL("create table message (msgId INTEGER PRIMARY KEY, msgSvrId INTEGER, type INT, status INT, isSend INT, "
+                + "isShowTimer INTEGER, createTime INTEGER, talker TEXT, content TEXT, imgPath TEXT, reserved TEXT, lvbuffer BLOB, "
+                + "transContent TEXT, transBrandWording TEXT, talkerId INTEGER, bizClientMsgId TEXT, bizChatId INTEGER, "
+                + "bizChatUserId TEXT, msgSeq INTEGER, flag INT)");
+        mDatabase.execSQL("create index messageTalkerCreateTimeIndex on message (talker, createTime)");
+        if (Environment.getInstance() == null) {
+            Environment.create();
+        }
+        mRepository = new MessageRepository() {
+            @Override
+            protected SQLiteDatabase getDatabase() {
+                return mDatabase;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mTestDatabase.close();
+    }
+
+    private void insertMessages(int count) {
+        byte[] lvBuffer = new byte[64];
+        byte[] reserved = new byte[128];
+        mTestDatabase.inTransaction(() -> {
+            try (SQLiteStatement insert = mDatabase.compileStatement("insert into message (msgId,msgSvrId,type,status,isSend,"
+                    + "createTime,talker,content,reserved,lvbuffer,talkerId,flag) values(?,?,?,?,?,?,?,?,?,?,?,?)")) {
+                for (int i = 0; i < count; i++) {
+                    insert.bindLong(1, i + 1);
+                    insert.bindLong(2, 7000000000000000000L + i);
+                    insert.bindLong(3, 1);
+                    insert.bindLong(4, 3);
+                    insert.bindLong(5, 0);
+                    insert.bindLong(6, 1600000000000L + i);
+                    insert.bindString(7, TALKER);
+                    insert.bindString(8, "wxid_" + i % 200 + ":\n群聊消息 &amp; content " + i);
+                    insert.bindBlob(9, reserved);
+                    insert.bindBlob(10, lvBuffer);
+                    insert.bindLong(11, 1);
+                    insert.bindLong(12, 0);
+                    insert.executeInsert();
+                }
+            }
+        });
+    }
+
+    /**
+     * 与{@link xjunz.tool.werecord.ui.message.MessageActivity#loadAllMessages(Runnable)}相同，以键集分页逐页向更早的消息加载
+     */
+    private List<Message> loadAllMessages() {
+        List<Message> all = new ArrayList<>();
+        MessageRepository.PageCursor cursor = MessageRepository.PageCursor.NEWEST;
+        while (true) {
+            List<Message> page = mRepository.queryMessagePage(TALKER, cursor, MessageRepository.DIRECTION_OLDER, PAGE_SIZE);
+            all.addAll(page);
+            if (page.size() < PAGE_SIZE) {
+                return all;
+            }
+            cursor = MessageRepository.PageCursor.of(page.get(page.size() - 1));
+        }
+    }
+
+    /**
+     * 访问列表和搜索会用到的内容，即延迟解析之前构造消息时就要完成的解析
+     */
+    private static long parseAll(List<Message> messages) {
+        long checksum = 0;
+        for (Message message : messages) {
+            checksum += message.getSenderId().length() + message.getParsedContent().length();
+        }
+        return checksum;
+    }
+
+    /**
+     * 加载十万条消息的耗时，以及再解析全部消息的耗时。后者即构造时立即解析所要多花的时间，只有被访问的消息才需要付出
+     */
+    @Test
+    public void loadAllMessagesOfLargeChat() {
+        int count = 100000;
+        insertMessages(count);
+        assertEquals(count, loadAllMessages().size());
+        long load = Benchmarks.bestOf(ROUNDS, this::loadAllMessages);
+        long parse = Benchmarks.bestOf(ROUNDS, () -> parseAll(loadAllMessages())) - load;
+        Log.i(TAG, String.format("loadAllMessages %d messages: %.1fms, parsing all of them adds %.1fms (best of %d)",
+                count, load / 1e6, parse / 1e6, ROUNDS));
+    }
+
+    /**
+     * 持有十万条消息时，消息头与完整消息各自占用的Java堆
+     */
+    @Test
+    public void compareHeaderHeap() {
+        int count = 100000;
+        insertMessages(count);
+        long before = Benchmarks.usedHeap();
+        List<Message> headers = loadAllMessages();
+        long headersHeap = Benchmarks.usedHeap() - before;
+        List<Message> full = mRepository.streamMessages("talker=? order by createTime desc,msgId desc", TALKER).toList().blockingGet();
+        long fullHeap = Benchmarks.usedHeap() - before - headersHeap;
+        assertEquals(headers.size(), full.size());
+        Log.i(TAG, String.format("%d messages held: headers %.1fMB, full messages %.1fMB", count,
+                headersHeap / 1048576.0, fullHeap / 1048576.0));
+    }
+
+    /**
+     * 以流的形式统计五十万条消息的发送者，每隔一段采样一次Java堆。流式读取只保留有限的窗口，堆的增长不应随消息数增加
+     */
+    @Test
+    public void streamLargeChatInConstantMemory() {
+        int count = 500000;
+        int sampleInterval = 50000;
+        insertMessages(count);
+        Map<String, Integer> senderCounts = new HashMap<>();
+        long[] peak = new long[1];
+        int[] streamed = new int[1];
+        long before = Benchmarks.usedHeap();
+        long start = System.nanoTime();
+        mRepository.streamMessages("talker=? order by createTime desc,msgId desc", TALKER).blockingSubscribe(message -> {
+            String sender = message.getSenderId();
+            Integer senderCount = senderCounts.get(sender);
+            senderCounts.put(sender, senderCount == null ? 1 : senderCount + 1);
+            if (++streamed[0] % sampleInterval == 0) {
+                peak[0] = Math.max(peak[0], Benchmarks.usedHeap() - before);
+            }
+        });
+        long elapsed = System.nanoTime() - start;
+        assertEquals(count, streamed[0]);
+        assertEquals(200, senderCounts.size());
+        Log.i(TAG, String.format("streamed %d messages in %.1fms (including heap sampling), peak heap growth %.1fMB",
+                count, elapsed / 1e6, peak[0] / 1048576.0));
+        //完整消息每条至少数百字节，五十万条全部持有将远超此上限
+        assertTrue(peak[0] < MAX_STREAM_HEAP_GROWTH);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord.impl.repo;
+
+import android.util.Log;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import xjunz.tool.werecord.Benchmarks;
+import xjunz.tool.werecord.TestDatabase;
+import xjunz.tool.werecord.impl.model.account.Talker;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 对比逐个会话查询联系人与一次连接查询加载会话的耗时，在加密的工作数据库上运行，结果输出到logcat
+ * <p>
+ * 运行：{@code ./gradlew connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=xjunz.tool.werecord.impl.repo.TalkerQueryBenchmark}，
+ * 然后{@code adb logcat -s TalkerQueryBenchmark}
+ * </p>
+ */
+public class TalkerQueryBenchmark {
+    private static final String TAG = "TalkerQueryBenchmark";
+    private static final int TALKER_COUNT = 5000;
+    private static final int ROUNDS = 5;
+    private TestDatabase mTestDatabase;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mTestDatabase = TestDatabase.create("talker_benchmark.db");
+        mDatabase = mTestDatabase.database;
+        mDatabase.execSQL("create table " + TalkerRepository.TABLE_CONVERSATION + " (username TEXT PRIMARY KEY, msgCount INTEGER, "
+                + "unreadCount INTEGER, parentRef TEXT, conversationTime LONG)");
+        mDatabase.execSQL("create table " + ContactRepository.TABLE_CONTACT + " (username TEXT PRIMARY KEY, alias TEXT, "
+                + "conRemark TEXT, nickname TEXT, type INTEGER)");
+        mTestDatabase.inTransaction(() -> {
+            for (int i = 0; i < TALKER_COUNT; i++) {
+                String id = i % 10 == 0 ? i + "@chatroom" : "wxid_" + i;
+                mDatabase.execSQL("insert into " + TalkerRepository.TABLE_CONVERSATION + " values(?,?,?,?,?)",
+                        new Object[]{id, i % 50, i % 3, null, 1600000000000L + i});
+                //约5%的会话在联系人表中没有对应的行
+                if (i % 20 != 0) {
+                    mDatabase.execSQL("insert into " + ContactRepository.TABLE_CONTACT + " values(?,?,?,?,?)",
+                            new Object[]{id, "alias" + i, "remark" + i, "nickname" + i, i % 5});
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mTestDatabase.close();
+    }
+
+    /**
+     * 改动前的实现：先查询会话，再为每个会话查询一次联系人
+     */
+    private List<Talker> queryPerTalker() {
+        List<Talker> all = new ArrayList<>();
+        try (Cursor talkerQueryCursor = mDatabase.rawQuery("select username,conversationTime,msgCount,parentRef,unreadCount from rconversation where not msgCount = 0", null)) {
+            while (talkerQueryCursor.moveToNext()) {
+                Talker talker = new Talker(talkerQueryCursor.getString(0));
+                try (Cursor contactQueryCursor = mDatabase.rawQuery("select alias,conRemark,nickname,type from rcontact where username='" + talker.id + "'", null)) {
+                    if (contactQueryCursor.moveToNext()) {
+                        talker.alias = contactQueryCursor.getString(0);
+                        talker.remark = contactQueryCursor.getString(1);
+                        talker.nickname = contactQueryCursor.getString(2);
+                        talker.rawType = contactQueryCursor.getInt(3);
+                        talker.judgeType();
+                    }
+                }
+                talker.lastMsgTimestamp = talkerQueryCursor.getLong(1);
+                talker.messageCount = talkerQueryCursor.getInt(2);
+                talker.parentRef = talkerQueryCursor.getString(3);
+                talker.setUnreadCount(talkerQueryCursor.getInt(4));
+                all.add(talker);
+            }
+        }
+        return all;
+    }
+
+    private List<Talker> queryJoined() {
+        List<Talker> all = new ArrayList<>();
+        try (Cursor cursor = mDatabase.rawQuery(TalkerRepository.SQL_QUERY_ALL, null)) {
+            while (cursor.moveToNext()) {
+                Talker talker = TalkerRepository.readTalker(cursor);
+                if (talker != null) {
+                    all.add(talker);
+                }
+            }
+        }
+        return all;
+    }
+
+    @Test
+    public void compare() {
+        List<Talker> before = queryPerTalker();
+        List<Talker> after = queryJoined();
+        assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.get(i).id, after.get(i).id);
+            assertEquals(before.get(i).nickname, after.get(i).nickname);
+            assertEquals(before.get(i).type, after.get(i).type);
+        }
+        long perTalker = Benchmarks.bestOf(ROUNDS, this::queryPerTalker);
+        long joined = Benchmarks.bestOf(ROUNDS, this::queryJoined);
+        Log.i(TAG, String.format("%d talkers: per-talker query %.1fms, joined query %.1fms (best of %d)",
+                after.size(), perTalker / 1e6, joined / 1e6, ROUNDS));
+    }
+}
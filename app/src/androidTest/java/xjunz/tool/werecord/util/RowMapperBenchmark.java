@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord.util;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xjunz.tool.werecord.TestDatabase;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 对比逐行按列名映射与{@link DbUtils.RowMapper}映射一百万行的耗时，在加密数据库上运行，结果输出到logcat
+ * <p>
+ * 运行：{@code ./gradlew connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=xjunz.tool.werecord.util.RowMapperBenchmark}，
+ * 然后{@code adb logcat -s RowMapperBenchmark}
+ * </p>
+ */
+public class RowMapperBenchmark {
+    private static final String TAG = "RowMapperBenchmark";
+    private static final int ROW_COUNT = 1000000;
+    private static final String SQL = "select * from message";
+    private TestDatabase mTestDatabase;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mTestDatabase = TestDatabase.create("row_mapper_benchmark.db");
+        mDatabase = mTestDatabase.database;
+        mDatabase.execSQL("create table message (msgId INTEGER PRIMARY KEY, type INT, isSend INT, createTime INTEGER, "
+                + "talker TEXT, content TEXT, lvbuffer BLOB)");
+        byte[] lvBuffer = new byte[32];
+        mTestDatabase.inTransaction(() -> {
+            try (SQLiteStatement insert = mDatabase.compileStatement("insert into message values(?,?,?,?,?,?,?)")) {
+                for (int i = 0; i < ROW_COUNT; i++) {
+                    insert.bindLong(1, i);
+                    insert.bindLong(2, 1);
+                    insert.bindLong(3, i % 2);
+                    insert.bindLong(4, 1600000000000L + i);
+                    insert.bindString(5, "wxid_" + i % 100);
+                    insert.bindString(6, "message content " + i);
+                    insert.bindBlob(7, lvBuffer);
+                    insert.executeInsert();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mTestDatabase.close();
+    }
+
+    /**
+     * 改动前的实现：每一行新建{@link ContentValues}，逐列读取列名，非BLOB的列一律读取为字符串
+     */
+    private long mapByColumnName() {
+        long checksum = 0;
+        try (Cursor cursor = mDatabase.rawQuery(SQL, null)) {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                        values.put(cursor.getColumnName(i), cursor.getBlob(i));
+                    } else {
+                        values.put(cursor.getColumnName(i), cursor.getString(i));
+                    }
+                }
+                checksum += values.getAsLong("msgId") + values.getAsString("content").length();
+            }
+        }
+        return checksum;
+    }
+
+    private long mapByRowMapper() {
+        long checksum = 0;
+        try (Cursor cursor = mDatabase.rawQuery(SQL, null)) {
+            DbUtils.RowMapper mapper = DbUtils.RowMapper.of(cursor);
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                mapper.mapInto(cursor, values);
+                checksum += values.getAsLong("msgId") + values.getAsString("content").length();
+            }
+        }
+        return checksum;
+    }
+
+    @Test
+    public void compare() {
+        long start = System.nanoTime();
+        long expected = mapByColumnName();
+        long byColumnName = System.nanoTime() - start;
+        start = System.nanoTime();
+        long actual = mapByRowMapper();
+        long byRowMapper = System.nanoTime() - start;
+        assertEquals(expected, actual);
+        Log.i(TAG, String.format("%d rows: per-row column names %.1fms, RowMapper %.1fms",
+                ROW_COUNT, byColumnName / 1e6, byRowMapper / 1e6));
+    }
+}
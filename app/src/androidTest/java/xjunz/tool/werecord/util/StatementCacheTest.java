@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord.util;
+
+import android.util.Log;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import xjunz.tool.werecord.TestDatabase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link StatementCache}的并发测试，以及与拼接SQL逐次编译的耗时对比，耗时输出到logcat
+ * <p>
+ * 运行：{@code ./gradlew connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=xjunz.tool.werecord.util.StatementCacheTest}，
+ * 然后{@code adb logcat -s StatementCacheTest}
+ * </p>
+ */
+public class StatementCacheTest {
+    private static final String TAG = "StatementCacheTest";
+    private static final int ROW_COUNT = 10000;
+    private static final int LOOKUPS = 20000;
+    private TestDatabase mTestDatabase;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mTestDatabase = TestDatabase.create("statement_cache_test.db");
+        mDatabase = mTestDatabase.database;
+        mDatabase.execSQL("create table message (msgId INTEGER PRIMARY KEY, talker TEXT, type INTEGER)");
+        mTestDatabase.inTransaction(() -> {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                mDatabase.execSQL("insert into message values(?,?,?)", new Object[]{i, "wxid_" + i % 100, i % 7});
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mTestDatabase.close();
+    }
+
+    /**
+     * 模板数超过缓存容量，语句被不断逐出，同时其他线程仍在使用被逐出的语句
+     */
+    @Test
+    public void evictionDoesNotCloseStatementsInUse() throws InterruptedException {
+        StatementCache cache = StatementCache.of(mDatabase);
+        int threadCount = 4;
+        CountDownLatch done = new CountDownLatch(threadCount);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int seed = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 5000; i++) {
+                        //type<0恒为假，只用于生成不同的模板
+                        int template = (i * 31 + seed) % 100;
+                        long count = cache.queryForLong("select count(*) from message where msgId=? and not type<" + -template, i % ROW_COUNT);
+                        assertEquals(1, count);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        done.await();
+        assertNull(String.valueOf(error.get()), error.get());
+    }
+
+    /**
+     * {@link StatementCache#query(String, Object...)}按类型绑定参数，不会把参数都转为字符串
+     */
+    @Test
+    public void queryBindsTypedArgs() {
+        StatementCache cache = StatementCache.of(mDatabase);
+        try (Cursor cursor = cache.query("select typeof(?),typeof(?),typeof(?),typeof(?),typeof(?)",
+                null, 1, 2L, 1.5, new byte[]{1})) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("null", cursor.getString(0));
+            assertEquals("integer", cursor.getString(1));
+            assertEquals("integer", cursor.getString(2));
+            assertEquals("real", cursor.getString(3));
+            assertEquals("blob", cursor.getString(4));
+        }
+        //type+0没有亲和性，绑定为文本的话，'3'不会转为数值，且文本总是大于数值，结果为0
+        try (Cursor cursor = cache.query("select count(*) from message where ?<type+0", 3)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(4284, cursor.getInt(0));
+        }
+    }
+
+    @Test
+    public void compareLatency() {
+        StatementCache cache = StatementCache.of(mDatabase);
+        //预热
+        for (int i = 0; i < 1000; i++) {
+            lookupByConcatenation(i);
+            cache.queryForLong("select type from message where msgId=?", i);
+        }
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            sum += lookupByConcatenation(i % ROW_COUNT);
+        }
+        long concatenated = System.nanoTime() - start;
+        start = System.nanoTime();
+        long cachedSum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            cachedSum += cache.queryForLong("select type from message where msgId=?", i % ROW_COUNT);
+        }
+        long cached = System.nanoTime() - start;
+        assertEquals(sum, cachedSum);
+        Log.i(TAG, String.format("%d lookups: concatenated SQL %.2fus/op, cached statement %.2fus/op",
+                LOOKUPS, concatenated / 1e3 / LOOKUPS, cached / 1e3 / LOOKUPS));
+    }
+
+    /**
+     * 改动前的实现：每次拼接SQL，每次都要重新编译
+     */
+    private long lookupByConcatenation(long msgId) {
+        try (Cursor cursor = mDatabase.rawQuery("select type from message where msgId=" + msgId, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+}
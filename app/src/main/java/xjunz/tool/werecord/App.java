@@ -28,7 +28,9 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
 
+import xjunz.tool.werecord.impl.Environment;
 import xjunz.tool.werecord.util.IoUtils;
+import xjunz.tool.werecord.util.PinyinCache;
 
 public class App extends Application implements ViewModelStoreOwner {
     private static WeakReference<Context> sApplicationContext;
@@ -80,6 +82,22 @@ public class App extends Application implements ViewModelStoreOwner {
         mViewModelStore = new ViewModelStore();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        //进入后台时，保存零散计算出的拼音缩写
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            PinyinCache.saveAsync();
+        }
+        //内存紧张时，逐出账号池中预热的其他账号
+        if (level >= TRIM_MEMORY_MODERATE || (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN)) {
+            Environment env = Environment.getInstance();
+            if (env != null) {
+                env.trimAccountPool();
+            }
+        }
+    }
+
     public static Context getContext() {
         return sApplicationContext.get();
     }
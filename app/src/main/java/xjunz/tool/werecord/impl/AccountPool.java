@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord.impl;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+import xjunz.tool.werecord.impl.model.account.User;
+import xjunz.tool.werecord.impl.repo.RepositoryFactory;
+import xjunz.tool.werecord.util.LogUtils;
+import xjunz.tool.werecord.util.StatementCache;
+
+/**
+ * 账号池，以LRU的方式保留最近使用的若干个账号已打开的工作数据库，以及这些账号已加载的仓库
+ * <p>
+ * 切换到池中已预热的账号时，不必再同步、迁移工作数据库和重新加载仓库。池中账号数超出容量或者内存紧张时，
+ * 最近最少使用的账号会被逐出：关闭其工作数据库并丢弃其仓库。当前使用的账号会被固定，永远不会被逐出。
+ * </p>
+ */
+final class AccountPool {
+    private final int mCapacity;
+    /**
+     * 按访问顺序排列，最近访问的在最后
+     */
+    private final LinkedHashMap<String, Slot> mSlots = new LinkedHashMap<>(4, .75f, true);
+    private String mPinnedUin;
+
+    /**
+     * 一个账号的工作数据库及其相关资源
+     */
+    static final class Slot {
+        final User user;
+        final WorkerDatabaseSynchronizer synchronizer;
+        volatile SQLiteDatabase database;
+        DatabaseModifier modifier;
+        /**
+         * 此账号的仓库是否已加载完毕
+         */
+        volatile boolean warm;
+
+        Slot(@NonNull User user, @NonNull WorkerDatabaseSynchronizer synchronizer) {
+            this.user = user;
+            this.synchronizer = synchronizer;
+        }
+    }
+
+    AccountPool(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * 获取指定UIN的账号，并将其标记为最近使用
+     */
+    @Nullable
+    synchronized Slot get(@NonNull String uin) {
+        return mSlots.get(uin);
+    }
+
+    /**
+     * 获取指定UIN的账号，不改变其使用顺序
+     */
+    @Nullable
+    synchronized Slot peek(@NonNull String uin) {
+        for (Slot slot : mSlots.values()) {
+            if (slot.user.uin.equals(uin)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    synchronized void put(@NonNull Slot slot) {
+        mSlots.put(slot.user.uin, slot);
+        trimToSize(mCapacity);
+    }
+
+    /**
+     * 固定当前使用的账号，被固定的账号不会被逐出
+     */
+    synchronized void pin(@NonNull String uin) {
+        mPinnedUin = uin;
+        mSlots.get(uin);
+    }
+
+    /**
+     * 逐出最近最少使用的账号，直到池中的账号数不超过{@param maxSize}
+     */
+    synchronized void trimToSize(int maxSize) {
+        Iterator<Slot> iterator = mSlots.values().iterator();
+        while (mSlots.size() > maxSize && iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (!Objects.equals(slot.user.uin, mPinnedUin)) {
+                iterator.remove();
+                release(slot);
+            }
+        }
+    }
+
+    synchronized void evict(@NonNull String uin) {
+        Slot slot = mSlots.remove(uin);
+        if (slot != null) {
+            release(slot);
+        }
+    }
+
+    synchronized void evictAll() {
+        List<Slot> slots = new ArrayList<>(mSlots.values());
+        mSlots.clear();
+        mPinnedUin = null;
+        for (Slot slot : slots) {
+            release(slot);
+        }
+    }
+
+    private void release(@NonNull Slot slot) {
+        slot.warm = false;
+        if (slot.database != null) {
+            StatementCache.release(slot.database);
+            slot.database.close();
+        }
+        RepositoryFactory.evict(slot.user.uin);
+        LogUtils.debug("Account evicted from pool: " + slot.user.uin);
+    }
+}
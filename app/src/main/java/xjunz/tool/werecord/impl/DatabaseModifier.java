@@ -24,14 +24,17 @@ import java.util.Objects;
 import xjunz.tool.werecord.App;
 import xjunz.tool.werecord.BR;
 import xjunz.tool.werecord.impl.model.account.Talker;
+import xjunz.tool.werecord.impl.model.account.User;
 import xjunz.tool.werecord.impl.model.message.Message;
+import xjunz.tool.werecord.impl.model.message.MessageParseCache;
 import xjunz.tool.werecord.impl.model.message.util.Edition;
+import xjunz.tool.werecord.impl.repo.AccountSnapshot;
 import xjunz.tool.werecord.impl.repo.MessageRepository;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
 import xjunz.tool.werecord.util.IoUtils;
 import xjunz.tool.werecord.util.ShellUtils;
+import xjunz.tool.werecord.util.StatementCache;
 
-import static java.lang.String.format;
 import static xjunz.tool.werecord.impl.model.message.util.Edition.FLAG_INSERTION;
 import static xjunz.tool.werecord.impl.model.message.util.Edition.FLAG_REMOVAL;
 import static xjunz.tool.werecord.impl.model.message.util.Edition.FLAG_REPLACEMENT;
@@ -47,7 +50,10 @@ import static xjunz.tool.werecord.impl.repo.TalkerRepository.TABLE_CONVERSATION;
  * </p>
  */
 public class DatabaseModifier extends BaseObservable {
-    private final String workerDatabasePath;
+    /**
+     * 工作数据库的路径在重新同步后会改变，因此在应用修改时才读取
+     */
+    private final User user;
     private final String originDatabasePath;
     /**
      * 对于数据库的更改是否已同步到微信的数据库
@@ -62,7 +68,7 @@ public class DatabaseModifier extends BaseObservable {
 
     DatabaseModifier(@NotNull Environment environment) {
         this.originDatabasePath = environment.getCurrentUser().originalDatabaseFilePath;
-        this.workerDatabasePath = environment.getCurrentUser().workerDatabaseFilePath;
+        this.user = environment.getCurrentUser();
     }
 
     @Bindable
@@ -122,7 +128,7 @@ public class DatabaseModifier extends BaseObservable {
     }
 
     public boolean isMessageBackupTableExists() {
-        return queryExistence("select name from sqlite_master where type='table' and name='" + TABLE_MESSAGE_BACKUP + "'");
+        return statements().exists("sqlite_master", "type='table' and name=?", TABLE_MESSAGE_BACKUP);
     }
 
     /**
@@ -130,7 +136,7 @@ public class DatabaseModifier extends BaseObservable {
      */
     public void createBackupTableIfNotExists() {
         //如果备份表不存在
-        if (!queryExistence("select name from sqlite_master where type='table' and name='" + TABLE_MESSAGE_BACKUP + "'")) {
+        if (!isMessageBackupTableExists()) {
             //创建备份表并复制message的表结构
             getDb().execSQL("create table " + TABLE_MESSAGE_BACKUP + " as select * from " + TABLE_MESSAGE + " where 1<>1");
             //创建"edition"字段
@@ -150,13 +156,13 @@ public class DatabaseModifier extends BaseObservable {
         long msgId = msg.getMsgId();
         createBackupTableIfNotExists();
         //如果备份消息已存在，更新edition字段
-        if (queryExistence(format("select * from %s where msgId=%s", TABLE_MESSAGE_BACKUP, msgId))) {
-            getDb().execSQL(format("update %s set edition=%s where msgId=%s", TABLE_MESSAGE_BACKUP, editionFlag, msgId));
+        if (statements().exists(TABLE_MESSAGE_BACKUP, "msgId=?", msgId)) {
+            statements().execute("update " + TABLE_MESSAGE_BACKUP + " set edition=? where msgId=?", editionFlag, msgId);
         }
         //如果不存在
         else {
             //备份原消息
-            getDb().execSQL(format("insert into %s select *,%s from %s where msgId=%s", TABLE_MESSAGE_BACKUP, editionFlag, TABLE_MESSAGE, msgId));
+            statements().execute("insert into " + TABLE_MESSAGE_BACKUP + " select *,? from " + TABLE_MESSAGE + " where msgId=?", editionFlag, msgId);
         }
     }
 
@@ -174,7 +180,8 @@ public class DatabaseModifier extends BaseObservable {
         //恢复记录,注：如果记录不存在（被删除），replace方法就会插入消息，因此不必加以判断
         getDb().replace(TABLE_MESSAGE, "content", values);
         //然后删除备份表中已恢复的记录
-        getDb().execSQL(format("delete from %s where msgId = %s", TABLE_MESSAGE_BACKUP, msgId));
+        statements().execute("delete from " + TABLE_MESSAGE_BACKUP + " where msgId=?", msgId);
+        MessageParseCache.invalidate(msgId);
     }
 
     /**
@@ -183,25 +190,24 @@ public class DatabaseModifier extends BaseObservable {
      * @param msg 欲插入的消息
      */
     public void insertMessage(@NotNull Message msg) {
+        ContentValues values = msg.getValues();
         //msgId字段是自增的，我们不需要也不能手动赋值，因此将其删除
-        msg.getValues().remove(Message.KEY_MSG_ID);
+        values.remove(Message.KEY_MSG_ID);
         //插入后我们才能知道该消息的ID
-        long msgId = getDb().insert(TABLE_MESSAGE, "content", msg.getValues());
+        long msgId = getDb().insert(TABLE_MESSAGE, "content", values);
         //设置ID（后面备份要用到）
-        msg.getValues().put(Message.KEY_MSG_ID, msgId);
+        msg.setMsgId(msgId);
+        //此ID可能属于某条已删除的消息
+        MessageParseCache.invalidate(msgId);
         //对其进行备份
         backupMessageIfNotExists(msg, FLAG_INSERTION);
     }
 
-    private boolean queryExistence(String query) {
-        Cursor cursor = getDb().rawQuery(query, null);
-        int count = cursor.getCount();
-        cursor.close();
-        return count > 0;
+    @NonNull
+    private StatementCache statements() {
+        return StatementCache.of(getDb());
     }
 
-    ;
-
     /**
      * 删除某条消息
      *
@@ -210,13 +216,14 @@ public class DatabaseModifier extends BaseObservable {
     public void deleteMessage(@NonNull Message msg) {
         long msgId = msg.getMsgId();
         //假设这是一条新增的消息，先从备份表中删除这条消息（因为新增的消息是有备份的）
-        int affected = getDb().delete(TABLE_MESSAGE_BACKUP, format("msgId=%s and edition=%s", msgId, FLAG_INSERTION), null);
+        int affected = getDb().delete(TABLE_MESSAGE_BACKUP, "msgId=? and edition=?", new String[]{String.valueOf(msgId), String.valueOf(FLAG_INSERTION)});
         //如果什么都没被删除，说明不是新增的消息，那么我们先备份消息
         if (affected == 0) {
             backupMessageIfNotExists(msg, FLAG_REMOVAL);
         }
         //再将其删除
-        getDb().delete(TABLE_MESSAGE, "msgId=" + msg.getMsgId(), null);
+        getDb().delete(TABLE_MESSAGE, "msgId=?", new String[]{String.valueOf(msgId)});
+        MessageParseCache.invalidate(msgId);
     }
 
 
@@ -230,11 +237,12 @@ public class DatabaseModifier extends BaseObservable {
         backupMessageIfNotExists(msg, FLAG_REPLACEMENT);
         //替换消息
         getDb().replace(TABLE_MESSAGE, "content", msg.getValues());
+        MessageParseCache.invalidate(msg.getMsgId());
     }
 
     public void addVerifyMessageFromId(String id) throws IOException {
         String table_fmesaage = "fmessage_conversation";
-        if (!queryExistence(format("select talker from %s where talker='%s'", table_fmesaage, id))) {
+        if (!statements().exists(table_fmesaage, "talker=?", id)) {
             InputStream in = App.getContext().getAssets().open("verify.xml");
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             IoUtils.transferStream(in, out);
@@ -264,8 +272,8 @@ public class DatabaseModifier extends BaseObservable {
      * 新增一个本地联系人
      */
     public void addContactWithId(String id) {
-        if (queryExistence(format("select username from %s where username='%s'", TABLE_CONTACT, id))) {
-            getDb().execSQL(format("update %s set type=%s where username='%s'", TABLE_CONTACT, 3, id));
+        if (statements().exists(TABLE_CONTACT, "username=?", id)) {
+            statements().execute("update " + TABLE_CONTACT + " set type=? where username=?", 3, id);
         } else {
             ContentValues values = new ContentValues();
             values.put("type", 3);
@@ -273,10 +281,12 @@ public class DatabaseModifier extends BaseObservable {
             values.put("conRemark", id);
             getDb().insert(TABLE_CONTACT, "username", values);
         }
+        invalidateSnapshots();
     }
 
     public boolean deleteContactWithId(String id) {
-        int affected = getDb().delete(TABLE_CONTACT, format("username='%s'", id), null);
+        int affected = getDb().delete(TABLE_CONTACT, "username=?", new String[]{id});
+        invalidateSnapshots();
         return affected != 0;
     }
 
@@ -288,7 +298,7 @@ public class DatabaseModifier extends BaseObservable {
      */
     public void createContactLabelIfNotExists(@NonNull String name) {
         //如果不存在，我们才能插入标签
-        if (!queryExistence(format("select labelName from ContactLabel where labelName='%s'", name))) {
+        if (!statements().exists("ContactLabel", "labelName=?", name)) {
             ContentValues values = new ContentValues();
             values.put("labelName", name);
             values.put("createTime", System.currentTimeMillis());
@@ -301,42 +311,47 @@ public class DatabaseModifier extends BaseObservable {
      */
     public void clearAllFriends() {
         getDb().delete(TABLE_CONTACT, "not type in (0,4,33)", null);
+        invalidateSnapshots();
     }
 
     /**
      * 为指定Contact添加标签
      */
     public void attachLabelToContact(String contactId, String labelName) {
-        Cursor cursor = getDb().rawQuery(format("select labelID from ContactLabel where labelName='%s'", labelName), null);
-        if (cursor.moveToNext()) {
+        long labelId;
+        try (Cursor cursor = statements().query("select labelID from ContactLabel where labelName=?", labelName)) {
+            if (!cursor.moveToNext()) {
+                return;
+            }
             //先获取到labelName所对应的labelId
-            long labelId = cursor.getLong(0);
-            cursor.close();
-            Cursor cursor1 = getDb().rawQuery(format("select contactLabelIds from %s where username='%s'", TABLE_CONTACT, contactId), null);
-            if (cursor1.moveToNext()) {
-                //获取该contact已有的labelIds
-                String labelIds = cursor1.getString(0);
-                //如果labelIds不为null
-                if (labelIds != null) {
-                    String[] ids = labelIds.split(",");
-                    boolean contains = false;
-                    //判断该contact已经在labelName中
-                    for (String id : ids) {
-                        if (Objects.equals(id, String.valueOf(labelId))) {
-                            contains = true;
-                            break;
-                        }
-                    }
-                    //如果不在
-                    if (!contains) {
-                        //在其原标签上增加labelName
-                        labelIds += ids.length == 0 ? labelId : ("," + labelId);
-                        //更新数据库上的contactLabelIds字段
-                        getDb().rawExecSQL(format("update %s set contactLabelIds='%s' where username='%s'", TABLE_CONTACT, labelIds, contactId));
-                    }
+            labelId = cursor.getLong(0);
+        }
+        String labelIds;
+        try (Cursor cursor = statements().query("select contactLabelIds from " + TABLE_CONTACT + " where username=?", contactId)) {
+            if (!cursor.moveToNext()) {
+                return;
+            }
+            //获取该contact已有的labelIds
+            labelIds = cursor.getString(0);
+        }
+        //如果labelIds不为null
+        if (labelIds != null) {
+            String[] ids = labelIds.split(",");
+            boolean contains = false;
+            //判断该contact已经在labelName中
+            for (String id : ids) {
+                if (Objects.equals(id, String.valueOf(labelId))) {
+                    contains = true;
+                    break;
                 }
             }
-            cursor1.close();
+            //如果不在
+            if (!contains) {
+                //在其原标签上增加labelName
+                labelIds += ids.length == 0 ? labelId : ("," + labelId);
+                //更新数据库上的contactLabelIds字段
+                statements().execute("update " + TABLE_CONTACT + " set contactLabelIds=? where username=?", labelIds, contactId);
+            }
         }
     }
 
@@ -348,7 +363,7 @@ public class DatabaseModifier extends BaseObservable {
      * @param latest   最近的一条消息
      */
     public void createConversationIfNotExists(String talkerId, String digest, Message latest) {
-        if (!queryExistence(format("select username from %s where username='%s'", TABLE_CONVERSATION, talkerId))) {
+        if (!statements().exists(TABLE_CONVERSATION, "username=?", talkerId)) {
             ContentValues values = new ContentValues();
             values.put("username", talkerId);
             values.put("msgCount", 1);
@@ -358,6 +373,7 @@ public class DatabaseModifier extends BaseObservable {
             values.put("digest", digest);
             values.put("msgType", latest.getRawType());
             getDb().insert(TABLE_CONVERSATION, "digest", values);
+            invalidateSnapshots();
         }
     }
 
@@ -366,27 +382,43 @@ public class DatabaseModifier extends BaseObservable {
     }
 
     public void markAsRead(@NonNull Talker talker) {
-        getDb().execSQL(format("update %s set unReadCount=0 where username='%s'", TABLE_CONVERSATION, talker.id));
+        statements().execute("update " + TABLE_CONVERSATION + " set unReadCount=0 where username=?", talker.id);
+        invalidateSnapshots();
     }
 
     public void markAsUnread(@NonNull Talker talker, int count) {
-        getDb().execSQL(format("update %s set unReadCount=%s where username='%s'", TABLE_CONVERSATION, count, talker.id));
+        statements().execute("update " + TABLE_CONVERSATION + " set unReadCount=? where username=?", count, talker.id);
+        invalidateSnapshots();
     }
 
     public void deleteConversationWithMessages(@NotNull Talker talker) {
-        getDb().delete(TABLE_CONVERSATION, format("username='%s'", talker.id), null);
-        getDb().delete(TABLE_MESSAGE, format("talker='%s'", talker.id), null);
+        String[] whereArgs = {talker.id};
+        getDb().delete(TABLE_CONVERSATION, "username=?", whereArgs);
+        getDb().delete(TABLE_MESSAGE, "talker=?", whereArgs);
         if (isMessageBackupTableExists()) {
-            getDb().delete(TABLE_MESSAGE_BACKUP, format("talker='%s'", talker.id), null);
+            getDb().delete(TABLE_MESSAGE_BACKUP, "talker=?", whereArgs);
         }
+        MessageParseCache.invalidateTalker(talker.id);
+        invalidateSnapshots();
     }
 
     public void reshowConversation(@NotNull Talker talker) {
-        getDb().execSQL(format("update %s set parentRef=null where username='%s'", TABLE_CONVERSATION, talker.id));
+        statements().execute("update " + TABLE_CONVERSATION + " set parentRef=null where username=?", talker.id);
+        invalidateSnapshots();
     }
 
     public void hideConversation(@NotNull Talker talker) {
-        getDb().execSQL(format("update %s set parentRef='%s' where username='%s'", TABLE_CONVERSATION, Talker.PARENT_REF_HIDDEN, talker.id));
+        statements().execute("update " + TABLE_CONVERSATION + " set parentRef=? where username=?", Talker.PARENT_REF_HIDDEN, talker.id);
+        invalidateSnapshots();
+    }
+
+    /**
+     * 修改了联系人或会话后，使仓库的快照失效
+     *
+     * @see AccountSnapshot
+     */
+    private void invalidateSnapshots() {
+        AccountSnapshot.invalidate(Environment.getInstance().getCurrentUser());
     }
 
     public void beginTransactionUnless() {
@@ -416,17 +448,26 @@ public class DatabaseModifier extends BaseObservable {
      */
     @WorkerThread
     public void apply() throws ShellUtils.ShellException {
-        //先强行停止微信，否则可能导致数据库损坏
-        ShellUtils.forceStop("com.tencent.mm");
         //提交所有更改
         commit();
+        //以下操作通过一次su调用完成，任一操作失败，后续操作都不会执行
+        ShellUtils.Batch batch = ShellUtils.batch().stopOnFailure();
+        //先强行停止微信，否则可能导致数据库损坏
+        ShellUtils.Operation forceStop = batch.command("am force-stop com.tencent.mm");
         //替换微信的原数据库为修改过的数据库
-        ShellUtils.cp(workerDatabasePath, originDatabasePath);
+        ShellUtils.Operation replace = batch.cp(user.workerDatabaseFilePath, originDatabasePath);
         //删除原数据库运行时文件
         //如不删除，微信会检测到数据库损坏，并执行数据库修复，修复数据可能导致数据丢失
-        ShellUtils.rmIfExists(originDatabasePath + "-shm");
-        ShellUtils.rmIfExists(originDatabasePath + "-wal");
-        ShellUtils.rmIfExists(originDatabasePath + ".ini");
-        ShellUtils.rmIfExists(originDatabasePath + ".sm");
+        ShellUtils.Operation[] removals = new ShellUtils.Operation[]{
+                batch.rmIfExists(originDatabasePath + "-shm"),
+                batch.rmIfExists(originDatabasePath + "-wal"),
+                batch.rmIfExists(originDatabasePath + ".ini"),
+                batch.rmIfExists(originDatabasePath + ".sm")};
+        batch.run();
+        forceStop.requireSuccess();
+        replace.requireSuccess();
+        for (ShellUtils.Operation removal : removals) {
+            removal.requireSuccess();
+        }
     }
 }
@@ -11,6 +11,8 @@ import android.os.Build;
 import android.os.Process;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleObserver;
 import androidx.lifecycle.LifecycleOwner;
@@ -18,6 +20,7 @@ import androidx.lifecycle.LifecycleRegistry;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteDatabaseHook;
+import net.sqlcipher.database.SQLiteException;
 
 import org.apaches.commons.codec.digest.DigestUtils;
 import org.jetbrains.annotations.Contract;
@@ -35,22 +38,34 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
+import io.reactivex.Completable;
 import io.reactivex.CompletableObserver;
 import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.schedulers.Schedulers;
 import xjunz.tool.werecord.App;
 import xjunz.tool.werecord.BuildConfig;
 import xjunz.tool.werecord.impl.model.account.User;
+import xjunz.tool.werecord.impl.repo.RepositoryFactory;
 import xjunz.tool.werecord.util.IoUtils;
-import xjunz.tool.werecord.util.RxJavaUtils;
+import xjunz.tool.werecord.util.LogUtils;
 import xjunz.tool.werecord.util.ShellUtils;
+import xjunz.tool.werecord.util.StatementCache;
+import xjunz.tool.werecord.util.TaskGraph;
+import xjunz.tool.werecord.util.TraceUtils;
 import xjunz.tool.werecord.util.Utils;
 
 /**
@@ -75,12 +90,31 @@ public class Environment implements Serializable, LifecycleOwner {
     private String mImei;
     private List<User> mUserList;
     private String mAvatarBackupPath;
-    private String mLastLoginUin;
     private String mAppFilesDir;
-    private List<String> mUinList;
-    private SQLiteDatabase mDatabaseOfCurUser;
-    private User mCurrentUser;
-    private DatabaseModifier mModifier;
+    /**
+     * 启动时选定的账号，初始化完成后成为当前账号
+     */
+    private User mStartupUser;
+    private AccountPool.Slot mStartupSlot;
+    private volatile AccountPool.Slot mCurrentSlot;
+    /**
+     * 同时保留的已打开账号的最大数量，包括当前账号
+     */
+    private static final int MAX_WARM_ACCOUNTS = 3;
+    private final AccountPool mPool = new AccountPool(MAX_WARM_ACCOUNTS);
+    /**
+     * 各账号正在进行的预热。同一账号同一时刻只会有一个预热，避免预热与切换同时打开同一个工作数据库，
+     * 后来者等待其完成即可；不同账号的预热互不阻塞
+     */
+    private final ConcurrentHashMap<String, WarmUpTask> mWarmUps = new ConcurrentHashMap<>();
+    /**
+     * 正在进行的前台切换数，不为0时后台预热不再开始预热新的账号
+     */
+    private final AtomicInteger mForegroundSwitches = new AtomicInteger();
+    /**
+     * 替换账号的工作数据库时持有，保证替换数据库与更新其路径是原子的
+     */
+    private final Object mSlotLock = new Object();
     private static final String DEF_IMEI = "1234567890ABCDEF";
 
     public static final class InitializationException extends Exception {
@@ -116,7 +150,7 @@ public class Environment implements Serializable, LifecycleOwner {
         if (!initialized()) {
             throw new IllegalStateException("Environment is not initialized successfully! Current state is " + getLifecycle().getCurrentState().toString());
         }
-        return mDatabaseOfCurUser;
+        return mCurrentSlot.database;
     }
 
     @NonNull
@@ -124,7 +158,29 @@ public class Environment implements Serializable, LifecycleOwner {
         if (!initialized()) {
             throw new IllegalStateException("Environment is not initialized successfully! Current state is " + getLifecycle().getCurrentState().toString());
         }
-        return mCurrentUser;
+        return mCurrentSlot.user;
+    }
+
+    /**
+     * @return 账号池中指定UIN的账号的工作数据库，不一定是当前账号
+     */
+    @NonNull
+    public SQLiteDatabase getWorkerDatabaseOf(@NonNull String uin) {
+        return requireSlot(uin).database;
+    }
+
+    @NonNull
+    public User getUserOf(@NonNull String uin) {
+        return requireSlot(uin).user;
+    }
+
+    @NonNull
+    private AccountPool.Slot requireSlot(@NonNull String uin) {
+        AccountPool.Slot slot = mPool.peek(uin);
+        if (slot == null) {
+            throw new IllegalStateException("Account " + uin + " is not in the pool, it may have been evicted");
+        }
+        return slot;
     }
 
     public String getVictimMicroMsgPath() {
@@ -135,114 +191,98 @@ public class Environment implements Serializable, LifecycleOwner {
         return mAvatarBackupPath;
     }
 
+    public String getWorkerDatabaseDirPath() {
+        return mWorkerDatabaseDirPath;
+    }
+
     @NonNull
     @Override
     public Lifecycle getLifecycle() {
         return mLifecycle;
     }
 
+    /**
+     * 环境初始化完成的任务名，依赖工作数据库的任务都应当依赖此任务
+     */
+    public static final String TASK_READY = "env:ready";
+    /**
+     * 切换账号的任务名
+     */
+    public static final String TASK_SWITCH = "env:switch";
+
     /**
      * initiate the environment
      *
      * @param observer the callback
      */
     public void init(CompletableObserver observer) {
-        RxJavaUtils.complete(() -> {
-            //create backup dirs
-            mAppFilesDir = App.getContext().getFilesDir().getPath();
-            mWorkerDatabaseDirPath = mAppFilesDir + separator + DigestUtils.md5Hex("database_backup");
-            File dbBackupDir = new File(mWorkerDatabaseDirPath);
-            if (!dbBackupDir.exists() && !dbBackupDir.mkdir())
-                throw new RuntimeException("Failed to create db backup dir");
-            mAvatarBackupPath = mAppFilesDir + separator + DigestUtils.md5Hex("avatar_backup");
-            File avatarBackupDir = new File(mAvatarBackupPath);
-            if (!avatarBackupDir.exists() && !avatarBackupDir.mkdir())
-                throw new RuntimeException("Failed to create avatar backup dir");
-            PackageManager packageManager = App.getContext().getPackageManager();
-            PackageInfo packageInfo = packageManager.getPackageInfo("com.tencent.mm", 0);
-            mVictimDataPath = packageInfo.applicationInfo.dataDir;
-            mVictimMicroMsgPath = mVictimDataPath + separator + "MicroMsg";
-            mVictimSharedPrefsPath = mVictimDataPath + separator + "shared_prefs";
-            readImei();
-            loadUins();
-            //initUsers();
-            copyWorkerDatabase(mCurrentUser);
-            tryOpenDatabaseOf(mCurrentUser, mImei);
-            fulfillCurrentUser();
-            setCurrentStateInMainThread(Lifecycle.State.STARTED);
-        }).subscribe(observer);
+        TaskGraph graph = new TaskGraph();
+        init(graph);
+        graph.execute().subscribe(observer);
     }
 
-    public List<User> getUserList() {
-        return mUserList;
+    /**
+     * 将初始化环境的各个步骤添加到{@link TaskGraph}中，
+     * 读取IMEI与加载UIN、同步工作数据库互不依赖，会并行执行
+     *
+     * @param graph 任务图
+     */
+    public void init(@NonNull TaskGraph graph) {
+        graph.add("env:dirs", this::prepareDirs)
+                .add("env:imei", this::readImei, "env:dirs")
+                .add("env:uins", this::loadUins, "env:dirs")
+                .add("env:sync", () -> mStartupSlot = syncWorkerDatabase(mStartupUser), "env:uins")
+                .add("env:open", () -> tryOpenDatabaseOf(mStartupSlot, mImei), "env:imei", "env:sync")
+                .add(TASK_READY, () -> {
+                    fulfillUser(mStartupSlot);
+                    mPool.put(mStartupSlot);
+                    activate(mStartupSlot);
+                    mStartupSlot = null;
+                    //依赖此任务的任务会在其他线程中立即执行，因此需要等待状态设置完成
+                    setCurrentStateInMainThreadAndWait(Lifecycle.State.STARTED);
+                }, "env:open");
+    }
+
+    private void prepareDirs() throws PackageManager.NameNotFoundException {
+        //create backup dirs
+        mAppFilesDir = App.getContext().getFilesDir().getPath();
+        mWorkerDatabaseDirPath = mAppFilesDir + separator + DigestUtils.md5Hex("database_backup");
+        File dbBackupDir = new File(mWorkerDatabaseDirPath);
+        if (!dbBackupDir.exists() && !dbBackupDir.mkdir())
+            throw new RuntimeException("Failed to create db backup dir");
+        mAvatarBackupPath = mAppFilesDir + separator + DigestUtils.md5Hex("avatar_backup");
+        File avatarBackupDir = new File(mAvatarBackupPath);
+        if (!avatarBackupDir.exists() && !avatarBackupDir.mkdir())
+            throw new RuntimeException("Failed to create avatar backup dir");
+        PackageManager packageManager = App.getContext().getPackageManager();
+        PackageInfo packageInfo = packageManager.getPackageInfo("com.tencent.mm", 0);
+        mVictimDataPath = packageInfo.applicationInfo.dataDir;
+        mVictimMicroMsgPath = mVictimDataPath + separator + "MicroMsg";
+        mVictimSharedPrefsPath = mVictimDataPath + separator + "shared_prefs";
     }
 
-    private void initUsers() {
-        String lastUsedUin = App.config().lastUsedUin.getValue();
-        mUserList = new ArrayList<>();
-        for (String uin : mUinList) {
-            User user = new User(uin);
-            //如果是上次登录
-            if (Objects.equals(mLastLoginUin, uin)) {
-                user.isLastLogin = true;
-                //并且没有上次使用记录
-                if (lastUsedUin == null) {
-                    //默认使用上次登录UIN初始化应用
-                    mCurrentUser = user;
-                    mCurrentUser.isCurrentUsed = true;
-                    App.config().lastUsedUin.setValue(uin);
-                }
-            }
-            if (lastUsedUin != null) {
-                if (Objects.equals(lastUsedUin, uin)) {
-                    mCurrentUser = user;
-                    mCurrentUser.isCurrentUsed = true;
-                }
-            }
-            mUserList.add(user);
-        }
-        //no uin in set matches last login uin
-        if (mCurrentUser == null) {
-            //invalidate user list
-            mUinList.clear();
-            mUserList.clear();
-            mCurrentUser = new User(mLastLoginUin);
-        } else {
-            try {
-                String out = ShellUtils.cat(mVictimSharedPrefsPath + separator + "com.tencent.mm_preferences_account_switch.xml");
-                // /data/user/0/com.tencent.mm/shared_prefs/com.tencent.mm_preferences_account_switch.xml
-                List<String> ids = Utils.extract(out, "string>(.+?)<");
-                if (ids.size() == mUinList.size()) {
-                    for (int i = 0; i < ids.size(); i++) {
-                        User user = mUserList.get(i);
-                        if (user.id == null) {
-                            user.id = ids.get(i);
-                        }
-                    }
-                }
-            } catch (ShellUtils.ShellException e) {
-                //no such file, don't throw exception
-            }
-        }
+    public List<User> getUserList() {
+        return mUserList;
     }
 
-    private void fulfillCurrentUser() {
-        try (Cursor cursor = mDatabaseOfCurUser.rawQuery("select id,value from userinfo where id in(2,4,6,42) ", null)) {
+    private void fulfillUser(@NonNull AccountPool.Slot slot) {
+        User user = slot.user;
+        try (Cursor cursor = slot.database.rawQuery("select id,value from userinfo where id in(2,4,6,42) ", null)) {
             while (cursor.moveToNext()) {
                 int id = cursor.getInt(0);
                 String value = cursor.getString(1);
                 switch (id) {
                     case 2:
-                        mCurrentUser.id = value;
+                        user.id = value;
                         break;
                     case 4:
-                        mCurrentUser.nickname = value;
+                        user.nickname = value;
                         break;
                     case 6:
-                        mCurrentUser.phoneNum = value;
+                        user.phoneNum = value;
                         break;
                     case 42:
-                        mCurrentUser.alias = value;
+                        user.alias = value;
                         break;
                 }
             }
@@ -257,6 +297,15 @@ public class Environment implements Serializable, LifecycleOwner {
         AndroidSchedulers.mainThread().scheduleDirect(() -> mLifecycle.setCurrentState(state));
     }
 
+    private void setCurrentStateInMainThreadAndWait(Lifecycle.State state) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AndroidSchedulers.mainThread().scheduleDirect(() -> {
+            mLifecycle.setCurrentState(state);
+            latch.countDown();
+        });
+        latch.await();
+    }
+
     public void addLifecycleObserver(LifecycleObserver observer) {
         AndroidSchedulers.mainThread().scheduleDirect(() -> mLifecycle.addObserver(observer));
     }
@@ -275,9 +324,268 @@ public class Environment implements Serializable, LifecycleOwner {
         return sEnvironment;
     }
 
-    private void copyWorkerDatabase(@NotNull User user) throws IOException, ShellUtils.ShellException {
+    /**
+     * 同步工作数据库，只重写源数据库中发生变化的页，如果源数据库没有变化，直接复用上次的工作数据库
+     *
+     * @return 此账号的资源，工作数据库尚未打开
+     * @see WorkerDatabaseSynchronizer
+     */
+    @NonNull
+    private AccountPool.Slot syncWorkerDatabase(@NotNull User user) throws IOException, ShellUtils.ShellException {
         user.workerDatabaseFilePath = mWorkerDatabaseDirPath + File.separator + DigestUtils.md5Hex(user.uin);
-        ShellUtils.cp2data(user.originalDatabaseFilePath, user.workerDatabaseFilePath, true);
+        AccountPool.Slot slot = new AccountPool.Slot(user, new WorkerDatabaseSynchronizer(user.originalDatabaseFilePath, user.workerDatabaseFilePath, user.uin));
+        slot.synchronizer.sync();
+        user.workerDatabaseFilePath = slot.synchronizer.getWorkerPath();
+        return slot;
+    }
+
+    private void activate(@NonNull AccountPool.Slot slot) {
+        if (mCurrentSlot != null) {
+            mCurrentSlot.user.isCurrentUsed = false;
+        }
+        slot.user.isCurrentUsed = true;
+        mPool.pin(slot.user.uin);
+        mCurrentSlot = slot;
+    }
+
+    /**
+     * 一个账号的预热任务，记录执行它的线程，以便前台切换等待它时提升其优先级
+     */
+    private final class WarmUpTask extends FutureTask<AccountPool.Slot> {
+        private volatile int mRunnerTid;
+
+        private WarmUpTask(@NonNull User user) {
+            super(() -> doWarmUp(user));
+        }
+
+        @Override
+        public void run() {
+            mRunnerTid = Process.myTid();
+            try {
+                super.run();
+            } finally {
+                mRunnerTid = 0;
+            }
+        }
+
+        /**
+         * 将执行此任务的线程的优先级提升为前台优先级，避免前台切换等待后台优先级的线程
+         */
+        private void boost() {
+            int tid = mRunnerTid;
+            if (tid != 0) {
+                try {
+                    Process.setThreadPriority(tid, Process.THREAD_PRIORITY_DEFAULT);
+                } catch (IllegalArgumentException | SecurityException e) {
+                    //线程恰好结束了
+                    LogUtils.debug("Failed to boost warm-up thread: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取指定账号在账号池中的资源，如果不在池中，同步并打开其工作数据库；如果其仓库尚未加载，加载之。
+     * 如果此账号正在被其他线程预热，等待其完成，不会重复预热
+     *
+     * @param foreground 是否为前台切换，前台切换等待后台预热时会提升后者的优先级
+     */
+    @WorkerThread
+    @NonNull
+    private AccountPool.Slot warmUp(@NonNull User user, boolean foreground) throws IOException, ShellUtils.ShellException {
+        AccountPool.Slot slot = mPool.get(user.uin);
+        if (slot != null && slot.warm) {
+            return slot;
+        }
+        WarmUpTask task = new WarmUpTask(user);
+        WarmUpTask running = mWarmUps.putIfAbsent(user.uin, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                mWarmUps.remove(user.uin, task);
+            }
+        } else {
+            task = running;
+            if (foreground) {
+                task.boost();
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while warming up account " + user.uin, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ShellUtils.ShellException) {
+                throw (ShellUtils.ShellException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @NonNull
+    private AccountPool.Slot doWarmUp(@NonNull User user) throws IOException, ShellUtils.ShellException {
+        AccountPool.Slot slot = mPool.get(user.uin);
+        if (slot == null) {
+            slot = syncWorkerDatabase(user);
+            tryOpenDatabaseOf(slot, mImei);
+            fulfillUser(slot);
+            //仓库通过账号池访问数据库，因此需要先放入池中
+            mPool.put(slot);
+        }
+        if (!slot.warm) {
+            try {
+                RepositoryFactory.preload(user.uin);
+            } catch (RuntimeException e) {
+                //加载期间可能被逐出，丢弃不完整的仓库
+                mPool.evict(user.uin);
+                throw e;
+            }
+            slot.warm = true;
+        }
+        return slot;
+    }
+
+    /**
+     * 当前账号的仓库已在启动时加载完毕，切换回此账号时不必再加载
+     */
+    public void notifyRepositoriesLoaded() {
+        mCurrentSlot.warm = true;
+    }
+
+    /**
+     * 在后台依次预热当前账号以外的账号，直到账号池满。预热失败的账号会被跳过，切换到该账号时再重试。
+     * 有前台切换正在进行时，不再开始预热新的账号，以免与前台切换争抢资源或者逐出前台切换的账号
+     */
+    @NonNull
+    public Completable prewarmAccounts() {
+        return Completable.fromAction(() -> {
+            try {
+                int budget = MAX_WARM_ACCOUNTS - 1;
+                for (User user : mUserList) {
+                    if (budget == 0 || !initialized() || mForegroundSwitches.get() != 0) {
+                        break;
+                    }
+                    if (user == mCurrentSlot.user) {
+                        continue;
+                    }
+                    budget--;
+                    //上一个账号预热期间可能被前台切换提升了优先级
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try (TraceUtils.Span ignored = TraceUtils.begin("env:prewarm")) {
+                        warmUp(user, false);
+                    } catch (IOException | ShellUtils.ShellException | RuntimeException e) {
+                        LogUtils.error("Failed to prewarm account " + user.uin + ": " + e.getMessage());
+                    }
+                }
+            } finally {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * @return 用户是否选择了切换到另一个可用的账号
+     */
+    public boolean isSwitchPending() {
+        String uin = App.config().lastUsedUin.getValue();
+        return uin != null && !uin.equals(getCurrentUser().uin) && findUser(uin) != null;
+    }
+
+    @Nullable
+    private User findUser(@NonNull String uin) {
+        for (User user : mUserList) {
+            if (user.uin.equals(uin)) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 切换到指定UIN的账号。如果此账号已在账号池中预热，切换几乎是即时的，
+     * 否则需要先同步并打开其工作数据库、加载仓库。如果此账号正在后台预热，直接等待预热完成
+     */
+    @WorkerThread
+    public void switchTo(@NonNull String uin) throws IOException, ShellUtils.ShellException {
+        User user = findUser(uin);
+        if (user == null) {
+            throw new IllegalArgumentException("No such account: " + uin);
+        }
+        AccountPool.Slot slot;
+        mForegroundSwitches.incrementAndGet();
+        try {
+            slot = warmUp(user, true);
+        } finally {
+            mForegroundSwitches.decrementAndGet();
+        }
+        activate(slot);
+        //预热后可能切换过编辑模式
+        boolean editable = App.config().isEditModeEnabled();
+        if (slot.database.isReadOnly() == editable) {
+            reopenDatabase(editable ? SQLiteDatabase.OPEN_READWRITE : SQLiteDatabase.OPEN_READONLY);
+        }
+    }
+
+    /**
+     * 重新同步当前账号的工作数据库，同步后各仓库可以通过{@link xjunz.tool.werecord.impl.repo.TalkerRepository#queryChanged()}等
+     * 增量刷新，不必重新启动。同步会从镜像重新生成工作数据库，因此有尚未应用的修改时不能同步
+     * <p>
+     * 新的工作数据库写入另一个文件并打开后才替换当前的工作数据库，因此同步期间仍然可以正常读取。
+     * 同步或者打开失败的话，当前的工作数据库保持不变
+     * </p>
+     *
+     * @return 是否已同步，如果有尚未应用的修改，返回{@code false}
+     */
+    @WorkerThread
+    public boolean resyncWorkerDatabase() throws IOException, ShellUtils.ShellException {
+        AccountPool.Slot slot = mCurrentSlot;
+        if (slot.database.inTransaction() || (slot.modifier != null && slot.modifier.isThereAnyPendingEdition())) {
+            return false;
+        }
+        if (!slot.synchronizer.resync()) {
+            //源数据库没有变化，当前的工作数据库仍然可用
+            return true;
+        }
+        SQLiteDatabase database;
+        try {
+            database = openWorkerDatabase(slot, mImei);
+        } catch (IOException | RuntimeException e) {
+            try {
+                slot.synchronizer.rollback();
+            } catch (IOException rollbackError) {
+                e.addSuppressed(rollbackError);
+            }
+            throw e;
+        }
+        SQLiteDatabase old;
+        synchronized (mSlotLock) {
+            old = slot.database;
+            slot.database = database;
+            slot.user.workerDatabaseFilePath = slot.synchronizer.getWorkerPath();
+        }
+        StatementCache.release(old);
+        old.close();
+        slot.synchronizer.deleteSpareWorker();
+        return true;
+    }
+
+    /**
+     * 逐出账号池中当前账号以外的所有账号，在内存紧张时调用
+     */
+    public void trimAccountPool() {
+        mPool.trimToSize(1);
     }
 
     /**
@@ -290,33 +598,70 @@ public class Environment implements Serializable, LifecycleOwner {
 
 
     private void loadUins() throws ShellUtils.ShellException, InitializationException {
-        String lastLoginUin = null;
+        ShellUtils.Batch prefsBatch = ShellUtils.batch();
         ///data/user/0/com.tencent.mm/shared_prefs/com.tencent.mm_preferences.xml
-        String lastLoginUinFilePath = mVictimSharedPrefsPath + separator + "com.tencent.mm_preferences.xml";
-        if (ShellUtils.isFileExists(lastLoginUinFilePath)) {
-            lastLoginUin = Utils.extractFirst(ShellUtils.cat(lastLoginUinFilePath), "last_login_uin\">(.+?)<");
-        }
+        ShellUtils.Operation lastLoginUinFile = prefsBatch.cat(mVictimSharedPrefsPath + separator + "com.tencent.mm_preferences.xml");
         ///data/user/0/com.tencent.mm/shared_prefs/app_brand_global_sp.xml
-        String uinSetFilePath = mVictimSharedPrefsPath + separator + "app_brand_global_sp.xml";
-        if (ShellUtils.isFileExists(uinSetFilePath)) {
-            mUinList = Utils.extract(ShellUtils.cat(uinSetFilePath), ">(.+?)<");
-        }
-        User tempUser = new User(lastLoginUin);
-        if (lastLoginUin != null && ShellUtils.isFileExists(tempUser.originalDatabaseFilePath)) {
-            mCurrentUser = tempUser;
-            mCurrentUser.isLastLogin = true;
-        } else {
-            if (mUinList == null || mUinList.isEmpty()) {
-                throw new InitializationException(InitializationException.REASON_NO_UIN);
-            } else {
-                for (String uin : mUinList) {
-                    User user = new User(uin);
-                    if (ShellUtils.isFileExists(user.originalDatabaseFilePath)) {
-                        mCurrentUser = user;
-                        return;
-                    }
-                    throw new InitializationException(InitializationException.REASON_NO_DB_FILE_MATCHES_UIN);
+        ShellUtils.Operation uinSetFile = prefsBatch.cat(mVictimSharedPrefsPath + separator + "app_brand_global_sp.xml");
+        ///data/user/0/com.tencent.mm/shared_prefs/com.tencent.mm_preferences_account_switch.xml
+        ShellUtils.Operation accountSwitchFile = prefsBatch.cat(mVictimSharedPrefsPath + separator + "com.tencent.mm_preferences_account_switch.xml");
+        prefsBatch.run();
+        String lastLoginUin = null;
+        List<String> uinList = null;
+        //文件不存在时cat的退出码不为0
+        if (lastLoginUinFile.isSuccessful()) {
+            lastLoginUin = Utils.extractFirst(lastLoginUinFile.getContent(), "last_login_uin\">(.+?)<");
+        }
+        if (uinSetFile.isSuccessful()) {
+            uinList = Utils.extract(uinSetFile.getContent(), ">(.+?)<");
+        }
+        //上次登录的UIN排在最前，作为默认账号
+        LinkedHashMap<String, User> candidates = new LinkedHashMap<>();
+        if (lastLoginUin != null) {
+            candidates.put(lastLoginUin, new User(lastLoginUin));
+        }
+        if (uinList != null) {
+            List<String> ids = accountSwitchFile.isSuccessful() ? Utils.extract(accountSwitchFile.getContent(), "string>(.+?)<") : null;
+            for (int i = 0; i < uinList.size(); i++) {
+                String uin = uinList.get(i);
+                User candidate = candidates.get(uin);
+                if (candidate == null) {
+                    candidate = new User(uin);
+                    candidates.put(uin, candidate);
                 }
+                if (ids != null && ids.size() == uinList.size()) {
+                    candidate.id = ids.get(i);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new InitializationException(InitializationException.REASON_NO_UIN);
+        }
+        //一次性检查所有候选UIN的数据库文件是否存在
+        ShellUtils.Batch dbBatch = ShellUtils.batch();
+        List<ShellUtils.Operation> existences = new ArrayList<>();
+        for (User candidate : candidates.values()) {
+            existences.add(dbBatch.exists(candidate.originalDatabaseFilePath));
+        }
+        dbBatch.run();
+        mUserList = new ArrayList<>();
+        int index = 0;
+        for (User candidate : candidates.values()) {
+            if (existences.get(index++).exists()) {
+                candidate.isLastLogin = Objects.equals(candidate.uin, lastLoginUin);
+                mUserList.add(candidate);
+            }
+        }
+        if (mUserList.isEmpty()) {
+            throw new InitializationException(InitializationException.REASON_NO_DB_FILE_MATCHES_UIN);
+        }
+        //优先使用上次使用的账号
+        String lastUsedUin = App.config().lastUsedUin.getValue();
+        mStartupUser = mUserList.get(0);
+        for (User user : mUserList) {
+            if (user.uin.equals(lastUsedUin)) {
+                mStartupUser = user;
+                break;
             }
         }
     }
@@ -365,9 +710,16 @@ public class Environment implements Serializable, LifecycleOwner {
         }
         //否则从文件读取
         String keyInfoPath = mVictimDataPath + separator + "files" + separator + "KeyInfo.bin";
-        if (!ShellUtils.isFileExists(keyInfoPath)) {
+        File tempFile = File.createTempFile("init_info", null);
+        //直接复制，复制失败即说明KeyInfo不存在，省去一次存在性检查
+        ShellUtils.Batch batch = ShellUtils.batch();
+        ShellUtils.Operation copy = batch.cp(keyInfoPath, tempFile.getPath());
+        batch.run();
+        if (!copy.isSuccessful()) {
+            IoUtils.deleteFile(tempFile);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
                 mImei = DEF_IMEI;
+                return;
             } else {
                 throw new InitializationException(InitializationException.REASON_NO_KEY_INFO);
             }
@@ -375,8 +727,6 @@ public class Environment implements Serializable, LifecycleOwner {
         SecretKeySpec secretKeySpec = new SecretKeySpec(new byte[]{95, 119, 69, 99, 72, 65, 84, 95}, "RC4");
         Cipher cipher = Cipher.getInstance("RC4");
         cipher.init(Cipher.DECRYPT_MODE, secretKeySpec);
-        File tempFile = File.createTempFile("init_info", null);
-        ShellUtils.cp(keyInfoPath, tempFile.getPath());
         BufferedReader reader = new BufferedReader(new InputStreamReader(new CipherInputStream(new FileInputStream(tempFile), cipher)));
         mImei = reader.readLine();
         reader.close();
@@ -402,35 +752,68 @@ public class Environment implements Serializable, LifecycleOwner {
         }
     };
 
-    private void tryOpenDatabaseOf(@NonNull User user, @NonNull String imei) {
+    /**
+     * 打开工作数据库。如果工作数据库已经迁移过，直接以最新版本打开，否则通过{@link #COMPATIBILITY_HOOK}迁移，
+     * 迁移完成后记录迁移指纹，在源数据库变化前，以后的启动都不必再迁移
+     */
+    private void tryOpenDatabaseOf(@NonNull AccountPool.Slot slot, @NonNull String imei) throws IOException {
+        slot.database = openWorkerDatabase(slot, imei);
+    }
+
+    /**
+     * 打开{@link WorkerDatabaseSynchronizer#getWorkerPath()}指向的工作数据库，不改变账号当前使用的数据库
+     */
+    @NonNull
+    private SQLiteDatabase openWorkerDatabase(@NonNull AccountPool.Slot slot, @NonNull String imei) throws IOException {
+        User user = slot.user;
         String possibleKey = DigestUtils.md5Hex(imei + user.uin).substring(0, 7).toLowerCase();
         int flag = App.config().isEditModeEnabled() ? SQLiteDatabase.OPEN_READWRITE : SQLiteDatabase.OPEN_READONLY;
-        mDatabaseOfCurUser = SQLiteDatabase.openDatabase(user.workerDatabaseFilePath, possibleKey, null, flag, COMPATIBILITY_HOOK);
+        String workerPath = slot.synchronizer.getWorkerPath();
+        SQLiteDatabase database = null;
+        if (slot.synchronizer.isWorkerMigrated()) {
+            try {
+                database = SQLiteDatabase.openDatabase(workerPath, possibleKey, null, flag);
+            } catch (SQLiteException e) {
+                //指纹匹配但打不开，可能是密钥变了，从镜像重新生成并迁移
+                LogUtils.error("Failed to open migrated worker database: " + e.getMessage());
+                slot.synchronizer.regenerateWorker();
+            }
+        }
+        if (database == null) {
+            database = SQLiteDatabase.openDatabase(workerPath, possibleKey, null, flag, COMPATIBILITY_HOOK);
+        }
+        slot.synchronizer.stampWorker();
         user.databasePassword = possibleKey;
         App.getSharedPrefsManager().putImei(imei);
+        return database;
     }
 
+    /**
+     * @return 当前账号的数据库修改器，每个账号各自持有一个
+     */
     public DatabaseModifier modifyDatabase() {
         synchronized (DatabaseModifier.class) {
-            if (mModifier == null) {
-                mModifier = new DatabaseModifier(this);
+            AccountPool.Slot slot = mCurrentSlot;
+            if (slot.modifier == null) {
+                slot.modifier = new DatabaseModifier(this);
             }
-            return mModifier;
+            return slot.modifier;
         }
     }
 
     public void reopenDatabase(int mode) {
-        mDatabaseOfCurUser.close();
-        mDatabaseOfCurUser = SQLiteDatabase.openDatabase(mCurrentUser.workerDatabaseFilePath, mCurrentUser.databasePassword, null, mode, COMPATIBILITY_HOOK);
+        AccountPool.Slot slot = mCurrentSlot;
+        synchronized (mSlotLock) {
+            StatementCache.release(slot.database);
+            slot.database.close();
+            //工作数据库在首次打开时已迁移过了
+            slot.database = SQLiteDatabase.openDatabase(slot.user.workerDatabaseFilePath, slot.user.databasePassword, null, mode);
+        }
     }
 
     public void purge() {
-        if (mDatabaseOfCurUser != null) {
-            mDatabaseOfCurUser.close();
-        }
-        if (mCurrentUser != null) {
-            mCurrentUser.deleteWorkerDatabase();
-        }
+        //保留工作数据库，下次启动时如果源数据库没有变化，可以直接复用
+        mPool.evictAll();
         setCurrentStateInMainThread(Lifecycle.State.DESTROYED);
         sEnvironment = null;
     }
@@ -467,8 +850,9 @@ public class Environment implements Serializable, LifecycleOwner {
     }
 
     public String getBasicUserInfo() {
-        return "pragmaKeyed: " + (mCurrentUser.databasePassword != null)
-                + "\ndirPath: " + mCurrentUser.dirPath + "\nworkerDbPath: " + mCurrentUser.workerDatabaseFilePath;
+        User user = mCurrentSlot.user;
+        return "pragmaKeyed: " + (user.databasePassword != null)
+                + "\ndirPath: " + user.dirPath + "\nworkerDbPath: " + user.workerDatabaseFilePath;
     }
 
     @NotNull
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord.impl;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.apaches.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import xjunz.tool.werecord.util.IoUtils;
+import xjunz.tool.werecord.util.LogUtils;
+import xjunz.tool.werecord.util.ShellUtils;
+
+/**
+ * 工作数据库同步器，以页为单位把微信的源数据库增量同步到应用的数据文件夹内
+ * <p>
+ * 工作数据库在打开时会被{@code PRAGMA cipher_migrate}重写，无法再与源数据库逐页比较，
+ * 因此我们另外维护一份与源数据库逐字节一致的镜像文件，以及一份清单。清单记录了源数据库的
+ * 大小、修改时间、镜像每一页的校验值，以及工作数据库打开后的大小和修改时间。
+ * </p>
+ * <p>
+ * 同步时，如果源数据库的大小和修改时间都没有变化，且工作数据库自打开后没有被修改过，则直接复用工作数据库；
+ * 如果只是工作数据库被修改过，从镜像重新生成工作数据库；否则读取源数据库，只重写校验值不同的页，
+ * 然后从镜像重新生成工作数据库。
+ * </p>
+ * <p>
+ * 工作数据库打开(迁移)后，清单还会记录由UIN和源数据库大小、修改时间计算得到的指纹。如果复用工作数据库时
+ * 指纹没有变化，说明工作数据库已迁移过，可以跳过{@code PRAGMA cipher_migrate}直接打开。
+ * </p>
+ * <p>
+ * 工作数据库在两个文件之间交替：运行期间重新同步时，新的工作数据库写入当前未使用的那个文件，
+ * 当前打开的工作数据库在同步期间不受影响，清单记录了哪个文件是当前的工作数据库。
+ * </p>
+ */
+final class WorkerDatabaseSynchronizer {
+    /**
+     * 同步的页大小，是微信数据库页大小(1024)的整数倍
+     */
+    private static final int PAGE_SIZE = 4096;
+    private static final int MANIFEST_VERSION = 3;
+    private final String mSourcePath;
+    private final String mUin;
+    private final File mPrimaryWorkerFile;
+    private final File mAlternateWorkerFile;
+    /**
+     * 当前的工作数据库，为{@link #mPrimaryWorkerFile}或{@link #mAlternateWorkerFile}之一
+     */
+    private File mWorkerFile;
+    /**
+     * 重新同步前的工作数据库，用于同步后打开失败时回退
+     */
+    private File mPreviousWorkerFile;
+    private final File mMirrorFile;
+    private final File mManifestFile;
+    private Manifest mManifest;
+    private boolean mWorkerReused;
+
+    private static class Manifest {
+        long sourceSize;
+        long sourceLastModified;
+        long workerSize = -1;
+        long workerLastModified = -1;
+        /**
+         * 工作数据库迁移时的指纹，如果工作数据库未迁移，为空字符串
+         */
+        String migratedFingerprint = "";
+        /**
+         * 当前的工作数据库是否为备用文件
+         */
+        boolean alternate;
+        long[] checksums;
+    }
+
+    WorkerDatabaseSynchronizer(@NonNull String sourcePath, @NonNull String workerPath, @NonNull String uin) {
+        mSourcePath = sourcePath;
+        mUin = uin;
+        mPrimaryWorkerFile = new File(workerPath);
+        mAlternateWorkerFile = new File(workerPath + ".alt");
+        mWorkerFile = mPrimaryWorkerFile;
+        mMirrorFile = new File(workerPath + ".mirror");
+        mManifestFile = new File(workerPath + ".manifest");
+    }
+
+    /**
+     * 同步工作数据库，同步完成后{@link #getWorkerPath()}指向应当打开的工作数据库
+     *
+     * @throws IOException             读写文件失败时抛出的异常
+     * @throws ShellUtils.ShellException shell指令执行异常
+     */
+    @WorkerThread
+    void sync() throws IOException, ShellUtils.ShellException {
+        syncInto(null);
+        //上次运行时可能重新同步过，不再使用的文件没有保留的必要
+        deleteSpareWorker();
+    }
+
+    /**
+     * 在当前的工作数据库打开期间重新同步。新的工作数据库写入另一个文件，因此同步期间当前的工作数据库仍然可以读取。
+     * 新的工作数据库打开后，应当关闭旧的工作数据库并调用{@link #deleteSpareWorker()}；打开失败的话，应当调用{@link #rollback()}
+     *
+     * @return 是否生成了新的工作数据库。如果源数据库没有变化，且当前的工作数据库没有被修改过，返回{@code false}，
+     * 此时当前的工作数据库仍然可用
+     */
+    @WorkerThread
+    boolean resync() throws IOException, ShellUtils.ShellException {
+        mPreviousWorkerFile = mWorkerFile;
+        try {
+            return syncInto(spareOf(mWorkerFile));
+        } catch (IOException | ShellUtils.ShellException | RuntimeException e) {
+            mWorkerFile = mPreviousWorkerFile;
+            throw e;
+        }
+    }
+
+    /**
+     * @param target 新的工作数据库写入的文件，为{@code null}时由清单决定
+     * @return 是否重新生成了工作数据库
+     */
+    private boolean syncInto(@Nullable File target) throws IOException, ShellUtils.ShellException {
+        mWorkerReused = false;
+        ShellUtils.FileStat stat = ShellUtils.stat(mSourcePath);
+        Manifest manifest = readManifest();
+        boolean mirrorValid = manifest != null && mMirrorFile.exists() && mMirrorFile.length() == manifest.sourceSize;
+        if (mirrorValid && manifest.sourceSize == stat.size && manifest.sourceLastModified == stat.lastModified) {
+            mManifest = manifest;
+            File worker = manifest.alternate ? mAlternateWorkerFile : mPrimaryWorkerFile;
+            if (worker.exists() && worker.length() == manifest.workerSize
+                    && worker.lastModified() == manifest.workerLastModified) {
+                LogUtils.debug("Source database unchanged, reuse worker database");
+                mWorkerFile = worker;
+                mWorkerReused = true;
+                return false;
+            }
+        } else {
+            long[] oldChecksums = mirrorValid ? manifest.checksums : new long[0];
+            mManifest = new Manifest();
+            mManifest.sourceLastModified = stat.lastModified;
+            mManifest.checksums = syncMirror(oldChecksums, stat.size);
+            mManifest.sourceSize = mMirrorFile.length();
+        }
+        mWorkerFile = target != null ? target : mManifest.alternate ? mAlternateWorkerFile : mPrimaryWorkerFile;
+        regenerateWorker();
+        return true;
+    }
+
+    @NonNull
+    private File spareOf(@NonNull File worker) {
+        return worker == mPrimaryWorkerFile ? mAlternateWorkerFile : mPrimaryWorkerFile;
+    }
+
+    /**
+     * @return 当前的工作数据库的路径
+     */
+    @NonNull
+    String getWorkerPath() {
+        return mWorkerFile.getPath();
+    }
+
+    /**
+     * 删除当前未使用的工作数据库文件，应当在旧的工作数据库关闭后调用
+     */
+    void deleteSpareWorker() {
+        File spare = spareOf(mWorkerFile);
+        if (spare.exists()) {
+            IoUtils.deleteFile(spare);
+        }
+    }
+
+    /**
+     * 重新同步后新的工作数据库打开失败时，回退到重新同步前的工作数据库，后者仍在使用中。
+     * 旧的工作数据库与新的源数据库不一致，因此不记录其指纹，下次启动时会从镜像重新生成
+     *
+     * @throws IOException 写入清单失败
+     */
+    void rollback() throws IOException {
+        File failed = mWorkerFile;
+        mWorkerFile = mPreviousWorkerFile;
+        if (failed != mWorkerFile && failed.exists()) {
+            IoUtils.deleteFile(failed);
+        }
+        if (mManifest != null) {
+            mManifest.alternate = mWorkerFile == mAlternateWorkerFile;
+            mManifest.workerSize = -1;
+            mManifest.workerLastModified = -1;
+            mManifest.migratedFingerprint = "";
+            writeManifest();
+        }
+    }
+
+    /**
+     * 读取源数据库，将其与镜像中校验值不同的页写入镜像
+     *
+     * @return 镜像每一页新的校验值
+     */
+    @NonNull
+    private long[] syncMirror(@NonNull long[] oldChecksums, long expectedSize) throws IOException, ShellUtils.ShellException {
+        long[] checksums = new long[(int) ((expectedSize + PAGE_SIZE - 1) / PAGE_SIZE)];
+        byte[] page = new byte[PAGE_SIZE];
+        CRC32 crc32 = new CRC32();
+        Adler32 adler32 = new Adler32();
+        int pageCount = 0;
+        int dirtyCount = 0;
+        long total = 0;
+        //镜像写入过程中被中断的话，旧的清单就不再可信
+        if (mManifestFile.exists()) {
+            IoUtils.deleteFile(mManifestFile);
+        }
+        boolean accepted = false;
+        try (ShellUtils.RootInputStream root = ShellUtils.openInputStreamAsRoot(mSourcePath);
+             InputStream in = new BufferedInputStream(root, PAGE_SIZE * 16);
+             RandomAccessFile mirror = new RandomAccessFile(mMirrorFile, "rw")) {
+            int read;
+            while ((read = readPage(in, page)) > 0) {
+                crc32.reset();
+                crc32.update(page, 0, read);
+                adler32.reset();
+                adler32.update(page, 0, read);
+                long checksum = (crc32.getValue() << 32) | adler32.getValue();
+                if (pageCount >= oldChecksums.length || oldChecksums[pageCount] != checksum) {
+                    mirror.seek(total);
+                    mirror.write(page, 0, read);
+                    dirtyCount++;
+                }
+                //源数据库在读取过程中可能会增长，此时下面的大小检查会失败
+                if (pageCount == checksums.length) {
+                    checksums = Arrays.copyOf(checksums, pageCount * 2 + 1);
+                }
+                checksums[pageCount++] = checksum;
+                total += read;
+            }
+            //su进程中途退出或者读取的字节数与stat的结果不符，镜像都是不完整的，不能接受
+            root.requireSuccess();
+            if (total != expectedSize) {
+                throw new IOException("Incomplete read of " + mSourcePath + ": " + total + " of " + expectedSize + " bytes");
+            }
+            mirror.setLength(total);
+            accepted = true;
+        } finally {
+            if (!accepted) {
+                //镜像中已经写入了部分页，不再可信，下次同步时完整重建
+                if (mMirrorFile.exists()) {
+                    IoUtils.deleteFile(mMirrorFile);
+                }
+                if (mManifestFile.exists()) {
+                    IoUtils.deleteFile(mManifestFile);
+                }
+            }
+        }
+        LogUtils.debug("Synced " + dirtyCount + " of " + pageCount + " pages");
+        return checksums.length == pageCount ? checksums : Arrays.copyOf(checksums, pageCount);
+    }
+
+    private static int readPage(@NonNull InputStream in, @NonNull byte[] page) throws IOException {
+        int offset = 0;
+        while (offset < page.length) {
+            int count = in.read(page, offset, page.length - offset);
+            if (count == -1) {
+                break;
+            }
+            offset += count;
+        }
+        return offset;
+    }
+
+    /**
+     * 从镜像重新生成工作数据库，此过程不需要root权限
+     */
+    void regenerateWorker() throws IOException {
+        mWorkerReused = false;
+        try (FileChannel in = new FileInputStream(mMirrorFile).getChannel();
+             FileChannel out = new FileOutputStream(mWorkerFile).getChannel()) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+        mManifest.alternate = mWorkerFile == mAlternateWorkerFile;
+        mManifest.workerSize = -1;
+        mManifest.workerLastModified = -1;
+        mManifest.migratedFingerprint = "";
+        writeManifest();
+    }
+
+    @NonNull
+    private String computeFingerprint() {
+        return DigestUtils.md5Hex(mUin + ":" + mManifest.sourceSize + ":" + mManifest.sourceLastModified);
+    }
+
+    /**
+     * @return 本次同步复用的工作数据库是否已经迁移过，如果是，打开时可以跳过{@code PRAGMA cipher_migrate}
+     */
+    boolean isWorkerMigrated() {
+        return mWorkerReused && computeFingerprint().equals(mManifest.migratedFingerprint);
+    }
+
+    /**
+     * 记录工作数据库当前的大小、修改时间以及迁移指纹，应当在工作数据库打开(迁移)后调用。
+     * 此后如果工作数据库被修改，下次同步时会从镜像重新生成。
+     */
+    void stampWorker() {
+        if (mManifest == null) {
+            return;
+        }
+        mManifest.workerSize = mWorkerFile.length();
+        mManifest.workerLastModified = mWorkerFile.lastModified();
+        mManifest.migratedFingerprint = computeFingerprint();
+        try {
+            writeManifest();
+        } catch (IOException e) {
+            LogUtils.error("Failed to write manifest: " + e.getMessage());
+        }
+    }
+
+    @Nullable
+    private Manifest readManifest() {
+        if (!mManifestFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mManifestFile)))) {
+            if (in.readInt() != MANIFEST_VERSION || in.readInt() != PAGE_SIZE) {
+                return null;
+            }
+            Manifest manifest = new Manifest();
+            manifest.sourceSize = in.readLong();
+            manifest.sourceLastModified = in.readLong();
+            manifest.workerSize = in.readLong();
+            manifest.workerLastModified = in.readLong();
+            manifest.migratedFingerprint = in.readUTF();
+            manifest.alternate = in.readBoolean();
+            manifest.checksums = new long[in.readInt()];
+            for (int i = 0; i < manifest.checksums.length; i++) {
+                manifest.checksums[i] = in.readLong();
+            }
+            return manifest;
+        } catch (IOException e) {
+            LogUtils.error("Failed to read manifest: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mManifestFile)))) {
+            out.writeInt(MANIFEST_VERSION);
+            out.writeInt(PAGE_SIZE);
+            out.writeLong(mManifest.sourceSize);
+            out.writeLong(mManifest.sourceLastModified);
+            out.writeLong(mManifest.workerSize);
+            out.writeLong(mManifest.workerLastModified);
+            out.writeUTF(mManifest.migratedFingerprint);
+            out.writeBoolean(mManifest.alternate);
+            out.writeInt(mManifest.checksums.length);
+            for (long checksum : mManifest.checksums) {
+                out.writeLong(checksum);
+            }
+        }
+    }
+}
@@ -13,10 +13,14 @@ import androidx.annotation.Nullable;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Objects;
 
 import xjunz.tool.werecord.impl.repo.AvatarRepository;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
+import xjunz.tool.werecord.util.IoUtils;
 
 
 /**
@@ -115,7 +119,13 @@ public class Account implements Parcelable {
     @Nullable
     public Bitmap getAvatar() {
         if (!mHasTryDecodeAvatar) {
-            Bitmap bitmap = RepositoryFactory.get(AvatarRepository.class).getAvatar(id);
+            AvatarRepository repository = RepositoryFactory.get(AvatarRepository.class);
+            boolean prefetching = repository.isPrefetching(id);
+            Bitmap bitmap = repository.getAvatar(id);
+            //头像文件正在预取时得到的空结果不作数，预取完成后会重新获取
+            if (bitmap == null && (prefetching || repository.isPrefetching(id))) {
+                return null;
+            }
             mHasTryDecodeAvatar = true;
             mHasLocalAvatar = bitmap != null;
             return bitmap;
@@ -181,6 +191,23 @@ public class Account implements Parcelable {
         this.mHasLocalAvatar = in.readByte() != 0;
     }
 
+    /**
+     * 将此账号写入快照，与{@link #Account(DataInput)}对应
+     *
+     * @see xjunz.tool.werecord.impl.repo.AccountSnapshot
+     */
+    public void writeSnapshot(@NotNull DataOutput out) throws IOException {
+        IoUtils.writeNullableUTF(out, this.nickname);
+        IoUtils.writeNullableUTF(out, this.alias);
+        out.writeUTF(this.id);
+    }
+
+    protected Account(@NotNull DataInput in) throws IOException {
+        this.nickname = IoUtils.readNullableUTF(in);
+        this.alias = IoUtils.readNullableUTF(in);
+        this.id = in.readUTF();
+    }
+
     public String getIdentifier() {
         if (Objects.equals(getName(), id)) {
             return id;
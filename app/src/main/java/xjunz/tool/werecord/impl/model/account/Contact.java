@@ -14,17 +14,21 @@ import androidx.annotation.NonNull;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import xjunz.tool.werecord.App;
 import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.impl.model.export.TableExportable;
+import xjunz.tool.werecord.impl.model.message.util.LazyLvBuffer;
 import xjunz.tool.werecord.impl.model.message.util.LvBufferUtils;
 import xjunz.tool.werecord.impl.repo.ContactRepository;
 import xjunz.tool.werecord.ui.viewmodel.SortBy;
-import xjunz.tool.werecord.util.LogUtils;
-import xjunz.tool.werecord.util.Utils;
+import xjunz.tool.werecord.util.IoUtils;
+import xjunz.tool.werecord.util.PinyinCache;
 
 public class Contact extends Account implements TableExportable {
     /**
@@ -81,39 +85,39 @@ public class Contact extends Account implements TableExportable {
      */
     private String pyAbbr;
 
-    private byte[] lvBuffer;
     public static final int[] LV_BUFFER_READ_SERIAL = {1, 1, 0, 3, 1, 0, 0, 1, 1, 0, 0, 1, 1, 0, 0, 0, 0, 1, 1, 0, 1, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 1, 0, 1, 3, 3};
     private static final Object[] EMPTY_LV_BUFFER = LvBufferUtils.createEmptyLvBuffer(LV_BUFFER_READ_SERIAL);
-    private Object[] parsedLvBuffer = EMPTY_LV_BUFFER;
+    /**
+     * 联系人的LvBuffer有40个字段，但通常只会用到性别、地区等少数几个，因此延迟解码
+     */
+    private LazyLvBuffer lvBuffer;
 
     public Contact(String id) {
         this.id = id;
     }
 
     public byte[] getLvBuffer() {
-        return lvBuffer;
+        return lvBuffer == null ? null : lvBuffer.getRaw();
     }
 
     public void setLvBuffer(byte[] lvBuffer) {
-        this.lvBuffer = lvBuffer;
-        LvBufferUtils utils = new LvBufferUtils();
-        try {
-            parsedLvBuffer = utils.readLvBuffer(lvBuffer, LV_BUFFER_READ_SERIAL);
-        } catch (Exception e) {
-            LogUtils.error("Failed to parse LvBuffer, id: " + id);
-        }
+        this.lvBuffer = new LazyLvBuffer(lvBuffer, LV_BUFFER_READ_SERIAL);
     }
 
     public Object[] getParsedLvBuffer() {
-        return parsedLvBuffer;
+        return lvBuffer == null ? EMPTY_LV_BUFFER : lvBuffer.toArray();
+    }
+
+    private String getLvBufferString(int index) {
+        return lvBuffer == null ? null : lvBuffer.getString(index);
     }
 
     /**
      * 返回某个好友是否为单向好友（僵尸）
      */
     public boolean isPossibleZombie() {
-        if (type == Type.FRIEND && parsedLvBuffer != null) {
-            String encrypted = (String) parsedLvBuffer[32];
+        if (type == Type.FRIEND) {
+            String encrypted = getLvBufferString(32);
             return encrypted != null && encrypted.endsWith("@stranger");
         }
         return false;
@@ -143,11 +147,24 @@ public class Contact extends Account implements TableExportable {
 
     public String getNamePyAttr() {
         if (pyAbbr == null) {
-            pyAbbr = Utils.getPinYinAbbr(getName());
+            pyAbbr = PinyinCache.getAbbr(getName());
         }
         return pyAbbr;
     }
 
+    /**
+     * 批量计算一组联系人的名称拼音缩写，应当在首次排序或搜索前于后台线程调用
+     *
+     * @see PinyinCache#precompute(java.util.Collection)
+     */
+    public static void precomputeNamePyAttrs(@NotNull List<? extends Contact> contacts) {
+        List<String> names = new ArrayList<>(contacts.size());
+        for (Contact contact : contacts) {
+            names.add(contact.getName());
+        }
+        PinyinCache.precompute(names);
+    }
+
     public int compareTo(@NonNull Contact o, SortBy by, boolean isAscending) {
         return (isAscending ? 1 : -1) * getComparatorPyAbbr().compareTo(o.getComparatorPyAbbr());
     }
@@ -156,14 +173,14 @@ public class Contact extends Account implements TableExportable {
      * @return 0: 无/未知 1：男 2：女
      */
     public int getGender() {
-        return (int) parsedLvBuffer[1];
+        return lvBuffer == null ? 0 : lvBuffer.getInt(1);
     }
 
     public String getRegion() {
-        String provinceOrCountry = (String) parsedLvBuffer[14];
+        String provinceOrCountry = getLvBufferString(14);
         if (!empty(provinceOrCountry)) {
-            String city = (String) parsedLvBuffer[15];
-            String enRegion = (String) parsedLvBuffer[22];
+            String city = getLvBufferString(15);
+            String enRegion = getLvBufferString(22);
             if (empty(city)) {
                 return String.format("%s (%s)", provinceOrCountry, enRegion);
             } else {
@@ -175,11 +192,11 @@ public class Contact extends Account implements TableExportable {
     }
 
     public String getBio() {
-        return (String) parsedLvBuffer[13];
+        return getLvBufferString(13);
     }
 
     public String getPhoneNumbers() {
-        String phoneNumbers = (String) parsedLvBuffer[31];
+        String phoneNumbers = getLvBufferString(31);
         if (phoneNumbers != null && phoneNumbers.endsWith("，")) {
             phoneNumbers = phoneNumbers.substring(0, phoneNumbers.length() - 1);
         }
@@ -378,8 +395,7 @@ public class Contact extends Account implements TableExportable {
         dest.writeInt(this.type == null ? -1 : this.type.ordinal());
         dest.writeString(this.comparatorPyAbbr);
         dest.writeString(this.pyAbbr);
-        dest.writeByteArray(this.lvBuffer);
-        dest.writeArray(this.parsedLvBuffer);
+        dest.writeByteArray(getLvBuffer());
     }
 
     protected Contact(Parcel in) {
@@ -390,8 +406,49 @@ public class Contact extends Account implements TableExportable {
         this.type = tmpType == -1 ? null : Type.values()[tmpType];
         this.comparatorPyAbbr = in.readString();
         this.pyAbbr = in.readString();
-        this.lvBuffer = in.createByteArray();
-        this.parsedLvBuffer = in.readArray(Object[].class.getClassLoader());
+        byte[] lvBuffer = in.createByteArray();
+        if (lvBuffer != null) {
+            setLvBuffer(lvBuffer);
+        }
+    }
+
+    /**
+     * 将此联系人写入快照，包括预先计算的拼音缩写和原始的LvBuffer，LvBuffer在读取快照后仍然延迟解码
+     */
+    @Override
+    public void writeSnapshot(@NotNull DataOutput out) throws IOException {
+        super.writeSnapshot(out);
+        IoUtils.writeNullableUTF(out, this.remark);
+        out.writeInt(this.rawType);
+        out.writeUTF(getComparatorPyAbbr());
+        out.writeUTF(getNamePyAttr());
+        byte[] lvBuffer = getLvBuffer();
+        if (lvBuffer == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(lvBuffer.length);
+            out.write(lvBuffer);
+        }
+    }
+
+    protected Contact(@NotNull DataInput in) throws IOException {
+        super(in);
+        this.remark = IoUtils.readNullableUTF(in);
+        this.rawType = in.readInt();
+        judgeType();
+        this.comparatorPyAbbr = in.readUTF();
+        this.pyAbbr = in.readUTF();
+        int length = in.readInt();
+        if (length >= 0) {
+            byte[] lvBuffer = new byte[length];
+            in.readFully(lvBuffer);
+            setLvBuffer(lvBuffer);
+        }
+    }
+
+    @NotNull
+    public static Contact readSnapshot(@NotNull DataInput in) throws IOException {
+        return new Contact(in);
     }
 
     public static final Creator<Contact> CREATOR = new Creator<Contact>() {
@@ -11,12 +11,16 @@ import androidx.annotation.NonNull;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
 
 import xjunz.tool.werecord.App;
 import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.ui.viewmodel.SortBy;
+import xjunz.tool.werecord.util.IoUtils;
 import xjunz.tool.werecord.util.Utils;
 
 import static xjunz.tool.werecord.util.Utils.arabicDigit2HanDigit;
@@ -241,6 +245,28 @@ public class Talker extends Contact {
         this.unreadCount = in.readInt();
     }
 
+    @Override
+    public void writeSnapshot(@NotNull DataOutput out) throws IOException {
+        super.writeSnapshot(out);
+        out.writeInt(this.messageCount);
+        out.writeLong(this.lastMsgTimestamp);
+        IoUtils.writeNullableUTF(out, this.parentRef);
+        out.writeInt(this.unreadCount);
+    }
+
+    protected Talker(@NotNull DataInput in) throws IOException {
+        super(in);
+        this.messageCount = in.readInt();
+        this.lastMsgTimestamp = in.readLong();
+        this.parentRef = IoUtils.readNullableUTF(in);
+        this.unreadCount = in.readInt();
+    }
+
+    @NotNull
+    public static Talker readSnapshot(@NotNull DataInput in) throws IOException {
+        return new Talker(in);
+    }
+
     public static final Creator<Talker> CREATOR = new Creator<Talker>() {
         @NotNull
         @Contract("_ -> new")
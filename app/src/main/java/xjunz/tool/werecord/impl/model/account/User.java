@@ -50,6 +50,10 @@ public class User extends Account {
                 + File.separator + "MicroMsg" + File.separator + pathIdentifier + File.separator + "video";
     }
 
+    /**
+     * 删除工作数据库，仅在工作数据库可能已损坏时调用(比如应用崩溃)。源数据库的镜像会被保留，
+     * 下次启动时会从镜像重新生成工作数据库，而不必再次完整复制源数据库。
+     */
     public void deleteWorkerDatabase() {
         final File backup = new File(workerDatabaseFilePath);
         if (backup.exists()) {
@@ -37,7 +37,6 @@ import xjunz.tool.werecord.util.Returnable;
 import xjunz.tool.werecord.util.RxJavaUtils;
 import xjunz.tool.werecord.util.Utils;
 
-import static xjunz.tool.werecord.util.DbUtils.buildValuesFromCursorReuse;
 
 /**
  * @author xjunz 2021/1/28 21:43
@@ -121,10 +120,15 @@ public class ContactExporter extends Exporter {
                         exportDb.beginTransaction();
                         int progress = 0;
                         listener.onGetTotalProgress(mContactList.size());
+                        //每次查询的列都相同，共用一个映射器
+                        DbUtils.RowMapper mapper = null;
                         for (Contact talker : mContactList) {
-                            try (Cursor cursor = workerDb.rawQuery(String.format("select * from %s where username='%s'", contactTableName, talker.id), null)) {
+                            try (Cursor cursor = workerDb.rawQuery("select * from " + contactTableName + " where username=?", new String[]{talker.id})) {
+                                if (mapper == null) {
+                                    mapper = DbUtils.RowMapper.of(cursor);
+                                }
                                 if (cursor.moveToNext()) {
-                                    helper.insert(buildValuesFromCursorReuse(cursor, reuseValues));
+                                    helper.insert(mapper.mapInto(cursor, reuseValues));
                                     listener.onProgressUpdate(++progress);
                                 }
                             }
@@ -29,6 +29,7 @@ import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.impl.model.account.Account;
 import xjunz.tool.werecord.util.BiPredicate;
 import xjunz.tool.werecord.util.IoUtils;
+import xjunz.tool.werecord.util.TraceUtils;
 import xjunz.tool.werecord.util.Utils;
 
 /**
@@ -111,7 +112,8 @@ public abstract class Exporter {
      */
     @WorkerThread
     public Completable exportToAsync(@NonNull File outputFile, @Nullable OnProgressListener listener) {
-        return exportAsToAsync(getExportFormat(), outputFile, listener == null ? EMPTY_PROGRESS_LISTENER : listener);
+        return TraceUtils.traceAsync(getClass().getSimpleName() + ".exportAsToAsync",
+                exportAsToAsync(getExportFormat(), outputFile, listener == null ? EMPTY_PROGRESS_LISTENER : listener));
     }
 
     @WorkerThread
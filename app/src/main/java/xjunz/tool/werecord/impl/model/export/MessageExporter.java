@@ -35,7 +35,6 @@ import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.impl.Environment;
 import xjunz.tool.werecord.impl.model.account.Account;
 import xjunz.tool.werecord.impl.model.account.Talker;
-import xjunz.tool.werecord.impl.model.message.Message;
 import xjunz.tool.werecord.impl.repo.MessageRepository;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
 import xjunz.tool.werecord.util.DbUtils;
@@ -43,7 +42,6 @@ import xjunz.tool.werecord.util.IoUtils;
 import xjunz.tool.werecord.util.RxJavaUtils;
 import xjunz.tool.werecord.util.Utils;
 
-import static xjunz.tool.werecord.util.DbUtils.buildValuesFromCursorReuse;
 
 /**
  * @author xjunz 2021/1/29 12:55
@@ -80,6 +78,11 @@ public class MessageExporter extends Exporter {
 
     @NotNull
     private String generateQuerySqlFromConfig() {
+        return generateTimeSpanClause() + " order by createTime";
+    }
+
+    @NotNull
+    private String generateTimeSpanClause() {
         StringBuilder clause = new StringBuilder();
         if (mCustomTimeSpanConfig.getValue()) {
             long startLimit = mStartTimeConfig.getValue();
@@ -91,7 +94,6 @@ public class MessageExporter extends Exporter {
                 clause.append(" and createTime < ").append(stopLimit);
             }
         }
-        clause.append(" order by createTime");
         return clause.toString();
     }
 
@@ -102,24 +104,25 @@ public class MessageExporter extends Exporter {
         }
         MessageRepository repository = RepositoryFactory.get(MessageRepository.class);
         String clause = generateQuerySqlFromConfig();
+        String timeSpanClause = generateTimeSpanClause();
         switch (format) {
             case TXT:
                 if (mTalkers.size() == 1) {
                     Talker talker = mTalkers.get(0);
                     return RxJavaUtils.complete(() -> {
                         OutputStream outputStream = new FileOutputStream(outputFile);
-                        String sql = String.format("talker='%s'", talker.id) + clause;
-                        List<Message> messages = repository.rawQueryMessageByTalker(sql);
-                        if (!messages.isEmpty()) {
-                            listener.onGetTotalProgress(messages.size());
+                        long count = repository.countMessages("talker=?" + timeSpanClause, talker.id);
+                        if (count != 0) {
+                            listener.onGetTotalProgress((int) count);
                             String header = App.getStringOf(R.string.template_message_export_header, talker.getIdentifier(),
-                                    Utils.formatDate(System.currentTimeMillis()), messages.size());
+                                    Utils.formatDate(System.currentTimeMillis()), count);
                             outputStream.write(header.getBytes());
-                            for (int i = 0; i < messages.size(); i++) {
-                                Message message = messages.get(i);
-                                listener.onProgressUpdate(i + 1);
+                            //边读取边写入，不必先把全部消息读入内存
+                            int[] progress = new int[1];
+                            repository.streamMessages("talker=?" + clause, talker.id).blockingForEach(message -> {
+                                listener.onProgressUpdate(++progress[0]);
                                 outputStream.write((message.exportAsPlainText() + "\n").getBytes());
-                            }
+                            });
                             outputStream.flush();
                             outputStream.close();
                         }
@@ -135,14 +138,12 @@ public class MessageExporter extends Exporter {
                                 File txt = File.createTempFile(talker.id, null);
                                 txtFiles[index] = txt;
                                 FileOutputStream txtOut = new FileOutputStream(txt, true);
-                                String sql = String.format("talker='%s'", talker.id) + clause;
-                                List<Message> messages = repository.rawQueryMessageByTalker(sql);
+                                long count = repository.countMessages("talker=?" + timeSpanClause, talker.id);
                                 String header = App.getStringOf(R.string.template_message_export_header, talker.getIdentifier(),
-                                        Utils.formatDate(System.currentTimeMillis()), messages.size());
+                                        Utils.formatDate(System.currentTimeMillis()), count);
                                 txtOut.write(header.getBytes());
-                                for (Message message : messages) {
-                                    txtOut.write((message.exportAsPlainText() + "\n").getBytes());
-                                }
+                                repository.streamMessages("talker=?" + clause, talker.id)
+                                        .blockingForEach(message -> txtOut.write((message.exportAsPlainText() + "\n").getBytes()));
                                 txtOut.flush();
                                 txtOut.close();
                                 listener.onProgressUpdate(progress.incrementAndGet());
@@ -184,8 +185,9 @@ public class MessageExporter extends Exporter {
                             try (Cursor cursor = workerDb.rawQuery(querySql, null)) {
                                 long size = cursor.getCount();
                                 listener.onGetTotalProgress((int) size);
+                                DbUtils.RowMapper mapper = DbUtils.RowMapper.of(cursor);
                                 while (cursor.moveToNext()) {
-                                    helper.insert(buildValuesFromCursorReuse(cursor, reuseValues));
+                                    helper.insert(mapper.mapInto(cursor, reuseValues));
                                     listener.onProgressUpdate(++progress);
                                 }
                             }
@@ -3,7 +3,6 @@
  */
 package xjunz.tool.werecord.impl.model.message;
 
-import android.content.ContentValues;
 import android.os.Parcel;
 import android.text.format.Formatter;
 
@@ -13,19 +12,13 @@ import androidx.annotation.Nullable;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Objects;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import xjunz.tool.werecord.App;
+import xjunz.tool.werecord.impl.model.message.util.XmlScanner;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
 import xjunz.tool.werecord.impl.repo.WxAppRepository;
 
@@ -38,33 +31,99 @@ public class AppMessage extends ComplexMessage {
     private String mAppId;
     private String mAppName;
     private int mSubtype;
+    /**
+     * 消息的XML是否已解析。具体的消息类型也来自XML，因此{@link #getType()}同样会触发解析
+     */
+    private volatile boolean mXmlParsed;
     public static final int PARSE_ERROR_APP_XML = 3;
 
-    public AppMessage(ContentValues values, MessageFactory.Type superType) {
-        super(values, superType);
-        parseMessage();
+    public AppMessage(MessageRow row, MessageFactory.Type superType) {
+        super(row, superType);
+    }
+
+    private void ensureXmlParsed() {
+        if (!mXmlParsed) {
+            synchronized (this) {
+                if (!mXmlParsed) {
+                    parseMessage();
+                    mXmlParsed = true;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void ensureParsed() {
+        super.ensureParsed();
+        ensureXmlParsed();
+    }
+
+    @Override
+    boolean isParsed() {
+        return mXmlParsed && super.isParsed();
+    }
+
+    @NonNull
+    @Override
+    MessageParseCache.Facets exportFacets() {
+        MessageParseCache.Facets facets = super.exportFacets();
+        facets.title = getTitle();
+        facets.description = getDescription();
+        facets.appId = mAppId;
+        facets.appName = mAppName;
+        facets.subtype = mSubtype;
+        return facets;
+    }
+
+    @Override
+    void restoreFacets(@NonNull MessageParseCache.Facets facets) {
+        synchronized (this) {
+            super.restoreFacets(facets);
+            if (facets.type != null) {
+                type = facets.type;
+            }
+            mTitle = facets.title;
+            mDes = facets.description;
+            mAppId = facets.appId;
+            mAppName = facets.appName;
+            mSubtype = facets.subtype;
+            mXmlParsed = true;
+        }
     }
 
     public int getRawSubtype() {
+        ensureXmlParsed();
         return mSubtype;
     }
 
+    @NotNull
+    @Override
+    public MessageFactory.Type getType() {
+        ensureXmlParsed();
+        return super.getType();
+    }
+
     @Override
     public void modifyContent(String content) {
         super.modifyContent(content);
         //每次修改content以后重新解析消息
-        parseMessage();
+        synchronized (this) {
+            parseMessage();
+            mXmlParsed = true;
+        }
     }
 
     @Nullable
     @Override
     public String getTitle() {
+        ensureXmlParsed();
         return mTitle;
     }
 
     @Nullable
     @Override
     public String getDescription() {
+        ensureXmlParsed();
         return mDes;
     }
 
@@ -76,6 +135,7 @@ public class AppMessage extends ComplexMessage {
 
     @Nullable
     public String getSource() {
+        ensureXmlParsed();
         return mAppName;
     }
 
@@ -85,6 +145,7 @@ public class AppMessage extends ComplexMessage {
     }
 
     public String getAppId() {
+        ensureXmlParsed();
         return mAppId;
     }
 
@@ -123,103 +184,105 @@ public class AppMessage extends ComplexMessage {
             case MessageFactory.SUBTYPE_VIDEO:
                 return MessageFactory.Type.VIDEO;
             default:
-                return getType();
+                //解析过程中调用，不能通过getType()获取，否则会再次触发解析
+                return type;
         }
     }
 
-    private void parseMessage() {
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        try {
-            SAXParser parser = factory.newSAXParser();
-            ComplexMessageHandler handler = new ComplexMessageHandler();
-            parser.parse(new ByteArrayInputStream(content.getBytes()), handler);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            if (!(e instanceof ComplexMessageHandler.StopParseException)) {
-                e.printStackTrace();
-                this.parseErrorCode = PARSE_ERROR_APP_XML;
-            }
-        }
+    /**
+     * 应用消息的XML中所需的节点，不存在的节点为{@code null}
+     */
+    static final class AppXml {
+        boolean hasAppMsg;
+        String appId;
+        String title;
+        String des;
+        /**
+         * "type"节点的值，无法解析时为{@code null}
+         */
+        Integer subtype;
+        /**
+         * 文件消息的"totallen"节点的值，无法解析时为{@code null}
+         */
+        Long totalLength;
     }
 
-    private class ComplexMessageHandler extends DefaultHandler {
-        private String currentLocalName;
-        private final StringBuilder title = new StringBuilder();
-        private StringBuilder des = new StringBuilder();
-        private final StringBuilder type = new StringBuilder();
-
-        @Override
-        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-            super.startElement(uri, localName, qName, attributes);
-            currentLocalName = qName;
-            if (Objects.equals(localName, "appmsg")) {
-                mAppId = attributes.getValue("appid");
-                mAppName = RepositoryFactory.get(WxAppRepository.class).getNameOf(mAppId);
+    /**
+     * 扫描消息的XML，只读取所需的节点，读到"type"节点后即停止。文件消息还需要读取其后的"totallen"节点
+     *
+     * @param out 读取到的节点，解析出错时保留出错前读取到的节点
+     */
+    static void scanXml(@NonNull String content, @NonNull AppXml out) throws XmlPullParserException, IOException {
+        XmlPullParser parser = XmlScanner.scan(content);
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event != XmlPullParser.START_TAG) {
+                continue;
             }
-        }
-
-        @Override
-        public void endElement(String uri, String localName, String qName) throws SAXException {
-            super.endElement(uri, localName, qName);
-            switch (localName) {
+            switch (parser.getName()) {
+                case "appmsg":
+                    out.hasAppMsg = true;
+                    out.appId = parser.getAttributeValue(null, "appid");
+                    break;
                 case "title":
-                    mTitle = title.toString();
+                    out.title = XmlScanner.readText(parser);
                     break;
                 case "des":
-                    mDes = des.toString();
+                    out.des = XmlScanner.readText(parser);
                     break;
-                case "totallen":
-                    try {
-                        mDes = Formatter.formatFileSize(App.getContext(), Long.parseLong(des.toString()));
-                        throw new StopParseException();
-                    } catch (NumberFormatException e) {
-                        throw new StopParseException();
-                    }
                 case "type":
                     try {
-                        setRawSubtype(Integer.parseInt(type.toString()));
-                        //如果是文件的话，我们还要解析totallen节点，先不停止解析
-                        if (mSubtype != MessageFactory.SUBTYPE_FILE) {
-                            throw new StopParseException();
-                        } else {
-                            des = new StringBuilder();
-                        }
+                        out.subtype = Integer.parseInt(XmlScanner.readText(parser));
                     } catch (NumberFormatException e) {
                         e.printStackTrace();
-                        throw new StopParseException();
+                        return;
+                    }
+                    //如果是文件的话，我们还要解析totallen节点，先不停止解析
+                    if (out.subtype != MessageFactory.SUBTYPE_FILE) {
+                        return;
                     }
                     break;
+                case "totallen":
+                    try {
+                        out.totalLength = Long.parseLong(XmlScanner.readText(parser));
+                    } catch (NumberFormatException ignored) {
+                    }
+                    return;
             }
         }
+    }
 
-        /**
-         * 手动抛出此异常停止解析XML
-         */
-        private class StopParseException extends SAXException {
-            StopParseException() {
-                super("Stop parsing manually.");
-            }
+    private void parseMessage() {
+        String content = getContent();
+        if (content == null) {
+            this.parseErrorCode = PARSE_ERROR_APP_XML;
+            return;
         }
-
-        @Override
-        public void characters(char[] ch, int start, int length) throws SAXException {
-            super.characters(ch, start, length);
-            switch (currentLocalName) {
-                case "title":
-                    title.append(ch, start, length);
-                    break;
-                case "des":
-                case "totallen":
-                    des.append(ch, start, length);
-                    break;
-                case "type":
-                    type.append(ch, start, length);
-                    break;
-            }
+        AppXml xml = new AppXml();
+        try {
+            scanXml(content, xml);
+        } catch (XmlPullParserException | IOException e) {
+            e.printStackTrace();
+            this.parseErrorCode = PARSE_ERROR_APP_XML;
+        }
+        if (xml.hasAppMsg) {
+            mAppId = xml.appId;
+            mAppName = RepositoryFactory.get(WxAppRepository.class).getNameOf(mAppId);
+        }
+        if (xml.title != null) {
+            mTitle = xml.title;
+        }
+        if (xml.des != null) {
+            mDes = xml.des;
+        }
+        if (xml.subtype != null) {
+            setRawSubtype(xml.subtype);
+        }
+        if (xml.totalLength != null) {
+            mDes = Formatter.formatFileSize(App.getContext(), xml.totalLength);
         }
     }
 
-    ;
-
     @Override
     public int describeContents() {
         return 0;
@@ -228,6 +291,7 @@ public class AppMessage extends ComplexMessage {
     @Override
     public void writeToParcel(@NotNull Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
+        ensureXmlParsed();
         dest.writeString(this.mTitle);
         dest.writeString(this.mDes);
         dest.writeString(this.mAppId);
@@ -242,6 +306,7 @@ public class AppMessage extends ComplexMessage {
         this.mAppId = in.readString();
         this.mAppName = in.readString();
         this.mSubtype = in.readInt();
+        this.mXmlParsed = true;
     }
 
     public static final Creator<AppMessage> CREATOR = new Creator<AppMessage>() {
@@ -3,7 +3,6 @@
  */
 package xjunz.tool.werecord.impl.model.message;
 
-import android.content.ContentValues;
 import android.os.Parcel;
 
 import androidx.annotation.Nullable;
@@ -18,8 +17,8 @@ public class CallMessage extends ComplexMessage {
     public static final String ABSTRACT_KEY_CALL_CONTENT = "call_content";
     private static final int INDEX_OF_CALL_CONTENT = 2;
 
-    public CallMessage(ContentValues values) {
-        super(values, judgeType(values.getAsString(KEY_CONTENT)));
+    public CallMessage(MessageRow row) {
+        super(row, judgeType(row.getContent()));
     }
 
     private static MessageFactory.Type judgeType(@Nullable String content) {
@@ -35,6 +34,7 @@ public class CallMessage extends ComplexMessage {
     @Nullable
     @Override
     public String getTitle() {
+        Object[] parsedLvBuffer = getParsedLvBuffer();
         return parsedLvBuffer == null ? null : (String) parsedLvBuffer[INDEX_OF_CALL_CONTENT];
     }
 
@@ -56,6 +56,7 @@ public class CallMessage extends ComplexMessage {
             this.type = judgeType((String) content);
         } else if (ABSTRACT_KEY_CALL_CONTENT.equals(key)) {
             //修改内容
+            Object[] parsedLvBuffer = getParsedLvBuffer();
             parsedLvBuffer[INDEX_OF_CALL_CONTENT] = content;
             super.modify(ABSTRACT_KEY_LVBUFFER, parsedLvBuffer);
         } else {
@@ -4,7 +4,6 @@
 package xjunz.tool.werecord.impl.model.message;
 
 
-import android.content.ContentValues;
 import android.os.Parcel;
 
 import androidx.annotation.Nullable;
@@ -20,26 +19,42 @@ import xjunz.tool.werecord.util.Utils;
  * @see MessageFactory#TYPE_CARD
  */
 public class CardMessage extends ComplexMessage {
-    private final String nickname;
-    private final String username;
-
-    public CardMessage(ContentValues values) {
-        super(values, MessageFactory.Type.CARD);
-        //escape character entity reference (&#x)
-        String extracted = Utils.extractFirst(getContent(), "nickname=\"(.+?)\"");
-        nickname = extracted == null ? null : HtmlCompat.fromHtml(extracted, HtmlCompat.FROM_HTML_MODE_LEGACY).toString();
-        username = Utils.extractFirst(getContent(), "username=\"(.+?)\"");
+    private String nickname;
+    private String username;
+    /**
+     * 名片信息是否已从内容中提取，首次访问时才提取
+     */
+    private volatile boolean mCardParsed;
+
+    public CardMessage(MessageRow row) {
+        super(row, MessageFactory.Type.CARD);
+    }
+
+    private void ensureCardParsed() {
+        if (!mCardParsed) {
+            synchronized (this) {
+                if (!mCardParsed) {
+                    //escape character entity reference (&#x)
+                    String extracted = Utils.extractFirst(getContent(), "nickname=\"(.+?)\"");
+                    nickname = extracted == null ? null : HtmlCompat.fromHtml(extracted, HtmlCompat.FROM_HTML_MODE_LEGACY).toString();
+                    username = Utils.extractFirst(getContent(), "username=\"(.+?)\"");
+                    mCardParsed = true;
+                }
+            }
+        }
     }
 
     @Nullable
     @Override
     public String getTitle() {
+        ensureCardParsed();
         return nickname;
     }
 
     @Nullable
     @Override
     public String getDescription() {
+        ensureCardParsed();
         return username;
     }
 
@@ -57,6 +72,7 @@ public class CardMessage extends ComplexMessage {
     @Override
     public void writeToParcel(@NotNull Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
+        ensureCardParsed();
         dest.writeString(this.nickname);
         dest.writeString(this.username);
     }
@@ -65,6 +81,7 @@ public class CardMessage extends ComplexMessage {
         super(in);
         this.nickname = in.readString();
         this.username = in.readString();
+        this.mCardParsed = true;
     }
 
     public static final Creator<CardMessage> CREATOR = new Creator<CardMessage>() {
@@ -3,7 +3,6 @@
  */
 package xjunz.tool.werecord.impl.model.message;
 
-import android.content.ContentValues;
 import android.os.Parcel;
 import android.text.TextUtils;
 
@@ -25,8 +24,8 @@ import xjunz.tool.werecord.util.Utils;
 
 public abstract class ComplexMessage extends Message {
 
-    public ComplexMessage(ContentValues values, MessageFactory.Type superType) {
-        super(values, superType);
+    public ComplexMessage(MessageRow row, MessageFactory.Type superType) {
+        super(row, superType);
     }
 
     @Nullable
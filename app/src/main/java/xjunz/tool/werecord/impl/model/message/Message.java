@@ -28,18 +28,22 @@ import xjunz.tool.werecord.impl.model.message.util.LvBufferUtils;
 import xjunz.tool.werecord.impl.repo.ContactRepository;
 import xjunz.tool.werecord.impl.repo.GroupRepository;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
-import xjunz.tool.werecord.util.DbUtils;
-import xjunz.tool.werecord.util.Utils;
 
 /**
- * 消息对象，是数据库中"message"表的数据的封装。所有消息来源于{@link MessageFactory#createMessage(ContentValues)}。
- * 需要注意的是，消息中所有数字类型的字段都是{@link Long}类型。
+ * 消息对象，是数据库中"message"表的数据的封装。所有消息来源于{@link MessageFactory#createMessage(MessageRow)}。
+ * 需要注意的是，消息中所有数字类型的字段都是{@link Long}类型。数据保存在紧凑的{@link MessageRow}中，
+ * 只有在需要写回数据库时才通过{@link #getValues()}生成{@link ContentValues}。
+ * <p>
+ * 创建消息时只保存原始的列数据，发送者ID、去除前缀的内容以及LvBuffer都在首次访问时才解析。
+ * 列表中大量消息只是被滑过或者被计数，从不会访问这些字段，因此不必为它们付出解析的开销。
+ * 解析以双重检查的方式进行，多线程访问同一条消息是安全的，每项内容只会解析一次。
+ * </p>
  *
  * @see MessageFactory
  * @see xjunz.tool.werecord.impl.repo.MessageRepository
  */
 public abstract class Message implements Parcelable, Exportable {
-    private final ContentValues values;
+    private final MessageRow row;
     /**
      * 发送
      */
@@ -99,9 +103,10 @@ public abstract class Message implements Parcelable, Exportable {
      * 未经处理的消息内容
      * <p>
      * 群聊消息的{@link Message#getRawContent()}前会有发送消息的微信ID加":"前缀，后面才是发送的消息内容。此字段不包含这些前缀。
+     * 首次访问时才解析，应当通过{@link #getContent()}获取。
      * </p>
      */
-    protected String content;
+    private String content;
     /**
      * 从图片名{@link Message#getImgPath()}中解析得到的本地图片路径
      *
@@ -109,13 +114,17 @@ public abstract class Message implements Parcelable, Exportable {
      */
     protected String localImagePath;
     /**
-     * 消息发送者ID
+     * 消息发送者ID，与{@link #content}一同解析
      */
     private String senderId;
+    /**
+     * {@link #senderId}和{@link #content}是否已解析
+     */
+    private volatile boolean mSenderIdParsed;
     /**
      * 解析后的枚举类消息类型
      *
-     * @see MessageFactory#createMessage(ContentValues)
+     * @see MessageFactory#createMessage(MessageRow)
      */
     protected MessageFactory.Type type;
     protected int editionFlag = Edition.FLAG_NONE;
@@ -125,37 +134,80 @@ public abstract class Message implements Parcelable, Exportable {
      * 解析错误码，当消息解析遇到已知的错误时，会
      */
     protected int parseErrorCode = -1;
-    protected Object[] parsedLvBuffer;
+    private Object[] parsedLvBuffer;
+    /**
+     * {@link #parsedLvBuffer}是否已解析
+     */
+    private volatile boolean mLvBufferParsed;
     public static final int[] LV_BUFFER_READ_SERIAL = {0, 1, 0, 1, 1, 1, 1, 1, 1, 0, 0, 0, 1, 0, 2, 0, 0, 1, 1};
     public static int PARSE_ERROR_SENDER_ID = 1;
     public static int PARSE_ERROR_LV_BUFFER = 2;
     private Account mSenderAccount;
     private boolean mHasLoadSenderAccount;
+    /**
+     * 是否仅包含{@link MessageHeader#COLUMNS}中的字段
+     */
+    private boolean header;
 
+    /**
+     * @return 包含所有字段的{@link ContentValues}，每次调用都会生成新的实例，修改它不会影响此消息
+     */
     public ContentValues getValues() {
-        return values;
+        return row.toContentValues();
+    }
+
+    @NonNull
+    public MessageRow getRow() {
+        return row;
     }
 
     public String getTalkerId() {
-        return values.getAsString(KEY_TALKER);
+        return row.getTalker();
     }
 
-    public Message(@NonNull ContentValues values, MessageFactory.Type type) {
-        this.values = values;
+    public Message(@NonNull MessageRow row, MessageFactory.Type type) {
+        this.row = row;
         this.type = type;
         if (isBackup()) {
             //如果是备份消息，读取其编辑标志
-            this.editionFlag = values.getAsInteger(KEY_EDITION);
+            this.editionFlag = (int) row.getNumber(MessageRow.EDITION);
+        }
+    }
+
+    private void ensureSenderIdParsed() {
+        if (!mSenderIdParsed) {
+            synchronized (this) {
+                if (!mSenderIdParsed) {
+                    parseSenderIdAndContent(getRawContent());
+                    mSenderIdParsed = true;
+                }
+            }
         }
-        parseSenderIdAndContent(values.getAsString(KEY_CONTENT));
-        readLvBuffer();
     }
 
-    public void readLvBuffer() {
-        byte[] buffer = values.getAsByteArray(KEY_LV_BUFFER);
+    private void ensureLvBufferParsed() {
+        if (!mLvBufferParsed) {
+            synchronized (this) {
+                if (!mLvBufferParsed) {
+                    readLvBuffer();
+                    mLvBufferParsed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 解析所有延迟解析的内容，子类有额外的延迟解析的内容时应当重写此方法
+     */
+    protected void ensureParsed() {
+        ensureSenderIdParsed();
+        ensureLvBufferParsed();
+    }
+
+    private void readLvBuffer() {
+        byte[] buffer = row.getLvBuffer();
         try {
-            LvBufferUtils utils = new LvBufferUtils();
-            parsedLvBuffer = utils.readLvBuffer(buffer, LV_BUFFER_READ_SERIAL);
+            parsedLvBuffer = LvBufferUtils.readLvBuffer(buffer, LV_BUFFER_READ_SERIAL);
         } catch (Exception e) {
             //e.printStackTrace();
             parseErrorCode = PARSE_ERROR_LV_BUFFER;
@@ -164,13 +216,60 @@ public abstract class Message implements Parcelable, Exportable {
 
     @Nullable
     public Object[] getParsedLvBuffer() {
+        ensureLvBufferParsed();
         return parsedLvBuffer;
     }
 
+    /**
+     * @return 解析结果是否已经在访问时得到，此方法本身不会触发解析
+     * @see MessageParseCache
+     */
+    boolean isParsed() {
+        return parsedContent != null;
+    }
+
+    /**
+     * 导出解析结果，用于写入{@link MessageParseCache}。应当只对{@link #isParsed()}的消息调用，否则会触发解析
+     */
+    @NonNull
+    MessageParseCache.Facets exportFacets() {
+        MessageParseCache.Facets facets = new MessageParseCache.Facets();
+        facets.parsedContent = getParsedContent();
+        facets.type = getType();
+        facets.errorCode = getParseErrorCode();
+        return facets;
+    }
+
+    /**
+     * 填入{@link MessageParseCache}中缓存的解析结果，此后这些内容不再需要解析
+     */
+    void restoreFacets(@NonNull MessageParseCache.Facets facets) {
+        if (facets.parsedContent != null) {
+            parsedContent = facets.parsedContent;
+        }
+        if (facets.errorCode != -1) {
+            parseErrorCode = facets.errorCode;
+        }
+    }
+
+    void markAsHeader() {
+        header = true;
+    }
+
+    /**
+     * @return 是否为仅包含{@link MessageHeader#COLUMNS}中的字段的消息头。消息头只能用于显示和搜索，
+     * 不能用于编辑或写回数据库
+     * @see xjunz.tool.werecord.impl.repo.MessageRepository#hydrate(Message)
+     */
+    public boolean isHeader() {
+        return header;
+    }
+
     /**
      * @return 消息是否解析失败
      */
     public boolean isParseError() {
+        ensureParsed();
         return parseErrorCode != -1;
     }
 
@@ -178,6 +277,7 @@ public abstract class Message implements Parcelable, Exportable {
      * @return 当前消息解析失败的错误码，无错误返回-1
      */
     public int getParseErrorCode() {
+        ensureParsed();
         return parseErrorCode;
     }
 
@@ -208,7 +308,8 @@ public abstract class Message implements Parcelable, Exportable {
         }
         //其他情况
         this.content = raw;
-        if (getType() == MessageFactory.Type.SYSTEM) {
+        //此时子类可能尚未解析出具体类型，直接判断字段
+        if (type == MessageFactory.Type.SYSTEM) {
             this.senderId = null;
         } else {
             if (!isSend()) {
@@ -230,7 +331,7 @@ public abstract class Message implements Parcelable, Exportable {
             case ABSTRACT_KEY_LVBUFFER:
                 return (T) getParsedLvBuffer();
             default:
-                return (T) values.get(key);
+                return (T) row.get(key);
         }
     }
 
@@ -247,13 +348,16 @@ public abstract class Message implements Parcelable, Exportable {
                 break;
             case KEY_CONTENT:
                 String rawContent = ((String) content);
-                values.put(KEY_CONTENT, rawContent);
+                row.setContent(rawContent);
                 //如果修改了raw content,我们需要重新解析senderId和content
-                parseSenderIdAndContent(rawContent);
+                synchronized (this) {
+                    parseSenderIdAndContent(rawContent);
+                    mSenderIdParsed = true;
+                }
                 break;
             default:
-                if (values.containsKey(key)) {
-                    DbUtils.putObject(values, key, content);
+                if (row.contains(key)) {
+                    row.put(key, content);
                 }
                 break;
         }
@@ -279,7 +383,7 @@ public abstract class Message implements Parcelable, Exportable {
      * 去除编辑标记，如果是备份消息，删除{@link Message#KEY_EDITION}键及其值
      */
     public void removeEdition() {
-        values.remove(KEY_EDITION);
+        row.remove(KEY_EDITION);
         setEditionFlag(Edition.FLAG_NONE);
     }
 
@@ -297,7 +401,14 @@ public abstract class Message implements Parcelable, Exportable {
     }
 
     public long getMsgId() {
-        return values.getAsLong(KEY_MSG_ID);
+        return row.getNumber(MessageRow.MSG_ID);
+    }
+
+    /**
+     * 设置消息ID，插入数据库后或者为新增的消息分配ID时使用
+     */
+    public void setMsgId(long msgId) {
+        row.setNumber(MessageRow.MSG_ID, msgId);
     }
 
     public boolean supportModifySendStatus() {
@@ -305,7 +416,7 @@ public abstract class Message implements Parcelable, Exportable {
     }
 
     public Integer getStatus() {
-        return values.getAsInteger(KEY_STATUS);
+        return row.getInteger(MessageRow.STATUS);
     }
 
     public boolean sendFailed() {
@@ -313,25 +424,25 @@ public abstract class Message implements Parcelable, Exportable {
     }
 
     public void setStatus(Integer status) {
-        values.put(KEY_STATUS, (long) status);
+        row.setNumber(MessageRow.STATUS, status);
     }
 
     public String getImgPath() {
-        return values.getAsString(KEY_IMG_PATH);
+        return row.getImgPath();
     }
 
     public void setSendFlag(Integer sendFlag) {
-        values.put(KEY_IS_SEND, (long) sendFlag);
+        row.setNumber(MessageRow.IS_SEND, sendFlag);
     }
 
     public void modifyLvBuffer(@Nullable Object[] parsed) {
         parsedLvBuffer = parsed;
+        mLvBufferParsed = true;
         if (parsed == null) {
-            values.putNull(KEY_LV_BUFFER);
+            row.setLvBuffer(null);
             return;
         }
-        LvBufferUtils utils = new LvBufferUtils();
-        values.put(KEY_LV_BUFFER, utils.generateLvBuffer(parsed, LV_BUFFER_READ_SERIAL));
+        row.setLvBuffer(LvBufferUtils.generateLvBuffer(parsed, LV_BUFFER_READ_SERIAL));
     }
 
     User getCurrentUser() {
@@ -339,6 +450,7 @@ public abstract class Message implements Parcelable, Exportable {
     }
 
     public void modifySenderId(@NonNull String newSenderId) {
+        String senderId = getSenderId();
         if (senderId == null || newSenderId.equals(senderId)) {
             return;
         }
@@ -352,7 +464,7 @@ public abstract class Message implements Parcelable, Exportable {
                 //变成接收消息
                 setSendFlag(RECEIVE_FROM_PEER);
                 //在消息前加上ID和冒号
-                values.put(KEY_CONTENT, newSenderId + ":\n" + raw);
+                row.setContent(newSenderId + ":\n" + raw);
             } else {
                 //如果是接收的消息
                 //且新的发送者为用户本身
@@ -361,15 +473,15 @@ public abstract class Message implements Parcelable, Exportable {
                     setSendFlag(SEND);
                     //删去消息前的ID和冒号
                     //如果有换行，去掉换行
-                    String newMsg = raw.substring(getSenderId().length() + 1);
+                    String newMsg = raw.substring(senderId.length() + 1);
                     if (newMsg.startsWith("\n")) {
-                        values.put(KEY_CONTENT, newMsg.substring(1));
+                        row.setContent(newMsg.substring(1));
                     } else {
-                        values.put(KEY_CONTENT, newMsg);
+                        row.setContent(newMsg);
                     }
                 } else {
                     //替换掉原来的ID
-                    values.put(KEY_CONTENT, newSenderId + raw.substring(getSenderId().length()));
+                    row.setContent(newSenderId + raw.substring(senderId.length()));
                 }
             }
         } else {
@@ -388,48 +500,11 @@ public abstract class Message implements Parcelable, Exportable {
         this.mHasLoadSenderAccount = false;
     }
 
-    /**
-     * Optimized equal method between two {@link ContentValues}es. More concretely, this method will
-     * compare byte array type(if any) values with {@link Utils#byteArrayDeepEquals(byte[], byte[])} instead of
-     * simply invoking {@link Object[]#equals(Object)}.
-     */
-    static boolean valuesDeepEqual(@NonNull ContentValues a, @NonNull ContentValues b) {
-        if (a == b) {
-            return true;
-        }
-        if (a.size() != b.size()) {
-            return false;
-        }
-        for (String key : b.keySet()) {
-            if (!a.containsKey(key)) {
-                return false;
-            }
-            Object aValue = a.get(key);
-            Object bValue = b.get(key);
-            if (aValue == bValue) {
-                continue;
-            }
-            if (aValue == null || bValue == null) {
-                return false;
-            }
-            if (!aValue.getClass().equals(bValue.getClass())) {
-                return false;
-            } else if (aValue instanceof byte[]) {
-                if (!Utils.byteArrayDeepEquals(((byte[]) aValue), ((byte[]) bValue))) {
-                    return false;
-                }
-            } else if (!Objects.equals(aValue, bValue)) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     public boolean deepEquals(@NotNull Message message) {
         if (this == message) {
             return true;
         }
-        return valuesDeepEqual(message.values, values);
+        return row.deepEquals(message.row);
     }
 
     @NonNull
@@ -438,6 +513,7 @@ public abstract class Message implements Parcelable, Exportable {
         if (account != null) {
             return account.getName();
         } else {
+            String senderId = getSenderId();
             if (senderId == null) {
                 throw new NullPointerException("Got null senderId, are you calling this method with a system message? ");
             }
@@ -447,7 +523,7 @@ public abstract class Message implements Parcelable, Exportable {
 
     @Nullable
     public Account getSenderAccount() {
-        if (senderId == null) {
+        if (getSenderId() == null) {
             return null;
         }
         if (isSend()) {
@@ -468,6 +544,7 @@ public abstract class Message implements Parcelable, Exportable {
      * @return 消息发送者ID
      */
     public String getSenderId() {
+        ensureSenderIdParsed();
         return senderId;
     }
 
@@ -491,26 +568,25 @@ public abstract class Message implements Parcelable, Exportable {
     }
 
     public String getRawContent() {
-        return values.getAsString(KEY_CONTENT);
+        return row.getContent();
     }
 
 
     public boolean isSend() {
-        Integer isSend = values.getAsInteger(KEY_IS_SEND);
-        return isSend != null && isSend.equals(SEND);
+        return !row.isNull(MessageRow.IS_SEND) && row.getNumber(MessageRow.IS_SEND) == SEND;
     }
 
 
     public long getCreateTimeStamp() {
-        return values.getAsLong(KEY_CREATE_TIME);
+        return row.getNumber(MessageRow.CREATE_TIME);
     }
 
     public void setImgPath(String imgPath) {
-        values.put(KEY_IMG_PATH, imgPath);
+        row.setImgPath(imgPath);
     }
 
     public void setCreateTimeStamp(long createTimeStamp) {
-        values.put(KEY_CREATE_TIME, createTimeStamp);
+        row.setNumber(MessageRow.CREATE_TIME, createTimeStamp);
     }
 
     /**
@@ -518,23 +594,25 @@ public abstract class Message implements Parcelable, Exportable {
      */
     @Nullable
     public String getContent() {
+        ensureSenderIdParsed();
         return content;
     }
 
     public void modifyContent(String content) {
+        ensureSenderIdParsed();
         this.parseErrorCode = -1;
         this.content = content;
         this.spannedContent = null;
         this.parsedContent = null;
         if (isInGroupChat() && !isSend() && senderId != null) {
-            values.put(KEY_CONTENT, senderId + ":\n" + content);
+            row.setContent(senderId + ":\n" + content);
         } else {
-            values.put(KEY_CONTENT, content);
+            row.setContent(content);
         }
     }
 
     public int getRawType() {
-        return values.getAsInteger(KEY_TYPE);
+        return (int) row.getNumber(MessageRow.TYPE);
     }
 
     /**
@@ -582,7 +660,7 @@ public abstract class Message implements Parcelable, Exportable {
      * @return 返回一个消息是否为备份消息，备份消息来自于"WeBackup"表而不是"message"表
      */
     public boolean isBackup() {
-        return values.containsKey(KEY_EDITION);
+        return row.has(MessageRow.EDITION);
     }
 
     @Override
@@ -593,7 +671,7 @@ public abstract class Message implements Parcelable, Exportable {
     @NotNull
     @Override
     public String toString() {
-        return values.toString();
+        return row.toString();
     }
 
 
@@ -623,7 +701,8 @@ public abstract class Message implements Parcelable, Exportable {
 
     @Override
     public void writeToParcel(@NotNull Parcel dest, int flags) {
-        dest.writeParcelable(this.values, flags);
+        ensureParsed();
+        this.row.writeToParcel(dest);
         dest.writeString(this.content);
         dest.writeString(this.localImagePath);
         dest.writeString(this.senderId);
@@ -632,10 +711,11 @@ public abstract class Message implements Parcelable, Exportable {
         dest.writeString(this.parsedContent);
         dest.writeInt(this.parseErrorCode);
         dest.writeArray(this.parsedLvBuffer);
+        dest.writeByte(this.header ? (byte) 1 : (byte) 0);
     }
 
     protected Message(@NotNull Parcel in) {
-        this.values = in.readParcelable(ContentValues.class.getClassLoader());
+        this.row = MessageRow.readFromParcel(in);
         this.content = in.readString();
         this.localImagePath = in.readString();
         this.senderId = in.readString();
@@ -645,6 +725,9 @@ public abstract class Message implements Parcelable, Exportable {
         this.parsedContent = in.readString();
         this.parseErrorCode = in.readInt();
         this.parsedLvBuffer = in.readArray(Object[].class.getClassLoader());
+        this.header = in.readByte() != 0;
+        this.mSenderIdParsed = true;
+        this.mLvBufferParsed = true;
     }
 
     @Override
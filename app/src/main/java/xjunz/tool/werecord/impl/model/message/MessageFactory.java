@@ -6,15 +6,22 @@ package xjunz.tool.werecord.impl.model.message;
 import android.content.ContentValues;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
 import xjunz.tool.werecord.App;
 import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.impl.repo.MessageRepository;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
+import xjunz.tool.werecord.util.TraceUtils;
 
 /**
  * 消息工厂，用于“生产”{@link Message}对象
@@ -210,71 +217,165 @@ public final class MessageFactory {
         return Type.UNKNOWN;
     }
 
+    @NotNull
+    public static Message createMessage(@NonNull MessageRow row) {
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageFactory.createMessage")) {
+            return createMessageInternal(row);
+        }
+    }
+
+    /**
+     * 由{@link ContentValues}创建消息，用于模板等不是直接来自数据库的消息
+     */
     @NotNull
     public static Message createMessage(@NonNull ContentValues values) {
-        int rawType = values.getAsInteger(Message.KEY_TYPE);
+        return createMessage(MessageRow.of(values));
+    }
+
+    /**
+     * 由{@link MessageHeader#PROJECTION}查询到的字段创建消息头
+     *
+     * @see Message#isHeader()
+     */
+    @NotNull
+    public static Message createHeader(@NonNull MessageRow row) {
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageFactory.createHeader")) {
+            Message message = createMessageInternal(row);
+            message.markAsHeader();
+            return message;
+        }
+    }
+
+    /**
+     * 批量创建消息。类型无法直接识别的消息需要查询"AppMessage"表来判断其类型，
+     * 这里把一批消息中所有这样的消息ID合并为一次查询，而不是每条消息各查询一次
+     *
+     * @param rows   同一批查询到的行
+     * @param header 是否创建消息头
+     * @return 创建的消息，顺序与{@param rows}一致
+     * @see #createHeader(MessageRow)
+     */
+    @NonNull
+    public static List<Message> createMessages(@NonNull List<MessageRow> rows, boolean header) {
+        return createMessages(rows, header, true);
+    }
+
+    /**
+     * @param writeBack 访问时解析的结果是否写回{@link MessageParseCache}。只遍历一次的消息，例如流式读取的消息，
+     *                  不应写回，否则写入的开销会超过缓存带来的收益
+     * @see #createMessages(List, boolean)
+     */
+    @NonNull
+    public static List<Message> createMessages(@NonNull List<MessageRow> rows, boolean header, boolean writeBack) {
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageFactory.createMessages")) {
+            Message[] messages = new Message[rows.size()];
+            List<Long> unrecognized = null;
+            for (int i = 0; i < messages.length; i++) {
+                messages[i] = createRecognized(rows.get(i));
+                if (messages[i] == null) {
+                    if (unrecognized == null) {
+                        unrecognized = new ArrayList<>();
+                    }
+                    unrecognized.add(rows.get(i).getNumber(MessageRow.MSG_ID));
+                }
+            }
+            if (unrecognized != null) {
+                Set<Long> appMsgIds = RepositoryFactory.get(MessageRepository.class).queryAppMessageIdsIn(unrecognized);
+                for (int i = 0; i < messages.length; i++) {
+                    if (messages[i] == null) {
+                        MessageRow row = rows.get(i);
+                        messages[i] = fallback(row, appMsgIds.contains(row.getNumber(MessageRow.MSG_ID)));
+                    }
+                }
+            }
+            if (header) {
+                for (Message message : messages) {
+                    message.markAsHeader();
+                }
+            }
+            List<Message> created = new ArrayList<>(Arrays.asList(messages));
+            MessageParseCache.hydrate(created, writeBack);
+            return created;
+        }
+    }
+
+    @NotNull
+    private static Message createMessageInternal(@NonNull MessageRow row) {
+        Message message = createRecognized(row);
+        if (message != null) {
+            return message;
+        }
+        MessageRepository repository = RepositoryFactory.get(MessageRepository.class);
+        return fallback(row, repository.queryAppContentValuesByMsgId(row.getNumber(MessageRow.MSG_ID)) != null);
+    }
+
+    /**
+     * @return 根据消息类型创建的消息，如果无法识别其类型，返回{@code null}
+     */
+    @Nullable
+    private static Message createRecognized(@NonNull MessageRow row) {
+        int rawType = (int) row.getNumber(MessageRow.TYPE);
         switch (rawType) {
             case TYPE_PLAIN_TEXT:
                 //case 11:
                 //case 21:
                 //case 31:
                 //case 36:
-                return new PlainMessage(values);
+                return new PlainMessage(row);
             case TYPE_IMAGE:
-                return new UnpreviewableMessage(values, Type.IMAGE);
+                return new UnpreviewableMessage(row, Type.IMAGE);
             case TYPE_EMOJI:
-                return new UnpreviewableMessage(values, Type.EMOJI);
+                return new UnpreviewableMessage(row, Type.EMOJI);
             case TYPE_SYSTEM:
             case TYPE_SYSTEM_JOIN_GROUP:
             case TYPE_SYSTEM_CALL:
             case TYPE_SYSTEM_PAT_2:
             case TYPE_SYSTEM_PAT:
             case TYPE_SYSTEM_POSITION_REQUEST:
-                return new SystemMessage(values);
+                return new SystemMessage(row);
             case TYPE_TRANSFER:
-                return new AppMessage(values, Type.TRANSFER);
+                return new AppMessage(row, Type.TRANSFER);
             case TYPE_HB:
-                return new AppMessage(values, Type.HB);
+                return new AppMessage(row, Type.HB);
             case TYPE_GIF:
-                return new UnpreviewableMessage(values, Type.GIF);
+                return new UnpreviewableMessage(row, Type.GIF);
             case TYPE_VOICE:
-                return new UnpreviewableMessage(values, Type.VOICE);
+                return new UnpreviewableMessage(row, Type.VOICE);
             case TYPE_CALL:
-                return new CallMessage(values);
+                return new CallMessage(row);
             case TYPE_VIDEO:
-                return new UnpreviewableMessage(values, Type.VIDEO);
+                return new UnpreviewableMessage(row, Type.VIDEO);
             case TYPE_CARD:
-                return new CardMessage(values);
+                return new CardMessage(row);
             case TYPE_LOCATION:
-                return new AppMessage(values, Type.LOCATION);
+                return new AppMessage(row, Type.LOCATION);
             case TYPE_PUSH:
-                return new UnpreviewableMessage(values, Type.PUSH);
+                return new UnpreviewableMessage(row, Type.PUSH);
             case TYPE_16777265:
             case TYPE_SHARE:
-                return new AppMessage(values, Type.SHARE);
+                return new AppMessage(row, Type.SHARE);
             case TYPE_REPLY:
-                return new AppMessage(values, Type.REPLY);
+                return new AppMessage(row, Type.REPLY);
             case TYPE_NOTIFICATION:
-                return new AppMessage(values, Type.NOTIFICATION);
+                return new AppMessage(row, Type.NOTIFICATION);
             case TYPE_SOLITAIRE:
-                return new AppMessage(values, Type.SOLITAIRE);
+                return new AppMessage(row, Type.SOLITAIRE);
         }
-        return fallback(values);
+        return null;
     }
 
     /**
      * 为未识别的消息类型寻找可能的类型
      *
+     * @param isAppMessage "AppMessage"表中是否存在此消息
      * @return 可能的消息类型
      */
     @NotNull
     @Contract(pure = true)
-    private static Message fallback(@NotNull ContentValues values) {
-        MessageRepository repository = RepositoryFactory.get(MessageRepository.class);
-        ContentValues appValues = repository.queryAppContentValuesByMsgId(values.getAsInteger(Message.KEY_MSG_ID));
-        if (appValues != null) {
-            return new AppMessage(values, Type.UNKNOWN);
+    private static Message fallback(@NotNull MessageRow row, boolean isAppMessage) {
+        if (isAppMessage) {
+            return new AppMessage(row, Type.UNKNOWN);
         }
-        return new UnpreviewableMessage(values, Type.UNKNOWN);
+        return new UnpreviewableMessage(row, Type.UNKNOWN);
     }
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message;
+
+import android.text.TextUtils;
+
+/**
+ * 消息头，即消息列表和搜索所需的最少字段
+ * <p>
+ * "message"表的每一行还包含"lvbuffer"、"reserved"、"transContent"、"solitaireFoldInfo"等列表从不显示的字段，
+ * 动辄十万条的聊天记录全部以{@code select *}加载会浪费大量内存。因此列表只查询消息头，
+ * 由消息头创建的消息{@link Message#isHeader()}为{@code true}，只能用于显示和搜索，
+ * 需要编辑、查看或者导出时，应当通过{@link xjunz.tool.werecord.impl.repo.MessageRepository#hydrate(Message)}获取完整的消息。
+ * </p>
+ *
+ * @see MessageFactory#createHeader(MessageRow)
+ */
+public final class MessageHeader {
+    public static final String[] COLUMNS = {
+            Message.KEY_MSG_ID, Message.KEY_TYPE, Message.KEY_IS_SEND, Message.KEY_STATUS,
+            Message.KEY_CREATE_TIME, Message.KEY_TALKER, Message.KEY_CONTENT, Message.KEY_IMG_PATH
+    };
+    /**
+     * 查询消息头的投影。通话消息的标题保存在lvbuffer中，因此只为通话消息额外查询lvbuffer，其他消息的lvbuffer为{@code null}
+     */
+    public static final String PROJECTION = TextUtils.join(",", COLUMNS)
+            + ",case when " + Message.KEY_TYPE + "=" + MessageFactory.TYPE_CALL + " then " + Message.KEY_LV_BUFFER
+            + " end as " + Message.KEY_LV_BUFFER;
+
+    private MessageHeader() {
+    }
+}
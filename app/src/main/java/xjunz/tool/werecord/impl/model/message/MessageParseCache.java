@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleObserver;
+import androidx.lifecycle.OnLifecycleEvent;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import xjunz.tool.werecord.App;
+import xjunz.tool.werecord.impl.Environment;
+import xjunz.tool.werecord.impl.model.account.User;
+import xjunz.tool.werecord.util.LogUtils;
+import xjunz.tool.werecord.util.TraceUtils;
+
+/**
+ * 消息解析结果的持久化缓存
+ * <p>
+ * 每次打开聊天，消息的内容、类型等都需要重新解析。此缓存将解析得到的结果保存在应用私有目录下的一个不加密的数据库中，
+ * 以消息ID为键，并记录消息内容的哈希值。批量创建消息时，先从缓存中取出命中且哈希值一致的结果直接填入消息，
+ * 未命中或者内容已变化的消息照常在访问时解析。
+ * </p>
+ * <p>
+ * 缓存不会为了写入而主动解析消息。未命中的消息先记录下来，等到下一次批量创建消息时，把其中已经在访问时解析过的消息
+ * 交给唯一的后台线程写入缓存。写入积压时直接丢弃，这些消息下次未命中时会再次记录。流式读取的消息只读取缓存，不会写入。
+ * </p>
+ * <p>
+ * 拍一拍和入群消息解析后的内容中包含联系人的名称，名称变化后结果就过时了，而哈希值并不会变化，因此这两种消息不缓存。
+ * </p>
+ * <p>
+ * 缓存数据库按用户区分，切换用户时自动重新打开。修改数据库中的消息后应当调用{@link #invalidate(long)}等方法使对应的条目失效，
+ * 不过即使没有失效，内容变化的消息也会因哈希值不一致而不会命中。
+ * </p>
+ *
+ * @see MessageFactory#createMessages(List, boolean, boolean)
+ */
+public final class MessageParseCache implements LifecycleObserver {
+    /**
+     * 缓存格式的版本，解析逻辑或表结构变化时应当递增，旧版本的缓存会被清空
+     */
+    private static final int VERSION = 2;
+    private static final String TABLE = "facets";
+    private static final String KEY_MSG_ID = "msgId";
+    private static final String KEY_TALKER = "talker";
+    private static final String KEY_HASH = "hash";
+    private static final String KEY_TYPE = "type";
+    private static final String KEY_PARSED_CONTENT = "parsedContent";
+    private static final String KEY_TITLE = "title";
+    private static final String KEY_DESCRIPTION = "description";
+    private static final String KEY_APP_ID = "appId";
+    private static final String KEY_APP_NAME = "appName";
+    private static final String KEY_SUBTYPE = "subtype";
+    private static final String KEY_ERROR_CODE = "errorCode";
+    /**
+     * {@code in}子句每次最多包含的ID数
+     */
+    private static final int IN_CLAUSE_CHUNK = 500;
+    /**
+     * 最多记录多少条等待写回的消息，超出时丢弃最早的
+     */
+    private static final int MAX_PENDING = 4096;
+    /**
+     * 最多积压多少批写入，超出时丢弃
+     */
+    private static final int MAX_QUEUED_WRITES = 4;
+    private static final ThreadPoolExecutor sWriter = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_WRITES), new ThreadPoolExecutor.DiscardPolicy());
+    private static MessageParseCache sInstance;
+    private final String mUserId;
+    private final SQLiteDatabase mDb;
+    /**
+     * 未命中缓存、等待在访问时解析后写回的消息
+     */
+    private final ArrayDeque<Message> mPending = new ArrayDeque<>();
+
+    static {
+        sWriter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 消息的解析结果
+     */
+    static final class Facets {
+        MessageFactory.Type type;
+        String parsedContent;
+        String title;
+        String description;
+        String appId;
+        String appName;
+        int subtype;
+        int errorCode = -1;
+    }
+
+    private MessageParseCache(@NonNull String userId, @NonNull SQLiteDatabase db) {
+        mUserId = userId;
+        mDb = db;
+        Environment.getInstance().addLifecycleObserver(this);
+    }
+
+    /**
+     * @return 当前用户的缓存，如果无法打开，返回{@code null}
+     */
+    @Nullable
+    private static synchronized MessageParseCache get() {
+        if (!Environment.getInstance().initialized()) {
+            return null;
+        }
+        User user = Environment.getInstance().getCurrentUser();
+        if (sInstance != null) {
+            if (sInstance.mUserId.equals(user.id) && sInstance.mDb.isOpen()) {
+                return sInstance;
+            }
+            sInstance.purge();
+        }
+        try {
+            SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(new File(App.DATA_PATH, "parse_cache_" + user.id), null);
+            if (db.getVersion() != VERSION) {
+                db.execSQL("drop table if exists " + TABLE);
+                db.execSQL("create table " + TABLE + "(" + KEY_MSG_ID + " INTEGER PRIMARY KEY, " + KEY_TALKER + " TEXT, "
+                        + KEY_HASH + " INTEGER, " + KEY_TYPE + " TEXT, " + KEY_PARSED_CONTENT + " TEXT, " + KEY_TITLE + " TEXT, "
+                        + KEY_DESCRIPTION + " TEXT, " + KEY_APP_ID + " TEXT, " + KEY_APP_NAME + " TEXT, "
+                        + KEY_SUBTYPE + " INTEGER, " + KEY_ERROR_CODE + " INTEGER)");
+                db.execSQL("create index index" + TABLE + "Talker on " + TABLE + " (" + KEY_TALKER + ")");
+                db.setVersion(VERSION);
+            }
+            sInstance = new MessageParseCache(user.id, db);
+        } catch (SQLiteException e) {
+            LogUtils.error("Failed to open parse cache: " + e.getMessage());
+            sInstance = null;
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return 消息的解析结果能否缓存，备份消息、拍一拍和入群消息不缓存
+     */
+    private static boolean isCacheable(@NonNull Message message) {
+        if (message.isBackup()) {
+            return false;
+        }
+        int type = message.getRawType();
+        return type != MessageFactory.TYPE_SYSTEM_PAT && type != MessageFactory.TYPE_SYSTEM_JOIN_GROUP;
+    }
+
+    /**
+     * 计算消息中参与解析的字段的哈希值，即内容、类型，以及通话消息的LvBuffer
+     */
+    private static long hashOf(@NonNull Message message) {
+        //FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ message.getRawType()) * 0x100000001b3L;
+        String content = message.getRawContent();
+        if (content != null) {
+            for (int i = 0; i < content.length(); i++) {
+                hash = (hash ^ content.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        if (message.getRawType() == MessageFactory.TYPE_CALL) {
+            byte[] lvBuffer = message.getRow().getLvBuffer();
+            if (lvBuffer != null) {
+                for (byte b : lvBuffer) {
+                    hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 将缓存中命中的解析结果填入消息，并写回此前记录的、已经解析过的消息
+     *
+     * @param messages  同一批创建的消息，不能缓存的消息会被跳过
+     * @see #isCacheable(Message)
+     * @param writeBack 是否记录未命中的消息，以便在其被访问解析后写回缓存
+     */
+    static void hydrate(@NonNull List<Message> messages, boolean writeBack) {
+        MessageParseCache cache = get();
+        if (cache == null || messages.isEmpty()) {
+            return;
+        }
+        Collection<Message> misses;
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageParseCache.hydrate")) {
+            Map<Long, Message> pending = new HashMap<>(messages.size());
+            for (Message message : messages) {
+                if (isCacheable(message)) {
+                    pending.put(message.getMsgId(), message);
+                }
+            }
+            List<Long> ids = new ArrayList<>(pending.keySet());
+            for (int from = 0; from < ids.size(); from += IN_CLAUSE_CHUNK) {
+                List<Long> chunk = ids.subList(from, Math.min(from + IN_CLAUSE_CHUNK, ids.size()));
+                try (Cursor cursor = cache.mDb.rawQuery("select * from " + TABLE + " where " + KEY_MSG_ID
+                        + " in (" + TextUtils.join(",", chunk) + ")", null)) {
+                    int hashIndex = cursor.getColumnIndex(KEY_HASH);
+                    int idIndex = cursor.getColumnIndex(KEY_MSG_ID);
+                    while (cursor.moveToNext()) {
+                        Message message = pending.get(cursor.getLong(idIndex));
+                        if (message != null && cursor.getLong(hashIndex) == hashOf(message)) {
+                            message.restoreFacets(readFacets(cursor));
+                            pending.remove(message.getMsgId());
+                        }
+                    }
+                }
+            }
+            misses = pending.values();
+        } catch (SQLiteException | IllegalStateException e) {
+            //purge()可能在查询期间关闭了缓存，已经填入的结果仍然有效，其余的消息照常在访问时解析
+            LogUtils.error("Failed to query parse cache: " + e.getMessage());
+            return;
+        }
+        if (writeBack) {
+            cache.track(misses);
+        }
+    }
+
+    /**
+     * 把已经解析过的等待中的消息交给后台线程写入，再记录新的未命中的消息
+     */
+    private void track(@NonNull Collection<Message> misses) {
+        List<Message> parsed = new ArrayList<>();
+        synchronized (mPending) {
+            Iterator<Message> iterator = mPending.iterator();
+            while (iterator.hasNext()) {
+                Message message = iterator.next();
+                if (message.isParsed()) {
+                    parsed.add(message);
+                    iterator.remove();
+                }
+            }
+            mPending.addAll(misses);
+            while (mPending.size() > MAX_PENDING) {
+                mPending.pollFirst();
+            }
+        }
+        if (!parsed.isEmpty()) {
+            sWriter.execute(() -> store(parsed));
+        }
+    }
+
+    @NonNull
+    private static Facets readFacets(@NonNull Cursor cursor) {
+        Facets facets = new Facets();
+        String type = cursor.getString(cursor.getColumnIndex(KEY_TYPE));
+        if (type != null) {
+            try {
+                facets.type = MessageFactory.Type.valueOf(type);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        facets.parsedContent = cursor.getString(cursor.getColumnIndex(KEY_PARSED_CONTENT));
+        facets.title = cursor.getString(cursor.getColumnIndex(KEY_TITLE));
+        facets.description = cursor.getString(cursor.getColumnIndex(KEY_DESCRIPTION));
+        facets.appId = cursor.getString(cursor.getColumnIndex(KEY_APP_ID));
+        facets.appName = cursor.getString(cursor.getColumnIndex(KEY_APP_NAME));
+        facets.subtype = cursor.getInt(cursor.getColumnIndex(KEY_SUBTYPE));
+        facets.errorCode = cursor.getInt(cursor.getColumnIndex(KEY_ERROR_CODE));
+        return facets;
+    }
+
+    /**
+     * 将已经解析过的消息写入缓存。消息的解析是线程安全的，因此可以与界面同时访问这些消息
+     */
+    @WorkerThread
+    private void store(@NonNull List<Message> messages) {
+        if (!mDb.isOpen()) {
+            return;
+        }
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageParseCache.store")) {
+            mDb.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (Message message : messages) {
+                    //解析之后消息被修改了，不写入，也不重新解析
+                    if (!message.isParsed()) {
+                        continue;
+                    }
+                    long hash = hashOf(message);
+                    Facets facets = message.exportFacets();
+                    if (hash != hashOf(message)) {
+                        continue;
+                    }
+                    values.clear();
+                    values.put(KEY_MSG_ID, message.getMsgId());
+                    values.put(KEY_TALKER, message.getTalkerId());
+                    values.put(KEY_HASH, hash);
+                    values.put(KEY_TYPE, facets.type == null ? null : facets.type.name());
+                    values.put(KEY_PARSED_CONTENT, facets.parsedContent);
+                    values.put(KEY_TITLE, facets.title);
+                    values.put(KEY_DESCRIPTION, facets.description);
+                    values.put(KEY_APP_ID, facets.appId);
+                    values.put(KEY_APP_NAME, facets.appName);
+                    values.put(KEY_SUBTYPE, facets.subtype);
+                    values.put(KEY_ERROR_CODE, facets.errorCode);
+                    mDb.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            LogUtils.error("Failed to store parse cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 使指定消息的缓存失效，修改、删除或者恢复消息后调用
+     */
+    public static void invalidate(long msgId) {
+        MessageParseCache cache = get();
+        if (cache != null) {
+            cache.delete(KEY_MSG_ID + "=?", String.valueOf(msgId));
+        }
+    }
+
+    /**
+     * 使指定会话的所有消息的缓存失效，删除会话的消息后调用
+     */
+    public static void invalidateTalker(@NonNull String talkerId) {
+        MessageParseCache cache = get();
+        if (cache != null) {
+            cache.delete(KEY_TALKER + "=?", talkerId);
+        }
+    }
+
+    private void delete(@NonNull String whereClause, @NonNull String... whereArgs) {
+        try {
+            mDb.delete(TABLE, whereClause, whereArgs);
+        } catch (RuntimeException e) {
+            //缓存失效失败不影响修改本身，内容变化的消息也会因哈希值不一致而不会命中
+            LogUtils.error("Failed to invalidate parse cache: " + e.getMessage());
+        }
+    }
+
+    @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
+    public void purge() {
+        synchronized (MessageParseCache.class) {
+            synchronized (mPending) {
+                mPending.clear();
+            }
+            if (mDb.isOpen()) {
+                mDb.close();
+            }
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message;
+
+import android.content.ContentValues;
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.sqlcipher.Cursor;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import xjunz.tool.werecord.util.Utils;
+
+/**
+ * "message"表的一行数据的紧凑存储，用于取代以列名为键、值全部装箱的{@link ContentValues}
+ * <p>
+ * 一次查询的所有行共用同一个{@link Layout}，列的位置在创建布局时解析一次。{@link #NUMERIC_KEYS}中的常用数字列以{@code long}
+ * 保存在数组中，读取时不必查表和拆箱；内容、会话等常用的非数字列的位置也在创建布局时解析，通过{@link #getContent()}等方法直接读写；
+ * 其余的列按下标保存在数组中。只有写回数据库或者交给编辑器时，才通过{@link #toContentValues()}生成{@link ContentValues}。
+ * </p>
+ */
+public final class MessageRow {
+    /**
+     * 已被移除的列的占位符
+     */
+    private static final Object ABSENT = new Object();
+    static final int MSG_ID = 0;
+    static final int TYPE = 1;
+    static final int IS_SEND = 2;
+    static final int STATUS = 3;
+    static final int CREATE_TIME = 4;
+    static final int EDITION = 5;
+    /**
+     * 以{@code long}保存的列，下标即上面的常量
+     */
+    private static final String[] NUMERIC_KEYS = {
+            Message.KEY_MSG_ID, Message.KEY_TYPE, Message.KEY_IS_SEND, Message.KEY_STATUS, Message.KEY_CREATE_TIME, Message.KEY_EDITION
+    };
+    private Layout mLayout;
+    private Object[] mCells;
+    private final long[] mNumbers = new long[NUMERIC_KEYS.length];
+    /**
+     * 值为{@code null}的数字列，第i位对应{@link #NUMERIC_KEYS}的第i列
+     */
+    private int mNullNumbers;
+
+    /**
+     * 行的布局，即各列的列名及数字列的位置，同一次查询的所有行共用一个布局
+     */
+    public static final class Layout {
+        private final String[] names;
+        /**
+         * 每一列对应的{@link #NUMERIC_KEYS}的下标，不是数字列则为-1
+         */
+        private final int[] numericSlots;
+        /**
+         * {@link #NUMERIC_KEYS}中每一列的位置，不存在则为-1
+         */
+        private final int[] numericColumns = new int[NUMERIC_KEYS.length];
+        /**
+         * 常用的非数字列的位置，不存在则为-1
+         */
+        private final int contentColumn;
+        private final int talkerColumn;
+        private final int imgPathColumn;
+        private final int lvBufferColumn;
+
+        private Layout(@NonNull String[] names) {
+            this.names = names;
+            this.numericSlots = new int[names.length];
+            Arrays.fill(numericColumns, -1);
+            for (int i = 0; i < names.length; i++) {
+                numericSlots[i] = -1;
+                for (int slot = 0; slot < NUMERIC_KEYS.length; slot++) {
+                    if (NUMERIC_KEYS[slot].equals(names[i])) {
+                        numericSlots[i] = slot;
+                        numericColumns[slot] = i;
+                        break;
+                    }
+                }
+            }
+            contentColumn = indexOf(Message.KEY_CONTENT);
+            talkerColumn = indexOf(Message.KEY_TALKER);
+            imgPathColumn = indexOf(Message.KEY_IMG_PATH);
+            lvBufferColumn = indexOf(Message.KEY_LV_BUFFER);
+        }
+
+        /**
+         * 由查询结果的列创建布局
+         */
+        @NonNull
+        public static Layout of(@NonNull Cursor cursor) {
+            return new Layout(cursor.getColumnNames());
+        }
+
+        private int indexOf(@NonNull String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @NonNull
+        private Layout with(@NonNull String name) {
+            String[] extended = Arrays.copyOf(names, names.length + 1);
+            extended[names.length] = name;
+            return new Layout(extended);
+        }
+    }
+
+    private MessageRow(@NonNull Layout layout) {
+        mLayout = layout;
+        mCells = new Object[layout.names.length];
+    }
+
+    /**
+     * 读取游标当前所在的行
+     *
+     * @param layout 由同一游标创建的布局
+     */
+    @NonNull
+    public static MessageRow read(@NonNull Cursor cursor, @NonNull Layout layout) {
+        MessageRow row = new MessageRow(layout);
+        for (int i = 0; i < layout.names.length; i++) {
+            int type = cursor.getType(i);
+            int slot = layout.numericSlots[i];
+            if (slot >= 0) {
+                if (type == Cursor.FIELD_TYPE_NULL) {
+                    row.mNullNumbers |= 1 << slot;
+                } else {
+                    row.mNumbers[slot] = cursor.getLong(i);
+                }
+                continue;
+            }
+            switch (type) {
+                case Cursor.FIELD_TYPE_NULL:
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row.mCells[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row.mCells[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row.mCells[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row.mCells[i] = cursor.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    @NonNull
+    public static MessageRow of(@NonNull ContentValues values) {
+        String[] names = values.keySet().toArray(new String[0]);
+        MessageRow row = new MessageRow(new Layout(names));
+        for (String name : names) {
+            row.put(name, values.get(name));
+        }
+        return row;
+    }
+
+    /**
+     * @return 此列是否以{@code long}保存，写入的值必须是数字
+     */
+    public static boolean isNumericKey(@NonNull String key) {
+        for (String numericKey : NUMERIC_KEYS) {
+            if (numericKey.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(@NonNull String key) {
+        int index = mLayout.indexOf(key);
+        return index >= 0 && mCells[index] != ABSENT;
+    }
+
+    @Nullable
+    public Object get(@NonNull String key) {
+        int index = mLayout.indexOf(key);
+        if (index < 0 || mCells[index] == ABSENT) {
+            return null;
+        }
+        int slot = mLayout.numericSlots[index];
+        if (slot >= 0) {
+            return isNull(slot) ? null : mNumbers[slot];
+        }
+        return mCells[index];
+    }
+
+    @Nullable
+    public String getString(@NonNull String key) {
+        return asString(get(key));
+    }
+
+    @Nullable
+    public byte[] getBlob(@NonNull String key) {
+        Object value = get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Nullable
+    private static String asString(@Nullable Object value) {
+        return value == null ? null : value instanceof byte[] ? new String((byte[]) value) : value.toString();
+    }
+
+    /**
+     * 读取常用的非数字列，列的位置已在布局中解析
+     */
+    @Nullable
+    private Object cellAt(int index) {
+        return index < 0 || mCells[index] == ABSENT ? null : mCells[index];
+    }
+
+    /**
+     * 写入常用的非数字列，如果此列不存在，追加此列
+     */
+    private void putCell(int index, @NonNull String key, @Nullable Object value) {
+        if (index < 0) {
+            put(key, value);
+        } else {
+            mCells[index] = value;
+        }
+    }
+
+    @Nullable
+    String getContent() {
+        return asString(cellAt(mLayout.contentColumn));
+    }
+
+    void setContent(@Nullable String content) {
+        putCell(mLayout.contentColumn, Message.KEY_CONTENT, content);
+    }
+
+    @Nullable
+    String getTalker() {
+        return asString(cellAt(mLayout.talkerColumn));
+    }
+
+    @Nullable
+    String getImgPath() {
+        return asString(cellAt(mLayout.imgPathColumn));
+    }
+
+    void setImgPath(@Nullable String imgPath) {
+        putCell(mLayout.imgPathColumn, Message.KEY_IMG_PATH, imgPath);
+    }
+
+    @Nullable
+    byte[] getLvBuffer() {
+        Object value = cellAt(mLayout.lvBufferColumn);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    void setLvBuffer(@Nullable byte[] lvBuffer) {
+        putCell(mLayout.lvBufferColumn, Message.KEY_LV_BUFFER, lvBuffer);
+    }
+
+    /**
+     * 写入某一列，如果此列不存在，追加此列
+     */
+    public void put(@NonNull String key, @Nullable Object value) {
+        int index = mLayout.indexOf(key);
+        if (index < 0) {
+            mLayout = mLayout.with(key);
+            mCells = Arrays.copyOf(mCells, mLayout.names.length);
+            index = mLayout.names.length - 1;
+        }
+        int slot = mLayout.numericSlots[index];
+        if (slot >= 0) {
+            setNumber(slot, value);
+        } else {
+            mCells[index] = value;
+        }
+    }
+
+    public void remove(@NonNull String key) {
+        int index = mLayout.indexOf(key);
+        if (index >= 0) {
+            mCells[index] = ABSENT;
+        }
+    }
+
+    boolean has(int slot) {
+        int index = mLayout.numericColumns[slot];
+        return index >= 0 && mCells[index] != ABSENT;
+    }
+
+    boolean isNull(int slot) {
+        return (mNullNumbers & (1 << slot)) != 0 || !has(slot);
+    }
+
+    long getNumber(int slot) {
+        return mNumbers[slot];
+    }
+
+    @Nullable
+    Integer getInteger(int slot) {
+        return isNull(slot) ? null : (int) mNumbers[slot];
+    }
+
+    /**
+     * 写入数字列。数字形式的字符串会被解析，其他的值应当由编辑器在写入前拒绝，见{@link #isNumericKey(String)}
+     *
+     * @throws IllegalArgumentException 如果值不是数字
+     */
+    void setNumber(int slot, @Nullable Object value) {
+        int index = mLayout.numericColumns[slot];
+        if (index < 0) {
+            put(NUMERIC_KEYS[slot], value);
+            return;
+        }
+        long number;
+        if (value == null) {
+            mCells[index] = null;
+            mNullNumbers |= 1 << slot;
+            return;
+        } else if (value instanceof Number) {
+            number = ((Number) value).longValue();
+        } else if (value instanceof Boolean) {
+            number = (Boolean) value ? 1 : 0;
+        } else {
+            try {
+                number = Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Non-numeric value for " + NUMERIC_KEYS[slot] + ": " + value, e);
+            }
+        }
+        mCells[index] = null;
+        mNumbers[slot] = number;
+        mNullNumbers &= ~(1 << slot);
+    }
+
+    /**
+     * 生成包含所有列的{@link ContentValues}，用于写回数据库或者编辑，修改生成的{@link ContentValues}不会影响此行
+     */
+    @NonNull
+    public ContentValues toContentValues() {
+        ContentValues values = new ContentValues(mLayout.names.length);
+        for (int i = 0; i < mLayout.names.length; i++) {
+            if (mCells[i] == ABSENT) {
+                continue;
+            }
+            String name = mLayout.names[i];
+            Object value = get(name);
+            if (value == null) {
+                values.putNull(name);
+            } else if (value instanceof Long) {
+                values.put(name, (Long) value);
+            } else if (value instanceof Double) {
+                values.put(name, (Double) value);
+            } else if (value instanceof byte[]) {
+                values.put(name, (byte[]) value);
+            } else if (value instanceof Integer) {
+                values.put(name, ((Integer) value).longValue());
+            } else if (value instanceof Boolean) {
+                values.put(name, (Boolean) value);
+            } else {
+                values.put(name, value.toString());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 比较两行的所有列，数字与其字符串形式视为相等，字节数组比较其内容
+     */
+    public boolean deepEquals(@NonNull MessageRow other) {
+        if (this == other) {
+            return true;
+        }
+        int size = 0;
+        for (int i = 0; i < mLayout.names.length; i++) {
+            if (mCells[i] == ABSENT) {
+                continue;
+            }
+            size++;
+            String name = mLayout.names[i];
+            if (!other.contains(name)) {
+                return false;
+            }
+            Object a = get(name);
+            Object b = other.get(name);
+            if (a == b) {
+                continue;
+            }
+            if (a == null || b == null) {
+                return false;
+            }
+            if (a instanceof byte[] || b instanceof byte[]) {
+                if (!(a instanceof byte[]) || !(b instanceof byte[]) || !Utils.byteArrayDeepEquals((byte[]) a, (byte[]) b)) {
+                    return false;
+                }
+            } else if (!Objects.equals(a, b) && !a.toString().equals(b.toString())) {
+                return false;
+            }
+        }
+        int otherSize = 0;
+        for (int i = 0; i < other.mLayout.names.length; i++) {
+            if (other.mCells[i] != ABSENT) {
+                otherSize++;
+            }
+        }
+        return size == otherSize;
+    }
+
+    void writeToParcel(@NonNull Parcel dest) {
+        dest.writeParcelable(toContentValues(), 0);
+    }
+
+    @NonNull
+    static MessageRow readFromParcel(@NonNull Parcel in) {
+        ContentValues values = in.readParcelable(ContentValues.class.getClassLoader());
+        return of(Objects.requireNonNull(values));
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return toContentValues().toString();
+    }
+}
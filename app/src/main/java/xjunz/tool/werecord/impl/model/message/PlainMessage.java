@@ -3,7 +3,6 @@
  */
 package xjunz.tool.werecord.impl.model.message;
 
-import android.content.ContentValues;
 import android.os.Parcel;
 
 import androidx.annotation.NonNull;
@@ -12,6 +11,7 @@ import androidx.core.text.HtmlCompat;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import xjunz.tool.werecord.impl.model.message.util.HtmlText;
 import xjunz.tool.werecord.util.Utils;
 
 /**
@@ -19,29 +19,28 @@ import xjunz.tool.werecord.util.Utils;
  */
 public class PlainMessage extends Message {
 
-    public PlainMessage(ContentValues values) {
-        super(values, MessageFactory.Type.PLAIN);
+    public PlainMessage(MessageRow row) {
+        super(row, MessageFactory.Type.PLAIN);
     }
 
+    /**
+     * 直接从内容中提取纯文本，不创建富文本。搜索时会对所有消息调用此方法，富文本只在显示时才通过{@link #getSpannedContent()}生成
+     */
     @NonNull
     @Override
     public String getParsedContent() {
         if (parsedContent == null) {
-            parseSpan();
+            parsedContent = HtmlText.extract(getContent());
         }
         return parsedContent;
     }
 
-    private void parseSpan() {
-        spannedContent = HtmlCompat.fromHtml(content.replace("\n", "<br>"), HtmlCompat.FROM_HTML_MODE_LEGACY);
-        parsedContent = spannedContent.toString();
-    }
-
     @NonNull
     @Override
     public CharSequence getSpannedContent() {
         if (spannedContent == null) {
-            parseSpan();
+            String content = getContent();
+            spannedContent = content == null ? "" : HtmlCompat.fromHtml(content.replace("\n", "<br>"), HtmlCompat.FROM_HTML_MODE_LEGACY);
         }
         return spannedContent;
     }
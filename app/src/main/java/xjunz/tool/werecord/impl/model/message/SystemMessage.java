@@ -3,30 +3,28 @@
  */
 package xjunz.tool.werecord.impl.model.message;
 
-import android.content.ContentValues;
 import android.os.Parcel;
 import android.text.Spanned;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.text.HtmlCompat;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import xjunz.tool.werecord.impl.model.account.Contact;
+import xjunz.tool.werecord.impl.model.message.util.HtmlText;
+import xjunz.tool.werecord.impl.model.message.util.XmlScanner;
 import xjunz.tool.werecord.impl.repo.ContactRepository;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
 import xjunz.tool.werecord.util.Utils;
@@ -38,10 +36,14 @@ import static xjunz.tool.werecord.impl.model.message.MessageFactory.TYPE_SYSTEM_
  * 系统消息类
  */
 public class SystemMessage extends Message {
+    /**
+     * 场景标签，不需要显示
+     */
+    private static final Pattern SCENE_TAG = Pattern.compile("<scene>.*?</scene>");
     private Spanned html;
 
-    public SystemMessage(ContentValues values) {
-        super(values, MessageFactory.Type.SYSTEM);
+    public SystemMessage(MessageRow row) {
+        super(row, MessageFactory.Type.SYSTEM);
     }
 
     @Override
@@ -62,7 +64,11 @@ public class SystemMessage extends Message {
     @NotNull
     private String escapeTag() {
         //我们仅做一个简单的替换
-        return content.replace("<img", "<img_escaped").replaceAll("<scene>.*?</scene>", "");
+        String content = getContent();
+        if (content == null) {
+            return "";
+        }
+        return SCENE_TAG.matcher(content.replace("<img", "<img_escaped")).replaceAll("");
     }
 
     @NonNull
@@ -77,9 +83,13 @@ public class SystemMessage extends Message {
                     parsePatMessage();
                     break;
                 default:
-                    parsedContent = getHtml().toString();
+                    parsedContent = HtmlText.extract(escapeTag());
                     break;
             }
+            if (parsedContent == null) {
+                //解析失败，退回到提取纯文本
+                parsedContent = HtmlText.extract(escapeTag());
+            }
         }
         return parsedContent;
     }
@@ -103,162 +113,109 @@ public class SystemMessage extends Message {
 
 
     private void parseJoinGroupMessage() {
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        try {
-            SAXParser parser = factory.newSAXParser();
-            JoinGroupMessageHandler handler = new JoinGroupMessageHandler();
-            parser.parse(new ByteArrayInputStream(content.getBytes()), handler);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            e.printStackTrace();
+        String content = getContent();
+        if (content == null) {
+            return;
         }
-    }
-
-    private void parsePatMessage() {
-        SAXParserFactory factory = SAXParserFactory.newInstance();
         try {
-            SAXParser parser = factory.newSAXParser();
-            PatMessageHandler handler = new PatMessageHandler();
-            parser.parse(new ByteArrayInputStream(content.getBytes()), handler);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            parsedContent = fillJoinGroupTemplate(content);
+        } catch (XmlPullParserException | IOException e) {
             e.printStackTrace();
         }
     }
 
-
-    private class JoinGroupMessageHandler extends DefaultHandler {
-        private boolean inTemplate;
-        private boolean inTarget;
-        private boolean inLink;
-        private String template;
-        private String currentPattern;
-        private List<String> patterns = new ArrayList<>();
-        private HashMap<String, String> matchedMap;
-
-
-        @Override
-        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-            super.startElement(uri, localName, qName, attributes);
-            switch (qName) {
+    /**
+     * 填充入群消息的模板。消息的"template"节点中以$name$作为占位符，对应的"link"节点中的"plain"或"nickname"为要填入的内容
+     *
+     * @return 填充后的内容，如果没有"template"节点，返回{@code null}
+     */
+    @Nullable
+    static String fillJoinGroupTemplate(@NonNull String content) throws XmlPullParserException, IOException {
+        XmlPullParser parser = XmlScanner.scan(content);
+        String template = null;
+        String currentLink = null;
+        Map<String, String> matchedMap = new HashMap<>();
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.END_TAG && "link".equals(parser.getName())) {
+                currentLink = null;
+            }
+            if (event != XmlPullParser.START_TAG) {
+                continue;
+            }
+            switch (parser.getName()) {
                 case "template":
-                    inTemplate = true;
+                    template = XmlScanner.readText(parser);
                     break;
                 case "link":
-                    inLink = true;
-                    currentPattern = attributes.getValue("name");
+                    currentLink = parser.getAttributeValue(null, "name");
                     break;
                 case "plain":
                 case "nickname":
-                    inTarget = true;
+                    if (currentLink != null) {
+                        String text = XmlScanner.readText(parser);
+                        String matched = matchedMap.get(currentLink);
+                        matchedMap.put(currentLink, matched == null ? text : matched + "、" + text);
+                    }
+                    break;
                 default:
                     break;
             }
         }
-
-        @Override
-        public void endElement(String uri, String localName, String qName) throws SAXException {
-            super.endElement(uri, localName, qName);
-            switch (qName) {
-                case "template":
-                    inTemplate = false;
-                    break;
-                case "link":
-                    inLink = false;
-                    break;
-                case "plain":
-                case "nickname":
-                    inTarget = false;
-                    break;
-            }
+        if (template == null) {
+            return null;
         }
-
-        @Override
-        public void endDocument() throws SAXException {
-            super.endDocument();
-            for (String pattern : patterns) {
-                String matched = matchedMap.get(pattern);
-                if (matched == null) {
-                    matched = "";
-                }
-                template = template.replace("$" + pattern + "$", matched);
-            }
-            parsedContent = template;
-        }
-
-        @Override
-        public void characters(char[] ch, int start, int length) throws SAXException {
-            super.characters(ch, start, length);
-            String text = new String(ch, start, length);
-            if (text.length() == 0) {
-                text = "";
-            }
-            if (inTemplate) {
-                template = text;
-                patterns = Utils.extract(text, "\\$(.+?)\\$");
-                matchedMap = new HashMap<>();
-            } else if (inLink && inTarget) {
-                String matched = matchedMap.get(currentPattern);
-                if (matched == null) {
-                    matched = text;
-                } else {
-                    matched = matched + "、" + text;
-                }
-                matchedMap.put(currentPattern, matched);
-            }
+        for (String pattern : Utils.extract(template, "\\$(.+?)\\$")) {
+            String matched = matchedMap.get(pattern);
+            template = template.replace("$" + pattern + "$", matched == null ? "" : matched);
         }
+        return template;
     }
 
-    private class PatMessageHandler extends DefaultHandler {
-        private boolean inTemplate;
-        private final StringBuilder message;
-        private final ContactRepository repo;
-
-        public PatMessageHandler() {
-            super();
-            message = new StringBuilder();
-            repo = RepositoryFactory.get(ContactRepository.class);
-        }
-
-        @Override
-        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-            super.startElement(uri, localName, qName, attributes);
-            if ("template".equals(qName)) {
-                inTemplate = true;
-            }
-        }
-
-        @Override
-        public void endElement(String uri, String localName, String qName) throws SAXException {
-            super.endElement(uri, localName, qName);
-            if ("template".equals(qName)) {
-                inTemplate = false;
-            }
-        }
-
-        @Override
-        public void endDocument() throws SAXException {
-            super.endDocument();
-            parsedContent = message.toString();
+    /**
+     * 解析拍一拍消息。每个"template"节点为一行，其中以${wxid}作为占位符，替换为对应联系人的名称
+     */
+    private void parsePatMessage() {
+        String content = getContent();
+        if (content == null) {
+            return;
         }
-
-        @Override
-        public void characters(char[] ch, int start, int length) throws SAXException {
-            super.characters(ch, start, length);
-            if (inTemplate) {
-                String text = new String(ch, start, length);
-                List<String> wxids = Utils.extract(text, "\\$\\{(.+?)\\}");
-                for (String wxid : wxids) {
+        try {
+            ContactRepository repo = RepositoryFactory.get(ContactRepository.class);
+            StringBuilder message = new StringBuilder();
+            for (String template : scanPatTemplates(content)) {
+                String text = template;
+                for (String wxid : Utils.extract(text, "\\$\\{(.+?)\\}")) {
                     Contact contact = repo.get(wxid);
                     if (contact != null) {
                         text = text.replace("${" + wxid + "}", contact.getName());
                     }
                 }
-                if (message.length() == 0) {
-                    message.append(text);
-                } else {
-                    message.append("\n").append(text);
+                if (message.length() != 0) {
+                    message.append("\n");
                 }
+                message.append(text);
+            }
+            parsedContent = message.toString();
+        } catch (XmlPullParserException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return 拍一拍消息的各个"template"节点的文本，联系人仍以${wxid}占位
+     */
+    @NonNull
+    static List<String> scanPatTemplates(@NonNull String content) throws XmlPullParserException, IOException {
+        XmlPullParser parser = XmlScanner.scan(content);
+        List<String> templates = new ArrayList<>(2);
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG && "template".equals(parser.getName())) {
+                templates.add(XmlScanner.readText(parser));
             }
         }
+        return templates;
     }
 
     @Override
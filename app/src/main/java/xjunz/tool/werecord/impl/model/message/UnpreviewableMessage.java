@@ -3,7 +3,6 @@
  */
 package xjunz.tool.werecord.impl.model.message;
 
-import android.content.ContentValues;
 import android.os.Parcel;
 
 import androidx.annotation.NonNull;
@@ -21,8 +20,8 @@ import xjunz.tool.werecord.util.Utils;
  */
 public class UnpreviewableMessage extends ComplexMessage {
 
-    public UnpreviewableMessage(ContentValues values, MessageFactory.Type type) {
-        super(values, type);
+    public UnpreviewableMessage(MessageRow row, MessageFactory.Type type) {
+        super(row, type);
     }
 
     @NonNull
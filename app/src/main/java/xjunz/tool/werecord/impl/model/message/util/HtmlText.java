@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.text.HtmlCompat;
+
+/**
+ * 从消息内容中提取纯文本
+ * <p>
+ * 结果与{@code HtmlCompat.fromHtml(html.replace("\n", "<br>"), HtmlCompat.FROM_HTML_MODE_LEGACY).toString()}基本一致：
+ * 去除标签，解码字符实体，将连续的空白合并为一个空格，换行保留。与{@link HtmlCompat#fromHtml(String, int)}不同的是，
+ * 此方法只遍历一次字符串，不创建任何Span，适用于搜索、导出等只需要文本的场合。用于显示的富文本仍应通过{@link HtmlCompat}生成，
+ * 并且只在真正显示时才生成。
+ * </p>
+ */
+public final class HtmlText {
+    private HtmlText() {
+    }
+
+    /**
+     * 提取纯文本，原文中的换行视为{@code <br>}
+     */
+    @NonNull
+    public static String extract(@Nullable String html) {
+        if (html == null || html.isEmpty()) {
+            return "";
+        }
+        int length = html.length();
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = html.charAt(i);
+            switch (c) {
+                case '\n':
+                    sb.append('\n');
+                    break;
+                case ' ':
+                case '\t':
+                case '\r':
+                case '\f':
+                    //连续的空白合并为一个空格，行首的空白忽略
+                    if (sb.length() != 0 && sb.charAt(sb.length() - 1) != ' ' && sb.charAt(sb.length() - 1) != '\n') {
+                        sb.append(' ');
+                    }
+                    break;
+                case '<': {
+                    int end = tagEnd(html, i);
+                    if (end < 0) {
+                        sb.append(c);
+                        break;
+                    }
+                    if (isBreak(html, i + 1, end)) {
+                        sb.append('\n');
+                    }
+                    i = end;
+                    break;
+                }
+                case '&': {
+                    int end = html.indexOf(';', i);
+                    int decoded = end < 0 || end - i > 10 ? -1 : decodeEntity(html, i + 1, end);
+                    if (decoded < 0) {
+                        sb.append(c);
+                    } else {
+                        sb.appendCodePoint(decoded);
+                        i = end;
+                    }
+                    break;
+                }
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return 从{@code start}处的'<'开始的标签的结束位置，即'>'的下标。如果此处不是标签，返回-1
+     */
+    private static int tagEnd(@NonNull String html, int start) {
+        if (start + 1 >= html.length()) {
+            return -1;
+        }
+        char next = html.charAt(start + 1);
+        //与HTML解析器一致，只有'<'后紧跟字母、'/'或'!'时才视为标签
+        if (!Character.isLetter(next) && next != '/' && next != '!') {
+            return -1;
+        }
+        return html.indexOf('>', start + 1);
+    }
+
+    private static boolean isBreak(@NonNull String html, int start, int end) {
+        if (end - start < 2 || !html.regionMatches(true, start, "br", 0, 2)) {
+            return false;
+        }
+        if (end - start == 2) {
+            return true;
+        }
+        char c = html.charAt(start + 2);
+        return c == '/' || c == ' ';
+    }
+
+    /**
+     * 解码字符实体，例如{@code &amp;}、{@code &#39;}、{@code &#x4e2d;}
+     *
+     * @param start 实体名的起始位置，即'&'之后
+     * @param end   ';'的位置
+     * @return 解码后的码点，无法识别时返回-1
+     */
+    private static int decodeEntity(@NonNull String html, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        if (html.charAt(start) == '#') {
+            try {
+                int cp;
+                if (start + 1 < end && (html.charAt(start + 1) == 'x' || html.charAt(start + 1) == 'X')) {
+                    cp = Integer.parseInt(html.substring(start + 2, end), 16);
+                } else {
+                    cp = Integer.parseInt(html.substring(start + 1, end));
+                }
+                return Character.isValidCodePoint(cp) ? cp : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        switch (html.substring(start, end)) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            case "nbsp":
+                return '\u00a0';
+            default:
+                return -1;
+        }
+    }
+}
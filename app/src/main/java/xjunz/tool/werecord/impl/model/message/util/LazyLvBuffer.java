@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import xjunz.tool.werecord.util.LogUtils;
+
+/**
+ * LvBuffer的轻量视图，直接引用原始字节而不复制
+ * <p>
+ * 首次访问时遍历一次原始字节，记录各字段的偏移量，之后每个字段在被读取时才解码并缓存。
+ * 与{@link LvBufferUtils#readLvBuffer(byte[], int[])}一次性解码全部字段相比，
+ * 从未被访问的字段不会分配任何String或字节数组。
+ * </p>
+ */
+public final class LazyLvBuffer {
+    private static final int[] NO_OFFSETS = new int[0];
+    private final byte[] mBuffer;
+    private final int[] mSerial;
+    /**
+     * 各字段的起始偏移量，首次访问时才计算，计算完毕再整体赋值，因此多线程访问时最多重复计算一次
+     */
+    private volatile int[] mOffsets;
+    /**
+     * 已解码的字段，同样延迟创建
+     */
+    private volatile Object[] mValues;
+
+    public LazyLvBuffer(@Nullable byte[] buffer, @NonNull int[] serial) {
+        mBuffer = buffer;
+        mSerial = serial;
+    }
+
+    @Nullable
+    public byte[] getRaw() {
+        return mBuffer;
+    }
+
+    public boolean isLegal() {
+        return LvBufferUtils.isLegal(mBuffer);
+    }
+
+    @NonNull
+    private int[] getOffsets() {
+        int[] offsets = mOffsets;
+        if (offsets == null) {
+            try {
+                offsets = LvBufferUtils.indexLvBuffer(mBuffer, mSerial);
+            } catch (RuntimeException e) {
+                LogUtils.error("Failed to index LvBuffer: " + e.getMessage());
+            }
+            if (offsets == null) {
+                offsets = NO_OFFSETS;
+            }
+            mOffsets = offsets;
+        }
+        return offsets;
+    }
+
+    /**
+     * 获取指定下标的字段，如果LvBuffer不合法或者不包含此字段，返回{@code null}
+     */
+    @Nullable
+    public Object get(int index) {
+        int[] offsets = getOffsets();
+        if (index >= offsets.length || offsets[index] < 0) {
+            return null;
+        }
+        Object[] values = mValues;
+        if (values == null) {
+            values = new Object[mSerial.length];
+            mValues = values;
+        }
+        Object value = values[index];
+        if (value == null) {
+            try {
+                value = LvBufferUtils.readField(mBuffer, offsets[index], mSerial[index]);
+            } catch (RuntimeException e) {
+                LogUtils.error("Failed to read LvBuffer field " + index + ": " + e.getMessage());
+                return null;
+            }
+            values[index] = value;
+        }
+        return value;
+    }
+
+    @Nullable
+    public String getString(int index) {
+        return (String) get(index);
+    }
+
+    public int getInt(int index) {
+        Object value = get(index);
+        return value == null ? 0 : (int) value;
+    }
+
+    /**
+     * 解码全部字段，结果与{@link LvBufferUtils#readLvBuffer(byte[], int[])}一致，用于编辑等需要完整字段的场合
+     *
+     * @return 全部字段，如果LvBuffer不合法，返回{@code null}
+     */
+    @Nullable
+    public Object[] toArray() {
+        if (!isLegal()) {
+            return null;
+        }
+        Object[] parsed = new Object[mSerial.length];
+        for (int i = 0; i < mSerial.length; i++) {
+            parsed[i] = get(i);
+        }
+        return parsed;
+    }
+}
@@ -9,18 +9,34 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
-public class LvBufferUtils {
+/**
+ * LvBuffer的编解码工具
+ * <p>
+ * LvBuffer以'{'开头、'}'结尾，中间按序列依次保存各字段：整数为4字节，长整数为8字节，均为大端序；
+ * 字符串和字节数组为2字节的长度加上内容，字符串以UTF-8编码。
+ * </p>
+ * <p>
+ * 所有方法都是无状态的静态方法，可以在任意线程中同时调用。编码时先计算出LvBuffer的确切长度，
+ * 再直接写入恰好大小的数组，不会产生扩容和复制。
+ * </p>
+ */
+public final class LvBufferUtils {
     public static final int MAX_BYTES_LENGTH = 0xc00;
     public static final int TYPE_BUFFER = 2;
     public static final int TYPE_INTEGER = 1;
     public static final int TYPE_STRING = 0;
     public static final int TYPE_LONG = 3;
-    private ByteBuffer mByteBuffer;
+    private static final byte BEGIN = '{';
+    private static final byte END = '}';
+
+    private LvBufferUtils() {
+    }
 
     public static boolean isLegal(byte[] buffer) {
-        return buffer != null && buffer.length != 0 && buffer[0] == '{' && buffer[buffer.length - 1] == '}';
+        return buffer != null && buffer.length != 0 && buffer[0] == BEGIN && buffer[buffer.length - 1] == END;
     }
 
     @NotNull
@@ -35,181 +51,292 @@ public class LvBufferUtils {
         return objects;
     }
 
-    private void wrap(byte[] buffer) {
-        mByteBuffer = ByteBuffer.wrap(buffer);
-        mByteBuffer.position(1);
-    }
-
-    public byte[] generateLvBuffer(@NotNull Object[] parsed, int[] serial) {
-        start();
+    /**
+     * 将解析后的字段编码为LvBuffer
+     *
+     * @param parsed 各字段，为{@code null}的整数字段不会写入，为{@code null}的字符串和字节数组写入长度0
+     * @param serial 各字段的类型
+     * @throws IllegalArgumentException 字符串或字节数组超过{@link #MAX_BYTES_LENGTH}
+     */
+    @NonNull
+    public static byte[] generateLvBuffer(@NotNull Object[] parsed, int[] serial) {
+        //第一遍只计算长度
+        int size = 2;
+        for (int i = 0; i < parsed.length; i++) {
+            size += sizeOf(parsed[i], serial[i]);
+        }
+        byte[] buffer = new byte[size];
+        int pos = 0;
+        buffer[pos++] = BEGIN;
         for (int i = 0; i < parsed.length; i++) {
             Object obj = parsed[i];
             switch (serial[i]) {
                 case TYPE_INTEGER:
                     if (obj != null) {
-                        putInt(((Integer) obj));
+                        pos = putInt(buffer, pos, ((Number) obj).intValue());
                     }
                     break;
-                case TYPE_STRING:
-                    putString((String) obj);
-                    break;
-                case TYPE_BUFFER:
-                    putBuffer((byte[]) obj);
-                    break;
                 case TYPE_LONG:
                     if (obj != null) {
-                        putLong(((Integer) obj));
+                        pos = putLong(buffer, pos, ((Number) obj).longValue());
                     }
                     break;
+                case TYPE_STRING:
+                    pos = putString(buffer, pos, (String) obj);
+                    break;
+                case TYPE_BUFFER:
+                    pos = putBuffer(buffer, pos, (byte[]) obj);
+                    break;
             }
         }
-        return end();
+        buffer[pos] = END;
+        return buffer;
     }
 
-    @Nullable
-    public Object[] readLvBuffer(byte[] buffer, int[] serial) {
-        if (isLegal(buffer)) {
-            wrap(buffer);
-            Object[] parsedLvBuffer = new Object[serial.length];
-            for (int i = 0; i < serial.length; i++) {
-                if (isLastPosition()) {
-                    return parsedLvBuffer;
-                }
-                switch (serial[i]) {
-                    case TYPE_STRING:
-                        parsedLvBuffer[i] = getString();
-                        break;
-                    case TYPE_INTEGER:
-                        parsedLvBuffer[i] = getInt();
-                        break;
-                    case TYPE_BUFFER:
-                        parsedLvBuffer[i] = getBuffer();
-                        break;
-                    case TYPE_LONG:
-                        parsedLvBuffer[i] = getLong();
-                        break;
-                }
-            }
-            return parsedLvBuffer;
+    private static int sizeOf(@Nullable Object obj, int type) {
+        switch (type) {
+            case TYPE_INTEGER:
+                return obj == null ? 0 : 4;
+            case TYPE_LONG:
+                return obj == null ? 0 : 8;
+            case TYPE_STRING:
+                return 2 + checkLength(obj == null ? 0 : utf8Length((String) obj));
+            case TYPE_BUFFER:
+                return 2 + checkLength(obj == null ? 0 : ((byte[]) obj).length);
+            default:
+                return 0;
+        }
+    }
+
+    private static int checkLength(int length) {
+        if (length > MAX_BYTES_LENGTH) {
+            throw new IllegalArgumentException("Unexpected field length: " + length);
         }
-        return null;
+        return length;
     }
 
-    private int getInt() {
-        return mByteBuffer.getInt();
+    /**
+     * 解码LvBuffer的全部字段
+     *
+     * @return 各字段，LvBuffer提前结束时，其后的字段为{@code null}；LvBuffer不合法时返回{@code null}
+     * @throws IllegalArgumentException 字段长度超出范围
+     */
+    @Nullable
+    public static Object[] readLvBuffer(byte[] buffer, int[] serial) {
+        if (!isLegal(buffer)) {
+            return null;
+        }
+        Object[] parsed = new Object[serial.length];
+        int pos = 1;
+        for (int i = 0; i < serial.length && !isLastPosition(buffer, pos); i++) {
+            parsed[i] = readField(buffer, pos, serial[i]);
+            pos = skipField(buffer, pos, serial[i]);
+        }
+        return parsed;
     }
 
-    private long getLong() {
-        return mByteBuffer.getLong();
+    /**
+     * 遍历一次LvBuffer，只记录各字段的起始偏移量而不解码，字符串和字节数组类型的字段直接跳过
+     *
+     * @return 各字段的起始偏移量，LvBuffer提前结束时，其后字段的偏移量为-1；LvBuffer不合法时返回{@code null}
+     * @throws IllegalArgumentException 字段长度超出范围
+     * @see #readField(byte[], int, int)
+     */
+    @Nullable
+    public static int[] indexLvBuffer(byte[] buffer, int[] serial) {
+        if (!isLegal(buffer)) {
+            return null;
+        }
+        int[] offsets = new int[serial.length];
+        Arrays.fill(offsets, -1);
+        int pos = 1;
+        for (int i = 0; i < serial.length && !isLastPosition(buffer, pos); i++) {
+            offsets[i] = pos;
+            pos = skipField(buffer, pos, serial[i]);
+        }
+        return offsets;
     }
 
-    @NonNull
-    private byte[] getBuffer() {
-        int i = mByteBuffer.getShort();
-        if (i > MAX_BYTES_LENGTH) {
-            throw new IllegalArgumentException("Unexpected buffer length: " + i);
-        } else if (i == 0) {
-            return new byte[0];
-        } else {
-            byte[] buffer2 = new byte[i];
-            mByteBuffer.get(buffer2, 0, i);
-            return buffer2;
+    /**
+     * 跳过位于指定偏移量的单个字段
+     *
+     * @param offset 字段的起始偏移量
+     * @param type   字段的类型
+     * @return 下一个字段的起始偏移量
+     * @throws IllegalArgumentException 字段长度超出范围
+     */
+    public static int skipField(byte[] buffer, int offset, int type) {
+        switch (type) {
+            case TYPE_STRING:
+            case TYPE_BUFFER:
+                return offset + 2 + readLength(buffer, offset);
+            case TYPE_INTEGER:
+                return offset + 4;
+            case TYPE_LONG:
+                return offset + 8;
+            default:
+                throw new IllegalArgumentException("Unknown field type: " + type);
         }
     }
 
+    /**
+     * 解码LvBuffer中位于指定偏移量的单个字段
+     *
+     * @param offset 字段的起始偏移量，由{@link #indexLvBuffer(byte[], int[])}得到
+     * @param type   字段的类型
+     * @throws IllegalArgumentException 字段长度超出范围
+     */
     @NonNull
-    private String getString() {
-        int i = mByteBuffer.getShort();
-        if (i > MAX_BYTES_LENGTH) {
-            throw new IllegalArgumentException("Unexpected String length: " + i);
-        } else if (i == 0) {
-            return "";
-        } else {
-            byte[] buffer = new byte[i];
-            mByteBuffer.get(buffer, 0, i);
-            return new String(buffer);
+    public static Object readField(byte[] buffer, int offset, int type) {
+        switch (type) {
+            case TYPE_STRING: {
+                int length = readLength(buffer, offset);
+                return length == 0 ? "" : new String(buffer, offset + 2, length, StandardCharsets.UTF_8);
+            }
+            case TYPE_INTEGER:
+                checkBounds(buffer, offset, 4);
+                return getInt(buffer, offset);
+            case TYPE_BUFFER: {
+                int length = readLength(buffer, offset);
+                return Arrays.copyOfRange(buffer, offset + 2, offset + 2 + length);
+            }
+            case TYPE_LONG:
+                checkBounds(buffer, offset, 8);
+                return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xffffffffL);
+            default:
+                throw new IllegalArgumentException("Unknown field type: " + type);
         }
     }
 
-    private void forward(int i) {
-        mByteBuffer.position(mByteBuffer.position() + i);
+    private static boolean isLastPosition(byte[] buffer, int pos) {
+        return buffer.length - pos <= 1;
     }
 
-    private void leap() {
-        short s = mByteBuffer.getShort();
-        if (s > 3072) {
-            mByteBuffer = null;
-        } else {
-            mByteBuffer.position(s + mByteBuffer.position());
+    private static void checkBounds(byte[] buffer, int offset, int length) {
+        if (offset < 0 || offset + length > buffer.length) {
+            throw new IllegalArgumentException("Unexpected end of LvBuffer at: " + offset);
         }
     }
 
-    private boolean isLastPosition() {
-        return mByteBuffer.remaining() <= 1;
+    /**
+     * 读取字符串或字节数组字段的长度，并检查其内容是否完整
+     */
+    private static int readLength(byte[] buffer, int offset) {
+        checkBounds(buffer, offset, 2);
+        int length = (short) ((buffer[offset] << 8) | (buffer[offset + 1] & 0xff));
+        if (length < 0 || length > MAX_BYTES_LENGTH) {
+            throw new IllegalArgumentException("Unexpected field length at: " + offset);
+        }
+        checkBounds(buffer, offset + 2, length);
+        return length;
     }
 
-    private void start() {
-        mByteBuffer = ByteBuffer.allocate(4096);
-        mByteBuffer.put((byte) 123);
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
     }
 
-    private void lengthenIfNecessary(int length) {
-        if (mByteBuffer.remaining() <= length) {
-            ByteBuffer allocate = ByteBuffer.allocate(mByteBuffer.limit() + 4096);
-            allocate.put(mByteBuffer.array(), 0, mByteBuffer.position());
-            mByteBuffer = allocate;
-        }
+    private static int putShort(byte[] buffer, int pos, int s) {
+        buffer[pos] = (byte) (s >> 8);
+        buffer[pos + 1] = (byte) s;
+        return pos + 2;
     }
 
-    private void putInt(int i) {
-        lengthenIfNecessary(4);
-        mByteBuffer.putInt(i);
+    private static int putInt(byte[] buffer, int pos, int i) {
+        buffer[pos] = (byte) (i >> 24);
+        buffer[pos + 1] = (byte) (i >> 16);
+        buffer[pos + 2] = (byte) (i >> 8);
+        buffer[pos + 3] = (byte) i;
+        return pos + 4;
     }
 
-    private void putLong(long j) {
-        lengthenIfNecessary(8);
-        mByteBuffer.putLong(j);
+    private static int putLong(byte[] buffer, int pos, long j) {
+        pos = putInt(buffer, pos, (int) (j >> 32));
+        return putInt(buffer, pos, (int) j);
     }
 
-    private void putBuffer(byte[] buffer) {
-        if (buffer == null) {
-            buffer = new byte[0];
-        }
-        if (buffer.length > MAX_BYTES_LENGTH) {
-            throw new IllegalArgumentException("Unexpected buffer length: " + buffer.length);
-        }
-        //2 more for short
-        lengthenIfNecessary(buffer.length + 2);
-        mByteBuffer.putShort((short) buffer.length);
-        if (buffer.length > 0) {
-            mByteBuffer.put(buffer);
+    private static int putBuffer(byte[] buffer, int pos, @Nullable byte[] value) {
+        int length = value == null ? 0 : value.length;
+        pos = putShort(buffer, pos, length);
+        if (length > 0) {
+            System.arraycopy(value, 0, buffer, pos, length);
         }
+        return pos + length;
     }
 
-    private void putString(String str) {
-        byte[] buffer = null;
+    /**
+     * 以UTF-8编码写入字符串，不产生中间的字节数组。不成对的代理字符写为'?'，与{@link String#getBytes(java.nio.charset.Charset)}一致
+     */
+    private static int putString(byte[] buffer, int pos, @Nullable String str) {
+        int lengthPos = pos;
+        pos += 2;
         if (str != null) {
-            buffer = str.getBytes();
-        }
-        if (buffer == null) {
-            buffer = new byte[0];
-        }
-        if (buffer.length > MAX_BYTES_LENGTH) {
-            return;
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (c < 0x80) {
+                    buffer[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[pos++] = (byte) (0xc0 | (c >> 6));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    int cp = codePointAt(str, i);
+                    if (cp < 0) {
+                        buffer[pos++] = '?';
+                    } else {
+                        buffer[pos++] = (byte) (0xf0 | (cp >> 18));
+                        buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+                        i++;
+                    }
+                } else {
+                    buffer[pos++] = (byte) (0xe0 | (c >> 12));
+                    buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
         }
-        lengthenIfNecessary(buffer.length + 2);
-        mByteBuffer.putShort((short) buffer.length);
-        if (buffer.length > 0) {
-            mByteBuffer.put(buffer);
+        putShort(buffer, lengthPos, pos - lengthPos - 2);
+        return pos;
+    }
+
+    /**
+     * @return 字符串以UTF-8编码后的字节数
+     * @see #putString(byte[], int, String)
+     */
+    private static int utf8Length(@NonNull String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (codePointAt(str, i) < 0) {
+                    length += 1;
+                } else {
+                    length += 4;
+                    i++;
+                }
+            } else {
+                length += 3;
+            }
         }
+        return length;
     }
 
-    @NotNull
-    private byte[] end() {
-        lengthenIfNecessary(1);
-        mByteBuffer.put((byte) 125);
-        byte[] buffer = new byte[mByteBuffer.position()];
-        System.arraycopy(mByteBuffer.array(), 0, buffer, 0, buffer.length);
-        return buffer;
+    /**
+     * @return 从指定位置开始的代理对所表示的码点，如果不是合法的代理对，返回-1
+     */
+    private static int codePointAt(@NonNull String str, int index) {
+        char high = str.charAt(index);
+        if (Character.isHighSurrogate(high) && index + 1 < str.length()) {
+            char low = str.charAt(index + 1);
+            if (Character.isLowSurrogate(low)) {
+                return Character.toCodePoint(high, low);
+            }
+        }
+        return -1;
     }
 }
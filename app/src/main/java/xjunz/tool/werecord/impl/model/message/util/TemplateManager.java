@@ -53,8 +53,16 @@ public class TemplateManager implements LifecycleObserver {
         Environment.getInstance().addLifecycleObserver(this);
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public static void init(@NotNull Context context) {
+        openDatabase(context);
+        loadTemplates();
+    }
+
+    /**
+     * 打开模板数据库，此步骤不依赖工作数据库，可以与{@link Environment}的初始化并行执行
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void openDatabase(@NotNull Context context) {
         File dbFile = context.getDatabasePath(TEMPLATE_DB_NAME);
         if (!dbFile.exists()) {
             if (dbFile.mkdirs()) {
@@ -69,7 +77,14 @@ public class TemplateManager implements LifecycleObserver {
         }
         SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, TEMPLATE_DB_PWD, null);
         sInstance = new TemplateManager(db);
-        sInstance.loadAllLocalTemplates();
+    }
+
+    /**
+     * 加载所有模板，需要在{@link #openDatabase(Context)}以及
+     * {@link xjunz.tool.werecord.impl.repo.MessageRepository#initTypeMap()}之后调用
+     */
+    public static void loadTemplates() {
+        getInstance().loadAllLocalTemplates();
     }
 
     /**
@@ -77,8 +92,9 @@ public class TemplateManager implements LifecycleObserver {
      */
     private void loadAllLocalTemplates() {
         Cursor cursor = mDb.rawQuery("select * from " + TEMPLATE_TABLE_NAME, null);
+        DbUtils.RowMapper mapper = DbUtils.RowMapper.of(cursor);
         while (cursor.moveToNext()) {
-            Template template = Template.fromLocal(DbUtils.buildValuesFromCursor(cursor));
+            Template template = Template.fromLocal(mapper.map(cursor));
             //LogUtils.debug(template.getSource());
             if (template.isCustom()) {
                 mCustomTemplates.add(template);
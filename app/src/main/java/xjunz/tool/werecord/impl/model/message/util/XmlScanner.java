@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message.util;
+
+import android.util.Xml;
+
+import androidx.annotation.NonNull;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * 消息内容中的XML的拉取式扫描工具
+ * <p>
+ * 每个线程复用同一个{@link XmlPullParser}，直接从字符串读取，不必为每条消息创建解析器，也不必先转换为字节。
+ * 调用者按需拉取事件，找到所需的节点后直接停止扫描即可，不必像SAX那样抛出异常来中止解析。
+ * </p>
+ * <p>
+ * 由于解析器按线程复用，在一次扫描结束前，不能在同一线程中再调用{@link #scan(String)}。
+ * </p>
+ */
+public final class XmlScanner {
+    private static final ThreadLocal<XmlPullParser> sParsers = new ThreadLocal<XmlPullParser>() {
+        @Override
+        protected XmlPullParser initialValue() {
+            return Xml.newPullParser();
+        }
+    };
+
+    private XmlScanner() {
+    }
+
+    /**
+     * 开始扫描一段XML
+     *
+     * @return 本线程的解析器，已定位到文档开头
+     */
+    @NonNull
+    public static XmlPullParser scan(@NonNull String xml) throws XmlPullParserException {
+        XmlPullParser parser = sParsers.get();
+        parser.setInput(new StringReader(xml));
+        return parser;
+    }
+
+    /**
+     * 读取当前节点内的全部文本，调用时解析器应当位于{@link XmlPullParser#START_TAG}。
+     * 子节点中的文本同样会被读取。返回时解析器位于此节点的{@link XmlPullParser#END_TAG}。
+     */
+    @NonNull
+    public static String readText(@NonNull XmlPullParser parser) throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        String single = null;
+        StringBuilder sb = null;
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+                break;
+            }
+            if (event == XmlPullParser.TEXT) {
+                //绝大多数节点只有一段文本，这种情况下不必拼接
+                if (single == null) {
+                    single = parser.getText();
+                } else {
+                    if (sb == null) {
+                        sb = new StringBuilder(single);
+                    }
+                    sb.append(parser.getText());
+                }
+            }
+        }
+        return sb != null ? sb.toString() : single == null ? "" : single;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.repo;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import xjunz.tool.werecord.impl.model.account.Account;
+
+/**
+ * 增量刷新仓库时产生的单个变化
+ *
+ * @param <T> 账号类型
+ * @see AccountRepository#merge(java.util.List)
+ */
+public final class AccountChange<T extends Account> {
+    /**
+     * 新增的账号
+     */
+    public static final int ADDED = 0;
+    /**
+     * 信息有变化的账号，{@link #old}为变化前的实例
+     */
+    public static final int UPDATED = 1;
+    public final int kind;
+    @Nullable
+    public final T old;
+    @NonNull
+    public final T current;
+
+    AccountChange(@Nullable T old, @NonNull T current) {
+        this.kind = old == null ? ADDED : UPDATED;
+        this.old = old;
+        this.current = current;
+    }
+}
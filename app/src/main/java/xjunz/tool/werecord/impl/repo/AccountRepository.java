@@ -6,17 +6,37 @@ package xjunz.tool.werecord.impl.repo;
 
 import android.util.LruCache;
 
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import xjunz.tool.werecord.impl.model.account.Account;
+import xjunz.tool.werecord.util.LogUtils;
+import xjunz.tool.werecord.util.TraceUtils;
 
 abstract class AccountRepository<T extends Account> extends LifecyclePerceptiveRepository {
     protected List<T> mAll = new ArrayList<>();
+    /**
+     * {@link #mAll}的ID索引，与{@link #mAll}保持一致，增删{@link #mAll}的元素应当通过
+     * {@link #addToAll(Account)}和{@link #removeFromAll(Account)}。
+     * {@link #get(String)}和{@link #peek(String)}会在工作线程中读取索引，而加载和刷新同时在其他线程中修改它，因此使用{@link ConcurrentHashMap}
+     */
+    private final Map<String, T> mIndex = new ConcurrentHashMap<>();
     private final LruCache<String, T> mCache;
+    /**
+     * 是否调用过{@link #queryAll()}。没有加载全部账号的仓库，例如{@link GroupRepository}，
+     * 只在用到时单独查询并缓存，刷新时也只更新缓存，不会加入{@link #mAll}
+     */
+    private volatile boolean mAllLoaded;
+    private final AtomicLong mIndexHitCount = new AtomicLong();
+    private final AtomicLong mQueryCount = new AtomicLong();
 
     AccountRepository() {
         mCache = new LruCache<>(getCacheCapacity());
@@ -44,7 +64,137 @@ abstract class AccountRepository<T extends Account> extends LifecyclePerceptiveR
         } else {
             mAll.clear();
         }
-        queryAllInternal(mAll);
+        mIndex.clear();
+        onCleared();
+        try (TraceUtils.Span ignored = TraceUtils.begin(getClass().getSimpleName() + ".queryAll")) {
+            queryAllInternal(mAll);
+        }
+        for (int i = 0; i < mAll.size(); i++) {
+            T t = mAll.get(i);
+            mIndex.put(t.id, t);
+            onAdded(t);
+        }
+        mAllLoaded = true;
+    }
+
+    protected void addToAll(@NonNull T t) {
+        mAll.add(t);
+        mIndex.put(t.id, t);
+        onAdded(t);
+    }
+
+    protected void removeFromAll(@NonNull T t) {
+        mAll.remove(t);
+        mIndex.remove(t.id);
+        mCache.remove(t.id);
+        onRemoved(t);
+    }
+
+    /**
+     * 有{@link Account}加入{@link #mAll}时回调，子类可以在此维护二级索引
+     */
+    protected void onAdded(@NonNull T t) {
+    }
+
+    protected void onRemoved(@NonNull T t) {
+    }
+
+    /**
+     * {@link #mAll}被清空时回调
+     */
+    protected void onCleared() {
+    }
+
+    /**
+     * 查询上次加载或刷新以来有变化的账号，由子类根据各自的水位实现。在工作线程中调用，不应修改{@link #mAll}
+     *
+     * @param changed 有变化的账号的新实例
+     */
+    protected abstract void queryChangedInternal(@NonNull List<T> changed);
+
+    /**
+     * 有变化的账号合并完成后回调，{@param old}为变化前的实例，如果是新增的账号，为{@code null}。
+     * 子类可以在此维护{@link #mAll}以外的列表
+     */
+    protected void onMerged(@Nullable T old, @NonNull T current) {
+    }
+
+    /**
+     * 一次刷新的全部变化合并完成后回调
+     */
+    protected void onRefreshed() {
+    }
+
+    /**
+     * 增量刷新的第一步：只查询上次加载以来有变化的账号，不修改{@link #mAll}、索引和缓存，
+     * 因此可以在后台进行，再由{@link #merge(List)}在读取数据的线程中合并
+     *
+     * @return 有变化的账号的新实例
+     */
+    @WorkerThread
+    @NonNull
+    public List<T> queryChanged() {
+        List<T> changed = new ArrayList<>();
+        try (TraceUtils.Span ignored = TraceUtils.begin(getClass().getSimpleName() + ".queryChanged")) {
+            queryChangedInternal(changed);
+        }
+        return changed;
+    }
+
+    /**
+     * 增量刷新的第二步：把{@link #queryChanged()}查询到的账号合并到{@link #mAll}、索引和缓存中。
+     * 已有的账号被替换为新的实例，位置不变。没有加载全部账号时，只替换缓存中的实例
+     * <p>
+     * 界面直接读取{@link #getAll()}，因此应当在主线程中调用
+     * </p>
+     *
+     * @param changed {@link #queryChanged()}的结果
+     * @return 本次刷新产生的变化
+     */
+    @MainThread
+    @NonNull
+    public List<AccountChange<T>> merge(@NonNull List<T> changed) {
+        List<AccountChange<T>> changes = new ArrayList<>(changed.size());
+        for (T current : changed) {
+            T old = mIndex.get(current.id);
+            if (old != null) {
+                mAll.set(mAll.indexOf(old), current);
+                mIndex.put(current.id, current);
+                onRemoved(old);
+                onAdded(current);
+            } else {
+                //不在全部账号中，但可能单独查询过，存在于缓存中
+                old = mCache.get(current.id);
+                if (!mAllLoaded) {
+                    //没有加载全部账号，只更新缓存
+                    if (old != null) {
+                        mCache.put(current.id, current);
+                        changes.add(new AccountChange<>(old, current));
+                    }
+                    continue;
+                }
+                addToAll(current);
+            }
+            if (mCache.get(current.id) != null) {
+                mCache.put(current.id, current);
+            }
+            onMerged(old, current);
+            changes.add(new AccountChange<>(old, current));
+        }
+        if (!changes.isEmpty()) {
+            onRefreshed();
+        }
+        LogUtils.debug(getClass().getSimpleName() + " refreshed, changes: " + changes.size());
+        return changes;
+    }
+
+    /**
+     * 获取已加载或已缓存的{@link Account}，不会查询数据库
+     */
+    @Nullable
+    protected T peek(@NonNull String id) {
+        T t = mIndex.get(id);
+        return t == null ? mCache.get(id) : t;
     }
 
     /**
@@ -59,7 +209,7 @@ abstract class AccountRepository<T extends Account> extends LifecyclePerceptiveR
      * 获取某个{@param id}的{@link Account}实例
      * <p>
      * 此方法会先从{@link LruCache}缓存中获取，如果不存在，尝试从全部已查询到的
-     * {@link Account}列表({@link AccountRepository#getAll()})中获取，如果不存在，再尝试从数据库获取，
+     * {@link Account}的索引({@link AccountRepository#getAll()})中获取，如果不存在，再尝试从数据库获取，
      * 即调用{@link AccountRepository#query(String)}获取，如果取得，存入缓存，
      * 如果未取得，返回{@code null}
      * </p>
@@ -73,18 +223,16 @@ abstract class AccountRepository<T extends Account> extends LifecyclePerceptiveR
         T t = mCache.get(id);
         //如果缓存中不存在
         if (t == null) {
-            //从全部中获取
-            if (mAll != null) {
-                for (int i = 0; i < mAll.size(); i++) {
-                    t = mAll.get(i);
-                    if (t.id.equals(id)) {
-                        //取得的话，存入缓存
-                        mCache.put(id, t);
-                        return t;
-                    }
-                }
+            //从全部的索引中获取
+            t = mIndex.get(id);
+            if (t != null) {
+                mIndexHitCount.incrementAndGet();
+                //取得的话，存入缓存
+                mCache.put(id, t);
+                return t;
             }
             //如果都不存在，从数据库中获取
+            mQueryCount.incrementAndGet();
             t = query(id);
             if (t != null) {
                 mCache.put(id, t);
@@ -94,4 +242,20 @@ abstract class AccountRepository<T extends Account> extends LifecyclePerceptiveR
         }
         return t;
     }
+
+    /**
+     * 输出缓存命中、索引命中以及查询数据库的次数，用于根据实际情况调整{@link #getCacheCapacity()}
+     */
+    @NonNull
+    public String dumpStats() {
+        return getClass().getSimpleName() + " stats: cache " + mCache.hitCount() + " hits/" + mCache.missCount()
+                + " misses (capacity " + mCache.maxSize() + ", evicted " + mCache.evictionCount() + "), index "
+                + mIndexHitCount.get() + " hits, " + mQueryCount.get() + " database queries";
+    }
+
+    @Override
+    public void purge() {
+        LogUtils.debug(dumpStats());
+        super.purge();
+    }
 }
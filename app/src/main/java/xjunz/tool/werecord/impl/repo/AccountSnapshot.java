@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+
+package xjunz.tool.werecord.impl.repo;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.apaches.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.schedulers.Schedulers;
+import xjunz.tool.werecord.impl.Environment;
+import xjunz.tool.werecord.impl.model.account.Account;
+import xjunz.tool.werecord.impl.model.account.User;
+import xjunz.tool.werecord.util.IoUtils;
+import xjunz.tool.werecord.util.LogUtils;
+
+/**
+ * 账号仓库的二进制快照，按账号保存在工作数据库的目录下
+ * <p>
+ * 快照记录了仓库加载完毕时的全部{@link Account}，包括预先计算的拼音缩写和原始的LvBuffer，
+ * 下次启动时直接从快照恢复，省去查询和计算拼音的开销。快照同时记录了写入时数据库的水位，
+ * 即"rconversation"表的最大会话时间、未读数总和、行数以及"rcontact"表的行数，水位变化说明数据已更新，
+ * 快照随之失效。通过{@link xjunz.tool.werecord.impl.DatabaseModifier}修改工作数据库时，
+ * 应当调用{@link #invalidate(User)}使快照失效。
+ * </p>
+ * <p>
+ * 快照的路径只取决于账号的uin，与当前使用的工作数据库文件无关。工作数据库在重新同步后会在两个文件之间切换，
+ * 如果快照跟随工作数据库的路径，失效时只能删除其中一份，另一份在切换回来时可能因水位恰好一致而被误用。
+ * </p>
+ *
+ * @param <T> 快照中的账号类型
+ */
+public final class AccountSnapshot<T extends Account> {
+    private static final int VERSION = 3;
+    /**
+     * 快照的代数，每次失效时递增，用于丢弃失效前开始、失效后才写完的快照
+     */
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+    private final File mFile;
+    private final Reader<T> mReader;
+
+    interface Reader<T> {
+        T read(DataInput in) throws IOException;
+    }
+
+    /**
+     * 数据库的水位
+     */
+    static final class Watermark {
+        final long maxConversationTime;
+        final long totalUnreadCount;
+        final int conversationCount;
+        final int contactCount;
+
+        private Watermark(long maxConversationTime, long totalUnreadCount, int conversationCount, int contactCount) {
+            this.maxConversationTime = maxConversationTime;
+            this.totalUnreadCount = totalUnreadCount;
+            this.conversationCount = conversationCount;
+            this.contactCount = contactCount;
+        }
+
+        @NonNull
+        static Watermark query(@NonNull SQLiteDatabase database) {
+            try (Cursor cursor = database.rawQuery("select (select max(conversationTime) from " + TalkerRepository.TABLE_CONVERSATION + "),"
+                    + "(select total(unReadCount) from " + TalkerRepository.TABLE_CONVERSATION + "),"
+                    + "(select count(*) from " + TalkerRepository.TABLE_CONVERSATION + "),"
+                    + "(select count(*) from " + ContactRepository.TABLE_CONTACT + ")", null)) {
+                cursor.moveToNext();
+                return new Watermark(cursor.getLong(0), cursor.getLong(1), cursor.getInt(2), cursor.getInt(3));
+            }
+        }
+
+        boolean matches(@NonNull DataInput in) throws IOException {
+            return in.readLong() == maxConversationTime && in.readLong() == totalUnreadCount
+                    && in.readInt() == conversationCount && in.readInt() == contactCount;
+        }
+    }
+
+    AccountSnapshot(@NonNull User user, @NonNull String name, @NonNull Reader<T> reader) {
+        mFile = getFile(user, name);
+        mReader = reader;
+    }
+
+    @NonNull
+    private static File getFile(@NonNull User user, @NonNull String name) {
+        return new File(Environment.getInstance().getWorkerDatabaseDirPath(), DigestUtils.md5Hex(user.uin) + "." + name);
+    }
+
+    /**
+     * @return 以前跟随备用工作数据库保存的快照，只用于清理
+     */
+    @NonNull
+    private static File getLegacyAlternateFile(@NonNull User user, @NonNull String name) {
+        return new File(Environment.getInstance().getWorkerDatabaseDirPath(), DigestUtils.md5Hex(user.uin) + ".alt." + name);
+    }
+
+    /**
+     * 读取快照
+     *
+     * @param watermark 数据库当前的水位
+     * @return 快照中的全部账号，如果快照不存在、已失效或已损坏，返回{@code null}
+     */
+    @Nullable
+    List<T> read(@NonNull Watermark watermark) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 64 * 1024))) {
+            if (in.readInt() != VERSION || !watermark.matches(in)) {
+                return null;
+            }
+            int size = in.readInt();
+            List<T> accounts = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                accounts.add(mReader.read(in));
+            }
+            return accounts;
+        } catch (IOException | RuntimeException e) {
+            LogUtils.error("Failed to read snapshot " + mFile.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 在后台写入快照，写入期间快照失效的话，写入的快照会被丢弃
+     *
+     * @param watermark 查询{@param accounts}前数据库的水位
+     * @param accounts  要写入的账号，写入期间不应再被修改
+     */
+    void writeAsync(@NonNull Watermark watermark, @NonNull List<T> accounts) {
+        int generation = sGeneration.get();
+        Schedulers.io().scheduleDirect(() -> {
+            File temp = new File(mFile.getPath() + ".tmp");
+            try {
+                write(temp, watermark, accounts);
+                synchronized (sGeneration) {
+                    if (generation == sGeneration.get() && temp.renameTo(mFile)) {
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LogUtils.error("Failed to write snapshot " + mFile.getName() + ": " + e.getMessage());
+            }
+            IoUtils.deleteFile(temp);
+        });
+    }
+
+    @WorkerThread
+    private void write(@NonNull File file, @NonNull Watermark watermark, @NonNull List<T> accounts) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+            out.writeInt(VERSION);
+            out.writeLong(watermark.maxConversationTime);
+            out.writeLong(watermark.totalUnreadCount);
+            out.writeInt(watermark.conversationCount);
+            out.writeInt(watermark.contactCount);
+            out.writeInt(accounts.size());
+            for (T account : accounts) {
+                account.writeSnapshot(out);
+            }
+        }
+    }
+
+    /**
+     * 使指定账号的所有快照失效
+     */
+    public static void invalidate(@NonNull User user) {
+        synchronized (sGeneration) {
+            sGeneration.incrementAndGet();
+            for (String name : new String[]{TalkerRepository.SNAPSHOT_NAME, ContactRepository.SNAPSHOT_NAME}) {
+                for (File file : new File[]{getFile(user, name), getLegacyAlternateFile(user, name)}) {
+                    if (file.exists()) {
+                        IoUtils.deleteFile(file);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -10,11 +10,17 @@ import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
 import org.apaches.commons.codec.digest.DigestUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import xjunz.tool.werecord.util.LogUtils;
 import xjunz.tool.werecord.util.ShellUtils;
@@ -24,6 +30,12 @@ public class AvatarRepository extends LifecyclePerceptiveRepository {
     //Create a LruCache with 20MB of opacity
     private final LruCache<String, Bitmap> mAvatarCache;
     private static long sAvatarExpiredTime = 7 * 24 * 60 * 60 * 1000;
+    /**
+     * 正在预取头像文件的微信ID
+     *
+     * @see #prefetchAvatarFiles(List)
+     */
+    private final Set<String> mPrefetching = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     AvatarRepository() {
         this.mAvatarCache = new LruCache<String, Bitmap>(DEFAULT_CACHE_SIZE) {
@@ -38,6 +50,27 @@ public class AvatarRepository extends LifecyclePerceptiveRepository {
         sAvatarExpiredTime = timeInMills;
     }
 
+    @NonNull
+    private String getBackupAvatarPath(@NonNull String idMd5) {
+        return getEnvironment().getAvatarBackupPath() + File.separator + idMd5;
+    }
+
+    @NonNull
+    private String getOriginalAvatarPath(@NonNull String idMd5) {
+        return getCurrentUser().dirPath + File.separator + "avatar" + File.separator
+                + idMd5.substring(0, 2) + File.separator
+                + idMd5.substring(2, 4) + File.separator
+                + "user_" + idMd5 + ".png";
+    }
+
+    /**
+     * @return 头像备份文件是否不存在、为空或已过期。复制失败或者原头像不存在时会留下空文件，不能视为有效的备份
+     */
+    private boolean isAvatarBackupStale(@NonNull File avatarFile) {
+        return !avatarFile.exists() || avatarFile.length() == 0
+                || System.currentTimeMillis() - avatarFile.lastModified() > sAvatarExpiredTime;
+    }
+
     /**
      * 从本地文件中解码指定微信ID的头像{@link Bitmap}
      *
@@ -47,16 +80,11 @@ public class AvatarRepository extends LifecyclePerceptiveRepository {
     @Nullable
     private Bitmap decodeAvatar(@NonNull String id) {
         String idMd5 = DigestUtils.md5Hex(id);
-        String backupAvatarPath = getEnvironment().getAvatarBackupPath() + File.separator + idMd5;
-        String originalAvatarPath = getCurrentUser().dirPath + File.separator + "avatar" + File.separator
-                + idMd5.substring(0, 2) + File.separator
-                + idMd5.substring(2, 4) + File.separator
-                + "user_" + idMd5 + ".png";
+        String backupAvatarPath = getBackupAvatarPath(idMd5);
         try {
-            File avatarFile = new File(backupAvatarPath);
             //如果头像不存在或已过期
-            if (!avatarFile.exists() || (avatarFile.exists() && System.currentTimeMillis() - avatarFile.lastModified() > sAvatarExpiredTime)) {
-                ShellUtils.cp2dataIfExists(originalAvatarPath, backupAvatarPath, true);
+            if (isAvatarBackupStale(new File(backupAvatarPath))) {
+                ShellUtils.cp2dataIfExists(getOriginalAvatarPath(idMd5), backupAvatarPath, true);
             }
         } catch (ShellUtils.ShellException | IOException e) {
             LogUtils.error("Failed to load avatar of " + id + " :" + e.getMessage());
@@ -64,6 +92,77 @@ public class AvatarRepository extends LifecyclePerceptiveRepository {
         return BitmapFactory.decodeFile(backupAvatarPath);
     }
 
+    /**
+     * 批量备份指定微信ID的头像文件(如果不存在或已过期)
+     * <p>
+     * 所有复制操作通过一次{@code su}调用完成，应当在即将解码一批头像(比如列表首屏)之前调用，
+     * 以免每个头像都单独调用一次{@code su}
+     * </p>
+     * <p>
+     * 头像先复制到临时文件，全部复制成功后才重命名为备份文件，因此同时解码头像的线程不会读到不完整的文件。
+     * 预取期间，这些微信ID的{@link #getAvatar(String)}返回{@code null}，并且{@link #isPrefetching(String)}返回{@code true}，
+     * 调用者不应将此结果视为没有头像
+     * </p>
+     *
+     * @param ids 微信ID列表
+     */
+    @WorkerThread
+    public void prefetchAvatarFiles(@NonNull List<String> ids) {
+        ShellUtils.Batch batch = ShellUtils.batch();
+        List<String> prefetching = new ArrayList<>();
+        List<File> temps = new ArrayList<>();
+        List<File> targets = new ArrayList<>();
+        try {
+            for (String id : ids) {
+                if (mAvatarCache.get(id) != null) {
+                    continue;
+                }
+                String idMd5 = DigestUtils.md5Hex(id);
+                File avatarFile = new File(getBackupAvatarPath(idMd5));
+                if (!isAvatarBackupStale(avatarFile) || !mPrefetching.add(id)) {
+                    continue;
+                }
+                prefetching.add(id);
+                File temp = new File(avatarFile.getPath() + ".tmp");
+                try {
+                    //目标文件需要先用Java API创建，否则我们无法访问复制后的文件，参见ShellUtils#cp2dataIfExists
+                    if (temp.exists() || temp.createNewFile()) {
+                        batch.cpIfExists(getOriginalAvatarPath(idMd5), temp.getPath());
+                        temps.add(temp);
+                        targets.add(avatarFile);
+                    }
+                } catch (IOException e) {
+                    LogUtils.error("Failed to create avatar backup of " + id + " :" + e.getMessage());
+                }
+            }
+            boolean copied = false;
+            try {
+                batch.run();
+                copied = true;
+            } catch (ShellUtils.ShellException e) {
+                LogUtils.error("Failed to prefetch avatars: " + e.getMessage());
+            }
+            for (int i = 0; i < temps.size(); i++) {
+                File temp = temps.get(i);
+                //原头像不存在时临时文件为空，直接删除，不留下空的备份
+                if (copied && temp.length() != 0 && temp.renameTo(targets.get(i))) {
+                    continue;
+                }
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        } finally {
+            mPrefetching.removeAll(prefetching);
+        }
+    }
+
+    /**
+     * @return 是否正在预取指定微信ID的头像文件
+     * @see #prefetchAvatarFiles(List)
+     */
+    public boolean isPrefetching(@NonNull String id) {
+        return mPrefetching.contains(id);
+    }
 
     /**
      * 将指定微信ID的头像纳入缓存
@@ -90,6 +189,10 @@ public class AvatarRepository extends LifecyclePerceptiveRepository {
     public Bitmap getAvatar(@NonNull String id) {
         Bitmap cache = mAvatarCache.get(id);
         if (cache == null) {
+            if (mPrefetching.contains(id)) {
+                //头像文件正在复制，等预取完成后再解码
+                return null;
+            }
             Bitmap bitmap = decodeAvatar(id);
             if (bitmap != null) {
                 putAvatarOf(id, bitmap);
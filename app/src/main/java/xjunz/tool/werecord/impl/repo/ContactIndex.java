@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.repo;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import xjunz.tool.werecord.impl.model.account.Contact;
+import xjunz.tool.werecord.util.PrefixTrie;
+
+/**
+ * 联系人的二级索引，包括微信号和备注的精确索引，以及名称和名称拼音缩写的前缀树，
+ * 搜索时只需沿前缀树查找，而不必遍历全部联系人
+ *
+ * @param <T> 联系人类型
+ */
+final class ContactIndex<T extends Contact> {
+    private final Map<String, List<T>> mAliasIndex = new HashMap<>();
+    private final Map<String, List<T>> mRemarkIndex = new HashMap<>();
+    private final PrefixTrie<T> mNameTrie = new PrefixTrie<>();
+
+    synchronized void add(@NonNull T t) {
+        put(mAliasIndex, t.alias, t);
+        put(mRemarkIndex, t.remark, t);
+        mNameTrie.put(normalize(t.getName()), t);
+        mNameTrie.put(normalize(t.getNamePyAttr()), t);
+    }
+
+    synchronized void remove(@NonNull T t) {
+        remove(mAliasIndex, t.alias, t);
+        remove(mRemarkIndex, t.remark, t);
+        mNameTrie.remove(normalize(t.getName()), t);
+        mNameTrie.remove(normalize(t.getNamePyAttr()), t);
+    }
+
+    synchronized void clear() {
+        mAliasIndex.clear();
+        mRemarkIndex.clear();
+        mNameTrie.clear();
+    }
+
+    /**
+     * 搜索名称或名称拼音缩写以{@param keyword}开头(不区分大小写)，或者微信号、备注与{@param keyword}相同的联系人
+     *
+     * @return 搜索到的联系人，及其名称中应当高亮的起始位置，如果不必高亮，为-1
+     */
+    @NonNull
+    synchronized Map<T, Integer> search(@NonNull String keyword) {
+        Map<T, Integer> hits = new HashMap<>();
+        if (keyword.isEmpty()) {
+            return hits;
+        }
+        //名称和拼音缩写可能同时命中，重复的值放入哈希表时自然去重
+        List<T> prefixed = new ArrayList<>();
+        mNameTrie.collect(normalize(keyword), prefixed);
+        for (T t : prefixed) {
+            hits.put(t, 0);
+        }
+        putIfAbsent(hits, mAliasIndex.get(keyword));
+        putIfAbsent(hits, mRemarkIndex.get(keyword));
+        return hits;
+    }
+
+    private void putIfAbsent(@NonNull Map<T, Integer> hits, List<T> exact) {
+        if (exact != null) {
+            for (T t : exact) {
+                if (!hits.containsKey(t)) {
+                    hits.put(t, -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐字转为大写，保持长度不变，使匹配位置可以直接用于高亮
+     */
+    @NonNull
+    private static String normalize(@NonNull String str) {
+        char[] chars = str.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toUpperCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static <T> void put(@NonNull Map<String, List<T>> index, String key, @NonNull T t) {
+        if (TextUtils.isEmpty(key)) {
+            return;
+        }
+        List<T> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            index.put(key, list);
+        }
+        list.add(t);
+    }
+
+    private static <T> void remove(@NonNull Map<String, List<T>> index, String key, @NonNull T t) {
+        if (TextUtils.isEmpty(key)) {
+            return;
+        }
+        List<T> list = index.get(key);
+        if (list != null) {
+            list.remove(t);
+            if (list.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
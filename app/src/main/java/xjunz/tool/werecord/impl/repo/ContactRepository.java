@@ -16,13 +16,22 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import xjunz.tool.werecord.impl.model.account.Contact;
+import xjunz.tool.werecord.util.StatementCache;
 
 public class ContactRepository extends AccountRepository<Contact> {
     private static final int CACHE_CAPACITY = 500;
     public static final String TABLE_CONTACT = "rcontact";
+    static final String SNAPSHOT_NAME = "contacts";
     private final SimpleArrayMap<Contact.Type, List<Contact>> mMap = new SimpleArrayMap<>();
+    private final ContactIndex<Contact> mSearchIndex = new ContactIndex<>();
+    private static final String SQL_QUERY_FRIENDS = "select username,alias,conRemark,nickname,type,lvbuff from " + TABLE_CONTACT + " where not type in (0,4,33)";
+    /**
+     * 已加载的联系人的最大rowid，作为增量刷新的水位，新的联系人总是追加在表末
+     */
+    private long mMaxRowId;
 
     public boolean isNonFriendsLoaded() {
         return mNonFriendsLoaded;
@@ -50,25 +59,100 @@ public class ContactRepository extends AccountRepository<Contact> {
      * 默认只加载好友，不加载全部联系人，原因：
      * 1、多数情况下用不到全部联系人，需要陌生人信息的时候单独{@link ContactRepository#query(String)}就行
      * 2、全部联系人的数量可能是十分庞大的，甚至可能有成千上万条，全部查询的时间成本和内存开销都是很大的
+     * <p>
+     * 如果快照仍然有效，直接从快照恢复，否则从数据库查询，并在后台写入新的快照
+     *
+     * @see AccountSnapshot
      */
     @Override
     protected void queryAllInternal(@NotNull List<Contact> all) {
-        Cursor cursor = getDatabase().rawQuery("select username,alias,conRemark,nickname,type,lvbuff from rcontact where not type in (0,4,33)", null);
+        AccountSnapshot<Contact> snapshot = new AccountSnapshot<>(getCurrentUser(), SNAPSHOT_NAME, Contact::readSnapshot);
+        AccountSnapshot.Watermark watermark = AccountSnapshot.Watermark.query(getDatabase());
+        List<Contact> snapshotted = snapshot.read(watermark);
+        mMaxRowId = queryMaxRowId();
+        if (snapshotted != null) {
+            for (Contact contact : snapshotted) {
+                getAllOfType(contact.type).add(contact);
+                all.add(contact);
+            }
+            return;
+        }
+        Cursor cursor = getDatabase().rawQuery(SQL_QUERY_FRIENDS, null);
         while (cursor.moveToNext()) {
-            String id = cursor.getString(0);
-            if (!TextUtils.isEmpty(id) && !id.startsWith("fake_")) {
-                Contact contact = new Contact(id);
-                contact.alias = cursor.getString(1);
-                contact.remark = cursor.getString(2);
-                contact.nickname = cursor.getString(3);
-                contact.rawType = cursor.getInt(4);
-                contact.judgeType();
-                contact.setLvBuffer(cursor.getBlob(5));
+            Contact contact = readContact(cursor);
+            if (contact != null) {
                 getAllOfType(contact.type).add(contact);
                 all.add(contact);
             }
         }
         cursor.close();
+        //非好友联系人随后可能追加到全部联系人中，因此复制一份
+        //写入快照和建立搜索索引都要用到拼音缩写，提前批量计算
+        Contact.precomputeNamePyAttrs(all);
+        snapshot.writeAsync(watermark, new ArrayList<>(all));
+    }
+
+    @Nullable
+    private static Contact readContact(@NonNull Cursor cursor) {
+        String id = cursor.getString(0);
+        if (TextUtils.isEmpty(id) || id.startsWith("fake_")) {
+            return null;
+        }
+        Contact contact = new Contact(id);
+        contact.alias = cursor.getString(1);
+        contact.remark = cursor.getString(2);
+        contact.nickname = cursor.getString(3);
+        contact.rawType = cursor.getInt(4);
+        contact.judgeType();
+        contact.setLvBuffer(cursor.getBlob(5));
+        return contact;
+    }
+
+    private long queryMaxRowId() {
+        try (Cursor cursor = getDatabase().rawQuery("select max(rowid) from " + TABLE_CONTACT, null)) {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    /**
+     * 查询rowid大于水位的联系人，即上次加载以来新增的联系人。如果尚未加载非好友联系人，只查询好友
+     */
+    @Override
+    protected void queryChangedInternal(@NonNull List<Contact> changed) {
+        long watermark = mMaxRowId;
+        mMaxRowId = queryMaxRowId();
+        String sql = mNonFriendsLoaded ? "select username,alias,conRemark,nickname,type,lvbuff from " + TABLE_CONTACT + " where rowid>" + watermark
+                : SQL_QUERY_FRIENDS + " and rowid>" + watermark;
+        try (Cursor cursor = getDatabase().rawQuery(sql, null)) {
+            while (cursor.moveToNext()) {
+                Contact contact = readContact(cursor);
+                if (contact != null) {
+                    changed.add(contact);
+                }
+            }
+        }
+        Contact.precomputeNamePyAttrs(changed);
+    }
+
+    @Override
+    protected void onMerged(@Nullable Contact old, @NonNull Contact current) {
+        if (old != null) {
+            getAllOfType(old.type).remove(old);
+        }
+        getAllOfType(current.type).add(current);
+    }
+
+    @Override
+    protected void onRefreshed() {
+        AccountSnapshot<Contact> snapshot = new AccountSnapshot<>(getCurrentUser(), SNAPSHOT_NAME, Contact::readSnapshot);
+        //快照只保存好友
+        List<Contact> friends = new ArrayList<>();
+        for (Contact contact : mAll) {
+            if (contact.rawType != 0 && contact.rawType != 4 && contact.rawType != 33) {
+                friends.add(contact);
+            }
+        }
+        snapshot.writeAsync(AccountSnapshot.Watermark.query(getDatabase()), friends);
     }
 
     /**
@@ -86,7 +170,7 @@ public class ContactRepository extends AccountRepository<Contact> {
                 contact.rawType = cursor.getInt(4);
                 contact.judgeType();
                 getAllOfType(contact.type).add(contact);
-                mAll.add(contact);
+                addToAll(contact);
             }
         }
         mNonFriendsLoaded = true;
@@ -95,7 +179,7 @@ public class ContactRepository extends AccountRepository<Contact> {
 
     @Nullable
     protected Contact query(@NonNull String id) {
-        try (Cursor cursor = getDatabase().rawQuery("select alias,conRemark,nickname,type,lvbuff from rcontact where username='" + id + "'", null)) {
+        try (Cursor cursor = StatementCache.of(getDatabase()).query("select alias,conRemark,nickname,type,lvbuff from rcontact where username=?", id)) {
             if (cursor.moveToNext()) {
                 Contact contact = new Contact(id);
                 contact.alias = cursor.getString(0);
@@ -110,6 +194,31 @@ public class ContactRepository extends AccountRepository<Contact> {
         return null;
     }
 
+    @Override
+    protected void onAdded(@NonNull Contact contact) {
+        mSearchIndex.add(contact);
+    }
+
+    @Override
+    protected void onRemoved(@NonNull Contact contact) {
+        mSearchIndex.remove(contact);
+    }
+
+    @Override
+    protected void onCleared() {
+        mSearchIndex.clear();
+    }
+
+    /**
+     * 通过二级索引搜索联系人
+     *
+     * @see ContactIndex#search(String)
+     */
+    @NonNull
+    public Map<Contact, Integer> search(@NonNull String keyword) {
+        return mSearchIndex.search(keyword);
+    }
+
     @NonNull
     public List<Contact> getAllOfType(Contact.Type type) {
         List<Contact> accounts = mMap.get(type);
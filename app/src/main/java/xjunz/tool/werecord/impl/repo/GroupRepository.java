@@ -11,6 +11,7 @@ import org.jetbrains.annotations.NotNull;
 import java.util.List;
 
 import xjunz.tool.werecord.impl.model.account.Group;
+import xjunz.tool.werecord.util.StatementCache;
 
 public class GroupRepository extends AccountRepository<Group> {
     private static final int CACHE_CAPACITY = 20;
@@ -37,9 +38,25 @@ public class GroupRepository extends AccountRepository<Group> {
         cursor.close();
     }
 
+    /**
+     * 对比群聊表中的成员数量，重新查询成员数量有变化的已加载或已缓存的群聊。未加载过的群聊在用到时才会查询，不必刷新
+     */
+    @Override
+    protected void queryChangedInternal(@NotNull List<Group> changed) {
+        try (Cursor cursor = getDatabase().rawQuery("select chatroomname,memberCount from chatroom", null)) {
+            while (cursor.moveToNext()) {
+                String id = cursor.getString(0);
+                Group known = id == null ? null : peek(id);
+                if (known != null && known.memberCount != cursor.getInt(1)) {
+                    changed.add(query(known.id));
+                }
+            }
+        }
+    }
+
     @Override
     protected Group query(String id) {
-        Cursor cursor = getDatabase().rawQuery("select memberList,displayname,roomowner,memberCount from chatroom where chatroomname='" + id + "'", null);
+        Cursor cursor = StatementCache.of(getDatabase()).query("select memberList,displayname,roomowner,memberCount from chatroom where chatroomname=?", id);
         Group group = new Group(id);
         if (cursor.moveToNext()) {
             group.setMemberIdSerial(cursor.getString(0));
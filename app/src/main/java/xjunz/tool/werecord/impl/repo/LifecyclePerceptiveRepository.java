@@ -16,18 +16,29 @@ import xjunz.tool.werecord.impl.model.account.User;
 
 class LifecyclePerceptiveRepository implements LifecycleObserver {
     private final Environment mEnv;
+    /**
+     * 此仓库所属账号的UIN
+     */
+    private String mUin;
 
     protected LifecyclePerceptiveRepository() {
         mEnv = Environment.getInstance();
         mEnv.addLifecycleObserver(this);
     }
 
+    void bind(String uin) {
+        mUin = uin;
+    }
+
     protected SQLiteDatabase getDatabase() {
-        return mEnv.getWorkerDatabase();
+        return mEnv.getWorkerDatabaseOf(mUin);
     }
 
+    /**
+     * @return 此仓库所属的账号，不一定是当前使用的账号
+     */
     protected User getCurrentUser() {
-        return mEnv.getCurrentUser();
+        return mEnv.getUserOf(mUin);
     }
 
     protected Environment getEnvironment() {
@@ -37,6 +48,6 @@ class LifecyclePerceptiveRepository implements LifecycleObserver {
 
     @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
     public void purge() {
-        RepositoryFactory.remove(getClass());
+        RepositoryFactory.remove(mUin, getClass());
     }
 }
@@ -5,6 +5,7 @@
 package xjunz.tool.werecord.impl.repo;
 
 import android.content.ContentValues;
+import android.text.TextUtils;
 import android.util.ArrayMap;
 
 import androidx.annotation.NonNull;
@@ -13,11 +14,21 @@ import androidx.annotation.Nullable;
 import net.sqlcipher.Cursor;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
+import io.reactivex.Emitter;
+import io.reactivex.Flowable;
+import io.reactivex.functions.BiConsumer;
 import xjunz.tool.werecord.impl.model.message.Message;
 import xjunz.tool.werecord.impl.model.message.MessageFactory;
+import xjunz.tool.werecord.impl.model.message.MessageHeader;
+import xjunz.tool.werecord.impl.model.message.MessageRow;
+import xjunz.tool.werecord.util.StatementCache;
+import xjunz.tool.werecord.util.TraceUtils;
 
 import static xjunz.tool.werecord.util.DbUtils.buildValuesFromCursor;
 
@@ -26,10 +37,50 @@ public class MessageRepository extends LifecyclePerceptiveRepository {
     public static final String TABLE_APP_MESSAGE = "AppMessage";
     public static final String TABLE_MESSAGE_BACKUP = "MessageBackup";
     public static final String TABLE_APP_MESSAGE_BACKUP = "AppMessageBackup";
+    /**
+     * {@code in}子句每次最多包含的ID数，低于SQLite默认的999个变量上限
+     */
+    private static final int IN_CLAUSE_CHUNK = 500;
 
 
+    /**
+     * 分页方向：向更早的消息翻页
+     */
+    public static final int DIRECTION_OLDER = 0;
+    /**
+     * 分页方向：向更新的消息翻页
+     */
+    public static final int DIRECTION_NEWER = 1;
+
     private final ArrayMap<String, String> typeMap = new ArrayMap<>();
 
+    /**
+     * 键集分页的游标，即上一页边界消息的发送时间和消息ID。消息按(createTime, msgId)排序，
+     * 发送时间相同的消息以消息ID区分，因此顺序是稳定的
+     */
+    public static final class PageCursor {
+        /**
+         * 比任何消息都新的游标，用于从最新的消息开始向更早的消息翻页
+         */
+        public static final PageCursor NEWEST = new PageCursor(Long.MAX_VALUE, Long.MAX_VALUE);
+        /**
+         * 比任何消息都早的游标，用于从最早的消息开始向更新的消息翻页
+         */
+        public static final PageCursor OLDEST = new PageCursor(Long.MIN_VALUE, Long.MIN_VALUE);
+        final long createTime;
+        final long msgId;
+
+        public PageCursor(long createTime, long msgId) {
+            this.createTime = createTime;
+            this.msgId = msgId;
+        }
+
+        @NonNull
+        public static PageCursor of(@NonNull Message message) {
+            return new PageCursor(message.getCreateTimeStamp(), message.getMsgId());
+        }
+    }
+
     MessageRepository() {
     }
 
@@ -71,80 +122,141 @@ public class MessageRepository extends LifecyclePerceptiveRepository {
      * </p>
      */
     public long getActualMessageCountOf(String talkerId) {
-        long count = 0;
-        Cursor cursor = getDatabase().rawQuery("select count(msgId) from " + TABLE_MESSAGE + " where talker=" + "'" + talkerId + "'", null);
-        if (cursor.moveToNext()) {
-            count = cursor.getLong(0);
+        return statements().queryForLong("select count(msgId) from " + TABLE_MESSAGE + " where talker=?", talkerId);
+    }
+
+    @NonNull
+    private StatementCache statements() {
+        return StatementCache.of(getDatabase());
+    }
+
+    /**
+     * 以键集分页的方式查询指定微信ID的一页消息记录
+     * <p>
+     * 与{@code limit offset}不同，查询直接从游标处开始，不必遍历并丢弃游标前的消息，
+     * 因此无论翻到多深，每一页的开销都是相同的。
+     * </p>
+     *
+     * @param id         指定{@link xjunz.tool.werecord.impl.model.account.Talker}的微信ID
+     * @param cursor     游标，查询到的消息不包含游标处的消息
+     * @param direction  翻页方向，{@link #DIRECTION_OLDER}或{@link #DIRECTION_NEWER}
+     * @param limitCount 查询的消息数量，不足则全部查询
+     * @return 查询到的消息头，无论翻页方向如何，总是按(createTime, msgId)降序排列
+     * @see MessageHeader
+     */
+    @NonNull
+    public List<Message> queryMessagePage(@NonNull String id, @NonNull PageCursor cursor, int direction, long limitCount) {
+        boolean older = direction == DIRECTION_OLDER;
+        String op = older ? "<" : ">";
+        String order = older ? " desc" : " asc";
+        List<MessageRow> rows = new ArrayList<>();
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageRepository.queryMessagePage");
+             Cursor c = statements().query("select " + MessageHeader.PROJECTION + " from " + TABLE_MESSAGE + " where talker=?"
+                             + " and (createTime" + op + "? or (createTime=? and msgId" + op + "?))"
+                             + " order by createTime" + order + ",msgId" + order + " limit " + limitCount,
+                     id, cursor.createTime, cursor.createTime, cursor.msgId)) {
+            MessageRow.Layout layout = MessageRow.Layout.of(c);
+            while (c.moveToNext()) {
+                rows.add(MessageRow.read(c, layout));
+            }
         }
-        cursor.close();
-        return count;
+        List<Message> queried = MessageFactory.createMessages(rows, true);
+        if (!older) {
+            Collections.reverse(queried);
+        }
+        return queried;
     }
 
     /**
      * 查询指定微信ID的部分消息记录
      *
-     * <p>此方法仅返回以{@param formerMsgList}的{@code size}为起始点的后{@param limitCount}条消息记录，不足则返回全部。
-     * 记录以发送时间戳为排序依据，升序的形式排序。查询到的数据会追加进{@param formerMsgList}中。
+     * <p>此方法返回比{@param formerMsgList}中最后一条消息更早的{@param limitCount}条消息记录，不足则返回全部。
+     * 记录以发送时间戳为排序依据，降序的形式排序。查询到的数据会追加进{@param formerMsgList}中。
      * </p>
      *
      * @param id            指定{@link xjunz.tool.werecord.impl.model.account.Talker}的微信ID
      * @param limitCount    查询的消息数量，不足则全部查询
      * @param formerMsgList 储存数据的{@link List}，数据会被追加到此{@link List}中
      * @return 查询到的实际消息数
+     * @see #queryMessagePage(String, PageCursor, int, long)
      */
     public int queryMessageByTalkerLimit(@NonNull String id, long limitCount, @NonNull List<Message> formerMsgList) {
-        Cursor cursor = getDatabase().rawQuery("select * from " + TABLE_MESSAGE + " where talker=" + "'"
-                + id + "'" + " order by createTime desc" + " limit " + limitCount + " offset " + formerMsgList.size(), null);
-        while (cursor.moveToNext()) {
-            formerMsgList.add(MessageFactory.createMessage(buildValuesFromCursor(cursor)));
-        }
-        int count = cursor.getCount();
-        cursor.close();
-        return count;
+        PageCursor cursor = formerMsgList.isEmpty() ? PageCursor.NEWEST : PageCursor.of(formerMsgList.get(formerMsgList.size() - 1));
+        List<Message> queried = queryMessagePage(id, cursor, DIRECTION_OLDER, limitCount);
+        formerMsgList.addAll(queried);
+        return queried.size();
+    }
+
+    public long getMaxMsgId() {
+        return statements().queryForLong("select ifnull(max(msgId),0) from " + TABLE_MESSAGE);
+    }
+
+    /**
+     * 统计满足条件的消息数
+     *
+     * @param whereClause 条件，参数以{@code ?}占位
+     */
+    public long countMessages(@NonNull String whereClause, @NonNull Object... args) {
+        return statements().queryForLong("select count(*) from " + TABLE_MESSAGE + " where " + whereClause, args);
     }
 
     /**
-     * 查询指定微信ID、指定消息起点和数量的消息记录，
-     * 为了减少内存占用和查询时间，我们不会查询消息
-     * 的所有字段，仅查询若干必要的字段
+     * 以流的形式读取满足条件的完整消息
      * <p>
-     * 记录以发送时间戳为排序依据，升序的形式排序
+     * 消息直接从游标中逐条读取、创建并发射，下游请求多少才读取多少，游标本身也只在内存中保留一个窗口的数据，
+     * 因此无论有多少消息，占用的内存都是有限的。订阅时才执行查询，完成、出错或者取消订阅时关闭游标。
+     * 适用于导出、统计等只需遍历一次的场合，不要将结果收集成{@link List}，否则就失去了意义。
      * </p>
      *
-     * @param id         微信ID
-     * @param offset     起点
-     * @param limitCount 消息数量
-     * @return 查询到的消息列表
+     * @param whereClause 条件，可以包含{@code order by}等子句，参数以{@code ?}占位
      */
-    public List<Message> queryMessageByTalkerLimit(@NonNull String id, long offset, long limitCount) {
-        List<Message> queried = new ArrayList<>();
-        Cursor cursor = getDatabase().rawQuery("select * from " + TABLE_MESSAGE + " where talker=" + "'"
-                + id + "'" + " order by createTime desc" + " limit " + limitCount + " offset " + offset, null);
-        while (cursor.moveToNext()) {
-            queried.add(MessageFactory.createMessage(buildValuesFromCursor(cursor)));
-        }
-        cursor.close();
-        return queried;
+    @NonNull
+    public Flowable<Message> streamMessages(@NonNull String whereClause, @NonNull Object... args) {
+        return stream("select * from " + TABLE_MESSAGE + " where " + whereClause, false, args);
     }
 
-    public long getMaxMsgId() {
-        long max = 0;
-        Cursor cursor = getDatabase().rawQuery("select max(msgId) from " + TABLE_MESSAGE, null);
-        if (cursor.moveToNext()) {
-            max = cursor.getLong(0);
-        }
-        cursor.close();
-        return max;
+    /**
+     * 以流的形式读取指定微信ID的全部消息头，按(createTime, msgId)降序排列
+     *
+     * @see #streamMessages(String, Object...)
+     * @see MessageHeader
+     */
+    @NonNull
+    public Flowable<Message> streamHeadersByTalker(@NonNull String id) {
+        return stream("select " + MessageHeader.PROJECTION + " from " + TABLE_MESSAGE + " where talker=?"
+                + " order by createTime desc,msgId desc", true, id);
     }
 
-    public List<Message> rawQueryMessageByTalker(@NonNull String whereClause) {
-        List<Message> queried = new ArrayList<>();
-        Cursor cursor = getDatabase().rawQuery(String.format("select * from %s where %s", TABLE_MESSAGE, whereClause), null);
-        while (cursor.moveToNext()) {
-            queried.add(MessageFactory.createMessage(buildValuesFromCursor(cursor)));
+    /**
+     * 流式读取时，每读取这么多行，就批量创建一次消息
+     *
+     * @see MessageFactory#createMessages(List, boolean, boolean)
+     */
+    private static final int STREAM_WINDOW = 256;
+
+    private static final class StreamState {
+        private final Cursor cursor;
+        private final MessageRow.Layout layout;
+
+        private StreamState(@NonNull Cursor cursor) {
+            this.cursor = cursor;
+            this.layout = MessageRow.Layout.of(cursor);
         }
-        cursor.close();
-        return queried;
+    }
+
+    @NonNull
+    private Flowable<Message> stream(@NonNull String sql, boolean header, @NonNull Object... args) {
+        return Flowable.generate(() -> new StreamState(statements().query(sql, args)), (BiConsumer<StreamState, Emitter<List<Message>>>) (state, emitter) -> {
+            List<MessageRow> window = new ArrayList<>(STREAM_WINDOW);
+            while (window.size() < STREAM_WINDOW && state.cursor.moveToNext()) {
+                window.add(MessageRow.read(state.cursor, state.layout));
+            }
+            if (window.isEmpty()) {
+                emitter.onComplete();
+            } else {
+                emitter.onNext(MessageFactory.createMessages(window, header, false));
+            }
+        }, state -> state.cursor.close()).concatMapIterable(messages -> messages);
     }
 
     /**
@@ -155,66 +267,102 @@ public class MessageRepository extends LifecyclePerceptiveRepository {
      */
     @Nullable
     public Message queryMessageByMsgId(long msgId) {
-        Cursor cursor = getDatabase().rawQuery("select * from " + TABLE_MESSAGE + " where msgId=" + msgId, null);
-        if (cursor.moveToNext()) {
-            Message message = MessageFactory.createMessage(buildValuesFromCursor(cursor));
-            cursor.close();
-            return message;
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageRepository.queryMessageByMsgId");
+             Cursor cursor = statements().query("select * from " + TABLE_MESSAGE + " where msgId=?", msgId)) {
+            if (cursor.moveToNext()) {
+                return MessageFactory.createMessage(MessageRow.read(cursor, MessageRow.Layout.of(cursor)));
+            }
         }
-        cursor.close();
         return null;
     }
 
+    /**
+     * 获取消息头对应的完整消息，如果不是消息头，直接返回
+     *
+     * @param message 消息或消息头
+     * @return 完整的消息，如果消息已不存在于数据库中，返回原消息头
+     * @see MessageHeader
+     */
+    @NonNull
+    public Message hydrate(@NonNull Message message) {
+        if (!message.isHeader()) {
+            return message;
+        }
+        Message full = queryMessageByMsgId(message.getMsgId());
+        if (full == null) {
+            return message;
+        }
+        if (message.isEdited()) {
+            full.setEditionFlag(message.getEditionFlag());
+        }
+        return full;
+    }
+
+    /**
+     * 查询给定的消息ID中，哪些存在于"AppMessage"表中。ID较多时分批查询，以免超出SQLite的变量数限制
+     *
+     * @param msgIds 消息ID
+     * @return 存在于"AppMessage"表中的消息ID
+     */
+    @NonNull
+    public Set<Long> queryAppMessageIdsIn(@NonNull List<Long> msgIds) {
+        Set<Long> existing = new HashSet<>();
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageRepository.queryAppMessageIdsIn")) {
+            for (int from = 0; from < msgIds.size(); from += IN_CLAUSE_CHUNK) {
+                List<Long> chunk = msgIds.subList(from, Math.min(from + IN_CLAUSE_CHUNK, msgIds.size()));
+                //消息ID都是数字，直接内联，不必绑定
+                try (Cursor cursor = getDatabase().rawQuery("select msgId from " + TABLE_APP_MESSAGE
+                        + " where msgId in (" + TextUtils.join(",", chunk) + ")", null)) {
+                    while (cursor.moveToNext()) {
+                        existing.add(cursor.getLong(0));
+                    }
+                }
+            }
+        }
+        return existing;
+    }
+
     @Nullable
     public ContentValues queryAppContentValuesByMsgId(long msgId) {
-        ContentValues values = null;
-        Cursor cursor = getDatabase().rawQuery("select * from " + TABLE_APP_MESSAGE + " where msgId=" + msgId, null);
-        if (cursor.moveToNext()) {
-            values = buildValuesFromCursor(cursor);
-        }
-        cursor.close();
-        return values;
+        return queryContentValuesByMsgId(TABLE_APP_MESSAGE, msgId);
     }
 
     @Nullable
     public ContentValues queryBackupAppContentValuesByMsgId(long msgId) {
-        ContentValues values = null;
-        Cursor cursor = getDatabase().rawQuery("select * from " + TABLE_APP_MESSAGE_BACKUP + " where msgId=" + msgId, null);
-        if (cursor.moveToNext()) {
-            values = buildValuesFromCursor(cursor);
-        }
-        cursor.close();
-        return values;
+        return queryContentValuesByMsgId(TABLE_APP_MESSAGE_BACKUP, msgId);
     }
 
     @Nullable
     public ContentValues queryBackupContentValuesByMsgId(long msgId) {
-        Cursor cursor = getDatabase().rawQuery("select * from " + TABLE_MESSAGE_BACKUP + " where msgId=" + msgId, null);
-        if (cursor.moveToNext()) {
-            return buildValuesFromCursor(cursor);
+        return queryContentValuesByMsgId(TABLE_MESSAGE_BACKUP, msgId);
+    }
+
+    @Nullable
+    private ContentValues queryContentValuesByMsgId(@NonNull String table, long msgId) {
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageRepository.queryContentValuesByMsgId");
+             Cursor cursor = statements().query("select * from " + table + " where msgId=?", msgId)) {
+            if (cursor.moveToNext()) {
+                return buildValuesFromCursor(cursor);
+            }
         }
-        cursor.close();
         return null;
     }
 
     public Message queryBackupMessageById(long msgId) {
-        Cursor cursor = getDatabase().rawQuery("select * from " + TABLE_MESSAGE_BACKUP + " where msgId=" + msgId, null);
-        if (cursor.moveToNext()) {
-            Message message = MessageFactory.createMessage(buildValuesFromCursor(cursor));
-            cursor.close();
-            return message;
-        }
-        cursor.close();
-        return null;
+        ContentValues values = queryBackupContentValuesByMsgId(msgId);
+        return values == null ? null : MessageFactory.createMessage(values);
     }
 
     public void queryBackupMessagesByTalker(String id, @NonNull List<Message> backupMessages) {
-        Cursor cursor = getDatabase().rawQuery("select * from " + TABLE_MESSAGE_BACKUP + " where talker=" + "'"
-                + id + "'", null);
-        while (cursor.moveToNext()) {
-            backupMessages.add(MessageFactory.createMessage(buildValuesFromCursor(cursor)));
+        try (TraceUtils.Span ignored = TraceUtils.begin("MessageRepository.queryBackupMessagesByTalker");
+             Cursor cursor = statements().query("select * from " + TABLE_MESSAGE_BACKUP + " where talker=?", id)) {
+            MessageRow.Layout layout = MessageRow.Layout.of(cursor);
+            List<MessageRow> rows = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                rows.add(MessageRow.read(cursor, layout));
+            }
+            backupMessages.addAll(MessageFactory.createMessages(rows, false));
         }
-        cursor.close();
     }
 
 }
@@ -3,21 +3,43 @@
  */
 package xjunz.tool.werecord.impl.repo;
 
-import java.util.HashMap;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import xjunz.tool.werecord.impl.Environment;
 
 /**
  * 构造并管理单例{@link LifecyclePerceptiveRepository}的工厂类
+ * <p>
+ * 每个账号各自持有一组仓库，{@link #get(Class)}获取的是当前账号的仓库，
+ * 账号池中预热的其他账号的仓库通过{@link #get(Class, String)}获取。
+ * </p>
  */
 public final class RepositoryFactory {
-    private static final HashMap<Class<? extends LifecyclePerceptiveRepository>, LifecyclePerceptiveRepository> sInstanceMap = new HashMap<>();
+    /**
+     * 启动时各仓库会在不同线程中并行加载，因此使用{@link ConcurrentHashMap}
+     */
+    private static final Map<String, Map<Class<? extends LifecyclePerceptiveRepository>, LifecyclePerceptiveRepository>> sInstanceMaps = new ConcurrentHashMap<>();
 
     public static <T extends LifecyclePerceptiveRepository> T get(Class<T> repoClass) {
-        LifecyclePerceptiveRepository singleton = sInstanceMap.get(repoClass);
+        return get(repoClass, Environment.getInstance().getCurrentUser().uin);
+    }
+
+    public static <T extends LifecyclePerceptiveRepository> T get(Class<T> repoClass, @NonNull String uin) {
+        Map<Class<? extends LifecyclePerceptiveRepository>, LifecyclePerceptiveRepository> instanceMap = getInstanceMap(uin);
+        LifecyclePerceptiveRepository singleton = instanceMap.get(repoClass);
         if (singleton == null) {
-            synchronized (sInstanceMap) {
+            synchronized (instanceMap) {
                 try {
-                    singleton = repoClass.newInstance();
-                    sInstanceMap.put(repoClass, singleton);
+                    singleton = instanceMap.get(repoClass);
+                    if (singleton == null) {
+                        singleton = repoClass.newInstance();
+                        singleton.bind(uin);
+                        instanceMap.put(repoClass, singleton);
+                    }
                 } catch (IllegalAccessException | InstantiationException e) {
                     e.printStackTrace();
                 }
@@ -26,11 +48,47 @@ public final class RepositoryFactory {
         return repoClass.cast(singleton);
     }
 
-    static void remove(Class<? extends LifecyclePerceptiveRepository> tClass) {
-        sInstanceMap.remove(tClass);
+    @NonNull
+    private static Map<Class<? extends LifecyclePerceptiveRepository>, LifecyclePerceptiveRepository> getInstanceMap(@NonNull String uin) {
+        Map<Class<? extends LifecyclePerceptiveRepository>, LifecyclePerceptiveRepository> instanceMap = sInstanceMaps.get(uin);
+        if (instanceMap == null) {
+            synchronized (sInstanceMaps) {
+                instanceMap = sInstanceMaps.get(uin);
+                if (instanceMap == null) {
+                    instanceMap = new ConcurrentHashMap<>();
+                    sInstanceMaps.put(uin, instanceMap);
+                }
+            }
+        }
+        return instanceMap;
+    }
+
+    /**
+     * 加载指定账号启动时需要的所有仓库，用于在后台预热账号
+     */
+    @WorkerThread
+    public static void preload(@NonNull String uin) {
+        get(TalkerRepository.class, uin).queryAll();
+        get(ContactRepository.class, uin).queryAll();
+        get(WxAppRepository.class, uin).queryAll();
+        get(MessageRepository.class, uin).initTypeMap();
+    }
+
+    static void remove(@NonNull String uin, Class<? extends LifecyclePerceptiveRepository> tClass) {
+        Map<Class<? extends LifecyclePerceptiveRepository>, LifecyclePerceptiveRepository> instanceMap = sInstanceMaps.get(uin);
+        if (instanceMap != null) {
+            instanceMap.remove(tClass);
+        }
+    }
+
+    /**
+     * 丢弃指定账号的所有仓库
+     */
+    public static void evict(@NonNull String uin) {
+        sInstanceMaps.remove(uin);
     }
 
     public static void purge() {
-        sInstanceMap.clear();
+        sInstanceMaps.clear();
     }
 }
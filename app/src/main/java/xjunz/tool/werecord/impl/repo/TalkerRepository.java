@@ -7,6 +7,7 @@ package xjunz.tool.werecord.impl.repo;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.collection.SimpleArrayMap;
 
 import net.sqlcipher.Cursor;
@@ -14,14 +15,35 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import xjunz.tool.werecord.impl.model.account.Contact;
 import xjunz.tool.werecord.impl.model.account.Talker;
+import xjunz.tool.werecord.util.LogUtils;
 
 public class TalkerRepository extends AccountRepository<Talker> {
     private static final int CACHE_CAPACITY = 50;
     private final SimpleArrayMap<Contact.Type, List<Talker>> mMap = new SimpleArrayMap<>();
+    private final ContactIndex<Talker> mSearchIndex = new ContactIndex<>();
     public static final String TABLE_CONVERSATION = "rconversation";
+    static final String SNAPSHOT_NAME = "talkers";
+    static final String SQL_QUERY_ALL = "select c.username,c.conversationTime,c.msgCount,c.parentRef,c.unreadCount,"
+            + "r.username,r.alias,r.conRemark,r.nickname,r.type from " + TABLE_CONVERSATION + " c left join "
+            + ContactRepository.TABLE_CONTACT + " r on r.username=c.username where not c.msgCount = 0";
+    private static final int COL_USERNAME = 0;
+    private static final int COL_CONVERSATION_TIME = 1;
+    private static final int COL_MSG_COUNT = 2;
+    private static final int COL_PARENT_REF = 3;
+    private static final int COL_UNREAD_COUNT = 4;
+    private static final int COL_CONTACT_USERNAME = 5;
+    private static final int COL_ALIAS = 6;
+    private static final int COL_REMARK = 7;
+    private static final int COL_NICKNAME = 8;
+    private static final int COL_TYPE = 9;
+    /**
+     * 已加载的会话的最大会话时间，作为增量刷新的水位
+     */
+    private long mMaxConversationTime;
 
     TalkerRepository() {
     }
@@ -32,38 +54,105 @@ public class TalkerRepository extends AccountRepository<Talker> {
     }
 
     public void remove(Talker talker) {
-        mAll.remove(talker);
+        removeFromAll(talker);
     }
 
     /**
-     * 查询所有聊天数据
+     * 查询所有聊天数据。如果快照仍然有效，直接从快照恢复，否则从数据库查询，并在后台写入新的快照
+     * <p>
+     * 从数据库查询时，一次连接查询读取全部会话，边读取边分类，不再逐个会话查询联系人。但列表并不会在查询结束前显示：
+     * 此方法在初始化的{@link xjunz.tool.werecord.util.TaskGraph}中执行，{@link xjunz.tool.werecord.ui.main.MainActivity}
+     * 在全部任务完成后才启动，而且其他仓库和消息解析都依赖{@link #get(String)}能取到任意会话(见{@link #query(String)})，
+     * 因此不能先发布部分会话。首屏的提前显示依靠{@link AccountSnapshot}，冷启动时仍需等待整个查询完成
+     * </p>
+     *
+     * @see AccountSnapshot
      */
     @Override
     protected void queryAllInternal(@NonNull List<Talker> all) {
         SQLiteDatabase database = getDatabase();
-        Cursor talkerQueryCursor = database.rawQuery("select username,conversationTime,msgCount,parentRef,unreadCount from rconversation where not msgCount = 0", null);
-        while (talkerQueryCursor.moveToNext()) {
-            String id = talkerQueryCursor.getString(0);
-            if (!TextUtils.isEmpty(id)) {
-                Talker talker = new Talker(id);
-                Cursor contactQueryCursor = database.rawQuery("select alias,conRemark,nickname,type from rcontact where username='" + id + "'", null);
-                if (contactQueryCursor.moveToNext()) {
-                    talker.alias = contactQueryCursor.getString(0);
-                    talker.remark = contactQueryCursor.getString(1);
-                    talker.nickname = contactQueryCursor.getString(2);
-                    talker.rawType = contactQueryCursor.getInt(3);
-                    talker.judgeType();
-                }
-                contactQueryCursor.close();
-                talker.lastMsgTimestamp = talkerQueryCursor.getLong(1);
-                talker.messageCount = talkerQueryCursor.getInt(2);
-                talker.parentRef = talkerQueryCursor.getString(3);
-                talker.setUnreadCount(talkerQueryCursor.getInt(4));
+        AccountSnapshot<Talker> snapshot = new AccountSnapshot<>(getCurrentUser(), SNAPSHOT_NAME, Talker::readSnapshot);
+        AccountSnapshot.Watermark watermark = AccountSnapshot.Watermark.query(database);
+        List<Talker> snapshotted = snapshot.read(watermark);
+        mMaxConversationTime = 0;
+        if (snapshotted != null) {
+            for (Talker talker : snapshotted) {
                 getAllOfType(talker.type).add(talker);
                 all.add(talker);
+                mMaxConversationTime = Math.max(mMaxConversationTime, talker.lastMsgTimestamp);
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        //一次连接查询取代逐个会话查询联系人，边读取边分类
+        try (Cursor cursor = database.rawQuery(SQL_QUERY_ALL, null)) {
+            while (cursor.moveToNext()) {
+                Talker talker = readTalker(cursor);
+                if (talker != null) {
+                    getAllOfType(talker.type).add(talker);
+                    all.add(talker);
+                    mMaxConversationTime = Math.max(mMaxConversationTime, talker.lastMsgTimestamp);
+                }
             }
         }
-        talkerQueryCursor.close();
+        LogUtils.debug("Queried " + all.size() + " talkers in " + (System.nanoTime() - start) / 1000000 + "ms");
+        //写入快照和建立搜索索引都要用到拼音缩写，提前批量计算
+        Contact.precomputeNamePyAttrs(all);
+        snapshot.writeAsync(watermark, new ArrayList<>(all));
+    }
+
+    @Nullable
+    static Talker readTalker(@NonNull Cursor cursor) {
+        String id = cursor.getString(COL_USERNAME);
+        if (TextUtils.isEmpty(id)) {
+            return null;
+        }
+        Talker talker = new Talker(id);
+        //联系人表中存在此会话对应的行时，才填充联系人信息
+        if (!cursor.isNull(COL_CONTACT_USERNAME)) {
+            talker.alias = cursor.getString(COL_ALIAS);
+            talker.remark = cursor.getString(COL_REMARK);
+            talker.nickname = cursor.getString(COL_NICKNAME);
+            talker.rawType = cursor.getInt(COL_TYPE);
+            talker.judgeType();
+        }
+        talker.lastMsgTimestamp = cursor.getLong(COL_CONVERSATION_TIME);
+        talker.messageCount = cursor.getInt(COL_MSG_COUNT);
+        talker.parentRef = cursor.getString(COL_PARENT_REF);
+        talker.setUnreadCount(cursor.getInt(COL_UNREAD_COUNT));
+        return talker;
+    }
+
+    /**
+     * 查询会话时间晚于水位的会话，包括新的会话和有新消息的会话
+     */
+    @Override
+    protected void queryChangedInternal(@NonNull List<Talker> changed) {
+        long watermark = mMaxConversationTime;
+        try (Cursor cursor = getDatabase().rawQuery(SQL_QUERY_ALL + " and c.conversationTime>" + watermark, null)) {
+            while (cursor.moveToNext()) {
+                Talker talker = readTalker(cursor);
+                if (talker != null) {
+                    changed.add(talker);
+                    mMaxConversationTime = Math.max(mMaxConversationTime, talker.lastMsgTimestamp);
+                }
+            }
+        }
+        Contact.precomputeNamePyAttrs(changed);
+    }
+
+    @Override
+    protected void onMerged(@Nullable Talker old, @NonNull Talker current) {
+        if (old != null) {
+            getAllOfType(old.type).remove(old);
+        }
+        getAllOfType(current.type).add(current);
+    }
+
+    @Override
+    protected void onRefreshed() {
+        AccountSnapshot<Talker> snapshot = new AccountSnapshot<>(getCurrentUser(), SNAPSHOT_NAME, Talker::readSnapshot);
+        snapshot.writeAsync(AccountSnapshot.Watermark.query(getDatabase()), new ArrayList<>(mAll));
     }
 
     /**
@@ -77,6 +166,31 @@ public class TalkerRepository extends AccountRepository<Talker> {
     }
 
 
+    @Override
+    protected void onAdded(@NonNull Talker talker) {
+        mSearchIndex.add(talker);
+    }
+
+    @Override
+    protected void onRemoved(@NonNull Talker talker) {
+        mSearchIndex.remove(talker);
+    }
+
+    @Override
+    protected void onCleared() {
+        mSearchIndex.clear();
+    }
+
+    /**
+     * 通过二级索引搜索聊天对象
+     *
+     * @see ContactIndex#search(String)
+     */
+    @NonNull
+    public Map<Talker, Integer> search(@NonNull String keyword) {
+        return mSearchIndex.search(keyword);
+    }
+
     @NonNull
     public List<Talker> getAllOfType(Contact.Type type) {
         List<Talker> accounts = mMap.get(type);
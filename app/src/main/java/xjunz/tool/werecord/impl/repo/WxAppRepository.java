@@ -9,6 +9,8 @@ import net.sqlcipher.Cursor;
 
 import org.jetbrains.annotations.Nullable;
 
+import xjunz.tool.werecord.util.TraceUtils;
+
 /**
  * @author xjunz 2021/1/10 21:52
  */
@@ -17,7 +19,8 @@ public class WxAppRepository extends LifecyclePerceptiveRepository {
     public String TABLE_APP_INFO = "AppInfo";
 
     public void queryAll() {
-        try (Cursor cursor = getDatabase().rawQuery(String.format("select appId,appName from %s", TABLE_APP_INFO), null)) {
+        try (TraceUtils.Span ignored = TraceUtils.begin("WxAppRepository.queryAll");
+             Cursor cursor = getDatabase().rawQuery(String.format("select appId,appName from %s", TABLE_APP_INFO), null)) {
             while (cursor.moveToNext()) {
                 mAll.put(cursor.getString(0), cursor.getString(1));
             }
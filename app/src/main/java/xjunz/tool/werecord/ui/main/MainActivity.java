@@ -22,11 +22,24 @@ import androidx.lifecycle.ViewModelProvider;
 import androidx.viewpager2.adapter.FragmentStateAdapter;
 
 import java.io.IOException;
+import java.util.List;
 
+import io.reactivex.Maybe;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
 import xjunz.tool.werecord.App;
 import xjunz.tool.werecord.BuildConfig;
 import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.databinding.ActivityMainBinding;
+import xjunz.tool.werecord.impl.model.account.Contact;
+import xjunz.tool.werecord.impl.model.account.Group;
+import xjunz.tool.werecord.impl.model.account.Talker;
+import xjunz.tool.werecord.impl.repo.AccountChange;
+import xjunz.tool.werecord.impl.repo.ContactRepository;
+import xjunz.tool.werecord.impl.repo.GroupRepository;
+import xjunz.tool.werecord.impl.repo.RepositoryFactory;
+import xjunz.tool.werecord.impl.repo.TalkerRepository;
 import xjunz.tool.werecord.ui.base.RecycleAwareActivity;
 import xjunz.tool.werecord.ui.customview.MasterToast;
 import xjunz.tool.werecord.ui.main.fragment.ChatFragment;
@@ -39,6 +52,7 @@ import xjunz.tool.werecord.ui.outer.DebugActivity;
 import xjunz.tool.werecord.ui.outer.InitializationActivity;
 import xjunz.tool.werecord.ui.viewmodel.PageViewModel;
 import xjunz.tool.werecord.util.IoUtils;
+import xjunz.tool.werecord.util.LogUtils;
 import xjunz.tool.werecord.util.UiUtils;
 
 public class MainActivity extends RecycleAwareActivity {
@@ -55,6 +69,7 @@ public class MainActivity extends RecycleAwareActivity {
     private ActivityMainBinding mBinding;
     private MultiSelectionFragment mMultiSelectionFragment;
     private ChatFragment mChatFragment;
+    private ContactFragment mContactFragment;
     private final PageViewModel.EventHandler mFilterEventHandler = new PageViewModel.EventHandler() {
         @Override
         public void onConfirmFilter() {
@@ -101,8 +116,8 @@ public class MainActivity extends RecycleAwareActivity {
 
     private void initPages() {
         mChatFragment = new ChatFragment();
-        ContactFragment contact = new ContactFragment();
-        mPages = new PageFragment[]{mChatFragment, contact, new MineFragment()};
+        mContactFragment = new ContactFragment();
+        mPages = new PageFragment[]{mChatFragment, mContactFragment, new MineFragment()};
         mBinding.vpMain.setAdapter(new MainFragmentAdapter(this));
     }
 
@@ -188,7 +203,58 @@ public class MainActivity extends RecycleAwareActivity {
         startActivity(new Intent(this, InitializationActivity.class).setFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK));
     }
 
+    /**
+     * 切换到{@link xjunz.tool.werecord.Settings#lastUsedUin}指定的账号，不会销毁当前环境，
+     * 已预热的账号可以即时切换
+     */
+    public void restartToSwitchAccount() {
+        InitializationActivity.notifyNoVerificationLaunch();
+        startActivity(new Intent(this, InitializationActivity.class).setFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK));
+    }
+
+    /**
+     * 重新同步工作数据库，并增量刷新聊天和联系人列表。如果有尚未应用的修改或者同步失败，提示重新启动
+     */
     public void restartToSync(View view) {
+        TalkerRepository talkerRepository = RepositoryFactory.get(TalkerRepository.class);
+        ContactRepository contactRepository = RepositoryFactory.get(ContactRepository.class);
+        GroupRepository groupRepository = RepositoryFactory.get(GroupRepository.class);
+        view.setEnabled(false);
+        //同步和查询变化在后台进行；仓库的数据由界面读取，因此合并回到主线程进行。未同步时不发射
+        Disposable disposable = Maybe.fromCallable(() -> getEnvironment().resyncWorkerDatabase()
+                ? new PendingChanges(groupRepository.queryChanged(), talkerRepository.queryChanged(), contactRepository.queryChanged())
+                : null)
+                .subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread())
+                .doFinally(() -> view.setEnabled(true))
+                .subscribe(pending -> {
+                    groupRepository.merge(pending.groups);
+                    List<AccountChange<Talker>> talkerChanges = talkerRepository.merge(pending.talkers);
+                    List<AccountChange<Contact>> contactChanges = contactRepository.merge(pending.contacts);
+                    mChatFragment.applyChanges(talkerChanges);
+                    mContactFragment.applyChanges(contactChanges);
+                    MasterToast.shortToast(getString(R.string.format_data_refreshed, talkerChanges.size() + contactChanges.size()));
+                }, e -> {
+                    LogUtils.error("Failed to resync: " + e.getMessage());
+                    showRestartToSyncAlert();
+                }, this::showRestartToSyncAlert);
+    }
+
+    /**
+     * 在后台查询到的、尚未合并到仓库的变化
+     */
+    private static final class PendingChanges {
+        private final List<Group> groups;
+        private final List<Talker> talkers;
+        private final List<Contact> contacts;
+
+        private PendingChanges(List<Group> groups, List<Talker> talkers, List<Contact> contacts) {
+            this.groups = groups;
+            this.talkers = talkers;
+            this.contacts = contacts;
+        }
+    }
+
+    private void showRestartToSyncAlert() {
         UiUtils.createAlert(this, R.string.alert_restart_to_sync)
                 .setPositiveButton(android.R.string.ok, (dialog, which) -> restartWithoutVerification())
                 .setNegativeButton(android.R.string.cancel, null).show();
@@ -27,6 +27,7 @@ import org.jetbrains.annotations.NotNull;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.reactivex.FlowableEmitter;
@@ -117,6 +118,11 @@ public class ChatFragment extends ListPageFragment<Talker> {
         return mRepository.getAll();
     }
 
+    @Override
+    public Map<Talker, Integer> searchAll(@NonNull String keyword) {
+        return mRepository.search(keyword);
+    }
+
     @SuppressLint("NonConstantResourceId")
     public void onOptionMenuClicked(@NotNull MenuItem menuItem, View itemView) {
         int id = menuItem.getItemId();
@@ -25,6 +25,7 @@ import org.jetbrains.annotations.NotNull;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import xjunz.tool.werecord.App;
@@ -217,6 +218,11 @@ public class ContactFragment extends ListPageFragment<Contact> implements PageCo
         return mRepository.getAll();
     }
 
+    @Override
+    public Map<Contact, Integer> searchAll(@NonNull String keyword) {
+        return mRepository.search(keyword);
+    }
+
     @Override
     public SortBy[] getSortByList() {
         return new SortBy[]{SortBy.NAME};
@@ -11,6 +11,7 @@ import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.style.BackgroundColorSpan;
 import android.text.style.ForegroundColorSpan;
+import android.util.ArrayMap;
 import android.util.Pair;
 import android.view.View;
 import android.view.ViewStub;
@@ -27,9 +28,13 @@ import org.reactivestreams.Publisher;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
+import io.reactivex.Completable;
 import io.reactivex.Flowable;
 import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
@@ -40,6 +45,9 @@ import io.reactivex.internal.functions.Functions;
 import io.reactivex.schedulers.Schedulers;
 import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.impl.model.account.Contact;
+import xjunz.tool.werecord.impl.repo.AccountChange;
+import xjunz.tool.werecord.impl.repo.AvatarRepository;
+import xjunz.tool.werecord.impl.repo.RepositoryFactory;
 import xjunz.tool.werecord.ui.customview.MasterToast;
 import xjunz.tool.werecord.ui.main.MainActivity;
 import xjunz.tool.werecord.ui.viewmodel.PageConfig;
@@ -50,6 +58,10 @@ import xjunz.tool.werecord.util.UiUtils;
 import xjunz.tool.werecord.util.Utils;
 
 public abstract class ListPageFragment<T extends Contact> extends PageFragment implements PageConfig.EventHandler {
+    /**
+     * 列表首次显示前批量备份头像的数量
+     */
+    private static final int AVATAR_PREFETCH_COUNT = 30;
     /**
      * 当前显示的数据列表
      */
@@ -128,12 +140,31 @@ public abstract class ListPageFragment<T extends Contact> extends PageFragment i
             mItemList = items;
             mFilteredItemList = items;
             showOrHideNoResultArt(mItemList.isEmpty());
+            //获取所有分隔项
+            collectSeparatorDescListMap();
             //更新UI
             mAdapter = getAdapter();
             mList.setAdapter(mAdapter);
             updateCountInfo(items);
-            //获取所有分隔项
-            collectSeparatorDescListMap();
+            //在后台批量备份首屏的头像，完成后刷新这些项目
+            List<String> firstScreenIds = new ArrayList<>();
+            int firstScreenEnd = 0;
+            for (; firstScreenEnd < items.size() && firstScreenIds.size() < AVATAR_PREFETCH_COUNT; firstScreenEnd++) {
+                Item item = items.get(firstScreenEnd);
+                if (item.type == Item.TYPE_DATA) {
+                    firstScreenIds.add(item.content.id);
+                }
+            }
+            ListPageAdapter<?> adapter = mAdapter;
+            int refreshCount = firstScreenEnd;
+            Completable.fromAction(() -> RepositoryFactory.get(AvatarRepository.class).prefetchAvatarFiles(firstScreenIds))
+                    .subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread())
+                    .onErrorComplete().subscribe(() -> {
+                //列表可能已被筛选或者重建，此时已显示的项目会重新绑定，不必刷新
+                if (mAdapter == adapter && mFilteredItemList == items) {
+                    adapter.notifyItemRangeChanged(0, refreshCount);
+                }
+            });
         });
     }
 
@@ -169,17 +200,34 @@ public abstract class ListPageFragment<T extends Contact> extends PageFragment i
      */
     public abstract List<T> getAll();
 
+    /**
+     * 通过仓库的二级索引搜索所有数据
+     *
+     * @param keyword 搜索关键词
+     * @return 搜索到的数据，及其名称中应当高亮的起始位置，如果不必高亮，为-1
+     */
+    public abstract Map<T, Integer> searchAll(@NonNull String keyword);
+
     public int getCurrentListSize() {
         return mItemList.size();
     }
 
     private final class ItemRemovalCallback extends DiffUtil.Callback {
         private final List<Item> mNewItems;
+        /**
+         * 内容有变化的数据的ID
+         */
+        private final Set<String> mChangedIds;
         private static final int MODE_DETECT_REMOVAL = 1;
         private static final int MODE_DETECT_KEYWORD = 2;
 
         private ItemRemovalCallback(List<Item> newItems) {
+            this(newItems, Collections.emptySet());
+        }
+
+        private ItemRemovalCallback(List<Item> newItems, Set<String> changedIds) {
             mNewItems = newItems;
+            mChangedIds = changedIds;
         }
 
         @Override
@@ -204,7 +252,7 @@ public abstract class ListPageFragment<T extends Contact> extends PageFragment i
             if (oldItem.isSeparator() && newItem.isSeparator()) {
                 return oldItem.equals(newItem);
             }
-            return true;
+            return !mChangedIds.contains(newItem.content.id);
         }
     }
 
@@ -246,6 +294,46 @@ public abstract class ListPageFragment<T extends Contact> extends PageFragment i
         });
     }
 
+    /**
+     * 将仓库增量刷新产生的变化应用到列表，通过{@link DiffUtil}只更新有变化的项
+     * <p>
+     * 搜索模式下不重新搜索，只原地更新已显示的项，退出搜索后列表会包含新增的数据
+     * </p>
+     *
+     * @param changes 仓库增量刷新产生的变化
+     */
+    public void applyChanges(@NonNull List<AccountChange<T>> changes) {
+        if (changes.isEmpty() || mAdapter == null) {
+            return;
+        }
+        Set<String> changedIds = new HashSet<>();
+        for (AccountChange<T> change : changes) {
+            changedIds.add(change.current.id);
+        }
+        filter(getRawDataList()).doOnSuccess(items -> {
+            mFilteredItemList = items;
+            if (mConfig.isInSearchMode.get()) {
+                ArrayMap<String, T> currents = new ArrayMap<>();
+                for (AccountChange<T> change : changes) {
+                    currents.put(change.current.id, change.current);
+                }
+                for (int i = 0; i < mItemList.size(); i++) {
+                    Item item = mItemList.get(i);
+                    if (item.isData() && currents.containsKey(item.content.id)) {
+                        item.content = currents.get(item.content.id);
+                        mAdapter.notifyItemChanged(i);
+                    }
+                }
+            } else {
+                DiffUtil.calculateDiff(new ItemRemovalCallback(items, changedIds)).dispatchUpdatesTo(mAdapter);
+                mItemList = items;
+                showOrHideNoResultArt(mItemList.isEmpty());
+                updateCountInfo(items);
+            }
+            collectSeparatorDescListMap();
+        }).subscribe();
+    }
+
     /**
      * 筛选数据，返回包含筛选后的数据的{@link Single}，以便自定义订阅逻辑。
      *
@@ -278,7 +366,7 @@ public abstract class ListPageFragment<T extends Contact> extends PageFragment i
     }
 
     /**
-     * 搜索数据，返回包含搜索后的数据的{@link Single}，方便自定义订阅逻辑。
+     * 搜索数据，返回包含搜索后的数据的{@link Single}，方便自定义订阅逻辑。索引的查找、筛选和排序都在后台进行，结果在主线程发射。
      *
      * @param itemList 欲搜索的原始数据
      * @param keyword  搜索关键词
@@ -286,28 +374,30 @@ public abstract class ListPageFragment<T extends Contact> extends PageFragment i
      */
     private Single<List<Item>> search(List<Item> itemList, @NonNull String keyword) {
         mCurrentDescCacheList.clear();
-        return Flowable.fromIterable(itemList).subscribeOn(Schedulers.computation()).observeOn(AndroidSchedulers.mainThread())
-                .filter(Item::isData)
-                .filter(item -> {
-                    String name = item.content.getName();
-                    int index;
-                    if ((index = name.indexOf(keyword)) >= 0 || (index = item.content.getNamePyAttr().indexOf(keyword.toUpperCase())) >= 0) {
-                        item.spanStartIndex = index;
-                        item.spanLength = keyword.length();
-                        return true;
-                    }
-                    return false;
-                })
-                .flatMap((Function<Item, Publisher<Item>>) item -> subscriber -> {
-                    String description = item.description;
-                    if (!mCurrentDescCacheList.contains(description)) {
-                        subscriber.onNext(new Item(item.content, description, Item.TYPE_SEPARATOR));
-                        mCurrentDescCacheList.add(description);
-                    }
-                    subscriber.onNext(item);
-                    subscriber.onComplete();
-                })
-                .toSortedList();
+        //沿索引查找命中的数据，再从筛选后的数据中挑出命中的
+        return Single.fromCallable(() -> searchAll(keyword)).subscribeOn(Schedulers.computation())
+                .flatMap(hits -> Flowable.fromIterable(itemList)
+                        .filter(Item::isData)
+                        .filter(item -> {
+                            Integer index = hits.get(item.content);
+                            if (index != null) {
+                                item.spanStartIndex = index;
+                                item.spanLength = keyword.length();
+                                return true;
+                            }
+                            return false;
+                        })
+                        .flatMap((Function<Item, Publisher<Item>>) item -> subscriber -> {
+                            String description = item.description;
+                            if (!mCurrentDescCacheList.contains(description)) {
+                                subscriber.onNext(new Item(item.content, description, Item.TYPE_SEPARATOR));
+                                mCurrentDescCacheList.add(description);
+                            }
+                            subscriber.onNext(item);
+                            subscriber.onComplete();
+                        })
+                        .toSortedList())
+                .observeOn(AndroidSchedulers.mainThread());
     }
 
     public void quitMultiSelectionMode() {
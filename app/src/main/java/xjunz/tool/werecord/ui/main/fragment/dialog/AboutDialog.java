@@ -6,7 +6,9 @@ package xjunz.tool.werecord.ui.main.fragment.dialog;
 import android.animation.Animator;
 import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
+import android.content.Intent;
 import android.graphics.Path;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -17,13 +19,21 @@ import android.widget.ImageView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.FileProvider;
 import androidx.fragment.app.DialogFragment;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+import xjunz.tool.werecord.App;
 import xjunz.tool.werecord.Constants;
 import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.databinding.DialogAboutBinding;
 import xjunz.tool.werecord.ui.customview.MasterToast;
 import xjunz.tool.werecord.util.ActivityUtils;
+import xjunz.tool.werecord.util.RxJavaUtils;
+import xjunz.tool.werecord.util.TraceUtils;
 import xjunz.tool.werecord.util.UiUtils;
 
 /**
@@ -90,4 +100,30 @@ public class AboutDialog extends DialogFragment {
             lastTapTimestamp = cur;
         }
     }
+
+    /**
+     * 长按版本号，导出已记录的性能追踪文件并分享，仅在调试模式下可用
+     *
+     * @return 是否消费了长按事件
+     */
+    public boolean exportTrace() {
+        if (!TraceUtils.isEnabled()) {
+            return false;
+        }
+        File dir = new File(App.getContext().getCacheDir(), "trace");
+        RxJavaUtils.single(() -> TraceUtils.export(dir)).subscribe(new RxJavaUtils.SingleObserverAdapter<File>() {
+            @Override
+            public void onSuccess(@NotNull File file) {
+                Uri uri = FileProvider.getUriForFile(requireContext(), "xjunz.tool.werecord.fileprovider", file);
+                Intent intent = new Intent(Intent.ACTION_SEND).putExtra(Intent.EXTRA_STREAM, uri).setType("application/json");
+                ActivityUtils.startActivityCreateChooser(requireContext(), intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION));
+            }
+
+            @Override
+            public void onError(@NotNull Throwable e) {
+                MasterToast.shortToast(R.string.operation_failed);
+            }
+        });
+        return true;
+    }
 }
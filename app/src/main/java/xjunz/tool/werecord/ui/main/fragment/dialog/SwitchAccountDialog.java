@@ -99,7 +99,7 @@ public class SwitchAccountDialog extends DialogFragment {
                     UiUtils.createAlert(v.getContext(), App.getStringOf(R.string.format_switch_account, binding.getAccount().getName()))
                             .setPositiveButton(android.R.string.ok, (dialog, which) -> {
                                 App.config().lastUsedUin.setValue(mUsers.get(getAdapterPosition()).uin);
-                                ((MainActivity) requireActivity()).restartWithoutVerification();
+                                ((MainActivity) requireActivity()).restartToSwitchAccount();
                             }).setNegativeButton(android.R.string.cancel, null).show();
                 });
             }
@@ -12,7 +12,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.ArrayMap;
-import android.util.Pair;
 import android.view.ContextMenu;
 import android.view.MenuItem;
 import android.view.View;
@@ -36,14 +35,13 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
-import io.reactivex.BackpressureStrategy;
+import io.reactivex.Emitter;
 import io.reactivex.Flowable;
-import io.reactivex.FlowableOnSubscribe;
+import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.BiFunction;
 import io.reactivex.schedulers.Schedulers;
 import xjunz.tool.werecord.App;
 import xjunz.tool.werecord.BR;
@@ -70,6 +68,7 @@ import xjunz.tool.werecord.ui.message.fragment.StatisticsFragment;
 import xjunz.tool.werecord.ui.message.fragment.dialog.MessageViewerDialog;
 import xjunz.tool.werecord.ui.message.fragment.dialog.TemplateSetupDialog;
 import xjunz.tool.werecord.ui.viewmodel.MessageViewModel;
+import xjunz.tool.werecord.util.LogUtils;
 import xjunz.tool.werecord.util.RxJavaUtils;
 import xjunz.tool.werecord.util.UiUtils;
 
@@ -83,6 +82,10 @@ public class MessageActivity extends RecycleAwareActivity {
      * 加载更多消息记录的消息数，没必要过多，浪费内存资源且用户一般不会查看这么多记录
      */
     private static final int LATER_LOAD_COUNT = 100;
+    /**
+     * 加载全部消息时每一页的消息数
+     */
+    private static final int LOAD_ALL_PAGE_SIZE = 2000;
     /**
      * 加载更多消息时假装加载的时间
      * <p>因为读取消息记录实际上耗时很，为了防止加载进度条一闪而过的情况，设置
@@ -114,6 +117,12 @@ public class MessageActivity extends RecycleAwareActivity {
     private DatabaseModifier mModifier;
     private int mSelectedMsgIndex;
     private Message mSelectedMsg;
+    /**
+     * 获取{@link #mSelectedMsg}的完整消息，完成后替换{@link #mSelectedMsg}和列表中的消息头
+     *
+     * @see MessageViewHolder#setSelectedMsgIndex(int)
+     */
+    private Single<Message> mSelectedMsgHydration;
     private long mGeneratedMsgId = -1;
     private ActivityResultLauncher<Integer> mEditorLauncher;
 
@@ -252,62 +261,45 @@ public class MessageActivity extends RecycleAwareActivity {
     private Disposable mLoadAllDisposable;
 
     /**
-     * 并发加载所有的消息记录，默认的并发线程数为CPU核心数+1
+     * 加载所有的消息记录。从已加载的最后一条消息开始，以键集分页的方式逐页向更早的消息加载，
+     * 每一页的查询开销相同，不会像{@code offset}那样重复遍历已加载的消息
      */
     public void loadAllMessages(@Nullable Runnable onSuccess) {
         //如果已经全部加载完，直接返回
         if (mModel.hasLoadedAll.get()) {
             return;
         }
-        //否则设置并发数
-        int defaultGroupCount = Runtime.getRuntime().availableProcessors() + 1;
         //获取已经加载的消息数
         int preloadedCount = mModel.currentLoadedMessages.size();
-        //获取需要加载的消息数（总消息数减去已加载的消息数）
-        long msgCount = mModel.actualMessageCount - preloadedCount;
-        //每个线程平均要加载的消息数
-        int unitCount = (int) (msgCount / defaultGroupCount);
-        //初始化ExecutorService
-        ExecutorService executor = Executors.newFixedThreadPool(defaultGroupCount);
+        MessageRepository.PageCursor start = mMessageList.isEmpty() ? MessageRepository.PageCursor.NEWEST
+                : MessageRepository.PageCursor.of(mMessageList.get(mMessageList.size() - 1));
         //显示进度条
         mModel.isLoadingAll.set(true);
-        mLoadAllDisposable = Flowable.range(0, defaultGroupCount).map(groupOrdinal -> {
-            //返回每个线程需要加载的消息起点和消息数
-            //最后一个分组需要多加载平均分后剩余的消息数
-            int offset = unitCount * groupOrdinal;
-            long count = unitCount;
-            if (groupOrdinal == defaultGroupCount - 1) {
-                count = msgCount - (groupOrdinal) * unitCount;
+        mLoadAllDisposable = Flowable.generate(() -> start, (BiFunction<MessageRepository.PageCursor, Emitter<List<Message>>, MessageRepository.PageCursor>) (cursor, emitter) -> {
+            List<Message> page = mMessageRepo.queryMessagePage(mTalker.id, cursor, MessageRepository.DIRECTION_OLDER, LOAD_ALL_PAGE_SIZE);
+            if (!page.isEmpty()) {
+                emitter.onNext(page);
+            }
+            if (page.size() < LOAD_ALL_PAGE_SIZE) {
+                emitter.onComplete();
+                return cursor;
             }
-            return new Pair<>(offset + preloadedCount, count);
+            return MessageRepository.PageCursor.of(page.get(page.size() - 1));
         })
-                .parallel()
-                .runOn(Schedulers.from(executor))
-                .flatMap(offsetLimitPair -> Flowable.create((FlowableOnSubscribe<List<Message>>) emitter -> {
-                    if (offsetLimitPair.second != 0) {
-                        //从数据库加载消息
-                        emitter.onNext(RepositoryFactory.get(MessageRepository.class).queryMessageByTalkerLimit(mModel.currentTalker.id, offsetLimitPair.first, offsetLimitPair.second));
-                    }
-                    emitter.onComplete();
-                }, BackpressureStrategy.BUFFER))
-                .sequential()
+                .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread())
-                //对消息进行排序，并行加载的消息是无序的
-                .sorted((o1, o2) -> -Long.compare(o1.get(0).getCreateTimeStamp(), o2.get(0).getCreateTimeStamp()))
                 .subscribe(messages -> {
                     //添加进消息列表
                     mMessageList.addAll(messages);
                 }, throwable -> {
                     throwable.printStackTrace();
                     mModel.isLoadingAll.set(false);
-                    executor.shutdown();
                 }, () -> {
                     //通知更新
                     mModel.hasLoadedAll.set(true);
                     mAdapter.notifyItemInserted(preloadedCount);
                     showImeFor(mBinding.etSearch);
                     mModel.isLoadingAll.set(false);
-                    executor.shutdown();
                     if (onSuccess != null) {
                         onSuccess.run();
                     }
@@ -493,7 +485,7 @@ public class MessageActivity extends RecycleAwareActivity {
                     mGeneratedMsgId = mMessageRepo.getMaxMsgId();
                 }
                 //为它设置一个独一无二的ID
-                returned.getValues().put(Message.KEY_MSG_ID, ++mGeneratedMsgId);
+                returned.setMsgId(++mGeneratedMsgId);
                 returned.setEditionFlag(Edition.FLAG_INSERTION);
                 mModifier.putPendingEdition(Edition.insert(returned));
                 int insertion = result.editMode == EditorActivity.EDIT_MODE_ADD_AFTER ? mSelectedMsgIndex : mSelectedMsgIndex + 1;
@@ -543,13 +535,19 @@ public class MessageActivity extends RecycleAwareActivity {
         }, mMessageEditorCallback);
     }
 
-    @SuppressLint("NonConstantResourceId")
     @Override
     public boolean onContextItemSelected(@NonNull MenuItem item) {
+        //等待选中的消息获取完毕，通常在菜单弹出期间就已完成
+        Disposable disposable = mSelectedMsgHydration.subscribe(full -> performContextItem(item), e -> UiUtils.showError(this, e));
+        return super.onContextItemSelected(item);
+    }
+
+    @SuppressLint("NonConstantResourceId")
+    private void performContextItem(@NonNull MenuItem item) {
         //如果消息解析失败，除了“还原”，不允许其他操作
         if (mSelectedMsg.isParseError() && item.getItemId() != R.id.item_restore) {
             MasterToast.shortToast(getString(R.string.format_error_parse_message, mSelectedMsg.getParseErrorCode()));
-            return super.onContextItemSelected(item);
+            return;
         }
         mModifier = getEnvironment().modifyDatabase();
         mBinding.setModifier(mModifier);
@@ -557,28 +555,28 @@ public class MessageActivity extends RecycleAwareActivity {
             case R.id.item_add_before:
                 if (!App.config().isEditModeEnabled()) {
                     MasterToast.shortToast(R.string.edit_mode_not_enabled);
-                    return super.onContextItemSelected(item);
+                    return;
                 }
                 mEditorLauncher.launch(EditorActivity.EDIT_MODE_ADD_BEFORE);
                 break;
             case R.id.item_add_after:
                 if (!App.config().isEditModeEnabled()) {
                     MasterToast.shortToast(R.string.edit_mode_not_enabled);
-                    return super.onContextItemSelected(item);
+                    return;
                 }
                 mEditorLauncher.launch(EditorActivity.EDIT_MODE_ADD_AFTER);
                 break;
             case R.id.item_edit:
                 if (!App.config().isEditModeEnabled()) {
                     MasterToast.shortToast(R.string.edit_mode_not_enabled);
-                    return super.onContextItemSelected(item);
+                    return;
                 }
                 mEditorLauncher.launch(EditorActivity.EDIT_MODE_EDIT);
                 break;
             case R.id.item_delete:
                 if (!App.config().isEditModeEnabled()) {
                     MasterToast.shortToast(R.string.edit_mode_not_enabled);
-                    return super.onContextItemSelected(item);
+                    return;
                 }
                 //如果是新增的消息，删除后直接从列表移除
                 if (mSelectedMsg.getEditionFlag() == Edition.FLAG_INSERTION) {
@@ -611,7 +609,6 @@ public class MessageActivity extends RecycleAwareActivity {
                 new TemplateSetupDialog().setSourceTemplate(Template.fromMessage(mSelectedMsg)).show(getSupportFragmentManager(), "template");
                 break;
         }
-        return super.onContextItemSelected(item);
     }
 
     private void notifyItemChangedConsideringTimestamp(@NotNull Message edited, int editedIndex) {
@@ -797,7 +794,26 @@ public class MessageActivity extends RecycleAwareActivity {
 
         public void setSelectedMsgIndex(int index) {
             mSelectedMsgIndex = index;
-            mSelectedMsg = mMessageList.get(index);
+            //列表中是消息头，选中后才在后台获取完整的消息，以供编辑、查看等操作。菜单先以消息头弹出，
+            //选择菜单项后等待获取完毕再执行
+            Message selected = mMessageList.get(index);
+            mSelectedMsg = selected;
+            mSelectedMsgHydration = Single.fromCallable(() -> mMessageRepo.hydrate(selected))
+                    .subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread())
+                    .doOnSuccess(full -> {
+                        if (full == selected) {
+                            return;
+                        }
+                        //获取期间可能已经选中了其他消息，或者列表已经改变
+                        if (mSelectedMsg == selected) {
+                            mSelectedMsg = full;
+                        }
+                        if (index < mMessageList.size() && mMessageList.get(index) == selected) {
+                            mMessageList.set(index, full);
+                        }
+                    }).cache();
+            Disposable disposable = mSelectedMsgHydration.subscribe(full -> {
+            }, e -> LogUtils.error("Failed to hydrate message: " + e.getMessage()));
         }
 
         public MessageViewHolder(@NonNull ViewDataBinding binding) {
@@ -35,6 +35,7 @@ import xjunz.tool.werecord.databinding.FragmentAdvancedEditorBinding;
 import xjunz.tool.werecord.databinding.ItemAdvancedEditorBinding;
 import xjunz.tool.werecord.databinding.ItemSeparatorBinding;
 import xjunz.tool.werecord.impl.model.message.Message;
+import xjunz.tool.werecord.impl.model.message.MessageRow;
 import xjunz.tool.werecord.impl.model.message.util.LvBufferUtils;
 import xjunz.tool.werecord.impl.repo.MessageRepository;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
@@ -253,7 +254,8 @@ public class AdvancedEditorFragment extends EditorFragment {
                 return;
             }
             int contentType = ContentType.getTypeFromRaw(item.getType());
-            if (contentType == ContentType.INTEGER || contentType == ContentType.LONG) {
+            //以数字保存的列即使声明的类型不是整数，也只接受数字，不合法的输入在此拒绝
+            if (contentType == ContentType.INTEGER || contentType == ContentType.LONG || MessageRow.isNumericKey(item.getKey())) {
                 final EditText[] editor = new EditText[1];
                 new SingleLineEditorDialog().setLabel(item.getKey()).setEditorTag(item.getType())
                         .setConfig(et -> {
@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
+import io.reactivex.Flowable;
 import xjunz.tool.werecord.R;
 import xjunz.tool.werecord.databinding.FragmentStatsBinding;
 import xjunz.tool.werecord.databinding.ItemChartMsgCountBinding;
@@ -38,9 +39,9 @@ import xjunz.tool.werecord.impl.model.message.Message;
 import xjunz.tool.werecord.impl.model.message.MessageFactory;
 import xjunz.tool.werecord.impl.repo.ContactRepository;
 import xjunz.tool.werecord.impl.repo.GroupRepository;
+import xjunz.tool.werecord.impl.repo.MessageRepository;
 import xjunz.tool.werecord.impl.repo.RepositoryFactory;
 import xjunz.tool.werecord.ui.main.DetailActivity;
-import xjunz.tool.werecord.ui.message.MessageActivity;
 import xjunz.tool.werecord.ui.viewmodel.MessageViewModel;
 import xjunz.tool.werecord.util.RxJavaUtils;
 import xjunz.tool.werecord.util.UiUtils;
@@ -48,15 +49,12 @@ import xjunz.tool.werecord.util.Utils;
 
 public class StatisticsFragment extends Fragment {
     private MessageViewModel mModel;
-    private MessageActivity mHost;
-    private List<Message> mAll;
     private FragmentStatsBinding mBinding;
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mModel = Utils.getViewModel(requireActivity(), MessageViewModel.class);
-        mHost = (MessageActivity) requireActivity();
     }
 
     @Nullable
@@ -74,80 +72,43 @@ public class StatisticsFragment extends Fragment {
         OneShotPreDrawListener.add(mBinding.nsvStats, () -> mBinding.statsContainer.setMinimumHeight(mBinding.nsvStats.getHeight()));
     }
 
+    /**
+     * 遍历一次全部消息，同时统计各类型和各发送者的消息数。如果列表已经加载了全部消息，直接统计列表，
+     * 否则从数据库中流式读取消息头，不必先把全部消息加载进列表
+     */
     private void analyze() {
-        mAll = mModel.currentLoadedMessages;
-        analyzeMsgCountStats();
-        analyzeMsgTypeStats();
-    }
-
-    public void startAnalyze(@NotNull View view) {
-        view.setEnabled(false);
-        if (!mModel.hasLoadedAll.get()) {
-            mHost.loadAllMessages(this::analyze);
-        } else {
-            analyze();
-        }
-    }
-
-    private void analyzeMsgTypeStats() {
-        final List<MsgTypeStat> stats = new ArrayList<>();
-        RxJavaUtils.complete(() -> {
-            for (Message message : mAll) {
-                MessageFactory.Type type = message.getType();
-                boolean exists = false;
-                for (MsgTypeStat stat : stats) {
-                    if (Objects.equals(type, stat.type)) {
-                        stat.increment();
-                        exists = true;
-                        break;
-                    }
-                }
-                if (!exists) {
-                    stats.add(new MsgTypeStat(type));
-                }
-            }
-            MsgTypeStat.totalCount = mAll.size();
-            Collections.sort(stats);
-        }).subscribe(new RxJavaUtils.CompletableObservableAdapter() {
-            @Override
-            public void onComplete() {
-                mBinding.rvStatsMsgType.setAdapter(new MsgStatAdapter(stats, MsgTypeStat.totalCount, false));
-            }
-        });
-    }
-
-    private void analyzeMsgCountStats() {
-        final List<MsgCountStat> stats = new ArrayList<>();
+        final List<MsgTypeStat> typeStats = new ArrayList<>();
+        final List<MsgCountStat> countStats = new ArrayList<>();
         int[] count = new int[2];
+        long[] timeSpan = {Long.MAX_VALUE, Long.MIN_VALUE};
+        Flowable<Message> source = mModel.hasLoadedAll.get() ? Flowable.fromIterable(mModel.currentLoadedMessages)
+                : RepositoryFactory.get(MessageRepository.class).streamHeadersByTalker(mModel.currentTalker.id);
         RxJavaUtils.complete(() -> {
-            int sysCount = 0;
-            for (Message message : mAll) {
+            int[] total = new int[1];
+            int[] sysCount = new int[1];
+            source.blockingForEach(message -> {
+                total[0]++;
+                timeSpan[0] = Math.min(timeSpan[0], message.getCreateTimeStamp());
+                timeSpan[1] = Math.max(timeSpan[1], message.getCreateTimeStamp());
+                countType(typeStats, message.getType());
                 String id = message.getSenderId();
                 if (id == null || (message.isInGroupChat() && id.equals(mModel.currentTalker.id))) {
-                    sysCount += 1;
+                    sysCount[0] += 1;
                 } else {
-                    boolean exists = false;
-                    for (MsgCountStat stat : stats) {
-                        if (Objects.equals(id, stat.sender)) {
-                            stat.increment();
-                            exists = true;
-                            break;
-                        }
-                    }
-                    if (!exists) {
-                        stats.add(new MsgCountStat(id));
-                    }
+                    countSender(countStats, id);
                 }
-            }
-            int userCount = mAll.size() - sysCount;
+            });
+            MsgTypeStat.totalCount = total[0];
+            Collections.sort(typeStats);
+            int userCount = total[0] - sysCount[0];
             count[0] = userCount;
             MsgCountStat.totalCount = userCount;
-            Collections.sort(stats);
+            Collections.sort(countStats);
             float sum = 0f;
             int showCount = 0;
-            int size = stats.size();
+            int size = countStats.size();
             for (int i = 0; i < size; i++) {
-                sum += stats.get(i).getFraction();
+                sum += countStats.get(i).getFraction();
                 if (sum >= .75f) {
                     showCount = i + 1;
                     break;
@@ -162,18 +123,46 @@ public class StatisticsFragment extends Fragment {
             @Override
             public void onComplete() {
                 UiUtils.fadeOut(mBinding.mask);
+                mBinding.rvStatsMsgType.setAdapter(new MsgStatAdapter(typeStats, MsgTypeStat.totalCount, false));
                 if (mModel.currentTalker.isGroup()) {
                     Group group = RepositoryFactory.get(GroupRepository.class).get(mModel.currentTalker.id);
-                    mBinding.tvOverview.setText(getString(R.string.format_group_stats_overview, count[0], group.memberCount, stats.size()));
+                    mBinding.tvOverview.setText(getString(R.string.format_group_stats_overview, count[0], group.memberCount, countStats.size()));
                 } else {
                     mBinding.tvOverview.setText(getString(R.string.format_stats_overview, count[0]));
                 }
-                mBinding.tvTimeSpan.setText(getString(R.string.format_from_to, Utils.formatDate(mAll.get(mAll.size() - 1).getCreateTimeStamp()), Utils.formatDate(mAll.get(0).getCreateTimeStamp())));
-                mBinding.rvStatsMsgCount.setAdapter(new MsgStatAdapter(stats, count[1], true));
+                if (timeSpan[0] <= timeSpan[1]) {
+                    mBinding.tvTimeSpan.setText(getString(R.string.format_from_to, Utils.formatDate(timeSpan[0]), Utils.formatDate(timeSpan[1])));
+                }
+                mBinding.rvStatsMsgCount.setAdapter(new MsgStatAdapter(countStats, count[1], true));
             }
         });
     }
 
+    public void startAnalyze(@NotNull View view) {
+        view.setEnabled(false);
+        analyze();
+    }
+
+    private static void countType(@NonNull List<MsgTypeStat> stats, MessageFactory.Type type) {
+        for (MsgTypeStat stat : stats) {
+            if (Objects.equals(type, stat.type)) {
+                stat.increment();
+                return;
+            }
+        }
+        stats.add(new MsgTypeStat(type));
+    }
+
+    private static void countSender(@NonNull List<MsgCountStat> stats, String id) {
+        for (MsgCountStat stat : stats) {
+            if (Objects.equals(id, stat.sender)) {
+                stat.increment();
+                return;
+            }
+        }
+        stats.add(new MsgCountStat(id));
+    }
+
     public void showCollapsedSenders(View view, @NotNull List<?> list) {
         PopupMenu menu = new PopupMenu(requireContext(), view);
         for (int i = 0; i < list.size(); i++) {
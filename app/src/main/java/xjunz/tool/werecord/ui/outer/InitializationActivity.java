@@ -37,6 +37,7 @@ import xjunz.tool.werecord.util.ActivityUtils;
 import xjunz.tool.werecord.util.IoUtils;
 import xjunz.tool.werecord.util.LogUtils;
 import xjunz.tool.werecord.util.RxJavaUtils;
+import xjunz.tool.werecord.util.TaskGraph;
 import xjunz.tool.werecord.util.UiUtils;
 import xjunz.tool.werecord.util.Utils;
 
@@ -89,13 +90,32 @@ public class InitializationActivity extends AppCompatActivity implements Complet
 
     private void initIfNecessary() {
         setContentView(R.layout.activity_splash);
+        TaskGraph graph = new TaskGraph();
         //初始化环境
         Environment env = Environment.getInstance();
-        if (env != null && env.initialized()) {
-            onComplete();
-        } else {
-            Environment.create().init(this);
+        String[] envReady = new String[0];
+        if (env == null || !env.initialized()) {
+            Environment.create().init(graph);
+            envReady = new String[]{Environment.TASK_READY};
+        } else if (env.isSwitchPending()) {
+            //切换账号，已预热的账号的仓库都已加载，不必再查询
+            graph.add(Environment.TASK_SWITCH, () -> env.switchTo(App.config().lastUsedUin.getValue()));
+            graph.execute().subscribe(this);
+            return;
         }
+        //查询所有聊天对象
+        graph.add("talkers", () -> RepositoryFactory.get(TalkerRepository.class).queryAll(), envReady)
+                //查询所有联系人信息
+                .add("contacts", () -> RepositoryFactory.get(ContactRepository.class).queryAll(), envReady)
+                //查询所有App信息
+                .add("apps", () -> RepositoryFactory.get(WxAppRepository.class).queryAll(), envReady)
+                //初始化类型表
+                .add("typeMap", () -> RepositoryFactory.get(MessageRepository.class).initTypeMap(), envReady)
+                //模板数据库不依赖工作数据库，与环境初始化并行打开
+                .add("templateDb", () -> TemplateManager.openDatabase(this))
+                //初始化模板
+                .add("templates", TemplateManager::loadTemplates, "templateDb", "typeMap");
+        graph.execute().subscribe(this);
     }
 
     @Override
@@ -108,31 +128,14 @@ public class InitializationActivity extends AppCompatActivity implements Complet
 
     @Override
     public void onComplete() {
-        RxJavaUtils.complete(() -> {
-            //查询所有聊天对象
-            RepositoryFactory.get(TalkerRepository.class).queryAll();
-            //查询所有联系人信息
-            RepositoryFactory.get(ContactRepository.class).queryAll();
-            //查询所有App信息
-            RepositoryFactory.get(WxAppRepository.class).queryAll();
-            //初始化类型表
-            RepositoryFactory.get(MessageRepository.class).initTypeMap();
-            //初始化模板
-            TemplateManager.init(this);
-        }).subscribe(new RxJavaUtils.CompletableObservableAdapter() {
-            @Override
-            public void onComplete() {
-                Intent i = new Intent(InitializationActivity.this, MainActivity.class);
-                //清除当前任务
-                i.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK);
-                startActivity(i);
-            }
-
-            @Override
-            public void onError(@NotNull Throwable e) {
-                InitializationActivity.this.onError(e);
-            }
-        });
+        Environment env = Environment.getInstance();
+        env.notifyRepositoriesLoaded();
+        //当前账号就绪后，在后台预热其他账号
+        env.prewarmAccounts().subscribe(new RxJavaUtils.CompletableObservableAdapter());
+        Intent i = new Intent(InitializationActivity.this, MainActivity.class);
+        //清除当前任务
+        i.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK);
+        startActivity(i);
     }
 
     @Override
@@ -20,31 +20,74 @@ import io.reactivex.schedulers.Schedulers;
 import xjunz.tool.werecord.impl.Environment;
 
 public class DbUtils {
-    @NotNull
-    @Contract("_ -> new")
-    public static ContentValues buildValuesFromCursor(@NotNull Cursor cursor) {
-        ContentValues values = new ContentValues();
-        for (int i = 0; i < cursor.getColumnCount(); i++) {
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-                values.put(cursor.getColumnName(i), cursor.getBlob(i));
-            } else {
-                values.put(cursor.getColumnName(i), cursor.getString(i));
+    /**
+     * 将查询结果的一行映射为{@link ContentValues}的映射器
+     * <p>
+     * 列数和列名在创建时读取一次，之后映射每一行时只需按下标读取各列。各列按其实际的存储类型读取，
+     * 整数以{@link Long}、浮点数以{@link Double}保存，而不是一律读取为字符串。
+     * 同一映射器可以用于列完全相同的多个游标，例如对同一张表多次执行{@code select *}。
+     * </p>
+     */
+    public static final class RowMapper {
+        private final String[] mNames;
+
+        private RowMapper(@NonNull String[] names) {
+            mNames = names;
+        }
+
+        /**
+         * 按游标的列创建映射器
+         */
+        @NonNull
+        public static RowMapper of(@NonNull Cursor cursor) {
+            return new RowMapper(cursor.getColumnNames());
+        }
+
+        /**
+         * 映射游标当前所在的行
+         */
+        @NonNull
+        public ContentValues map(@NonNull Cursor cursor) {
+            return mapInto(cursor, new ContentValues(mNames.length));
+        }
+
+        /**
+         * 映射游标当前所在的行，并写入已有的{@link ContentValues}，用于逐行处理后即丢弃的场合，例如批量插入
+         */
+        @NonNull
+        public ContentValues mapInto(@NonNull Cursor cursor, @NonNull ContentValues values) {
+            values.clear();
+            for (int i = 0; i < mNames.length; i++) {
+                String name = mNames[i];
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        values.putNull(name);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values.put(name, cursor.getLong(i));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values.put(name, cursor.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values.put(name, cursor.getBlob(i));
+                        break;
+                    default:
+                        values.put(name, cursor.getString(i));
+                        break;
+                }
             }
+            return values;
         }
-        return values;
     }
 
+    /**
+     * 映射游标当前所在的行，只用于单行的查询，多行的查询应当使用同一个{@link RowMapper}
+     */
     @NotNull
-    public static ContentValues buildValuesFromCursorReuse(@NotNull Cursor cursor, @NonNull ContentValues values) {
-        values.clear();
-        for (int i = 0; i < cursor.getColumnCount(); i++) {
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-                values.put(cursor.getColumnName(i), cursor.getBlob(i));
-            } else {
-                values.put(cursor.getColumnName(i), cursor.getString(i));
-            }
-        }
-        return values;
+    @Contract("_ -> new")
+    public static ContentValues buildValuesFromCursor(@NotNull Cursor cursor) {
+        return RowMapper.of(cursor).map(cursor);
     }
 
     @Nullable
@@ -106,10 +149,11 @@ public class DbUtils {
                         .runOn(Schedulers.io())
                         .doOnNext(pair -> {
                             try (Cursor innerCursor = db.rawQuery(querySql + " limit " + pair.second + " offset " + pair.first, null)) {
+                                RowMapper mapper = RowMapper.of(innerCursor);
                                 LogUtils.debug(Thread.currentThread() + "开始于:" + System.currentTimeMillis());
                                 LogUtils.debug(Thread.currentThread() + "数据为:from " + pair.first + " to " + (pair.second + pair.first - 1));
                                 while (innerCursor.moveToNext()) {
-                                    action.pass(buildValuesFromCursor(innerCursor));
+                                    action.pass(mapper.map(innerCursor));
                                 }
                                 LogUtils.debug(Thread.currentThread() + "结束于:" + System.currentTimeMillis());
                             }
@@ -128,6 +172,11 @@ public class DbUtils {
     }
 
     public static void autoParseQuery(String sql, Passable<ContentValues> action) {
-        rawQuery(sql, cursor -> action.pass(buildValuesFromCursor(cursor)));
+        try (Cursor cursor = Environment.getInstance().getWorkerDatabase().rawQuery(sql, null)) {
+            RowMapper mapper = RowMapper.of(cursor);
+            while (cursor.moveToNext()) {
+                action.pass(mapper.map(cursor));
+            }
+        }
     }
 }
@@ -14,6 +14,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -144,6 +146,21 @@ public class IoUtils {
         return new String(out.toByteArray());
     }
 
+    /**
+     * 写入一个可能为{@code null}的字符串，与{@link #readNullableUTF(DataInput)}对应
+     */
+    public static void writeNullableUTF(@NonNull DataOutput out, @Nullable String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    @Nullable
+    public static String readNullableUTF(@NonNull DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     public static void deleteFile(@NotNull File file) {
         if (!file.delete()) {
             LogUtils.error("Failed to delete file: " + file.getPath());
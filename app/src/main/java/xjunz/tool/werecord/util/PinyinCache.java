@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+import xjunz.tool.werecord.App;
+
+/**
+ * 持久化的名称拼音缩写缓存，键为名称，值为{@link Utils#getPinYinAbbr(String)}的结果
+ * <p>
+ * 缓存以名称为键，联系人的名称改变后自然不再命中旧的条目，因此不必另行失效。保存时，
+ * 本次运行中用到的条目优先保留，其余的旧条目最多保留到{@link #MAX_ENTRIES}条，以免已改名的联系人的条目无限累积。
+ * </p>
+ */
+public class PinyinCache {
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 50000;
+    /**
+     * 批量计算时，未命中的名称少于此数量就直接在当前线程中计算，不值得并行
+     */
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static final Map<String, Entry> sEntries = new ConcurrentHashMap<>();
+    private static volatile boolean sLoaded;
+    private static volatile boolean sDirty;
+
+    private static final class Entry {
+        final String abbr;
+        /**
+         * 本次运行中是否用到过此条目
+         */
+        volatile boolean used;
+
+        Entry(@NonNull String abbr, boolean used) {
+            this.abbr = abbr;
+            this.used = used;
+        }
+    }
+
+    @NonNull
+    private static File getFile() {
+        return new File(App.DATA_PATH, "pinyin_abbr");
+    }
+
+    private static void ensureLoaded() {
+        if (sLoaded) {
+            return;
+        }
+        synchronized (sEntries) {
+            if (sLoaded) {
+                return;
+            }
+            File file = getFile();
+            if (file.exists()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+                    if (in.readInt() == VERSION) {
+                        int size = in.readInt();
+                        for (int i = 0; i < size; i++) {
+                            String name = in.readUTF();
+                            sEntries.put(name, new Entry(in.readUTF(), false));
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LogUtils.error("Failed to load pinyin cache: " + e.getMessage());
+                    sEntries.clear();
+                }
+            }
+            sLoaded = true;
+        }
+    }
+
+    /**
+     * 获取名称的拼音缩写，未命中时当场计算并存入缓存
+     */
+    @NonNull
+    public static String getAbbr(@NonNull String name) {
+        ensureLoaded();
+        Entry entry = sEntries.get(name);
+        if (entry == null) {
+            entry = new Entry(Utils.getPinYinAbbr(name), true);
+            sEntries.put(name, entry);
+            sDirty = true;
+        } else {
+            entry.used = true;
+        }
+        return entry.abbr;
+    }
+
+    /**
+     * 批量计算名称的拼音缩写，未命中的名称在{@link Schedulers#computation()}中并行计算，
+     * 计算完毕后在后台保存缓存。应当在首次排序或搜索前调用，此后的{@link #getAbbr(String)}都会命中缓存。
+     */
+    @WorkerThread
+    public static void precompute(@NonNull Collection<String> names) {
+        ensureLoaded();
+        Set<String> misses = new HashSet<>();
+        for (String name : names) {
+            Entry entry = sEntries.get(name);
+            if (entry == null) {
+                misses.add(name);
+            } else {
+                entry.used = true;
+            }
+        }
+        if (misses.isEmpty()) {
+            return;
+        }
+        try (TraceUtils.Span ignored = TraceUtils.begin("PinyinCache.precompute")) {
+            if (misses.size() < PARALLEL_THRESHOLD) {
+                for (String name : misses) {
+                    sEntries.put(name, new Entry(Utils.getPinYinAbbr(name), true));
+                }
+            } else {
+                Flowable.fromIterable(misses).parallel().runOn(Schedulers.computation())
+                        .doOnNext(name -> sEntries.put(name, new Entry(Utils.getPinYinAbbr(name), true)))
+                        .sequential().blockingSubscribe();
+            }
+        }
+        sDirty = true;
+        saveAsync();
+    }
+
+    /**
+     * 如果有新的条目，在后台保存缓存
+     */
+    public static void saveAsync() {
+        if (!sDirty) {
+            return;
+        }
+        sDirty = false;
+        Schedulers.io().scheduleDirect(() -> {
+            synchronized (sEntries) {
+                File file = getFile();
+                File temp = new File(file.getPath() + ".tmp");
+                try {
+                    write(temp);
+                    if (temp.renameTo(file)) {
+                        return;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LogUtils.error("Failed to save pinyin cache: " + e.getMessage());
+                }
+                IoUtils.deleteFile(temp);
+            }
+        });
+    }
+
+    @WorkerThread
+    private static void write(@NonNull File file) throws IOException {
+        List<Map.Entry<String, Entry>> kept = new ArrayList<>(sEntries.size());
+        List<Map.Entry<String, Entry>> unused = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : sEntries.entrySet()) {
+            (entry.getValue().used ? kept : unused).add(entry);
+        }
+        for (int i = 0; i < unused.size() && kept.size() < MAX_ENTRIES; i++) {
+            kept.add(unused.get(i));
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+            out.writeInt(VERSION);
+            out.writeInt(kept.size());
+            for (Map.Entry<String, Entry> entry : kept) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue().abbr);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.util;
+
+import androidx.annotation.NonNull;
+import androidx.collection.SimpleArrayMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 前缀树，用于按前缀查找值，一个键可以对应多个值
+ *
+ * @param <V> 值的类型
+ */
+public class PrefixTrie<V> {
+    private Node<V> mRoot = new Node<>();
+
+    private static final class Node<V> {
+        /**
+         * 子节点，大多数节点没有或只有少数子节点，因此延迟创建并使用{@link SimpleArrayMap}
+         */
+        SimpleArrayMap<Character, Node<V>> children;
+        List<V> values;
+    }
+
+    public void put(@NonNull String key, @NonNull V value) {
+        Node<V> node = mRoot;
+        for (int i = 0; i < key.length(); i++) {
+            if (node.children == null) {
+                node.children = new SimpleArrayMap<>(2);
+            }
+            Character c = key.charAt(i);
+            Node<V> child = node.children.get(c);
+            if (child == null) {
+                child = new Node<>();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if (node.values == null) {
+            node.values = new ArrayList<>(1);
+        }
+        node.values.add(value);
+    }
+
+    /**
+     * 移除键对应的值，并剪除因此不再有值也没有子节点的节点，避免反复增删后前缀树只增不减
+     */
+    public void remove(@NonNull String key, @NonNull V value) {
+        //记录沿途的节点，以便自下而上剪枝
+        List<Node<V>> path = new ArrayList<>(key.length() + 1);
+        Node<V> node = mRoot;
+        path.add(node);
+        for (int i = 0; i < key.length(); i++) {
+            node = node.children == null ? null : node.children.get(key.charAt(i));
+            if (node == null) {
+                return;
+            }
+            path.add(node);
+        }
+        if (node.values == null || !node.values.remove(value)) {
+            return;
+        }
+        if (node.values.isEmpty()) {
+            node.values = null;
+        }
+        for (int i = key.length(); i > 0; i--) {
+            Node<V> child = path.get(i);
+            if (child.values != null || (child.children != null && !child.children.isEmpty())) {
+                break;
+            }
+            Node<V> parent = path.get(i - 1);
+            parent.children.remove(key.charAt(i - 1));
+            if (parent.children.isEmpty()) {
+                parent.children = null;
+            }
+        }
+    }
+
+    /**
+     * 收集所有键以{@param prefix}开头的值
+     *
+     * @param prefix 前缀
+     * @param out    收集到的值
+     */
+    public void collect(@NonNull String prefix, @NonNull Collection<V> out) {
+        Node<V> start = find(prefix);
+        if (start == null) {
+            return;
+        }
+        Deque<Node<V>> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            Node<V> node = stack.pop();
+            if (node.values != null) {
+                out.addAll(node.values);
+            }
+            if (node.children != null) {
+                for (int i = 0; i < node.children.size(); i++) {
+                    stack.push(node.children.valueAt(i));
+                }
+            }
+        }
+    }
+
+    private Node<V> find(@NonNull String key) {
+        Node<V> node = mRoot;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.children == null ? null : node.children.get(key.charAt(i));
+        }
+        return node;
+    }
+
+    public void clear() {
+        mRoot = new Node<>();
+    }
+}
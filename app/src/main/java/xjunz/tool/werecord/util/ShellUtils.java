@@ -15,8 +15,14 @@ import com.jaredrummler.android.shell.ShellExitCode;
 import com.jaredrummler.android.shell.ShellNotFoundException;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 
 public class ShellUtils {
 
@@ -120,6 +126,113 @@ public class ShellUtils {
         return sudo("cat", path).getStdout();
     }
 
+    /**
+     * 文件的基本属性，由{@link ShellUtils#stat(String)}获取
+     */
+    public static class FileStat {
+        /**
+         * 文件大小，单位为字节
+         */
+        public final long size;
+        /**
+         * 文件最后修改时间，单位为秒
+         */
+        public final long lastModified;
+
+        FileStat(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * 使用{@code stat}指令获取指定文件的大小和最后修改时间
+     *
+     * @param path 指定文件路径
+     * @return 文件的 {@link FileStat}
+     * @throws ShellException 指令运行失败时抛出的异常
+     */
+    @NonNull
+    public static FileStat stat(String path) throws ShellException {
+        String out = sudo("stat", "-c", "'%s %Y'", path).getStdout();
+        String[] parts = out.trim().split(" ");
+        if (parts.length != 2) {
+            throw new ShellException("Unknown result: " + out);
+        }
+        try {
+            return new FileStat(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        } catch (NumberFormatException e) {
+            throw new ShellException("Unknown result: " + out);
+        }
+    }
+
+    /**
+     * 以root用户身份打开某一文件的输入流，用于读取我们无权直接访问的二进制文件
+     * <p>
+     * 此方法会启动一个{@code su}进程并{@code cat}该文件，文件内容从进程的标准输出中读取，
+     * 因此不会在应用的数据文件夹内产生临时文件。关闭返回的流时会结束此进程。
+     * 读到流的末尾并不代表读取成功，进程可能中途退出，应当通过{@link RootInputStream#requireSuccess()}确认。
+     * </p>
+     *
+     * @param path 文件路径
+     * @return 文件内容的输入流，调用者负责关闭
+     * @throws IOException 无法启动{@code su}进程时抛出的异常
+     */
+    @WorkerThread
+    @NonNull
+    public static RootInputStream openInputStreamAsRoot(String path) throws IOException {
+        //在android q 以上，需使用挂载全局命名空间的su
+        String su = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? Shell.SU.shellMountMaster() : "su";
+        java.lang.Process process = Runtime.getRuntime().exec(su);
+        OutputStream stdin = process.getOutputStream();
+        stdin.write(("cat \"" + path + "\"\nexit\n").getBytes(StandardCharsets.UTF_8));
+        stdin.flush();
+        stdin.close();
+        return new RootInputStream(process);
+    }
+
+    /**
+     * 以root用户身份读取文件的输入流
+     *
+     * @see #openInputStreamAsRoot(String)
+     */
+    public static final class RootInputStream extends FilterInputStream {
+        private final java.lang.Process mProcess;
+
+        private RootInputStream(@NonNull java.lang.Process process) {
+            super(process.getInputStream());
+            mProcess = process;
+        }
+
+        /**
+         * 等待{@code su}进程退出，并确认其退出码为0，应当在读到流的末尾后调用
+         *
+         * @throws ShellException 进程以非0的退出码退出，即文件没有被完整读取
+         */
+        @WorkerThread
+        public void requireSuccess() throws ShellException {
+            int exitValue;
+            try {
+                exitValue = mProcess.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ShellException("Interrupted while waiting for su");
+            }
+            if (exitValue != 0) {
+                throw new ShellException("su exited with code " + exitValue);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                mProcess.destroy();
+            }
+        }
+    }
+
     public static void forceStop(String packageName) throws ShellException {
         sudo("am", "force-stop", packageName);
     }
@@ -131,6 +244,232 @@ public class ShellUtils {
         sudo("am", "start", activityName);
     }
 
+    /**
+     * 创建一个{@link Batch}
+     *
+     * @return 新的{@link Batch}
+     */
+    @NonNull
+    public static Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * 批处理中的一项文件操作，在{@link Batch#run()}之后才能获取其结果
+     */
+    public static class Operation {
+        private final String command;
+        private boolean done;
+        private int exitCode;
+        private String content;
+
+        private Operation(String command) {
+            this.command = command;
+        }
+
+        private void checkDone() {
+            if (!done) {
+                throw new IllegalStateException("Batch is not run yet! ");
+            }
+        }
+
+        /**
+         * @return 此操作的退出码
+         */
+        public int getExitCode() {
+            checkDone();
+            return exitCode;
+        }
+
+        public boolean isSuccessful() {
+            return getExitCode() == 0;
+        }
+
+        /**
+         * @return 对于{@link Batch#exists(String)}，返回文件是否存在
+         */
+        public boolean exists() {
+            return isSuccessful();
+        }
+
+        /**
+         * @return 此操作的标准输出，对于{@link Batch#cat(String)}，即文件的文本内容
+         */
+        public String getContent() {
+            checkDone();
+            return content;
+        }
+
+        /**
+         * 如果此操作失败，抛出异常
+         *
+         * @throws ShellException 此操作的退出码不为0时抛出的异常
+         */
+        public void requireSuccess() throws ShellException {
+            if (!isSuccessful()) {
+                throw new ShellException("\"" + command + "\" exited with " + exitCode);
+            }
+        }
+    }
+
+    /**
+     * 批量执行文件操作
+     * <p>
+     * 每次{@code su}调用的开销都很大，此类将多个文件操作拼接成一段脚本，只通过一次{@code su}调用执行，
+     * 然后从输出中解析出每个操作各自的退出码与输出。某一操作失败不会影响其他操作的执行。
+     * </p>
+     */
+    public static class Batch {
+        /**
+         * 因{@link #stopOnFailure()}而被跳过的操作的退出码
+         */
+        public static final int EXIT_CODE_SKIPPED = 255;
+        private final List<Operation> operations = new ArrayList<>();
+        /**
+         * 用于分隔每个操作的输出，随机生成以免与文件内容冲突
+         */
+        private final String delimiter = "wr-" + UUID.randomUUID().toString();
+        private boolean stopOnFailure;
+
+        private Batch() {
+        }
+
+        @NonNull
+        private Operation add(String command) {
+            Operation operation = new Operation(command);
+            operations.add(operation);
+            return operation;
+        }
+
+        /**
+         * 判断文件是否存在
+         *
+         * @see Operation#exists()
+         */
+        @NonNull
+        public Operation exists(String path) {
+            return add("[ -e \"" + path + "\" ]");
+        }
+
+        /**
+         * 获取文件的文本内容
+         *
+         * @see Operation#getContent()
+         */
+        @NonNull
+        public Operation cat(String path) {
+            return add("cat \"" + path + "\"");
+        }
+
+        /**
+         * 复制文件
+         *
+         * @see ShellUtils#cp(String, String)
+         */
+        @NonNull
+        public Operation cp(String srcPath, String tarPath) {
+            return add("cp \"" + srcPath + "\" \"" + tarPath + "\"");
+        }
+
+        /**
+         * 如果源文件存在，复制文件，源文件不存在时退出码也为0
+         *
+         * @see ShellUtils#cp2dataIfExists(String, String, boolean)
+         */
+        @NonNull
+        public Operation cpIfExists(String srcPath, String tarPath) {
+            return add("if [ -e \"" + srcPath + "\" ];then\n cp \"" + srcPath + "\" \"" + tarPath + "\"\nfi");
+        }
+
+        /**
+         * 如果文件存在，删除之
+         *
+         * @see ShellUtils#rmIfExists(String)
+         */
+        @NonNull
+        public Operation rmIfExists(String path) {
+            return add("if [ -e \"" + path + "\" ];then\n rm -f \"" + path + "\"\nfi");
+        }
+
+        /**
+         * 添加任意指令
+         */
+        @NonNull
+        public Operation command(String command) {
+            return add(command);
+        }
+
+        public boolean isEmpty() {
+            return operations.isEmpty();
+        }
+
+        /**
+         * 某一操作失败后，跳过其后的所有操作，被跳过的操作的退出码为{@link #EXIT_CODE_SKIPPED}
+         */
+        @NonNull
+        public Batch stopOnFailure() {
+            stopOnFailure = true;
+            return this;
+        }
+
+        /**
+         * 通过一次{@code su}调用执行所有操作
+         *
+         * @throws ShellException 脚本无法执行或者输出无法解析时抛出的异常
+         */
+        @WorkerThread
+        public void run() throws ShellException {
+            if (operations.isEmpty()) {
+                return;
+            }
+            //控制台可能是复用的，先重置失败标志
+            StringBuilder script = new StringBuilder("wr_failed=\n");
+            for (int i = 0; i < operations.size(); i++) {
+                //每个操作的输出以起始分隔行开始，以附带退出码的结束分隔行结束
+                script.append("echo '").append(delimiter).append("'\n");
+                if (stopOnFailure) {
+                    script.append("if [ -z \"$wr_failed\" ];then\n")
+                            .append(operations.get(i).command).append("\n")
+                            .append("else\n(exit ").append(EXIT_CODE_SKIPPED).append(")\nfi\n");
+                } else {
+                    script.append(operations.get(i).command).append("\n");
+                }
+                script.append("wr_code=$?\n")
+                        .append("if [ $wr_code -ne 0 ];then\n wr_failed=1\nfi\n")
+                        .append("echo \"\n").append(delimiter).append(" $wr_code\"\n");
+            }
+            String[] lines = sudo(script.toString()).getStdout().split("\n", -1);
+            int index = 0;
+            StringBuilder content = null;
+            for (String line : lines) {
+                if (content == null) {
+                    if (line.equals(delimiter)) {
+                        content = new StringBuilder();
+                    }
+                } else if (line.startsWith(delimiter + " ")) {
+                    if (index >= operations.size()) {
+                        break;
+                    }
+                    Operation operation = operations.get(index++);
+                    //去掉结束分隔行之前额外输出的换行
+                    int length = content.length();
+                    if (length > 0 && content.charAt(length - 1) == '\n') {
+                        content.setLength(length - 1);
+                    }
+                    operation.content = content.toString();
+                    operation.exitCode = Integer.parseInt(line.substring(delimiter.length() + 1).trim());
+                    operation.done = true;
+                    content = null;
+                } else {
+                    content.append(line).append("\n");
+                }
+            }
+            if (index != operations.size()) {
+                throw new ShellException("Failed to parse batch output, " + index + " of " + operations.size() + " operations completed");
+            }
+        }
+    }
+
     public static class SU_MM {
         private static volatile Shell.Console console;
 
@@ -160,8 +499,11 @@ public class ShellUtils {
             }
         }
 
+        /**
+         * 所有命令共用同一个控制台，因此需要同步，以免不同线程的命令输出相互混杂
+         */
         @WorkerThread
-        public static CommandResult run(@NonNull String... commands) {
+        public static synchronized CommandResult run(@NonNull String... commands) {
             try {
                 return getConsole().run(commands);
             } catch (ShellNotFoundException e) {
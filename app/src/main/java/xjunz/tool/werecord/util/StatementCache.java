@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 预编译语句的缓存，每个数据库各自持有一个，以SQL模板为键缓存{@link SQLiteStatement}，执行时绑定参数
+ * <p>
+ * 与拼接参数的SQL相比，同一模板只需编译一次，参数中的引号等字符也不会破坏语句。
+ * 查询多行的语句无法使用{@link SQLiteStatement}，但SQLCipher会按SQL文本缓存已编译的查询，
+ * 因此通过{@link #query(String, Object...)}以固定的模板和绑定参数查询，同样可以命中缓存。
+ * </p>
+ * <p>
+ * {@link SQLiteStatement}不是线程安全的，因此每次执行都在此语句上同步。语句在使用期间持有引用计数，
+ * 被逐出缓存或者释放时，如果仍在使用，由最后一个使用者关闭，而不会在绑定或执行期间被关闭。关闭数据库前应当调用
+ * {@link #release(SQLiteDatabase)}释放其上编译的语句，重新打开的数据库会使用新的缓存。
+ * </p>
+ */
+public final class StatementCache {
+    private static final int CAPACITY = 64;
+    private static final Map<SQLiteDatabase, StatementCache> sCaches = new WeakHashMap<>();
+    private final SQLiteDatabase mDatabase;
+    /**
+     * 只在持有此对象的锁时访问，包括其中{@link Entry}的引用计数
+     */
+    private final LruCache<String, Entry> mStatements = new LruCache<String, Entry>(CAPACITY) {
+        @Override
+        protected void entryRemoved(boolean evicted, @NonNull String key, @NonNull Entry oldValue, @Nullable Entry newValue) {
+            oldValue.removed = true;
+            if (oldValue.refs == 0) {
+                oldValue.statement.close();
+            }
+        }
+    };
+
+    /**
+     * 缓存中的语句及其引用计数
+     */
+    private static final class Entry {
+        final SQLiteStatement statement;
+        /**
+         * 正在使用此语句的调用数
+         */
+        int refs;
+        /**
+         * 是否已被逐出缓存，已逐出的语句在引用计数归零时关闭
+         */
+        boolean removed;
+
+        Entry(@NonNull SQLiteStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    private StatementCache(@NonNull SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * @return 指定数据库的语句缓存
+     */
+    @NonNull
+    public static StatementCache of(@NonNull SQLiteDatabase database) {
+        synchronized (sCaches) {
+            StatementCache cache = sCaches.get(database);
+            if (cache == null) {
+                cache = new StatementCache(database);
+                sCaches.put(database, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * 释放指定数据库的语句缓存，应当在关闭数据库前调用。缓存中的语句引用着数据库，不释放的话，
+     * 已关闭的数据库及其缓存都不会被回收
+     */
+    public static void release(@NonNull SQLiteDatabase database) {
+        StatementCache cache;
+        synchronized (sCaches) {
+            cache = sCaches.remove(database);
+        }
+        if (cache != null) {
+            synchronized (cache.mStatements) {
+                cache.mStatements.evictAll();
+            }
+        }
+    }
+
+    /**
+     * 获取语句并增加其引用计数，使用完毕后必须调用{@link #recycle(Entry)}
+     */
+    @NonNull
+    private Entry obtain(@NonNull String sql) {
+        synchronized (mStatements) {
+            Entry entry = mStatements.get(sql);
+            if (entry == null) {
+                entry = new Entry(mDatabase.compileStatement(sql));
+                mStatements.put(sql, entry);
+            }
+            entry.refs++;
+            return entry;
+        }
+    }
+
+    private void recycle(@NonNull Entry entry) {
+        synchronized (mStatements) {
+            if (--entry.refs == 0 && entry.removed) {
+                entry.statement.close();
+            }
+        }
+    }
+
+    private static void bind(@NonNull SQLiteStatement statement, @NonNull Object[] args) {
+        statement.clearBindings();
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                statement.bindNull(i + 1);
+            } else if (arg instanceof Integer || arg instanceof Long) {
+                statement.bindLong(i + 1, ((Number) arg).longValue());
+            } else if (arg instanceof Float || arg instanceof Double) {
+                statement.bindDouble(i + 1, ((Number) arg).doubleValue());
+            } else if (arg instanceof byte[]) {
+                statement.bindBlob(i + 1, (byte[]) arg);
+            } else {
+                statement.bindString(i + 1, arg.toString());
+            }
+        }
+    }
+
+    /**
+     * 执行只返回一行一列的查询，例如{@code select count(*)}
+     */
+    public long queryForLong(@NonNull String sql, @NonNull Object... args) {
+        Entry entry = obtain(sql);
+        try {
+            SQLiteStatement statement = entry.statement;
+            synchronized (statement) {
+                bind(statement, args);
+                return statement.simpleQueryForLong();
+            }
+        } finally {
+            recycle(entry);
+        }
+    }
+
+    @Nullable
+    public String queryForString(@NonNull String sql, @NonNull Object... args) {
+        Entry entry = obtain(sql);
+        try {
+            SQLiteStatement statement = entry.statement;
+            synchronized (statement) {
+                bind(statement, args);
+                return statement.simpleQueryForString();
+            }
+        } finally {
+            recycle(entry);
+        }
+    }
+
+    /**
+     * 查询是否存在满足条件的行
+     *
+     * @param table 表名
+     * @param where 条件，参数以{@code ?}占位
+     */
+    public boolean exists(@NonNull String table, @NonNull String where, @NonNull Object... args) {
+        return queryForLong("select count(*) from (select 1 from " + table + " where " + where + " limit 1)", args) != 0;
+    }
+
+    /**
+     * 执行不返回数据的语句，例如{@code update}、{@code delete}
+     */
+    public void execute(@NonNull String sql, @NonNull Object... args) {
+        Entry entry = obtain(sql);
+        try {
+            SQLiteStatement statement = entry.statement;
+            synchronized (statement) {
+                bind(statement, args);
+                statement.execute();
+            }
+        } finally {
+            recycle(entry);
+        }
+    }
+
+    /**
+     * 以固定的模板和绑定参数查询多行
+     * <p>
+     * 参数按类型绑定，与{@link #execute(String, Object...)}等一致：{@code null}绑定为NULL，整数和浮点数绑定为数值，
+     * {@code byte[]}绑定为BLOB，其他对象绑定为{@link Object#toString()}。不能转为字符串再绑定，
+     * 否则{@code null}会变为字符串"null"，数值也会与整数列按文本比较
+     * </p>
+     */
+    @NonNull
+    public Cursor query(@NonNull String sql, @NonNull Object... args) {
+        return mDatabase.rawQuery(sql, args);
+    }
+}
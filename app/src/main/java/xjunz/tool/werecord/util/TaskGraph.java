@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.util;
+
+import androidx.annotation.NonNull;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.functions.Action;
+
+/**
+ * 带依赖关系的任务图，用于并行执行启动流程中的各个步骤
+ * <p>
+ * 每个任务声明其依赖的任务，一个任务的所有依赖都完成后，它才会被提交到一个有界线程池中执行，
+ * 互不依赖的任务会并行执行。任一任务失败，后续任务都不会再被执行。执行完毕后，可以通过
+ * {@link #dumpTimings()}查看每个任务的耗时以及关键路径。
+ * </p>
+ */
+public class TaskGraph {
+    private static final int MAX_PARALLELISM = 4;
+    private final Map<String, Task> mTasks = new LinkedHashMap<>();
+    private long mStartTime;
+
+    private static class Task {
+        final String name;
+        final Action action;
+        final String[] dependencies;
+        final List<Task> dependents = new ArrayList<>();
+        final AtomicInteger pending = new AtomicInteger();
+        volatile long start;
+        volatile long end;
+        volatile String threadName;
+
+        Task(String name, Action action, String[] dependencies) {
+            this.name = name;
+            this.action = action;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * 添加一个任务
+     *
+     * @param name         任务名，在图中唯一
+     * @param action       任务内容
+     * @param dependencies 依赖的任务名，这些任务必须在执行前添加到图中
+     * @return 此任务图
+     */
+    @NonNull
+    public TaskGraph add(@NonNull String name, @NonNull Action action, @NonNull String... dependencies) {
+        if (mTasks.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicated task: " + name);
+        }
+        mTasks.put(name, new Task(name, action, dependencies));
+        return this;
+    }
+
+    public boolean contains(@NonNull String name) {
+        return mTasks.containsKey(name);
+    }
+
+    /**
+     * 创建一个执行此任务图的{@link Completable}，在主线程回调
+     */
+    @NonNull
+    public Completable execute() {
+        return Completable.create(this::start).observeOn(AndroidSchedulers.mainThread());
+    }
+
+    private void start(@NonNull CompletableEmitter emitter) {
+        List<Task> roots = new ArrayList<>();
+        for (Task task : mTasks.values()) {
+            task.dependents.clear();
+            task.pending.set(task.dependencies.length);
+        }
+        for (Task task : mTasks.values()) {
+            for (String name : task.dependencies) {
+                Task dependency = mTasks.get(name);
+                if (dependency == null) {
+                    throw new IllegalArgumentException("Task " + task.name + " depends on unknown task " + name);
+                }
+                dependency.dependents.add(task);
+            }
+            if (task.dependencies.length == 0) {
+                roots.add(task);
+            }
+        }
+        checkAcyclic(roots);
+        if (mTasks.isEmpty()) {
+            emitter.onComplete();
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger remaining = new AtomicInteger(mTasks.size());
+        AtomicBoolean failed = new AtomicBoolean(false);
+        mStartTime = System.nanoTime();
+        for (Task root : roots) {
+            submit(executor, root, remaining, failed, emitter);
+        }
+    }
+
+    private void submit(ExecutorService executor, Task task, AtomicInteger remaining, AtomicBoolean failed, CompletableEmitter emitter) {
+        executor.execute(() -> {
+            if (failed.get()) {
+                return;
+            }
+            task.threadName = Thread.currentThread().getName();
+            task.start = System.nanoTime();
+            try (TraceUtils.Span ignored = TraceUtils.begin("task:" + task.name)) {
+                task.action.run();
+            } catch (Throwable t) {
+                if (failed.compareAndSet(false, true)) {
+                    executor.shutdownNow();
+                    emitter.tryOnError(t);
+                }
+                return;
+            }
+            task.end = System.nanoTime();
+            if (remaining.decrementAndGet() == 0) {
+                executor.shutdown();
+                LogUtils.debug(dumpTimings());
+                emitter.onComplete();
+                return;
+            }
+            for (Task dependent : task.dependents) {
+                if (dependent.pending.decrementAndGet() == 0) {
+                    submit(executor, dependent, remaining, failed, emitter);
+                }
+            }
+        });
+    }
+
+    private void checkAcyclic(@NonNull List<Task> roots) {
+        Map<Task, Integer> inDegrees = new LinkedHashMap<>();
+        for (Task task : mTasks.values()) {
+            inDegrees.put(task, task.dependencies.length);
+        }
+        List<Task> queue = new ArrayList<>(roots);
+        int visited = 0;
+        while (!queue.isEmpty()) {
+            Task task = queue.remove(queue.size() - 1);
+            visited++;
+            for (Task dependent : task.dependents) {
+                Integer degree = inDegrees.get(dependent);
+                inDegrees.put(dependent, degree - 1);
+                if (degree == 1) {
+                    queue.add(dependent);
+                }
+            }
+        }
+        if (visited != mTasks.size()) {
+            throw new IllegalArgumentException("Cyclic dependencies found in task graph");
+        }
+    }
+
+    /**
+     * 输出每个任务的起止时间(相对于任务图开始执行的时间)、耗时、执行线程，以及关键路径
+     */
+    @NotNull
+    public String dumpTimings() {
+        StringBuilder sb = new StringBuilder("Task graph timings (ms):");
+        Task last = null;
+        for (Task task : mTasks.values()) {
+            sb.append("\n").append(task.name).append(": ").append(toMillis(task.start - mStartTime))
+                    .append(" -> ").append(toMillis(task.end - mStartTime))
+                    .append(" (").append(toMillis(task.end - task.start)).append(") @").append(task.threadName);
+            if (last == null || task.end > last.end) {
+                last = task;
+            }
+        }
+        //从最后完成的任务开始，沿着最晚完成的依赖回溯，即为关键路径
+        List<String> path = new ArrayList<>();
+        while (last != null) {
+            path.add(0, last.name);
+            Task latest = null;
+            for (String name : last.dependencies) {
+                Task dependency = mTasks.get(name);
+                if (latest == null || dependency.end > latest.end) {
+                    latest = dependency;
+                }
+            }
+            last = latest;
+        }
+        sb.append("\ncritical path: ").append(Arrays.toString(path.toArray()));
+        return sb.toString();
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+}
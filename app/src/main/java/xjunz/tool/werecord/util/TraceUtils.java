@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.util;
+
+import android.os.Process;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Completable;
+import xjunz.tool.werecord.BuildConfig;
+import xjunz.tool.werecord.Constants;
+
+/**
+ * 性能追踪工具，记录带线程ID、单调时间戳的嵌套区间，并导出为Chrome Trace/Perfetto兼容的JSON文件
+ * <p>
+ * 用法：
+ * <pre>
+ * try (TraceUtils.Span ignored = TraceUtils.begin("name")) {
+ *     //...
+ * }
+ * </pre>
+ * 同一线程中的区间按时间先后自然嵌套。区间只保留最近的{@link #CAPACITY}个，
+ * 追踪未开启时，{@link #begin(String)}返回空操作的区间，开销可以忽略不计。
+ * </p>
+ */
+public class TraceUtils {
+    private static final int CAPACITY = 100000;
+    private static final Event[] sEvents = new Event[CAPACITY];
+    private static final AtomicInteger sAsyncId = new AtomicInteger();
+    private static int sNext;
+    private static int sCount;
+    private static final SparseArray<String> sThreadNames = new SparseArray<>();
+    private static final Span NO_OP = new Span(null, false) {
+        @Override
+        public void close() {
+        }
+    };
+
+    private static class Event {
+        final String name;
+        final int tid;
+        final long start;
+        final long end;
+        final int asyncId;
+
+        Event(String name, int tid, long start, long end, int asyncId) {
+            this.name = name;
+            this.tid = tid;
+            this.start = start;
+            this.end = end;
+            this.asyncId = asyncId;
+        }
+    }
+
+    /**
+     * 一个追踪区间，在{@link #close()}时结束
+     */
+    public static class Span implements AutoCloseable {
+        private final String name;
+        private final int tid;
+        private final long start;
+        private final int asyncId;
+
+        private Span(String name, boolean async) {
+            this.name = name;
+            this.tid = Process.myTid();
+            this.asyncId = async ? sAsyncId.incrementAndGet() : 0;
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            record(new Event(name, tid, start, System.nanoTime(), asyncId));
+        }
+    }
+
+    public static boolean isEnabled() {
+        return BuildConfig.DEBUG || Constants.USER_DEBUGGABLE;
+    }
+
+    /**
+     * 在当前线程开始一个区间
+     *
+     * @param name 区间名
+     * @return 区间，使用完毕后需要关闭
+     */
+    @NonNull
+    public static Span begin(@NonNull String name) {
+        if (!isEnabled()) {
+            return NO_OP;
+        }
+        registerCurrentThread();
+        return new Span(name, false);
+    }
+
+    /**
+     * 追踪一个异步执行的{@link Completable}，区间从订阅开始，到完成或出错为止，
+     * 可以跨越多个线程
+     */
+    @NonNull
+    public static Completable traceAsync(@NonNull String name, @NonNull Completable completable) {
+        return Completable.defer(() -> {
+            if (!isEnabled()) {
+                return completable;
+            }
+            registerCurrentThread();
+            Span span = new Span(name, true);
+            return completable.doFinally(span::close);
+        });
+    }
+
+    private static void registerCurrentThread() {
+        int tid = Process.myTid();
+        synchronized (sThreadNames) {
+            if (sThreadNames.get(tid) == null) {
+                sThreadNames.put(tid, Thread.currentThread().getName());
+            }
+        }
+    }
+
+    private static synchronized void record(Event event) {
+        sEvents[sNext] = event;
+        sNext = (sNext + 1) % CAPACITY;
+        if (sCount < CAPACITY) {
+            sCount++;
+        }
+    }
+
+    /**
+     * 清空已记录的区间
+     */
+    public static synchronized void clear() {
+        sNext = 0;
+        sCount = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            sEvents[i] = null;
+        }
+    }
+
+    /**
+     * 将已记录的区间导出为Chrome Trace格式的JSON文件，可以用{@code chrome://tracing}或Perfetto打开
+     *
+     * @param dir 导出文件所在的文件夹
+     * @return 导出的文件
+     */
+    @WorkerThread
+    @NotNull
+    public static File export(@NonNull File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir.getPath());
+        }
+        Event[] events;
+        synchronized (TraceUtils.class) {
+            events = new Event[sCount];
+            int first = (sNext - sCount + CAPACITY) % CAPACITY;
+            for (int i = 0; i < sCount; i++) {
+                events[i] = sEvents[(first + i) % CAPACITY];
+            }
+        }
+        int pid = Process.myPid();
+        File file = new File(dir, "trace-" + System.currentTimeMillis() + ".json");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            boolean first = true;
+            synchronized (sThreadNames) {
+                for (int i = 0; i < sThreadNames.size(); i++) {
+                    if (!first) {
+                        writer.write(",");
+                    }
+                    first = false;
+                    writer.write(String.format("\n{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":%s,\"tid\":%s,\"args\":{\"name\":\"%s\"}}",
+                            pid, sThreadNames.keyAt(i), escape(sThreadNames.valueAt(i))));
+                }
+            }
+            for (Event event : events) {
+                if (!first) {
+                    writer.write(",");
+                }
+                first = false;
+                String name = escape(event.name);
+                if (event.asyncId == 0) {
+                    writer.write(String.format("\n{\"ph\":\"X\",\"cat\":\"wr\",\"name\":\"%s\",\"pid\":%s,\"tid\":%s,\"ts\":%s,\"dur\":%s}",
+                            name, pid, event.tid, toMicros(event.start), toMicros(event.end - event.start)));
+                } else {
+                    writer.write(String.format("\n{\"ph\":\"b\",\"cat\":\"wr\",\"name\":\"%1$s\",\"id\":%2$s,\"pid\":%3$s,\"tid\":%4$s,\"ts\":%5$s}," +
+                                    "\n{\"ph\":\"e\",\"cat\":\"wr\",\"name\":\"%1$s\",\"id\":%2$s,\"pid\":%3$s,\"tid\":%4$s,\"ts\":%6$s}",
+                            name, event.asyncId, pid, event.tid, toMicros(event.start), toMicros(event.end)));
+                }
+            }
+            writer.write("\n]}");
+        }
+        return file;
+    }
+
+    @NonNull
+    private static String toMicros(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1000d);
+    }
+
+    @NonNull
+    private static String escape(@NonNull String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
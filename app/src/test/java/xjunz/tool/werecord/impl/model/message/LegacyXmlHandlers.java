@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import xjunz.tool.werecord.util.Utils;
+
+/**
+ * 改用拉取式扫描之前的SAX解析逻辑，仅作为对照。去掉了对仓库和{@link android.content.Context}的依赖，
+ * 只记录解析出的原始值；元素名统一以qName匹配
+ */
+final class LegacyXmlHandlers {
+    private LegacyXmlHandlers() {
+    }
+
+    /**
+     * 解析失败时抛出
+     */
+    static final class ParseFailure extends Exception {
+        ParseFailure(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    private static void parse(String xml, DefaultHandler handler) throws ParseFailure {
+        try {
+            SAXParserFactory.newInstance().newSAXParser()
+                    .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), handler);
+        } catch (StopParseException ignored) {
+        } catch (Exception e) {
+            throw new ParseFailure(e);
+        }
+    }
+
+    private static final class StopParseException extends SAXException {
+        StopParseException() {
+            super("Stop parsing manually.");
+        }
+    }
+
+    /**
+     * 应用消息解析出的值，出错时保留出错前解析到的值
+     */
+    static final class App {
+        boolean hasAppMsg;
+        String appId;
+        String title;
+        String des;
+        Integer subtype;
+        Long totalLength;
+        boolean failed;
+    }
+
+    static App parseApp(String xml) {
+        App app = new App();
+        try {
+            parse(xml, new DefaultHandler() {
+                private String currentLocalName;
+                private final StringBuilder title = new StringBuilder();
+                private StringBuilder des = new StringBuilder();
+                private final StringBuilder type = new StringBuilder();
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    currentLocalName = qName;
+                    if ("appmsg".equals(qName)) {
+                        app.hasAppMsg = true;
+                        app.appId = attributes.getValue("appid");
+                    }
+                }
+
+                @Override
+                public void endElement(String uri, String localName, String qName) throws SAXException {
+                    switch (qName) {
+                        case "title":
+                            app.title = title.toString();
+                            break;
+                        case "des":
+                            app.des = des.toString();
+                            break;
+                        case "totallen":
+                            try {
+                                app.totalLength = Long.parseLong(des.toString());
+                            } catch (NumberFormatException ignored) {
+                            }
+                            throw new StopParseException();
+                        case "type":
+                            try {
+                                app.subtype = Integer.parseInt(type.toString());
+                            } catch (NumberFormatException e) {
+                                throw new StopParseException();
+                            }
+                            if (app.subtype != MessageFactory.SUBTYPE_FILE) {
+                                throw new StopParseException();
+                            }
+                            des = new StringBuilder();
+                            break;
+                    }
+                }
+
+                @Override
+                public void characters(char[] ch, int start, int length) {
+                    switch (currentLocalName) {
+                        case "title":
+                            title.append(ch, start, length);
+                            break;
+                        case "des":
+                        case "totallen":
+                            des.append(ch, start, length);
+                            break;
+                        case "type":
+                            type.append(ch, start, length);
+                            break;
+                    }
+                }
+            });
+        } catch (ParseFailure e) {
+            app.failed = true;
+        }
+        return app;
+    }
+
+    /**
+     * @return 填充后的入群消息模板，没有模板时返回{@code null}
+     */
+    static String fillJoinGroupTemplate(String xml) throws ParseFailure {
+        String[] result = new String[1];
+        parse(xml, new DefaultHandler() {
+            private boolean inTemplate;
+            private boolean inTarget;
+            private boolean inLink;
+            private String template;
+            private String currentPattern;
+            private List<String> patterns = new ArrayList<>();
+            private Map<String, String> matchedMap;
+
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                switch (qName) {
+                    case "template":
+                        inTemplate = true;
+                        break;
+                    case "link":
+                        inLink = true;
+                        currentPattern = attributes.getValue("name");
+                        break;
+                    case "plain":
+                    case "nickname":
+                        inTarget = true;
+                    default:
+                        break;
+                }
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName) {
+                switch (qName) {
+                    case "template":
+                        inTemplate = false;
+                        break;
+                    case "link":
+                        inLink = false;
+                        break;
+                    case "plain":
+                    case "nickname":
+                        inTarget = false;
+                        break;
+                }
+            }
+
+            @Override
+            public void endDocument() {
+                for (String pattern : patterns) {
+                    String matched = matchedMap.get(pattern);
+                    template = template.replace("$" + pattern + "$", matched == null ? "" : matched);
+                }
+                result[0] = template;
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                String text = new String(ch, start, length);
+                if (inTemplate) {
+                    template = text;
+                    patterns = Utils.extract(text, "\\$(.+?)\\$");
+                    matchedMap = new HashMap<>();
+                } else if (inLink && inTarget) {
+                    String matched = matchedMap.get(currentPattern);
+                    matchedMap.put(currentPattern, matched == null ? text : matched + "、" + text);
+                }
+            }
+        });
+        return result[0];
+    }
+
+    /**
+     * @return 拍一拍消息的各行模板，联系人仍以${wxid}占位
+     */
+    static List<String> scanPatTemplates(String xml) throws ParseFailure {
+        List<String> templates = new ArrayList<>();
+        parse(xml, new DefaultHandler() {
+            private boolean inTemplate;
+
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                if ("template".equals(qName)) {
+                    inTemplate = true;
+                }
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName) {
+                if ("template".equals(qName)) {
+                    inTemplate = false;
+                }
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                if (inTemplate) {
+                    templates.add(new String(ch, start, length));
+                }
+            }
+        });
+        return templates;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message;
+
+import android.app.Application;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 对照改用拉取式扫描之前的SAX解析逻辑{@link LegacyXmlHandlers}，检查应用消息和系统消息的XML解析结果是否一致
+ * <p>
+ * {@link android.util.Xml#newPullParser()}需要Android的实现，因此由Robolectric运行。
+ * 不使用{@link xjunz.tool.werecord.App}，避免加载SQLCipher的原生库。
+ * </p>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, application = Application.class)
+public class XmlParserEquivalenceTest {
+    private static final int REPEAT = 5000;
+    private static final int ROUNDS = 5;
+    private static final String[] APP_SAMPLES = {
+            //链接
+            "<msg><appmsg appid=\"\" sdkver=\"0\"><title>标题 &amp; 副标题</title><des>描述</des><action>view</action>"
+                    + "<type>5</type><url>http://mp.weixin.qq.com/s?a=1&amp;b=2</url></appmsg>"
+                    + "<fromusername>wxid_a</fromusername><appinfo><version>1</version><appname></appname></appinfo></msg>",
+            //带缩进的链接
+            "<?xml version=\"1.0\"?>\n<msg>\n\t<appmsg appid=\"wx1234567890\" sdkver=\"0\">\n\t\t<title><![CDATA[CDATA标题]]></title>\n"
+                    + "\t\t<des><![CDATA[CDATA描述]]></des>\n\t\t<type>5</type>\n\t\t<url />\n\t</appmsg>\n</msg>",
+            //文件
+            "<msg><appmsg appid=\"wx6618f1cfc6c132f8\" sdkver=\"0\"><title>report.pdf</title><des></des><action></action>"
+                    + "<type>6</type><showtype>0</showtype><appattach><totallen>1234567</totallen><attachid>@cdn_1</attachid>"
+                    + "<fileext>pdf</fileext></appattach><md5>abc</md5></appmsg></msg>",
+            //文件，totallen无法解析
+            "<msg><appmsg appid=\"\"><title>a.zip</title><des>旧描述</des><type>6</type><appattach><totallen>x</totallen>"
+                    + "</appattach></appmsg></msg>",
+            //文件，没有totallen
+            "<msg><appmsg appid=\"\"><title>b.zip</title><des>desc</des><type>6</type></appmsg></msg>",
+            //引用回复，type之后的refermsg中也有title等节点
+            "<msg><appmsg appid=\"\" sdkver=\"0\"><title>回复内容</title><des></des><type>57</type><refermsg><type>1</type>"
+                    + "<title>被引用</title><content>原文</content></refermsg></appmsg></msg>",
+            //转账
+            "<msg><appmsg appid=\"\" sdkver=\"\"><title><![CDATA[微信转账]]></title><des><![CDATA[收到转账0.01元]]></des>"
+                    + "<type>2000</type><wcpayinfo><paysubtype>1</paysubtype><feedesc><![CDATA[￥0.01]]></feedesc></wcpayinfo>"
+                    + "</appmsg></msg>",
+            //小程序，没有des
+            "<msg><appmsg appid=\"\"><title>小程序</title><type>33</type><weappinfo><username>gh_1@app</username>"
+                    + "</weappinfo></appmsg></msg>",
+            //type无法解析
+            "<msg><appmsg appid=\"wx1\"><title>t</title><des>d</des><type>abc</type><title>不应读取</title></appmsg></msg>",
+            //没有appmsg
+            "<msg><title>t</title></msg>",
+            //在type之前出错
+            "<msg><appmsg appid=\"wx2\"><title>截断</title><des>d</de></appmsg></msg>",
+            //在type之后出错，不影响结果
+            "<msg><appmsg appid=\"wx3\"><title>t</title><type>5</type><url></appmsg></msg>",
+            //不是XML
+            "[链接] 不是XML",
+    };
+
+    private static final String JOIN_GROUP = "<sysmsgtemplate><content_template type=\"tmpl_type_profile\">"
+            + "<plain><![CDATA[]]></plain><template><![CDATA[\"$username$\"邀请\"$names$\"加入了群聊]]></template>"
+            + "<link_list><link name=\"username\" type=\"link_profile\"><memberlist><member><username><![CDATA[wxid_a]]>"
+            + "</username><nickname><![CDATA[张三]]></nickname></member></memberlist></link>"
+            + "<link name=\"names\" type=\"link_profile\"><memberlist><member><username><![CDATA[wxid_b]]></username>"
+            + "<nickname><![CDATA[李四]]></nickname></member><member><username><![CDATA[wxid_c]]></username>"
+            + "<nickname><![CDATA[王五]]></nickname></member></memberlist><separator><![CDATA[、]]></separator></link>"
+            + "</link_list></content_template></sysmsgtemplate>";
+
+    private static final String[] JOIN_GROUP_SAMPLES = {
+            JOIN_GROUP,
+            //扫码入群，plain作为填充内容，另有未匹配的占位符
+            "<sysmsgtemplate><content_template type=\"tmpl_type_profilewithrevoke\"><plain><![CDATA[]]></plain>"
+                    + "<template><![CDATA[\"$adder$\"通过扫描\"$from$\"分享的二维码加入群聊  $revoke$]]></template>"
+                    + "<link_list><link name=\"adder\" type=\"link_profile\"><memberlist><member><nickname><![CDATA[赵六]]>"
+                    + "</nickname></member></memberlist></link><link name=\"from\" type=\"link_plain\"><plain><![CDATA[孙七]]>"
+                    + "</plain></link></link_list></content_template></sysmsgtemplate>",
+            //带缩进
+            "<sysmsgtemplate>\n  <content_template type=\"tmpl_type_profile\">\n    <template><![CDATA[你邀请\"$names$\"加入了群聊]]>"
+                    + "</template>\n    <link_list>\n      <link name=\"names\">\n        <memberlist>\n          <member>\n"
+                    + "            <nickname><![CDATA[周八]]></nickname>\n          </member>\n        </memberlist>\n"
+                    + "      </link>\n    </link_list>\n  </content_template>\n</sysmsgtemplate>",
+            //没有模板
+            "<sysmsgtemplate><content_template type=\"tmpl_type_profile\"></content_template></sysmsgtemplate>",
+    };
+
+    private static final String[] PAT_SAMPLES = {
+            "<sysmsg type=\"pat\"><pat><fromusername>wxid_a</fromusername><chatusername>123@chatroom</chatusername>"
+                    + "<pattedusername>wxid_b</pattedusername><patsuffix><![CDATA[]]></patsuffix>"
+                    + "<patsuffixversion>0</patsuffixversion><template><![CDATA[\"${wxid_a}\" 拍了拍 \"${wxid_b}\"]]></template>"
+                    + "</pat></sysmsg>",
+            //合并的多条拍一拍
+            "<sysmsg type=\"pat\"><pat><template><![CDATA[\"${wxid_a}\" 拍了拍我]]></template></pat>"
+                    + "<pat><template><![CDATA[我拍了拍 \"${wxid_c}\" 的头]]></template></pat></sysmsg>",
+            //没有模板
+            "<sysmsg type=\"pat\"><pat><fromusername>wxid_a</fromusername></pat></sysmsg>",
+    };
+
+    @Test
+    public void appMessagesParseLikeSax() {
+        for (String sample : APP_SAMPLES) {
+            LegacyXmlHandlers.App expected = LegacyXmlHandlers.parseApp(sample);
+            AppMessage.AppXml actual = new AppMessage.AppXml();
+            boolean failed = false;
+            try {
+                AppMessage.scanXml(sample, actual);
+            } catch (Exception e) {
+                failed = true;
+            }
+            assertEquals(sample, expected.failed, failed);
+            assertEquals(sample, expected.hasAppMsg, actual.hasAppMsg);
+            assertEquals(sample, expected.appId, actual.appId);
+            assertEquals(sample, expected.title, actual.title);
+            assertEquals(sample, expected.des, actual.des);
+            assertEquals(sample, expected.subtype, actual.subtype);
+            assertEquals(sample, expected.totalLength, actual.totalLength);
+        }
+    }
+
+    @Test
+    public void fileMessageReadsTotalLength() throws Exception {
+        AppMessage.AppXml xml = new AppMessage.AppXml();
+        AppMessage.scanXml(APP_SAMPLES[2], xml);
+        assertEquals(Integer.valueOf(MessageFactory.SUBTYPE_FILE), xml.subtype);
+        assertEquals(Long.valueOf(1234567), xml.totalLength);
+        assertEquals("report.pdf", xml.title);
+    }
+
+    @Test
+    public void joinGroupMessagesParseLikeSax() throws Exception {
+        for (String sample : JOIN_GROUP_SAMPLES) {
+            assertEquals(sample, LegacyXmlHandlers.fillJoinGroupTemplate(sample), SystemMessage.fillJoinGroupTemplate(sample));
+        }
+        assertEquals("\"张三\"邀请\"李四、王五\"加入了群聊", SystemMessage.fillJoinGroupTemplate(JOIN_GROUP));
+        assertNull(SystemMessage.fillJoinGroupTemplate(JOIN_GROUP_SAMPLES[3]));
+    }
+
+    @Test
+    public void patMessagesParseLikeSax() throws Exception {
+        for (String sample : PAT_SAMPLES) {
+            assertEquals(sample, LegacyXmlHandlers.scanPatTemplates(sample), SystemMessage.scanPatTemplates(sample));
+        }
+        assertEquals(Arrays.asList("\"${wxid_a}\" 拍了拍我", "我拍了拍 \"${wxid_c}\" 的头"),
+                SystemMessage.scanPatTemplates(PAT_SAMPLES[1]));
+    }
+
+    /**
+     * SAX可能把一段文本分成多次回调，例如在字符实体处，旧的逻辑只保留了最后一段。这里不再对照，而是检查完整的文本
+     */
+    @Test
+    public void entitiesAreNotSplit() throws Exception {
+        String join = "<sysmsgtemplate><content_template><template>\"$names$\" &amp; 你</template><link_list>"
+                + "<link name=\"names\"><memberlist><member><nickname>A&lt;B</nickname></member></memberlist></link>"
+                + "</link_list></content_template></sysmsgtemplate>";
+        assertEquals("\"A<B\" & 你", SystemMessage.fillJoinGroupTemplate(join));
+        String pat = "<sysmsg type=\"pat\"><pat><template>\"${wxid_a}\" 拍了拍 &quot;我&quot;</template></pat></sysmsg>";
+        assertEquals(Arrays.asList("\"${wxid_a}\" 拍了拍 \"我\""), SystemMessage.scanPatTemplates(pat));
+    }
+
+    /**
+     * 在样本上重复解析，对比SAX与拉取式扫描的耗时
+     */
+    @Test
+    public void compareParseTime() {
+        long saxBest = Long.MAX_VALUE, scanBest = Long.MAX_VALUE;
+        int sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < REPEAT; i++) {
+                for (String sample : APP_SAMPLES) {
+                    sink += LegacyXmlHandlers.parseApp(sample).failed ? 1 : 0;
+                }
+                for (String sample : JOIN_GROUP_SAMPLES) {
+                    try {
+                        sink += Objects.hashCode(LegacyXmlHandlers.fillJoinGroupTemplate(sample));
+                    } catch (LegacyXmlHandlers.ParseFailure e) {
+                        sink++;
+                    }
+                }
+                for (String sample : PAT_SAMPLES) {
+                    try {
+                        sink += LegacyXmlHandlers.scanPatTemplates(sample).size();
+                    } catch (LegacyXmlHandlers.ParseFailure e) {
+                        sink++;
+                    }
+                }
+            }
+            saxBest = Math.min(saxBest, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < REPEAT; i++) {
+                for (String sample : APP_SAMPLES) {
+                    try {
+                        AppMessage.scanXml(sample, new AppMessage.AppXml());
+                    } catch (Exception e) {
+                        sink++;
+                    }
+                }
+                for (String sample : JOIN_GROUP_SAMPLES) {
+                    try {
+                        sink += Objects.hashCode(SystemMessage.fillJoinGroupTemplate(sample));
+                    } catch (Exception e) {
+                        sink++;
+                    }
+                }
+                for (String sample : PAT_SAMPLES) {
+                    try {
+                        sink += SystemMessage.scanPatTemplates(sample).size();
+                    } catch (Exception e) {
+                        sink++;
+                    }
+                }
+            }
+            scanBest = Math.min(scanBest, System.nanoTime() - start);
+        }
+        int count = REPEAT * (APP_SAMPLES.length + JOIN_GROUP_SAMPLES.length + PAT_SAMPLES.length);
+        System.out.printf("%d messages, best of %d: SAX %.1fms, XmlScanner %.1fms (%d)%n", count, ROUNDS,
+                saxBest / 1e6, scanBest / 1e6, sink);
+    }
+
+    @Test
+    public void malformedSystemMessagesThrow() {
+        String[] samples = {"<sysmsg type=\"pat\"><pat><template>x</pat>", "不是XML"};
+        for (String sample : samples) {
+            try {
+                SystemMessage.scanPatTemplates(sample);
+                fail(sample);
+            } catch (XmlPullParserException expected) {
+                assertTrue(true);
+            } catch (Exception e) {
+                fail(sample + ": " + e);
+            }
+        }
+    }
+}
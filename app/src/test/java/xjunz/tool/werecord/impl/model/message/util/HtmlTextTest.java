@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message.util;
+
+import android.app.Application;
+
+import androidx.core.text.HtmlCompat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 固定{@link HtmlText#extract(String)}的输出，并与{@link HtmlCompat#fromHtml(String, int)}对照
+ * <p>
+ * {@link HtmlCompat}需要Android的实现，因此由Robolectric运行。
+ * </p>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, application = Application.class)
+public class HtmlTextTest {
+    private static final int MESSAGE_COUNT = 100_000;
+    private static final int ROUNDS = 5;
+    private static final String[] WELL_FORMED = {
+            "a &amp; b &lt;c&gt; &quot;d&quot; &apos;e&apos; &#39;f&#39; &#x4e2d;&#25991; &nbsp;x",
+            "line1<br>line2<BR/>line3<br />line4",
+            "多行\n文本\n\n结尾",
+            "<b>粗<i>斜</i></b><a href=\"weixin://contacts/profile/wxid_a\">链接</a>",
+            "<font color=\"#ff0000\">红</font>色",
+            "<!-- 注释 -->后",
+            "  行首空白",
+            "1 < 2 and 3 > 2",
+            "\"张三\"撤回了一条消息",
+            "emoji 😀 &#x1f600;",
+    };
+
+    private static String legacy(String html) {
+        return HtmlCompat.fromHtml(html.replace("\n", "<br>"), HtmlCompat.FROM_HTML_MODE_LEGACY).toString();
+    }
+
+    @Test
+    public void decodesEntities() {
+        assertEquals("a & b <c> \"d\" 'e'", HtmlText.extract("a &amp; b &lt;c&gt; &quot;d&quot; &apos;e&apos;"));
+        assertEquals("'中文 ", HtmlText.extract("&#39;&#x4e2d;&#25991;&nbsp;"));
+        assertEquals("😀", HtmlText.extract("&#x1F600;"));
+        assertEquals("&amp;", HtmlText.extract("&amp;amp;"));
+    }
+
+    @Test
+    public void convertsBreaks() {
+        assertEquals("a\nb\nc\nd\ne", HtmlText.extract("a<br>b<BR/>c<br />d\ne"));
+        assertEquals("a\n\nb", HtmlText.extract("a<br><br>b"));
+        //不是<br>的标签
+        assertEquals("ab", HtmlText.extract("a<brx>b"));
+        assertEquals("ab", HtmlText.extract("a<b>b"));
+    }
+
+    @Test
+    public void stripsNestedTags() {
+        assertEquals("粗斜链接", HtmlText.extract("<b>粗<i>斜</i></b><a href=\"x\">链接</a>"));
+        assertEquals("红色", HtmlText.extract("<font color=\"#ff0000\"><b>红</b></font>色"));
+        assertEquals("后", HtmlText.extract("<!-- 注释 -->后"));
+        assertEquals("a\nb", HtmlText.extract("<p><span>a<br/></span></p>b"));
+    }
+
+    @Test
+    public void collapsesWhitespace() {
+        assertEquals("a b c", HtmlText.extract("a  \t b   c"));
+        assertEquals("行首", HtmlText.extract("  \t行首"));
+        assertEquals("a\nb", HtmlText.extract("a\n  b"));
+        assertEquals("", HtmlText.extract("   "));
+        assertEquals("", HtmlText.extract(""));
+        assertEquals("", HtmlText.extract(null));
+    }
+
+    /**
+     * 不完整的标记按原文保留，不会丢失后面的文本
+     */
+    @Test
+    public void keepsMalformedMarkup() {
+        assertEquals("<", HtmlText.extract("<"));
+        assertEquals("a <b", HtmlText.extract("a <b"));
+        assertEquals("1 < 2", HtmlText.extract("1 < 2"));
+        assertEquals("a <3 b", HtmlText.extract("a <3 b"));
+        assertEquals("tail &", HtmlText.extract("tail &"));
+        assertEquals("&unknown; &amp &#xZZ; &#99999999;", HtmlText.extract("&unknown; &amp &#xZZ; &#99999999;"));
+        assertEquals("&;", HtmlText.extract("&;"));
+        assertEquals("&verylongentityname;", HtmlText.extract("&verylongentityname;"));
+    }
+
+    @Test
+    public void matchesHtmlCompatOnWellFormedText() {
+        for (String html : WELL_FORMED) {
+            assertEquals(html, legacy(html), HtmlText.extract(html));
+        }
+    }
+
+    /**
+     * 模拟的文本消息和系统消息，大部分为纯文本，部分含有实体、换行和标签
+     */
+    private static List<String> messages() {
+        Random random = new Random(7);
+        List<String> messages = new ArrayList<>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            StringBuilder sb = new StringBuilder();
+            int words = 3 + random.nextInt(30);
+            for (int j = 0; j < words; j++) {
+                switch (random.nextInt(12)) {
+                    case 0:
+                        sb.append("&amp;");
+                        break;
+                    case 1:
+                        sb.append('\n');
+                        break;
+                    case 2:
+                        sb.append("<a href=\"weixin://contacts/profile/wxid_").append(j).append("\">张三</a>");
+                        break;
+                    case 3:
+                        sb.append("&lt;引用&gt;");
+                        break;
+                    default:
+                        sb.append(random.nextBoolean() ? "消息内容" : "hello");
+                        break;
+                }
+                sb.append(' ');
+            }
+            messages.add(sb.toString().trim());
+        }
+        return messages;
+    }
+
+    @Test
+    public void compareExtractionTime() {
+        List<String> messages = messages();
+        for (String message : messages.subList(0, 1000)) {
+            assertEquals(message, legacy(message), HtmlText.extract(message));
+        }
+        long legacyBest = Long.MAX_VALUE, extractBest = Long.MAX_VALUE;
+        int sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (String message : messages) {
+                sink += legacy(message).length();
+            }
+            legacyBest = Math.min(legacyBest, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (String message : messages) {
+                sink += HtmlText.extract(message).length();
+            }
+            extractBest = Math.min(extractBest, System.nanoTime() - start);
+        }
+        System.out.printf("%d messages, best of %d: HtmlCompat %.1fms, HtmlText %.1fms (%d)%n", MESSAGE_COUNT, ROUNDS,
+                legacyBest / 1e6, extractBest / 1e6, sink);
+    }
+}
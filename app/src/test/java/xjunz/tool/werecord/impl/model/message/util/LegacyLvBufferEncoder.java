@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 改写前基于{@link ByteBuffer}的LvBuffer编码器，作为{@link LvBufferUtils#generateLvBuffer(Object[], int[])}的对照。
+ * 原实现使用平台默认的字符集，Android上即UTF-8，此处显式指定以免受测试环境影响
+ */
+final class LegacyLvBufferEncoder {
+    private ByteBuffer mByteBuffer;
+
+    byte[] generateLvBuffer(Object[] parsed, int[] serial) {
+        mByteBuffer = ByteBuffer.allocate(4096);
+        mByteBuffer.put((byte) 123);
+        for (int i = 0; i < parsed.length; i++) {
+            Object obj = parsed[i];
+            switch (serial[i]) {
+                case LvBufferUtils.TYPE_INTEGER:
+                    if (obj != null) {
+                        putInt((Integer) obj);
+                    }
+                    break;
+                case LvBufferUtils.TYPE_STRING:
+                    putString((String) obj);
+                    break;
+                case LvBufferUtils.TYPE_BUFFER:
+                    putBuffer((byte[]) obj);
+                    break;
+                case LvBufferUtils.TYPE_LONG:
+                    if (obj != null) {
+                        putLong(((Number) obj).longValue());
+                    }
+                    break;
+            }
+        }
+        lengthenIfNecessary(1);
+        mByteBuffer.put((byte) 125);
+        byte[] buffer = new byte[mByteBuffer.position()];
+        System.arraycopy(mByteBuffer.array(), 0, buffer, 0, buffer.length);
+        return buffer;
+    }
+
+    private void lengthenIfNecessary(int length) {
+        if (mByteBuffer.remaining() <= length) {
+            ByteBuffer allocate = ByteBuffer.allocate(mByteBuffer.limit() + 4096);
+            allocate.put(mByteBuffer.array(), 0, mByteBuffer.position());
+            mByteBuffer = allocate;
+        }
+    }
+
+    private void putInt(int i) {
+        lengthenIfNecessary(4);
+        mByteBuffer.putInt(i);
+    }
+
+    private void putLong(long j) {
+        lengthenIfNecessary(8);
+        mByteBuffer.putLong(j);
+    }
+
+    private void putBuffer(byte[] buffer) {
+        if (buffer == null) {
+            buffer = new byte[0];
+        }
+        if (buffer.length > LvBufferUtils.MAX_BYTES_LENGTH) {
+            throw new IllegalArgumentException("Unexpected buffer length: " + buffer.length);
+        }
+        lengthenIfNecessary(buffer.length + 2);
+        mByteBuffer.putShort((short) buffer.length);
+        if (buffer.length > 0) {
+            mByteBuffer.put(buffer);
+        }
+    }
+
+    private void putString(String str) {
+        byte[] buffer = str == null ? new byte[0] : str.getBytes(StandardCharsets.UTF_8);
+        if (buffer.length > LvBufferUtils.MAX_BYTES_LENGTH) {
+            return;
+        }
+        lengthenIfNecessary(buffer.length + 2);
+        mByteBuffer.putShort((short) buffer.length);
+        if (buffer.length > 0) {
+            mByteBuffer.put(buffer);
+        }
+    }
+}
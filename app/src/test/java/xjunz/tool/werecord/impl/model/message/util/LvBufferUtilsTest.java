@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2021 xjunz. 保留所有权利
+ */
+package xjunz.tool.werecord.impl.model.message.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class LvBufferUtilsTest {
+    private static final int[] SERIAL = {
+            LvBufferUtils.TYPE_INTEGER, LvBufferUtils.TYPE_STRING, LvBufferUtils.TYPE_LONG, LvBufferUtils.TYPE_BUFFER,
+            LvBufferUtils.TYPE_STRING, LvBufferUtils.TYPE_INTEGER, LvBufferUtils.TYPE_STRING
+    };
+    private static final String[] STRINGS = {
+            null, "", "plain ascii", "中文内容", "emoji 😀👍", "mixed ü é ß 汉字 🎉",
+            "unpaired \uD800 high", "unpaired \uDC00 low", "trailing high \uD83D", "\u007f\u0080߿ࠀ￿"
+    };
+
+    private static Object[] fields(Random random) {
+        byte[] bytes = new byte[random.nextInt(64)];
+        random.nextBytes(bytes);
+        return new Object[]{
+                random.nextInt(), STRINGS[random.nextInt(STRINGS.length)], random.nextLong(),
+                random.nextBoolean() ? bytes : null, STRINGS[random.nextInt(STRINGS.length)],
+                random.nextInt(), STRINGS[random.nextInt(STRINGS.length)]
+        };
+    }
+
+    @Test
+    public void encodesLikeLegacyEncoder() {
+        LegacyLvBufferEncoder legacy = new LegacyLvBufferEncoder();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            Object[] fields = fields(random);
+            assertArrayEquals(Arrays.toString(fields), legacy.generateLvBuffer(fields, SERIAL), LvBufferUtils.generateLvBuffer(fields, SERIAL));
+        }
+    }
+
+    @Test
+    public void encodesEveryStringLikeLegacyEncoder() {
+        LegacyLvBufferEncoder legacy = new LegacyLvBufferEncoder();
+        int[] serial = {LvBufferUtils.TYPE_STRING};
+        for (String str : STRINGS) {
+            Object[] fields = {str};
+            assertArrayEquals(String.valueOf(str), legacy.generateLvBuffer(fields, serial), LvBufferUtils.generateLvBuffer(fields, serial));
+        }
+    }
+
+    @Test
+    public void roundTrip() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            Object[] fields = fields(random);
+            byte[] buffer = LvBufferUtils.generateLvBuffer(fields, SERIAL);
+            Object[] read = LvBufferUtils.readLvBuffer(buffer, SERIAL);
+            int[] offsets = LvBufferUtils.indexLvBuffer(buffer, SERIAL);
+            assertEquals(SERIAL.length, read.length);
+            for (int j = 0; j < SERIAL.length; j++) {
+                Object expected = fields[j];
+                switch (SERIAL[j]) {
+                    case LvBufferUtils.TYPE_STRING:
+                        //不成对的代理字符按UTF-8编码为'?'，其余字符串原样还原
+                        String str = (String) expected;
+                        expected = str == null ? "" : str.replaceAll("[\\uD800-\\uDBFF](?![\\uDC00-\\uDFFF])|(?<![\\uD800-\\uDBFF])[\\uDC00-\\uDFFF]", "?");
+                        break;
+                    case LvBufferUtils.TYPE_BUFFER:
+                        expected = expected == null ? new byte[0] : expected;
+                        break;
+                    default:
+                        break;
+                }
+                if (expected instanceof byte[]) {
+                    assertArrayEquals((byte[]) expected, (byte[]) read[j]);
+                    assertArrayEquals((byte[]) expected, (byte[]) LvBufferUtils.readField(buffer, offsets[j], SERIAL[j]));
+                } else {
+                    assertEquals(expected, read[j]);
+                    assertEquals(expected, LvBufferUtils.readField(buffer, offsets[j], SERIAL[j]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readsShortBufferAsPartialFields() {
+        byte[] buffer = LvBufferUtils.generateLvBuffer(new Object[]{1, "a"}, new int[]{LvBufferUtils.TYPE_INTEGER, LvBufferUtils.TYPE_STRING});
+        Object[] read = LvBufferUtils.readLvBuffer(buffer, SERIAL);
+        assertEquals(1, read[0]);
+        assertEquals("a", read[1]);
+        assertNull(read[2]);
+        int[] offsets = LvBufferUtils.indexLvBuffer(buffer, SERIAL);
+        assertEquals(-1, offsets[2]);
+    }
+
+    @Test
+    public void rejectsIllegalBuffers() {
+        assertNull(LvBufferUtils.readLvBuffer(null, SERIAL));
+        assertNull(LvBufferUtils.readLvBuffer(new byte[0], SERIAL));
+        assertNull(LvBufferUtils.readLvBuffer(new byte[]{'{', 0, 0}, SERIAL));
+        assertNull(LvBufferUtils.indexLvBuffer(new byte[]{0, 0, '}'}, SERIAL));
+    }
+
+    /**
+     * 截断后仍以'}'结尾的LvBuffer，只能解码出部分字段或者抛出{@link IllegalArgumentException}，不能越界
+     */
+    @Test
+    public void truncatedBuffersFailCleanly() {
+        Random random = new Random(13);
+        for (int i = 0; i < 200; i++) {
+            byte[] buffer = LvBufferUtils.generateLvBuffer(fields(random), SERIAL);
+            for (int length = 2; length < buffer.length; length++) {
+                byte[] truncated = Arrays.copyOf(buffer, length);
+                truncated[length - 1] = '}';
+                try {
+                    LvBufferUtils.readLvBuffer(truncated, SERIAL);
+                } catch (IllegalArgumentException expected) {
+                    //截断在字段中间
+                }
+                try {
+                    int[] offsets = LvBufferUtils.indexLvBuffer(truncated, SERIAL);
+                    for (int j = 0; j < offsets.length && offsets[j] >= 0; j++) {
+                        LvBufferUtils.readField(truncated, offsets[j], SERIAL[j]);
+                    }
+                } catch (IllegalArgumentException expected) {
+                    //截断在字段中间
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOversizedFields() {
+        char[] chars = new char[LvBufferUtils.MAX_BYTES_LENGTH + 1];
+        Arrays.fill(chars, 'a');
+        try {
+            LvBufferUtils.generateLvBuffer(new Object[]{new String(chars)}, new int[]{LvBufferUtils.TYPE_STRING});
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            LvBufferUtils.generateLvBuffer(new Object[]{new byte[LvBufferUtils.MAX_BYTES_LENGTH + 1]}, new int[]{LvBufferUtils.TYPE_BUFFER});
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        byte[] forged = {'{', 0x0c, 0x01, '}'};
+        try {
+            LvBufferUtils.readLvBuffer(forged, new int[]{LvBufferUtils.TYPE_STRING});
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * 对比改写前后编码十万个LvBuffer的耗时，结果输出到标准输出
+     */
+    @Test
+    public void benchmark() {
+        Random random = new Random(1);
+        Object[][] inputs = new Object[100000][];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = fields(random);
+        }
+        LegacyLvBufferEncoder legacy = new LegacyLvBufferEncoder();
+        long legacyBest = Long.MAX_VALUE, currentBest = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (Object[] input : inputs) {
+                sink += legacy.generateLvBuffer(input, SERIAL).length;
+            }
+            legacyBest = Math.min(legacyBest, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (Object[] input : inputs) {
+                sink -= LvBufferUtils.generateLvBuffer(input, SERIAL).length;
+            }
+            currentBest = Math.min(currentBest, System.nanoTime() - start);
+        }
+        assertEquals(0, sink);
+        System.out.printf("LvBuffer encode x%d: ByteBuffer %.1fms, LvBufferUtils %.1fms (best of 5)%n",
+                inputs.length, legacyBest / 1e6, currentBest / 1e6);
+    }
+}